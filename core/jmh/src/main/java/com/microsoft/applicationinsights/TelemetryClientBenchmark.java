@@ -0,0 +1,112 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import com.microsoft.applicationinsights.channel.TelemetryChannel;
+import com.microsoft.applicationinsights.telemetry.EventTelemetry;
+import com.microsoft.applicationinsights.telemetry.ExceptionTelemetry;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+import com.microsoft.applicationinsights.telemetry.TraceTelemetry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link TelemetryClient#track(Telemetry)}: the context initialization, sampling and
+ * telemetry processors, up to the channel which only counts the telemetries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TelemetryClientBenchmark {
+
+    private TelemetryClient client;
+    private Exception exception;
+    private long sent;
+
+    @Setup
+    public void setUp() {
+        TelemetryConfiguration configuration = new TelemetryConfiguration();
+        configuration.setInstrumentationKey("00000000-0000-0000-0000-000000000000");
+        configuration.setChannel(new TelemetryChannel() {
+            @Override
+            public boolean isDeveloperMode() {
+                return false;
+            }
+
+            @Override
+            public void setDeveloperMode(boolean value) {
+            }
+
+            @Override
+            public void send(Telemetry item) {
+                ++sent;
+            }
+
+            @Override
+            public void shutdown(long timeout, TimeUnit timeUnit) {
+            }
+
+            @Override
+            public void flush() {
+            }
+        });
+        client = new TelemetryClient(configuration);
+        exception = new IllegalStateException("benchmark");
+    }
+
+    @Benchmark
+    public void trackEvent() {
+        EventTelemetry telemetry = new EventTelemetry("event");
+        telemetry.getProperties().put("key", "value");
+        client.track(telemetry);
+    }
+
+    @Benchmark
+    public void trackTrace() {
+        client.track(new TraceTelemetry("a trace message"));
+    }
+
+    @Benchmark
+    public void trackRequest() {
+        client.track(new RequestTelemetry("GET /path", new Date(), 10L, "200", true));
+    }
+
+    @Benchmark
+    public void trackException() {
+        client.track(new ExceptionTelemetry(exception));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.microsoft.applicationinsights.telemetry.Duration;
+import com.microsoft.applicationinsights.telemetry.EventTelemetry;
+import com.microsoft.applicationinsights.telemetry.ExceptionTelemetry;
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import com.microsoft.applicationinsights.telemetry.PageViewTelemetry;
+import com.microsoft.applicationinsights.telemetry.PerformanceCounterTelemetry;
+import com.microsoft.applicationinsights.telemetry.RemoteDependencyTelemetry;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+import com.microsoft.applicationinsights.telemetry.TraceTelemetry;
+
+/**
+ * Creates the batches of telemetries the benchmarks serialize, the telemetries look like the ones the SDK
+ * sends: a few properties, context tags and an instrumentation key.
+ */
+final class BenchmarkTelemetries {
+
+    private BenchmarkTelemetries() {
+    }
+
+    static List<Telemetry> createBatch(String type, int size) {
+        List<Telemetry> batch = new ArrayList<Telemetry>(size);
+        for (int i = 0; i < size; ++i) {
+            Telemetry telemetry = create(type, i);
+            telemetry.setTimestamp(new Date(1500000000000L + i));
+            telemetry.getContext().setInstrumentationKey("00000000-0000-0000-0000-000000000000");
+            telemetry.getContext().getOperation().setId("operation-" + i);
+            telemetry.getContext().getCloud().setRole("benchmark");
+            telemetry.getProperties().put("index", String.valueOf(i));
+            telemetry.getProperties().put("escaped", "a \"quoted\" value\twith\ncontrol characters");
+            batch.add(telemetry);
+        }
+        return batch;
+    }
+
+    private static Telemetry create(String type, int i) {
+        if ("event".equals(type)) {
+            EventTelemetry telemetry = new EventTelemetry("event " + i);
+            telemetry.getMetrics().put("value", (double) i);
+            return telemetry;
+        }
+        if ("trace".equals(type)) {
+            return new TraceTelemetry("a trace message of the benchmark number " + i);
+        }
+        if ("request".equals(type)) {
+            return new RequestTelemetry("GET /path/" + i, new Date(), 10L + i, "200", true);
+        }
+        if ("dependency".equals(type)) {
+            return new RemoteDependencyTelemetry("SQL", "SELECT * FROM table WHERE id = " + i, new Duration(i), true);
+        }
+        if ("exception".equals(type)) {
+            return new ExceptionTelemetry(new IllegalStateException("exception " + i, new RuntimeException("cause")));
+        }
+        if ("metric".equals(type)) {
+            return new MetricTelemetry("metric", i);
+        }
+        if ("pageView".equals(type)) {
+            return new PageViewTelemetry("page " + i);
+        }
+        if ("performanceCounter".equals(type)) {
+            return new PerformanceCounterTelemetry("Processor", "% Processor Time", "_Total", i);
+        }
+        throw new IllegalArgumentException("Unknown telemetry type: " + type);
+    }
+}
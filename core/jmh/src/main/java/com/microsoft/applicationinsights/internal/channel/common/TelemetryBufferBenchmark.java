@@ -0,0 +1,100 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.util.LimitsEnforcer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link TelemetryBuffer#add(Object)} alone and under contention, the full batches are handed to a
+ * transmitter that only counts them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TelemetryBufferBenchmark {
+
+    private static final String TELEMETRY = "telemetry";
+
+    private TelemetryBuffer<String> buffer;
+
+    private final AtomicLong sentBatches = new AtomicLong();
+
+    @Setup
+    public void setUp() {
+        TelemetriesTransmitter<String> transmitter = new TelemetriesTransmitter<String>() {
+            @Override
+            public boolean scheduleSend(TelemetriesFetcher<String> telemetriesFetcher, long value, TimeUnit timeUnit) {
+                return true;
+            }
+
+            @Override
+            public boolean sendNow(Collection<String> telemetries) {
+                sentBatches.incrementAndGet();
+                return true;
+            }
+
+            @Override
+            public void shutdown(long timeout, TimeUnit timeUnit) {
+            }
+        };
+        buffer = new TelemetryBuffer<String>(transmitter,
+                LimitsEnforcer.createWithClosestLimitOnError("MaxTelemetryBufferCapacity", 1, 1000, 500, 500),
+                LimitsEnforcer.createWithClosestLimitOnError("FlushIntervalInSeconds", 1, 300, 5, 5));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void add() {
+        buffer.add(TELEMETRY);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addContended4() {
+        buffer.add(TELEMETRY);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void addContended16() {
+        buffer.add(TELEMETRY);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.util;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the {@link Sanitizer} methods that are still called for every telemetry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SanitizerBenchmark {
+
+    private Map<String, String> properties;
+    private Map<String, Double> measurements;
+    private String value;
+    private String url;
+
+    @Setup
+    public void setUp() {
+        properties = new HashMap<String, String>();
+        measurements = new HashMap<String, Double>();
+        for (int i = 0; i < 10; ++i) {
+            properties.put(" property " + i + " ", "value of the property " + i);
+            measurements.put("measurement " + i, (double) i);
+        }
+        value = "  a value with \"quotes\" and a\ttab  ";
+        url = "https://www.example.com/path/to/resource?query=value&other=1#fragment";
+    }
+
+    @Benchmark
+    public Map<String, String> sanitizeProperties() {
+        // The map is already sanitized after the first call, as it is once a telemetry was tracked
+        Sanitizer.sanitizeProperties(properties);
+        return properties;
+    }
+
+    @Benchmark
+    public Map<String, Double> sanitizeMeasurements() {
+        Sanitizer.sanitizeMeasurements(measurements);
+        return measurements;
+    }
+
+    @Benchmark
+    public String sanitizeValue() {
+        return Sanitizer.sanitizeValue(value);
+    }
+
+    @Benchmark
+    public String sanitizeName() {
+        return Sanitizer.sanitizeName(value);
+    }
+
+    @Benchmark
+    public URI sanitizeUri() {
+        return Sanitizer.sanitizeUri(url);
+    }
+}
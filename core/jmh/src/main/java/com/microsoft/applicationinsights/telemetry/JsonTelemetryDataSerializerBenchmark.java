@@ -0,0 +1,109 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.telemetry;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.microsoft.applicationinsights.internal.schemav2.MessageData;
+import com.squareup.moshi.JsonWriter;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the escaping of the strings written by {@link JsonTelemetryDataSerializer}, through Moshi and
+ * through the generated writers of the schema classes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonTelemetryDataSerializerBenchmark {
+
+    @Param({"ascii", "escaped", "unicode"})
+    public String content;
+
+    @Param({"64", "4096"})
+    public int length;
+
+    private Buffer buffer;
+    private JsonTelemetryDataSerializer serializer;
+    private String value;
+    private MessageData message;
+
+    @Setup
+    public void setUp() throws IOException {
+        buffer = new Buffer();
+        serializer = new JsonTelemetryDataSerializer(JsonWriter.of(buffer));
+        value = createValue(content, length);
+        message = new MessageData();
+        message.setMessage(value);
+    }
+
+    @Benchmark
+    public long writeString() throws IOException {
+        serializer.write("message", value, 32768);
+        return drain();
+    }
+
+    @Benchmark
+    public long writeGenerated() throws IOException {
+        serializer.write("data", message);
+        return drain();
+    }
+
+    private long drain() {
+        long size = buffer.size();
+        buffer.clear();
+        return size;
+    }
+
+    private static String createValue(String content, int length) {
+        String pattern;
+        if ("ascii".equals(content)) {
+            pattern = "The quick brown fox jumps over the lazy dog. ";
+        } else if ("escaped".equals(content)) {
+            pattern = "\"quoted\"\tC:\\path\\file\r\n";
+        } else {
+            pattern = "caf\u00e9 \u4e2d\u6587 \u2028 ";
+        }
+
+        StringBuilder builder = new StringBuilder(length);
+        while (builder.length() < length) {
+            builder.append(pattern);
+        }
+        builder.setLength(length);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.schemav2.codegen;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a Json writer for every class annotated with {@link GenerateJsonWriter},
+ * and the 'SchemaJsonWriters' class that picks the writer by the exact class of a value.
+ *
+ * The generated code reads the fields through their getters and writes through 'RawJsonWriter', with the field
+ * names encoded once and the length limits inlined.
+ * The same annotations also give the 'serializeContent' that writes through 'JsonTelemetryDataSerializer', which the
+ * annotated classes delegate to, so the names and the limits of the fields are only declared once.
+ */
+public final class JsonWriterProcessor extends AbstractProcessor {
+
+    private static final String WRITER_CLASS = "RawJsonWriter";
+    private static final String REGISTRY_CLASS = "SchemaJsonWriters";
+    private static final String WRITER_SUFFIX = "JsonWriter";
+
+    private static final String DURATION = "com.microsoft.applicationinsights.telemetry.Duration";
+    private static final String JSON_SERIALIZABLE = "com.microsoft.applicationinsights.telemetry.JsonSerializable";
+    private static final String SEVERITY_LEVEL = "com.microsoft.applicationinsights.internal.schemav2.SeverityLevel";
+    private static final String DATA_POINT_TYPE = "com.microsoft.applicationinsights.internal.schemav2.DataPointType";
+    private static final String DATA_SERIALIZER = "com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer";
+
+    private final List<TypeElement> generated = new ArrayList<TypeElement>();
+    private boolean registryWritten;
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return new HashSet<String>(Arrays.asList(GenerateJsonWriter.class.getName(), JsonField.class.getName()));
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            return false;
+        }
+
+        Set<TypeElement> types = ElementFilter.typesIn(roundEnv.getElementsAnnotatedWith(GenerateJsonWriter.class));
+        for (TypeElement type : types) {
+            try {
+                writeWriter(type);
+                generated.add(type);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to generate the Json writer: " + e, type);
+            }
+        }
+
+        // The registry is written in the first round without new annotated classes, sources
+        // generated in the last round would not be compiled.
+        if (types.isEmpty() && !generated.isEmpty() && !registryWritten) {
+            registryWritten = true;
+            writeRegistry();
+        }
+        return true;
+    }
+
+    private void writeWriter(TypeElement type) throws IOException {
+        List<VariableElement> fields = new ArrayList<VariableElement>();
+        List<ExecutableElement> getters = new ArrayList<ExecutableElement>();
+        collectFields(type, fields, getters);
+
+        String simpleName = type.getSimpleName() + WRITER_SUFFIX;
+        String valueType = type.getSimpleName() + (type.getTypeParameters().isEmpty() ? "" : "<?>");
+
+        StringBuilder names = new StringBuilder();
+        StringBuilder body = new StringBuilder();
+        StringBuilder serializerBody = new StringBuilder();
+        Set<String> constants = new HashSet<String>();
+        for (int index = 0; index < fields.size(); ++index) {
+            VariableElement field = fields.get(index);
+            JsonField jsonField = field.getAnnotation(JsonField.class);
+            String constant = toConstantName(field);
+            for (int i = 2; !constants.add(constant); ++i) {
+                constant = toConstantName(field) + i;
+            }
+            names.append("    private static final byte[] ").append(constant)
+                    .append(" = ").append(WRITER_CLASS).append(".encodeName(\"").append(jsonField.value()).append("\");\n");
+
+            String access = "value." + getters.get(index).getSimpleName() + "()";
+            String statement = createWriteStatement(field, jsonField, constant, access);
+            if (statement != null) {
+                body.append("        ").append(statement).append('\n');
+                serializerBody.append("        ").append(createSerializeStatement(jsonField, access)).append('\n');
+            }
+        }
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(getPackageName(type) + "." + simpleName, type);
+        Writer writer = file.openWriter();
+        try {
+            writer.write("package " + getPackageName(type) + ";\n\n");
+            writer.write("import java.io.IOException;\n\n");
+            writer.write("/**\n * Generated by " + JsonWriterProcessor.class.getSimpleName() + " from {@link " + type.getSimpleName() + "}, do not edit.\n */\n");
+            // The schema classes may be deprecated, the generated code only reads them
+            writer.write("@SuppressWarnings(\"deprecation\")\n");
+            writer.write("final class " + simpleName + " {\n\n");
+            writer.write(names.toString());
+            writer.write("\n    private " + simpleName + "() {\n    }\n\n");
+            writer.write("    static void writeContent(" + WRITER_CLASS + " writer, " + valueType + " value) throws IOException {\n");
+            writer.write(body.toString());
+            writer.write("    }\n\n");
+            writer.write("    static void serializeContent(" + DATA_SERIALIZER + " writer, " + valueType + " value) throws IOException {\n");
+            writer.write(serializerBody.toString());
+            writer.write("    }\n}\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void collectFields(TypeElement type, List<VariableElement> fields, List<ExecutableElement> getters) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() == TypeKind.DECLARED) {
+            collectFields((TypeElement) ((DeclaredType) superclass).asElement(), fields, getters);
+        }
+
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            if (field.getAnnotation(JsonField.class) == null) {
+                continue;
+            }
+            ExecutableElement getter = findGetter(type, field);
+            if (getter == null) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "A field annotated with @JsonField needs a public getter", field);
+                continue;
+            }
+            fields.add(field);
+            getters.add(getter);
+        }
+    }
+
+    // The public 'getX' or 'isX' of the field 'x' without parameters, which returns the type of the field
+    private ExecutableElement findGetter(TypeElement type, VariableElement field) {
+        String name = field.getSimpleName().toString();
+        String capitalized = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        Types types = processingEnv.getTypeUtils();
+        for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            String methodName = method.getSimpleName().toString();
+            if ((methodName.equals("get" + capitalized) || methodName.equals("is" + capitalized))
+                    && method.getParameters().isEmpty()
+                    && method.getModifiers().contains(Modifier.PUBLIC)
+                    && !method.getModifiers().contains(Modifier.STATIC)
+                    && types.isSameType(method.getReturnType(), field.asType())) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    private String createWriteStatement(VariableElement field, JsonField jsonField, String constant, String access) {
+        TypeMirror type = field.asType();
+        switch (type.getKind()) {
+            case INT:
+            case SHORT:
+            case LONG:
+                return "writer.write(" + constant + ", (long) " + access + ");";
+            case DOUBLE:
+            case BOOLEAN:
+                return "writer.write(" + constant + ", " + access + ");";
+            default:
+                break;
+        }
+
+        String typeName = erasedName(type);
+        if ("java.lang.String".equals(typeName)) {
+            if (jsonField.maxLength() < 0) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "A string field needs a maxLength", field);
+                return null;
+            }
+            if (jsonField.required()) {
+                return "writer.writeRequired(" + constant + ", " + access + ", " + jsonField.maxLength() + ", \"DEFAULT " + jsonField.value() + "\");";
+            }
+            return "writer.write(" + constant + ", " + access + ", " + jsonField.maxLength() + ");";
+        }
+        if ("java.lang.Integer".equals(typeName) || "java.lang.Short".equals(typeName) || "java.lang.Long".equals(typeName)) {
+            return "writer.write(" + constant + ", (Number) " + access + ");";
+        }
+        if ("java.lang.Double".equals(typeName) || "java.lang.Boolean".equals(typeName)) {
+            return "writer.write(" + constant + ", " + access + ");";
+        }
+        if (DURATION.equals(typeName)) {
+            return "writer.writeString(" + constant + ", " + access + ".toString());";
+        }
+        if (SEVERITY_LEVEL.equals(typeName)) {
+            return "if (" + access + " != null) writer.writeString(" + constant + ", String.valueOf(" + access + "));";
+        }
+        if (DATA_POINT_TYPE.equals(typeName)) {
+            return "if (" + access + " != null) writer.write(" + constant + ", (long) " + access + ".getValue());";
+        }
+
+        Types types = processingEnv.getTypeUtils();
+        if (isAssignableTo(type, "java.util.Map")) {
+            return "writer.write(" + constant + ", (java.util.Map<String, ?>) " + access + ");";
+        }
+        if (isAssignableTo(type, "java.util.List")) {
+            return "writer.write(" + constant + ", (java.util.List<?>) " + access + ");";
+        }
+        if (isAssignableTo(types.erasure(type), JSON_SERIALIZABLE)) {
+            return "writer.write(" + constant + ", (" + JSON_SERIALIZABLE + ") " + access + ");";
+        }
+
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unsupported type of a @JsonField: " + type, field);
+        return null;
+    }
+
+    // The overload of 'JsonTelemetryDataSerializer.write' is picked by the type of the field
+    private static String createSerializeStatement(JsonField jsonField, String access) {
+        String name = "\"" + jsonField.value() + "\"";
+        if (jsonField.maxLength() >= 0) {
+            return "writer." + (jsonField.required() ? "writeRequired(" : "write(") + name + ", " + access + ", " + jsonField.maxLength() + ");";
+        }
+        return "writer.write(" + name + ", " + access + ");";
+    }
+
+    private void writeRegistry() {
+        String packageName = getPackageName(generated.get(0));
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(packageName + "." + REGISTRY_CLASS,
+                    generated.toArray(new Element[generated.size()]));
+            Writer writer = file.openWriter();
+            try {
+                writer.write("package " + packageName + ";\n\n");
+                writer.write("import java.io.IOException;\n\n");
+                writer.write("/**\n * Generated by " + JsonWriterProcessor.class.getSimpleName() + ", do not edit.\n */\n");
+                writer.write("@SuppressWarnings(\"deprecation\")\n");
+                writer.write("public final class " + REGISTRY_CLASS + " {\n\n");
+                writer.write("    private " + REGISTRY_CLASS + "() {\n    }\n\n");
+                writer.write("    /**\n");
+                writer.write("     * Writes the value as a Json object if there is a generated writer for its exact class.\n");
+                writer.write("     *\n");
+                writer.write("     * @return False if there is no generated writer for the class of the value, nothing is written then.\n");
+                writer.write("     */\n");
+                writer.write("    public static boolean write(" + WRITER_CLASS + " writer, Object value) throws IOException {\n");
+                writer.write("        Class<?> type = value.getClass();\n");
+                for (TypeElement type : generated) {
+                    if (!getPackageName(type).equals(packageName)) {
+                        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "All the classes with generated writers must be in " + packageName, type);
+                        continue;
+                    }
+                    String valueType = type.getSimpleName() + (type.getTypeParameters().isEmpty() ? "" : "<?>");
+                    writer.write("        if (type == " + type.getSimpleName() + ".class) {\n");
+                    writer.write("            writer.beginObject();\n");
+                    writer.write("            " + type.getSimpleName() + WRITER_SUFFIX + ".writeContent(writer, (" + valueType + ") value);\n");
+                    writer.write("            writer.endObject();\n");
+                    writer.write("            return true;\n");
+                    writer.write("        }\n");
+                }
+                writer.write("        return false;\n");
+                writer.write("    }\n}\n");
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to generate " + REGISTRY_CLASS + ": " + e);
+        }
+    }
+
+    private boolean isAssignableTo(TypeMirror type, String className) {
+        Types types = processingEnv.getTypeUtils();
+        TypeElement element = processingEnv.getElementUtils().getTypeElement(className);
+        return element != null && types.isAssignable(types.erasure(type), types.erasure(element.asType()));
+    }
+
+    private String erasedName(TypeMirror type) {
+        TypeMirror erased = processingEnv.getTypeUtils().erasure(type);
+        if (erased.getKind() != TypeKind.DECLARED) {
+            return erased.toString();
+        }
+        return ((TypeElement) ((DeclaredType) erased).asElement()).getQualifiedName().toString();
+    }
+
+    private String getPackageName(TypeElement type) {
+        Element element = type;
+        while (element.getKind() != ElementKind.PACKAGE) {
+            element = element.getEnclosingElement();
+        }
+        return ((PackageElement) element).getQualifiedName().toString();
+    }
+
+    private static String toConstantName(VariableElement field) {
+        String name = field.getSimpleName().toString();
+        StringBuilder sb = new StringBuilder(name.length() + 8);
+        for (int i = 0; i < name.length(); ++i) {
+            char c = name.charAt(i);
+            if (Character.isUpperCase(c) && i > 0) {
+                sb.append('_');
+            }
+            sb.append(Character.toUpperCase(c));
+        }
+        return sb.append("_NAME").toString();
+    }
+}
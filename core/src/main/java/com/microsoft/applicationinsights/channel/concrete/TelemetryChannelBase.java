@@ -26,9 +26,21 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.microsoft.applicationinsights.TelemetryConfiguration;
 import com.microsoft.applicationinsights.channel.TelemetryChannel;
+import com.microsoft.applicationinsights.internal.channel.BackpressureAwareTransmitter;
+import com.microsoft.applicationinsights.internal.channel.BackpressurePolicy;
 import com.microsoft.applicationinsights.internal.channel.ConfiguredTransmitterFactory;
+import com.microsoft.applicationinsights.internal.channel.Drainable;
+import com.microsoft.applicationinsights.internal.channel.SpoolRetentionPolicy;
 import com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.channel.TelemetryLane;
+import com.microsoft.applicationinsights.internal.channel.TelemetrySizeEstimator;
+import com.microsoft.applicationinsights.internal.channel.TransmissionLatencyListener;
 import com.microsoft.applicationinsights.internal.channel.TransmitterFactory;
+import com.microsoft.applicationinsights.internal.channel.common.AdaptiveBatchingController;
+import com.microsoft.applicationinsights.internal.channel.common.ChannelMetrics;
+import com.microsoft.applicationinsights.internal.channel.common.MpscTelemetryBuffer;
+import com.microsoft.applicationinsights.internal.channel.common.PriorityLaneTransmitter;
+import com.microsoft.applicationinsights.internal.channel.common.StripedTelemetryBuffer;
 import com.microsoft.applicationinsights.internal.channel.common.TelemetryBuffer;
 import com.microsoft.applicationinsights.internal.util.LimitsEnforcer;
 import com.microsoft.applicationinsights.internal.util.Sanitizer;
@@ -37,6 +49,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.URI;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -66,6 +80,81 @@ public abstract class TelemetryChannelBase<T> implements TelemetryChannel {
     public static final String MAX_TRANSMISSION_STORAGE_CAPACITY_NAME = "MaxTransmissionStorageFilesCapacityInMB";
     public static final int LOG_TELEMETRY_ITEMS_MODULUS = 10000;
     public static final String THROTTLING_ENABLED_NAME = "Throttling";
+    public static final String TELEMETRY_BUFFER_TYPE_NAME = "TelemetryBufferType";
+    public static final String TELEMETRY_BUFFER_STRIPES_NAME = "TelemetryBufferStripes";
+    public static final String MAX_TELEMETRY_BUFFER_SIZE_IN_BYTES_NAME = "MaxTelemetryBufferSizeInBytes";
+    public static final String BACKPRESSURE_POLICY_NAME = "BackpressurePolicy";
+    public static final String BACKPRESSURE_BLOCK_TIMEOUT_IN_MILLIS_NAME = "BackpressureBlockTimeoutInMillis";
+    public static final String TRANSMITTER_TYPE_NAME = "TransmitterType";
+    public static final String MAX_IN_FLIGHT_REQUESTS_NAME = "MaxInFlightRequests";
+    public static final String ADAPTIVE_IN_FLIGHT_REQUESTS_NAME = "AdaptiveInFlightRequests";
+    public static final String ADAPTIVE_BATCHING_NAME = "AdaptiveBatching";
+    public static final String ADAPTIVE_BATCHING_TARGET_LATENCY_IN_MILLIS_NAME = "AdaptiveBatchingTargetLatencyInMillis";
+    public static final String ADAPTIVE_BATCHING_MAX_REQUESTS_PER_SECOND_NAME = "AdaptiveBatchingMaxRequestsPerSecond";
+    public static final String PRIORITY_LANES_NAME = "PriorityLanes";
+    public static final String GRACEFUL_SHUTDOWN_NAME = "GracefulShutdown";
+    public static final String SPOOL_TYPE_NAME = "SpoolType";
+    public static final String SPOOL_RETENTION_POLICY_NAME = "SpoolRetentionPolicy";
+    public static final String SPOOL_MAX_AGE_IN_MINUTES_NAME = "SpoolMaxAgeInMinutes";
+
+    /// The settings of every {@link TelemetryLane} are named after the lane, e.g. 'CriticalLaneCapacity'
+    public static final String LANE_CAPACITY_NAME_SUFFIX = "LaneCapacity";
+    public static final String LANE_WEIGHT_NAME_SUFFIX = "LaneWeight";
+    public static final String LANE_BACKPRESSURE_POLICY_NAME_SUFFIX = "LaneBackpressurePolicy";
+
+    /// The values of {@link #TELEMETRY_BUFFER_TYPE_NAME}
+    public static final String SYNCHRONIZED_TELEMETRY_BUFFER_TYPE = "Synchronized";
+    public static final String RING_TELEMETRY_BUFFER_TYPE = "RingBuffer";
+    public static final String COMPRESSED_TELEMETRY_BUFFER_TYPE = "Compressed";
+
+    /// The values of {@link #TRANSMITTER_TYPE_NAME}
+    public static final String THREAD_POOL_TRANSMITTER_TYPE = "ThreadPool";
+    public static final String DISPATCHER_LOOP_TRANSMITTER_TYPE = "DispatcherLoop";
+
+    /// The values of {@link #SPOOL_TYPE_NAME}
+    public static final String FILES_SPOOL_TYPE = "Files";
+    public static final String SEGMENTED_SPOOL_TYPE = "Segmented";
+
+    /// The limits of {@link #TELEMETRY_BUFFER_STRIPES_NAME}, zero means a stripe per available processor
+    public static final int DEFAULT_TELEMETRY_BUFFER_STRIPES = 1;
+    public static final int MIN_TELEMETRY_BUFFER_STRIPES = 0;
+    public static final int MAX_TELEMETRY_BUFFER_STRIPES = StripedTelemetryBuffer.MAX_NUMBER_OF_STRIPES;
+
+    /// The limits of {@link #MAX_TELEMETRY_BUFFER_SIZE_IN_BYTES_NAME}, zero means batches are only cut by number of telemetries
+    public static final int DEFAULT_MAX_TELEMETRY_BUFFER_SIZE_IN_BYTES = 0;
+    public static final int MIN_MAX_TELEMETRY_BUFFER_SIZE_IN_BYTES = 0;
+    public static final int MAX_MAX_TELEMETRY_BUFFER_SIZE_IN_BYTES = 16 * 1024 * 1024;
+
+    /// The limits of {@link #BACKPRESSURE_BLOCK_TIMEOUT_IN_MILLIS_NAME}
+    public static final int DEFAULT_BACKPRESSURE_BLOCK_TIMEOUT_IN_MILLIS = 1000;
+    public static final int MIN_BACKPRESSURE_BLOCK_TIMEOUT_IN_MILLIS = 0;
+    public static final int MAX_BACKPRESSURE_BLOCK_TIMEOUT_IN_MILLIS = 60000;
+
+    /// The limits of {@link #MAX_IN_FLIGHT_REQUESTS_NAME}, zero means the transmissions are sent synchronously by a thread pool
+    public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 0;
+    public static final int MIN_MAX_IN_FLIGHT_REQUESTS = 0;
+    public static final int MAX_MAX_IN_FLIGHT_REQUESTS = 1024;
+
+    /// The limits of {@link #ADAPTIVE_BATCHING_TARGET_LATENCY_IN_MILLIS_NAME}
+    public static final int DEFAULT_ADAPTIVE_BATCHING_TARGET_LATENCY_IN_MILLIS = 5000;
+    public static final int MIN_ADAPTIVE_BATCHING_TARGET_LATENCY_IN_MILLIS = 1000;
+    public static final int MAX_ADAPTIVE_BATCHING_TARGET_LATENCY_IN_MILLIS = 600000;
+
+    /// The limits of {@link #ADAPTIVE_BATCHING_MAX_REQUESTS_PER_SECOND_NAME}
+    public static final int DEFAULT_ADAPTIVE_BATCHING_MAX_REQUESTS_PER_SECOND = 10;
+    public static final int MIN_ADAPTIVE_BATCHING_MAX_REQUESTS_PER_SECOND = 1;
+    public static final int MAX_ADAPTIVE_BATCHING_MAX_REQUESTS_PER_SECOND = 1000;
+
+    /// The limits of {@link #SPOOL_MAX_AGE_IN_MINUTES_NAME}, used with {@link SpoolRetentionPolicy#MAX_AGE}
+    public static final int DEFAULT_SPOOL_MAX_AGE_IN_MINUTES = 24 * 60;
+    public static final int MIN_SPOOL_MAX_AGE_IN_MINUTES = 1;
+    public static final int MAX_SPOOL_MAX_AGE_IN_MINUTES = 30 * 24 * 60;
+
+    /// The limits of {@link #LANE_CAPACITY_NAME_SUFFIX} and {@link #LANE_WEIGHT_NAME_SUFFIX}, the defaults are per {@link TelemetryLane}
+    public static final int MIN_LANE_CAPACITY = 1;
+    public static final int MAX_LANE_CAPACITY = 1000000;
+    public static final int MIN_LANE_WEIGHT = 1;
+    public static final int MAX_LANE_WEIGHT = 100;
 
     private TransmitterFactory transmitterFactory;
     private AtomicLong itemsSent = new AtomicLong(0);
@@ -77,6 +166,24 @@ public abstract class TelemetryChannelBase<T> implements TelemetryChannel {
 
     private boolean developerMode = false;
 
+    private String telemetryBufferType = SYNCHRONIZED_TELEMETRY_BUFFER_TYPE;
+    private int telemetryBufferStripes = DEFAULT_TELEMETRY_BUFFER_STRIPES;
+    private int maxTelemetryBufferSizeInBytes = DEFAULT_MAX_TELEMETRY_BUFFER_SIZE_IN_BYTES;
+    private BackpressurePolicy backpressurePolicy = BackpressurePolicy.DROP_NEWEST;
+    private int backpressureBlockTimeoutInMillis = DEFAULT_BACKPRESSURE_BLOCK_TIMEOUT_IN_MILLIS;
+    private String transmitterType = THREAD_POOL_TRANSMITTER_TYPE;
+    private int maxInFlightRequests = DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+    private boolean adaptiveInFlightRequests = false;
+    private boolean adaptiveBatching = false;
+    private int adaptiveBatchingTargetLatencyInMillis = DEFAULT_ADAPTIVE_BATCHING_TARGET_LATENCY_IN_MILLIS;
+    private int adaptiveBatchingMaxRequestsPerSecond = DEFAULT_ADAPTIVE_BATCHING_MAX_REQUESTS_PER_SECOND;
+    private volatile AdaptiveBatchingController batchingController;
+    private Map<TelemetryLane, PriorityLaneTransmitter.LaneSettings> priorityLanes;
+    private boolean gracefulShutdown = false;
+    private String spoolType = FILES_SPOOL_TYPE;
+    private SpoolRetentionPolicy spoolRetentionPolicy = SpoolRetentionPolicy.REJECT_NEW;
+    private int spoolMaxAgeInMinutes = DEFAULT_SPOOL_MAX_AGE_IN_MINUTES;
+
     private TelemetryConfiguration configuration;
 
     public TelemetryChannelBase(TelemetryConfiguration configuration) {
@@ -179,6 +286,81 @@ public abstract class TelemetryChannelBase<T> implements TelemetryChannel {
             maxTelemetryBufferCapacityEnforcer.normalizeStringValue(namesAndValues.get(MAX_TELEMETRY_BUFFER_CAPACITY_NAME));
             sendIntervalInSecondsEnforcer.normalizeStringValue(namesAndValues.get(FLUSH_BUFFER_TIMEOUT_IN_SECONDS_NAME));
             maxTransmissionStorageCapacity = namesAndValues.get(MAX_TRANSMISSION_STORAGE_CAPACITY_NAME);
+
+            String telemetryBufferTypeValue = namesAndValues.get(TELEMETRY_BUFFER_TYPE_NAME);
+            if (!Strings.isNullOrEmpty(telemetryBufferTypeValue)) {
+                telemetryBufferType = telemetryBufferTypeValue;
+            }
+
+            LimitsEnforcer telemetryBufferStripesEnforcer = LimitsEnforcer.createWithClosestLimitOnError(
+                    TELEMETRY_BUFFER_STRIPES_NAME, MIN_TELEMETRY_BUFFER_STRIPES,
+                    MAX_TELEMETRY_BUFFER_STRIPES, DEFAULT_TELEMETRY_BUFFER_STRIPES, null);
+            telemetryBufferStripes = telemetryBufferStripesEnforcer.normalizeStringValue(namesAndValues.get(TELEMETRY_BUFFER_STRIPES_NAME));
+
+            LimitsEnforcer maxTelemetryBufferSizeInBytesEnforcer = LimitsEnforcer.createWithClosestLimitOnError(
+                    MAX_TELEMETRY_BUFFER_SIZE_IN_BYTES_NAME, MIN_MAX_TELEMETRY_BUFFER_SIZE_IN_BYTES,
+                    MAX_MAX_TELEMETRY_BUFFER_SIZE_IN_BYTES, DEFAULT_MAX_TELEMETRY_BUFFER_SIZE_IN_BYTES, null);
+            maxTelemetryBufferSizeInBytes = maxTelemetryBufferSizeInBytesEnforcer.normalizeStringValue(namesAndValues.get(MAX_TELEMETRY_BUFFER_SIZE_IN_BYTES_NAME));
+
+            String backpressurePolicyValue = namesAndValues.get(BACKPRESSURE_POLICY_NAME);
+            if (!Strings.isNullOrEmpty(backpressurePolicyValue)) {
+                try {
+                    backpressurePolicy = BackpressurePolicy.valueOf(backpressurePolicyValue.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    logger.error("Failed to parse '{}', using the default backpressure policy '{}'", backpressurePolicyValue, backpressurePolicy);
+                }
+            }
+
+            LimitsEnforcer backpressureBlockTimeoutInMillisEnforcer = LimitsEnforcer.createWithClosestLimitOnError(
+                    BACKPRESSURE_BLOCK_TIMEOUT_IN_MILLIS_NAME, MIN_BACKPRESSURE_BLOCK_TIMEOUT_IN_MILLIS,
+                    MAX_BACKPRESSURE_BLOCK_TIMEOUT_IN_MILLIS, DEFAULT_BACKPRESSURE_BLOCK_TIMEOUT_IN_MILLIS, null);
+            backpressureBlockTimeoutInMillis = backpressureBlockTimeoutInMillisEnforcer.normalizeStringValue(namesAndValues.get(BACKPRESSURE_BLOCK_TIMEOUT_IN_MILLIS_NAME));
+
+            String transmitterTypeValue = namesAndValues.get(TRANSMITTER_TYPE_NAME);
+            if (!Strings.isNullOrEmpty(transmitterTypeValue)) {
+                transmitterType = transmitterTypeValue;
+            }
+
+            LimitsEnforcer maxInFlightRequestsEnforcer = LimitsEnforcer.createWithClosestLimitOnError(
+                    MAX_IN_FLIGHT_REQUESTS_NAME, MIN_MAX_IN_FLIGHT_REQUESTS,
+                    MAX_MAX_IN_FLIGHT_REQUESTS, DEFAULT_MAX_IN_FLIGHT_REQUESTS, null);
+            maxInFlightRequests = maxInFlightRequestsEnforcer.normalizeStringValue(namesAndValues.get(MAX_IN_FLIGHT_REQUESTS_NAME));
+            adaptiveInFlightRequests = Boolean.parseBoolean(namesAndValues.get(ADAPTIVE_IN_FLIGHT_REQUESTS_NAME));
+
+            adaptiveBatching = Boolean.parseBoolean(namesAndValues.get(ADAPTIVE_BATCHING_NAME));
+            LimitsEnforcer adaptiveBatchingTargetLatencyInMillisEnforcer = LimitsEnforcer.createWithClosestLimitOnError(
+                    ADAPTIVE_BATCHING_TARGET_LATENCY_IN_MILLIS_NAME, MIN_ADAPTIVE_BATCHING_TARGET_LATENCY_IN_MILLIS,
+                    MAX_ADAPTIVE_BATCHING_TARGET_LATENCY_IN_MILLIS, DEFAULT_ADAPTIVE_BATCHING_TARGET_LATENCY_IN_MILLIS, null);
+            adaptiveBatchingTargetLatencyInMillis = adaptiveBatchingTargetLatencyInMillisEnforcer.normalizeStringValue(namesAndValues.get(ADAPTIVE_BATCHING_TARGET_LATENCY_IN_MILLIS_NAME));
+            LimitsEnforcer adaptiveBatchingMaxRequestsPerSecondEnforcer = LimitsEnforcer.createWithClosestLimitOnError(
+                    ADAPTIVE_BATCHING_MAX_REQUESTS_PER_SECOND_NAME, MIN_ADAPTIVE_BATCHING_MAX_REQUESTS_PER_SECOND,
+                    MAX_ADAPTIVE_BATCHING_MAX_REQUESTS_PER_SECOND, DEFAULT_ADAPTIVE_BATCHING_MAX_REQUESTS_PER_SECOND, null);
+            adaptiveBatchingMaxRequestsPerSecond = adaptiveBatchingMaxRequestsPerSecondEnforcer.normalizeStringValue(namesAndValues.get(ADAPTIVE_BATCHING_MAX_REQUESTS_PER_SECOND_NAME));
+
+            if (Boolean.parseBoolean(namesAndValues.get(PRIORITY_LANES_NAME))) {
+                priorityLanes = parsePriorityLanes(namesAndValues);
+            }
+
+            gracefulShutdown = Boolean.parseBoolean(namesAndValues.get(GRACEFUL_SHUTDOWN_NAME));
+
+            String spoolTypeValue = namesAndValues.get(SPOOL_TYPE_NAME);
+            if (!Strings.isNullOrEmpty(spoolTypeValue)) {
+                spoolType = spoolTypeValue;
+            }
+
+            String spoolRetentionPolicyValue = namesAndValues.get(SPOOL_RETENTION_POLICY_NAME);
+            if (!Strings.isNullOrEmpty(spoolRetentionPolicyValue)) {
+                try {
+                    spoolRetentionPolicy = SpoolRetentionPolicy.valueOf(spoolRetentionPolicyValue.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    logger.error("Failed to parse '{}', using the default spool retention policy '{}'", spoolRetentionPolicyValue, spoolRetentionPolicy);
+                }
+            }
+
+            LimitsEnforcer spoolMaxAgeInMinutesEnforcer = LimitsEnforcer.createWithClosestLimitOnError(
+                    SPOOL_MAX_AGE_IN_MINUTES_NAME, MIN_SPOOL_MAX_AGE_IN_MINUTES,
+                    MAX_SPOOL_MAX_AGE_IN_MINUTES, DEFAULT_SPOOL_MAX_AGE_IN_MINUTES, null);
+            spoolMaxAgeInMinutes = spoolMaxAgeInMinutesEnforcer.normalizeStringValue(namesAndValues.get(SPOOL_MAX_AGE_IN_MINUTES_NAME));
         }
 
         initialize(configuration,
@@ -210,18 +392,95 @@ public abstract class TelemetryChannelBase<T> implements TelemetryChannel {
         makeSureEndpointAddressIsValid(endpointAddress);
 
         this.configuration = configuration;
+        if (adaptiveBatching && !developerMode) {
+            batchingController = new AdaptiveBatchingController(adaptiveBatchingTargetLatencyInMillis, adaptiveBatchingMaxRequestsPerSecond);
+        }
         final TransmitterFactory<T> transmitterFactory = getTransmitterFactory();
         if (transmitterFactory instanceof ConfiguredTransmitterFactory && endpointAddress == null) {
             telemetriesTransmitter = ((ConfiguredTransmitterFactory<T>) transmitterFactory).create(configuration, maxTransmissionStorageCapacity, throttling, maxInstantRetry);
         } else {
             telemetriesTransmitter = transmitterFactory.create(endpointAddress, maxTransmissionStorageCapacity, throttling, maxInstantRetry);
         }
-        telemetryBuffer = new TelemetryBuffer<>(telemetriesTransmitter, maxTelemetryBufferCapacityEnforcer, sendIntervalInSeconds);
+        telemetryBuffer = createTelemetryBuffer(maxTelemetryBufferCapacityEnforcer, sendIntervalInSeconds);
+        ChannelMetrics.INSTANCE.addBuffer(telemetryBuffer);
+        ChannelMetrics.INSTANCE.register();
+        if (batchingController != null) {
+            // The configured batch size and flush interval become the upper limits of the controller
+            batchingController.start(telemetryBuffer);
+        }
+        if (backpressurePolicy != BackpressurePolicy.DROP_NEWEST) {
+            setBackpressurePolicy(backpressurePolicy);
+        }
 
         setDeveloperMode(developerMode);
         isInitailized = true;
     }
 
+    /**
+     * Creates the buffer that holds the telemetries until they are handed to the {@link #telemetriesTransmitter}
+     *
+     * The {@link #TELEMETRY_BUFFER_TYPE_NAME} setting selects between the default buffer, which synchronizes
+     * all application threads on one lock, the lock-free {@link MpscTelemetryBuffer}, and the buffer of
+     * {@link #createCompressedTelemetryBuffer}, which keeps the telemetries serialized and compressed.
+     *
+     * When {@link #TELEMETRY_BUFFER_STRIPES_NAME} asks for more than one stripe, the buffer is a
+     * {@link StripedTelemetryBuffer} whose stripes are of the selected type.
+     *
+     * When {@link #MAX_TELEMETRY_BUFFER_SIZE_IN_BYTES_NAME} is set, batches are also cut by their estimated
+     * size, using the estimator of {@link #createTelemetrySizeEstimator()}.
+     *
+     * @param maxTelemetryBufferCapacityEnforcer The limits of the number of telemetries in a batch
+     * @param sendIntervalInSeconds The limits of the time to wait before sending a batch
+     * @return The buffer to be used by the channel
+     */
+    protected TelemetryBuffer<T> createTelemetryBuffer(LimitsEnforcer maxTelemetryBufferCapacityEnforcer, LimitsEnforcer sendIntervalInSeconds) {
+        TelemetryBuffer<T> buffer = createTelemetryBufferOfType(maxTelemetryBufferCapacityEnforcer, sendIntervalInSeconds);
+
+        if (maxTelemetryBufferSizeInBytes > 0) {
+            TelemetrySizeEstimator<T> sizeEstimator = createTelemetrySizeEstimator();
+            if (sizeEstimator == null) {
+                logger.warn("'{}': batching by size is not supported by {}, the value is ignored", MAX_TELEMETRY_BUFFER_SIZE_IN_BYTES_NAME, this.getClass().getSimpleName());
+            } else {
+                buffer.setMaxBatchSizeInBytes(sizeEstimator, maxTelemetryBufferSizeInBytes);
+            }
+        }
+
+        return buffer;
+    }
+
+    private TelemetryBuffer<T> createTelemetryBufferOfType(LimitsEnforcer maxTelemetryBufferCapacityEnforcer, LimitsEnforcer sendIntervalInSeconds) {
+        if (COMPRESSED_TELEMETRY_BUFFER_TYPE.equalsIgnoreCase(telemetryBufferType)) {
+            TelemetryBuffer<T> buffer = createCompressedTelemetryBuffer(maxTelemetryBufferCapacityEnforcer, sendIntervalInSeconds);
+            if (buffer != null) {
+                if (telemetryBufferStripes != DEFAULT_TELEMETRY_BUFFER_STRIPES) {
+                    logger.warn("'{}': the '{}' buffer is not striped, the value is ignored", TELEMETRY_BUFFER_STRIPES_NAME, COMPRESSED_TELEMETRY_BUFFER_TYPE);
+                }
+                return buffer;
+            }
+            logger.warn("'{}': the '{}' buffer is not supported by {}, the default '{}' buffer is used",
+                    TELEMETRY_BUFFER_TYPE_NAME, COMPRESSED_TELEMETRY_BUFFER_TYPE, this.getClass().getSimpleName(), SYNCHRONIZED_TELEMETRY_BUFFER_TYPE);
+            return new TelemetryBuffer<>(telemetriesTransmitter, maxTelemetryBufferCapacityEnforcer, sendIntervalInSeconds);
+        }
+
+        boolean ringBuffer = RING_TELEMETRY_BUFFER_TYPE.equalsIgnoreCase(telemetryBufferType);
+        if (!ringBuffer && !SYNCHRONIZED_TELEMETRY_BUFFER_TYPE.equalsIgnoreCase(telemetryBufferType)) {
+            logger.warn("'{}': unknown value '{}', the default '{}' buffer is used", TELEMETRY_BUFFER_TYPE_NAME, telemetryBufferType, SYNCHRONIZED_TELEMETRY_BUFFER_TYPE);
+        }
+
+        int numberOfStripes = telemetryBufferStripes;
+        if (numberOfStripes == 0) {
+            numberOfStripes = Math.min(Runtime.getRuntime().availableProcessors(), MAX_TELEMETRY_BUFFER_STRIPES);
+        }
+        if (numberOfStripes > 1) {
+            return new StripedTelemetryBuffer<>(telemetriesTransmitter, maxTelemetryBufferCapacityEnforcer, sendIntervalInSeconds, numberOfStripes, ringBuffer);
+        }
+
+        if (ringBuffer) {
+            return new MpscTelemetryBuffer<>(telemetriesTransmitter, maxTelemetryBufferCapacityEnforcer, sendIntervalInSeconds);
+        }
+        return new TelemetryBuffer<>(telemetriesTransmitter, maxTelemetryBufferCapacityEnforcer, sendIntervalInSeconds);
+    }
+
     protected synchronized TransmitterFactory<T> getTransmitterFactory() {
         if (transmitterFactory == null) {
             transmitterFactory = createTransmitterFactory();
@@ -254,16 +513,54 @@ public abstract class TelemetryChannelBase<T> implements TelemetryChannel {
         if (developerMode != this.developerMode) {
             this.developerMode = developerMode;
             int maxTelemetriesInBatch = this.developerMode ? 1 : DEFAULT_MAX_TELEMETRY_BUFFER_CAPACITY;
+            if (this.developerMode) {
+                // Every telemetry is sent at once, nothing is left to tune
+                stopBatchingController(0, TimeUnit.SECONDS);
+            }
 
             setMaxTelemetriesInBatch(maxTelemetriesInBatch);
         }
     }
 
+    /**
+     * Stops the channel. When {@link #GRACEFUL_SHUTDOWN_NAME} is set the timeout is the budget of the whole
+     * shutdown: the buffer is flushed, what is pending is sent while the budget lasts and what is left
+     * is written to the local storage, if the transmitter supports it.
+     */
     @Override
     public synchronized void shutdown(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        ChannelMetrics.INSTANCE.removeBuffer(telemetryBuffer);
+        if (gracefulShutdown) {
+            drainAndShutdown(timeout, timeUnit);
+            return;
+        }
+
+        stopBatchingController(timeout, timeUnit);
         telemetriesTransmitter.shutdown(timeout, timeUnit);
     }
 
+    private void drainAndShutdown(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+
+        stopBatchingController(0, TimeUnit.SECONDS);
+        telemetryBuffer.flush();
+
+        long remaining = Math.max(0, deadline - System.nanoTime());
+        if (telemetriesTransmitter instanceof Drainable) {
+            ((Drainable) telemetriesTransmitter).drainAndShutdown(remaining, TimeUnit.NANOSECONDS);
+        } else {
+            telemetriesTransmitter.shutdown(remaining, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void stopBatchingController(long timeout, TimeUnit timeUnit) {
+        AdaptiveBatchingController controller = batchingController;
+        if (controller != null) {
+            batchingController = null;
+            controller.stop(timeout, timeUnit);
+        }
+    }
+
     /**
      * Sets the time tow wait before flushing the internal buffer
      *
@@ -290,6 +587,44 @@ public abstract class TelemetryChannelBase<T> implements TelemetryChannel {
         telemetryBuffer.setMaxTelemetriesInBatch(maxTelemetriesInBatch);
     }
 
+    /**
+     * Sets what the channel does with a batch when too many sends are pending
+     *
+     * @param backpressurePolicy The policy, {@link BackpressurePolicy#BLOCK_WITH_TIMEOUT} waits up to
+     *                           the configured {@link #BACKPRESSURE_BLOCK_TIMEOUT_IN_MILLIS_NAME}
+     */
+    public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+        Preconditions.checkNotNull(backpressurePolicy, "backpressurePolicy must be non-null value");
+
+        if (telemetriesTransmitter instanceof BackpressureAwareTransmitter) {
+            ((BackpressureAwareTransmitter) telemetriesTransmitter).setBackpressurePolicy(backpressurePolicy, backpressureBlockTimeoutInMillis);
+            this.backpressurePolicy = backpressurePolicy;
+        } else {
+            logger.warn("'{}': the transmitter does not support backpressure policies, the value '{}' is ignored", BACKPRESSURE_POLICY_NAME, backpressurePolicy);
+        }
+    }
+
+    public BackpressurePolicy getBackpressurePolicy() {
+        return backpressurePolicy;
+    }
+
+    /**
+     * Gets the number of telemetries that were dropped since too many sends were pending, or since the
+     * bounded telemetry buffer was full
+     *
+     * @return The number of dropped telemetries keyed by telemetry type, e.g. 'RequestTelemetry'
+     */
+    public Map<String, Long> getDroppedTelemetries() {
+        Map<String, Long> dropped = new HashMap<String, Long>(telemetryBuffer.getDroppedTelemetriesByType());
+        if (telemetriesTransmitter instanceof BackpressureAwareTransmitter) {
+            for (Map.Entry<String, Long> entry : ((BackpressureAwareTransmitter) telemetriesTransmitter).getDroppedTelemetries().entrySet()) {
+                Long current = dropped.get(entry.getKey());
+                dropped.put(entry.getKey(), current == null ? entry.getValue() : current + entry.getValue());
+            }
+        }
+        return dropped;
+    }
+
     /**
      * Flushes the data that the channel might have internally.
      */
@@ -313,6 +648,11 @@ public abstract class TelemetryChannelBase<T> implements TelemetryChannel {
             return;
         }
 
+        AdaptiveBatchingController controller = batchingController;
+        if (controller != null) {
+            controller.onTelemetryArrived();
+        }
+
         if (itemsSent.incrementAndGet() % LOG_TELEMETRY_ITEMS_MODULUS == 0) {
             logger.info("items sent till now: {}", itemsSent.get());
         }
@@ -335,6 +675,119 @@ public abstract class TelemetryChannelBase<T> implements TelemetryChannel {
 
     protected abstract TransmitterFactory<T> createTransmitterFactory();
 
+    /**
+     * Gets the configured {@link #TRANSMITTER_TYPE_NAME}, factories that support a single transmitter ignore it.
+     * @return The transmitter type, {@link #THREAD_POOL_TRANSMITTER_TYPE} by default
+     */
+    protected String getTransmitterType() {
+        return transmitterType;
+    }
+
+    /**
+     * Gets the configured {@link #MAX_IN_FLIGHT_REQUESTS_NAME}, a positive value asks for non-blocking network sends.
+     * @return The maximum number of concurrent posts, zero by default
+     */
+    protected int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    /**
+     * Gets the configured {@link #ADAPTIVE_IN_FLIGHT_REQUESTS_NAME}, when true the number of concurrent posts
+     * follows the ingestion latency and throttling, up to {@link #MAX_IN_FLIGHT_REQUESTS_NAME} when positive.
+     * @return True if the number of concurrent posts is adaptive, false by default
+     */
+    protected boolean isAdaptiveInFlightRequests() {
+        return adaptiveInFlightRequests;
+    }
+
+    /**
+     * Gets the configured {@link #SPOOL_TYPE_NAME}, factories that support a single spool ignore it.
+     * @return The spool type, {@link #FILES_SPOOL_TYPE} by default
+     */
+    protected String getSpoolType() {
+        return spoolType;
+    }
+
+    /**
+     * Gets the configured {@link #SPOOL_RETENTION_POLICY_NAME}, what the spool does when it reaches its capacity.
+     * @return The retention policy, {@link SpoolRetentionPolicy#REJECT_NEW} by default
+     */
+    protected SpoolRetentionPolicy getSpoolRetentionPolicy() {
+        return spoolRetentionPolicy;
+    }
+
+    /**
+     * Gets the configured {@link #SPOOL_MAX_AGE_IN_MINUTES_NAME}, used with {@link SpoolRetentionPolicy#MAX_AGE}.
+     * @return The age after which the stored transmissions are evicted, a day by default
+     */
+    protected int getSpoolMaxAgeInMinutes() {
+        return spoolMaxAgeInMinutes;
+    }
+
+    /**
+     * Gets the configured lanes when {@link #PRIORITY_LANES_NAME} is set, factories that support them route
+     * every telemetry to the lane of its type before the shared transmitter.
+     * @return The settings of every lane, null if the telemetries are not routed to lanes
+     */
+    protected Map<TelemetryLane, PriorityLaneTransmitter.LaneSettings> getPriorityLanes() {
+        return priorityLanes;
+    }
+
+    private static Map<TelemetryLane, PriorityLaneTransmitter.LaneSettings> parsePriorityLanes(Map<String, String> namesAndValues) {
+        Map<TelemetryLane, PriorityLaneTransmitter.LaneSettings> lanes = new EnumMap<TelemetryLane, PriorityLaneTransmitter.LaneSettings>(TelemetryLane.class);
+        for (TelemetryLane lane : TelemetryLane.values()) {
+            String capacityName = lane.getName() + LANE_CAPACITY_NAME_SUFFIX;
+            LimitsEnforcer capacityEnforcer = LimitsEnforcer.createWithClosestLimitOnError(
+                    capacityName, MIN_LANE_CAPACITY, MAX_LANE_CAPACITY, lane.getDefaultCapacity(), null);
+            int capacity = capacityEnforcer.normalizeStringValue(namesAndValues.get(capacityName));
+
+            String weightName = lane.getName() + LANE_WEIGHT_NAME_SUFFIX;
+            LimitsEnforcer weightEnforcer = LimitsEnforcer.createWithClosestLimitOnError(
+                    weightName, MIN_LANE_WEIGHT, MAX_LANE_WEIGHT, lane.getDefaultWeight(), null);
+            int weight = weightEnforcer.normalizeStringValue(namesAndValues.get(weightName));
+
+            BackpressurePolicy policy = lane.getDefaultBackpressurePolicy();
+            String policyValue = namesAndValues.get(lane.getName() + LANE_BACKPRESSURE_POLICY_NAME_SUFFIX);
+            if (!Strings.isNullOrEmpty(policyValue)) {
+                try {
+                    policy = BackpressurePolicy.valueOf(policyValue.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    logger.error("Failed to parse '{}', using the default backpressure policy '{}' of the {} lane", policyValue, policy, lane.getName());
+                }
+            }
+
+            lanes.put(lane, new PriorityLaneTransmitter.LaneSettings(capacity, weight, policy));
+        }
+        return lanes;
+    }
+
+    /**
+     * Gets the listener of the send latency when {@link #ADAPTIVE_BATCHING_NAME} is set, factories should
+     * hand it to their network output so the batches can be tuned to the target end-to-end latency.
+     * @return The listener, null if the batches are not tuned
+     */
+    protected TransmissionLatencyListener getTransmissionLatencyListener() {
+        return batchingController;
+    }
+
+    /**
+     * Creates the estimator used when batching by size, channels that do not support it return null.
+     * @return The size estimator of the telemetries of this channel, or null
+     */
+    protected TelemetrySizeEstimator<T> createTelemetrySizeEstimator() {
+        return null;
+    }
+
+    /**
+     * Creates the buffer used by the {@link #COMPRESSED_TELEMETRY_BUFFER_TYPE}, channels that do not support it return null.
+     * @param maxTelemetryBufferCapacityEnforcer The limits of the number of telemetries in a batch
+     * @param sendIntervalInSeconds The limits of the time to wait before sending a batch
+     * @return A buffer that serializes and compresses the telemetries as they are added, or null
+     */
+    protected TelemetryBuffer<T> createCompressedTelemetryBuffer(LimitsEnforcer maxTelemetryBufferCapacityEnforcer, LimitsEnforcer sendIntervalInSeconds) {
+        return null;
+    }
+
     protected LimitsEnforcer createDefaultMaxTelemetryBufferCapacityEnforcer(Integer currentValue) {
         return LimitsEnforcer.createWithClosestLimitOnError(
                 MAX_TELEMETRY_BUFFER_CAPACITY_NAME, MIN_MAX_TELEMETRY_BUFFER_CAPACITY,
@@ -24,6 +24,12 @@ package com.microsoft.applicationinsights.channel.concrete.inprocess;
 import com.microsoft.applicationinsights.TelemetryConfiguration;
 import com.microsoft.applicationinsights.channel.concrete.TelemetryChannelBase;
 import com.microsoft.applicationinsights.internal.channel.ConfiguredTransmitterFactory;
+import com.microsoft.applicationinsights.internal.channel.SerializedTelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.channel.TelemetrySizeEstimator;
+import com.microsoft.applicationinsights.internal.channel.common.CompressingTelemetryBuffer;
+import com.microsoft.applicationinsights.internal.channel.common.JsonTelemetrySizeEstimator;
+import com.microsoft.applicationinsights.internal.channel.common.TelemetryBuffer;
+import com.microsoft.applicationinsights.internal.util.LimitsEnforcer;
 import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
 import com.microsoft.applicationinsights.telemetry.Telemetry;
 
@@ -101,7 +107,23 @@ public final class InProcessTelemetryChannel extends TelemetryChannelBase<Teleme
 
     @Override
     protected ConfiguredTransmitterFactory<Telemetry> createTransmitterFactory() {
-        return new InProcessTelemetryTransmitterFactory();
+        return new InProcessTelemetryTransmitterFactory(getTransmitterType(), getMaxInFlightRequests(), isAdaptiveInFlightRequests(),
+                getTransmissionLatencyListener(), getPriorityLanes(), getSpoolType(), getSpoolRetentionPolicy(), getSpoolMaxAgeInMinutes());
+    }
+
+    @Override
+    protected TelemetrySizeEstimator<Telemetry> createTelemetrySizeEstimator() {
+        return new JsonTelemetrySizeEstimator();
+    }
+
+    @Override
+    protected TelemetryBuffer<Telemetry> createCompressedTelemetryBuffer(LimitsEnforcer maxTelemetryBufferCapacityEnforcer, LimitsEnforcer sendIntervalInSeconds) {
+        if (!(telemetriesTransmitter instanceof SerializedTelemetriesTransmitter)) {
+            return null;
+        }
+
+        return new CompressingTelemetryBuffer(telemetriesTransmitter, (SerializedTelemetriesTransmitter) telemetriesTransmitter,
+                maxTelemetryBufferCapacityEnforcer, sendIntervalInSeconds);
     }
 
 }
@@ -22,65 +22,201 @@
 package com.microsoft.applicationinsights.channel.concrete.inprocess;
 
 import com.microsoft.applicationinsights.TelemetryConfiguration;
+import com.microsoft.applicationinsights.channel.concrete.TelemetryChannelBase;
 import com.microsoft.applicationinsights.internal.channel.ConfiguredTransmitterFactory;
+import com.microsoft.applicationinsights.internal.channel.SpoolRetentionPolicy;
 import com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.channel.TelemetryLane;
 import com.microsoft.applicationinsights.internal.channel.TransmissionDispatcher;
+import com.microsoft.applicationinsights.internal.channel.TransmissionLatencyListener;
 import com.microsoft.applicationinsights.internal.channel.TransmissionOutputAsync;
+import com.microsoft.applicationinsights.internal.channel.TransmissionSpool;
 import com.microsoft.applicationinsights.internal.channel.TransmissionsLoader;
 import com.microsoft.applicationinsights.internal.channel.common.ActiveTransmissionFileSystemOutput;
 import com.microsoft.applicationinsights.internal.channel.common.ActiveTransmissionLoader;
 import com.microsoft.applicationinsights.internal.channel.common.ActiveTransmissionNetworkOutput;
+import com.microsoft.applicationinsights.internal.channel.common.AsyncTransmissionNetworkOutput;
+import com.microsoft.applicationinsights.internal.channel.common.BisectionHandler;
+import com.microsoft.applicationinsights.internal.channel.common.DispatcherLoopTransmitter;
 import com.microsoft.applicationinsights.internal.channel.common.ErrorHandler;
 import com.microsoft.applicationinsights.internal.channel.common.GzipTelemetrySerializer;
 import com.microsoft.applicationinsights.internal.channel.common.NonBlockingDispatcher;
 import com.microsoft.applicationinsights.internal.channel.common.PartialSuccessHandler;
+import com.microsoft.applicationinsights.internal.channel.common.PriorityLaneTransmitter;
+import com.microsoft.applicationinsights.internal.channel.common.SegmentedTransmissionSpool;
 import com.microsoft.applicationinsights.internal.channel.common.ThrottlingHandler;
 import com.microsoft.applicationinsights.internal.channel.common.TransmissionFileSystemOutput;
 import com.microsoft.applicationinsights.internal.channel.common.TransmissionNetworkOutput;
 import com.microsoft.applicationinsights.internal.channel.common.TransmissionPolicyManager;
 import com.microsoft.applicationinsights.internal.channel.common.TransmissionPolicyStateFetcher;
 import com.microsoft.applicationinsights.internal.channel.common.TransmitterImpl;
+import com.microsoft.applicationinsights.internal.util.LocalFileSystemUtils;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * Created by gupele on 1/15/2015.
  */
 final class InProcessTelemetryTransmitterFactory implements ConfiguredTransmitterFactory {
+
+    private static final Logger logger = LoggerFactory.getLogger(InProcessTelemetryTransmitterFactory.class);
+
+    /**
+     * Starts and stops the loaders of the shared spool and of the lane spools together.
+     */
+    private static final class TransmissionsLoaders implements TransmissionsLoader {
+        private final List<TransmissionsLoader> loaders;
+
+        private TransmissionsLoaders(List<TransmissionsLoader> loaders) {
+            this.loaders = loaders;
+        }
+
+        @Override
+        public boolean load(boolean waitForThreadsToStart) {
+            boolean loaded = true;
+            for (TransmissionsLoader loader : loaders) {
+                loaded &= loader.load(waitForThreadsToStart);
+            }
+            return loaded;
+        }
+
+        @Override
+        public void shutdown() {
+            for (TransmissionsLoader loader : loaders) {
+                loader.shutdown();
+            }
+        }
+    }
+
+    private final String transmitterType;
+
+    private final int maxInFlightRequests;
+
+    private final boolean adaptiveInFlightRequests;
+
+    private final TransmissionLatencyListener latencyListener;
+
+    private final Map<TelemetryLane, PriorityLaneTransmitter.LaneSettings> priorityLanes;
+
+    private final String spoolType;
+
+    private final SpoolRetentionPolicy spoolRetentionPolicy;
+
+    private final int spoolMaxAgeInMinutes;
+
+    InProcessTelemetryTransmitterFactory() {
+        this(TelemetryChannelBase.THREAD_POOL_TRANSMITTER_TYPE, TelemetryChannelBase.DEFAULT_MAX_IN_FLIGHT_REQUESTS, false, null, null,
+                TelemetryChannelBase.FILES_SPOOL_TYPE, SpoolRetentionPolicy.REJECT_NEW, TelemetryChannelBase.DEFAULT_SPOOL_MAX_AGE_IN_MINUTES);
+    }
+
+    /**
+     * @param transmitterType One of the values of {@link TelemetryChannelBase#TRANSMITTER_TYPE_NAME}
+     * @param maxInFlightRequests The value of {@link TelemetryChannelBase#MAX_IN_FLIGHT_REQUESTS_NAME}, when positive
+     *                            the transmissions are posted by the {@link AsyncTransmissionNetworkOutput}
+     * @param adaptiveInFlightRequests The value of {@link TelemetryChannelBase#ADAPTIVE_IN_FLIGHT_REQUESTS_NAME}, when true
+     *                                 the {@link AsyncTransmissionNetworkOutput} adapts its number of posts in flight
+     * @param latencyListener Gets the latency of every post, if any
+     * @param priorityLanes The settings of the lanes when the telemetries are routed to a {@link PriorityLaneTransmitter}, if any
+     * @param spoolType One of the values of {@link TelemetryChannelBase#SPOOL_TYPE_NAME}
+     * @param spoolRetentionPolicy What the spool does when it reaches its capacity
+     * @param spoolMaxAgeInMinutes The age after which the stored transmissions are evicted with {@link SpoolRetentionPolicy#MAX_AGE}
+     */
+    InProcessTelemetryTransmitterFactory(@Nullable String transmitterType, int maxInFlightRequests, boolean adaptiveInFlightRequests,
+                                         @Nullable TransmissionLatencyListener latencyListener,
+                                         @Nullable Map<TelemetryLane, PriorityLaneTransmitter.LaneSettings> priorityLanes,
+                                         @Nullable String spoolType, SpoolRetentionPolicy spoolRetentionPolicy,
+                                         int spoolMaxAgeInMinutes) {
+        this.transmitterType = transmitterType;
+        this.maxInFlightRequests = maxInFlightRequests;
+        this.adaptiveInFlightRequests = adaptiveInFlightRequests;
+        this.latencyListener = latencyListener;
+        this.priorityLanes = priorityLanes;
+        this.spoolType = spoolType;
+        this.spoolRetentionPolicy = spoolRetentionPolicy;
+        this.spoolMaxAgeInMinutes = spoolMaxAgeInMinutes;
+    }
+
     @Deprecated
     @Override
     public TelemetriesTransmitter create(@Nullable String endpoint, String maxTransmissionStorageCapacity, boolean throttlingIsEnabled, int maxInstantRetries) {
         final TransmissionPolicyManager transmissionPolicyManager = new TransmissionPolicyManager(throttlingIsEnabled);
+        // The transmitter and the handler that splits rejected transmissions share the serializer
+        GzipTelemetrySerializer serializer = new GzipTelemetrySerializer();
         transmissionPolicyManager.addTransmissionHandler(new ErrorHandler(transmissionPolicyManager));
         transmissionPolicyManager.addTransmissionHandler(new PartialSuccessHandler(transmissionPolicyManager));
+        transmissionPolicyManager.addTransmissionHandler(new BisectionHandler(serializer));
         transmissionPolicyManager.addTransmissionHandler(new ThrottlingHandler(transmissionPolicyManager));
         transmissionPolicyManager.setMaxInstantRetries(maxInstantRetries);
         // An active object with the network sender
         TransmissionNetworkOutput actualNetworkSender = TransmissionNetworkOutput.create(endpoint, transmissionPolicyManager);
 
-        return finishTransmitterConstruction(maxTransmissionStorageCapacity, transmissionPolicyManager, actualNetworkSender);
+        return finishTransmitterConstruction(maxTransmissionStorageCapacity, transmissionPolicyManager, actualNetworkSender, serializer);
     }
 
     @Override
     public TelemetriesTransmitter create(TelemetryConfiguration configuration, String maxTransmissionStorageCapacity, boolean throttlingIsEnabled, int maxInstantRetries) {
         final TransmissionPolicyManager transmissionPolicyManager = new TransmissionPolicyManager(throttlingIsEnabled);
+        // The transmitter and the handler that splits rejected transmissions share the serializer
+        GzipTelemetrySerializer serializer = new GzipTelemetrySerializer();
         transmissionPolicyManager.addTransmissionHandler(new ErrorHandler(transmissionPolicyManager));
         transmissionPolicyManager.addTransmissionHandler(new PartialSuccessHandler(transmissionPolicyManager));
+        transmissionPolicyManager.addTransmissionHandler(new BisectionHandler(serializer));
         transmissionPolicyManager.addTransmissionHandler(new ThrottlingHandler(transmissionPolicyManager));
         transmissionPolicyManager.setMaxInstantRetries(maxInstantRetries);
         // An active object with the network sender
         TransmissionNetworkOutput actualNetworkSender = TransmissionNetworkOutput.create(configuration, transmissionPolicyManager);
 
-        return finishTransmitterConstruction(maxTransmissionStorageCapacity, transmissionPolicyManager, actualNetworkSender);
+        return finishTransmitterConstruction(maxTransmissionStorageCapacity, transmissionPolicyManager, actualNetworkSender, serializer);
     }
 
-    private TelemetriesTransmitter finishTransmitterConstruction(String maxTransmissionStorageCapacity, TransmissionPolicyManager transmissionPolicyManager, TransmissionNetworkOutput actualNetworkSender) {
+    private TelemetriesTransmitter finishTransmitterConstruction(String maxTransmissionStorageCapacity, TransmissionPolicyManager transmissionPolicyManager,
+                                                                 TransmissionNetworkOutput actualNetworkSender, GzipTelemetrySerializer serializer) {
         TransmissionPolicyStateFetcher stateFetcher = transmissionPolicyManager.getTransmissionPolicyState();
+        actualNetworkSender.setLatencyListener(latencyListener);
 
 
-        TransmissionOutputAsync networkSender = new ActiveTransmissionNetworkOutput(actualNetworkSender, stateFetcher);
+        TransmissionOutputAsync networkSender;
+        if (adaptiveInFlightRequests) {
+            // The number of posts in flight grows and shrinks with the ingestion latency, up to the configured maximum
+            int limit = maxInFlightRequests > 0 ? maxInFlightRequests : AsyncTransmissionNetworkOutput.DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+            networkSender = new AsyncTransmissionNetworkOutput(actualNetworkSender, stateFetcher, limit, true);
+        } else if (maxInFlightRequests > 0) {
+            // A few I/O threads post the transmissions without waiting for the responses
+            networkSender = new AsyncTransmissionNetworkOutput(actualNetworkSender, stateFetcher, maxInFlightRequests);
+        } else {
+            networkSender = new ActiveTransmissionNetworkOutput(actualNetworkSender, stateFetcher);
+        }
+        String sharedSpoolCapacity = maxTransmissionStorageCapacity;
+        int[] laneSpoolCapacities = null;
+        if (priorityLanes != null) {
+            // The spools share the capacity, the shared one keeps half of it for what the network did not take
+            // and the lanes split the other half by their weights
+            TelemetryLane[] lanes = TelemetryLane.values();
+            int[] weights = new int[lanes.length + 1];
+            for (TelemetryLane lane : lanes) {
+                PriorityLaneTransmitter.LaneSettings settings = priorityLanes.get(lane);
+                weights[lane.ordinal() + 1] = settings == null ? lane.getDefaultWeight() : settings.getWeight();
+                weights[0] += weights[lane.ordinal() + 1];
+            }
+            int[] capacities = TransmissionFileSystemOutput.splitCapacity(maxTransmissionStorageCapacity, weights);
+            sharedSpoolCapacity = String.valueOf(capacities[0]);
+            laneSpoolCapacities = Arrays.copyOfRange(capacities, 1, capacities.length);
+        }
+
         // An active object with the file system sender
-        TransmissionFileSystemOutput fileSystemSender = new TransmissionFileSystemOutput(null, maxTransmissionStorageCapacity);
+        TransmissionSpool fileSystemSender = createSpool(null, sharedSpoolCapacity);
         TransmissionOutputAsync activeFileSystemOutput = new ActiveTransmissionFileSystemOutput(fileSystemSender, stateFetcher);
 
         // The dispatcher works with the two active senders
@@ -91,8 +227,64 @@ final class InProcessTelemetryTransmitterFactory implements ConfiguredTransmitte
         // The loader works with the file system loader as the active one does
         TransmissionsLoader transmissionsLoader = new ActiveTransmissionLoader(fileSystemSender, stateFetcher, dispatcher);
 
-        // The Transmitter manage all
+        Map<TelemetryLane, TransmissionSpool> laneSpools = null;
+        if (priorityLanes != null) {
+            // Every lane spills to its own folder with its share of the capacity, and has its own loader
+            laneSpools = new EnumMap<TelemetryLane, TransmissionSpool>(TelemetryLane.class);
+            List<TransmissionsLoader> loaders = new ArrayList<TransmissionsLoader>();
+            loaders.add(transmissionsLoader);
+            File laneFolders = new File(LocalFileSystemUtils.getTempDir(), TransmissionFileSystemOutput.TRANSMISSION_DEFAULT_FOLDER);
+            for (TelemetryLane lane : TelemetryLane.values()) {
+                TransmissionSpool laneSpool = createSpool(new File(laneFolders, lane.getName()).getPath(), String.valueOf(laneSpoolCapacities[lane.ordinal()]));
+                laneSpools.put(lane, laneSpool);
+                loaders.add(new ActiveTransmissionLoader(laneSpool, stateFetcher, dispatcher));
+            }
+            transmissionsLoader = new TransmissionsLoaders(loaders);
+        }
+
+        // The Transmitter manage all, batches it cannot take are spilled to the file system sender when asked to
+        TelemetriesTransmitter<Telemetry> transmitter = createTransmitter(dispatcher, serializer, transmissionsLoader, fileSystemSender);
+        if (priorityLanes != null) {
+            // Every lane holds, drops and spills its own telemetries, and gets its share of the sends of the shared transmitter
+            return new PriorityLaneTransmitter(transmitter, priorityLanes, serializer, laneSpools);
+        }
+        return transmitter;
+    }
+
+    /**
+     * @param folderPath The folder of the spool, null for the default one
+     */
+    private TransmissionSpool createSpool(@Nullable String folderPath, String maxTransmissionStorageCapacity) {
+        TransmissionSpool spool = null;
+        if (TelemetryChannelBase.SEGMENTED_SPOOL_TYPE.equalsIgnoreCase(spoolType)) {
+            try {
+                spool = new SegmentedTransmissionSpool(folderPath, maxTransmissionStorageCapacity);
+            } catch (IllegalStateException e) {
+                // The segments are locked by another process or channel, a file per transmission can be shared
+                logger.warn("{}, the '{}' spool is used instead", e.getMessage(), TelemetryChannelBase.FILES_SPOOL_TYPE);
+            }
+        } else if (spoolType != null && !TelemetryChannelBase.FILES_SPOOL_TYPE.equalsIgnoreCase(spoolType)) {
+            logger.warn("'{}': unknown value '{}', the default '{}' spool is used",
+                    TelemetryChannelBase.SPOOL_TYPE_NAME, spoolType, TelemetryChannelBase.FILES_SPOOL_TYPE);
+        }
+        if (spool == null) {
+            spool = new TransmissionFileSystemOutput(folderPath, maxTransmissionStorageCapacity);
+        }
+
+        spool.setRetentionPolicy(spoolRetentionPolicy, TimeUnit.MINUTES.toMillis(spoolMaxAgeInMinutes));
+        return spool;
+    }
+
+    private TelemetriesTransmitter<Telemetry> createTransmitter(TransmissionDispatcher dispatcher, GzipTelemetrySerializer serializer, TransmissionsLoader transmissionsLoader,
+                                                                TransmissionSpool fileSystemSender) {
+        if (TelemetryChannelBase.DISPATCHER_LOOP_TRANSMITTER_TYPE.equalsIgnoreCase(transmitterType)) {
+            return new DispatcherLoopTransmitter(dispatcher, serializer, transmissionsLoader, fileSystemSender);
+        }
+        if (transmitterType != null && !TelemetryChannelBase.THREAD_POOL_TRANSMITTER_TYPE.equalsIgnoreCase(transmitterType)) {
+            logger.warn("'{}': unknown value '{}', the default '{}' transmitter is used",
+                    TelemetryChannelBase.TRANSMITTER_TYPE_NAME, transmitterType, TelemetryChannelBase.THREAD_POOL_TRANSMITTER_TYPE);
+        }
 
-        return new TransmitterImpl(dispatcher, new GzipTelemetrySerializer(), transmissionsLoader);
+        return new TransmitterImpl(dispatcher, serializer, transmissionsLoader, fileSystemSender);
     }
 }
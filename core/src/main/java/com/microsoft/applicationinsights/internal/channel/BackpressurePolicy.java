@@ -0,0 +1,48 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel;
+
+/**
+ * What the channel does with a batch of telemetries when the transmitter cannot take
+ * any more pending sends.
+ */
+public enum BackpressurePolicy {
+    /**
+     * The incoming batch is dropped, the batches that are already pending are kept.
+     */
+    DROP_NEWEST,
+
+    /**
+     * The oldest pending batch is dropped to make room for the incoming one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * The application thread waits for room, up to a timeout, and the batch is dropped if none was made.
+     */
+    BLOCK_WITH_TIMEOUT,
+
+    /**
+     * The incoming batch is written to the local storage, it is sent later like any other stored transmission.
+     */
+    SPILL_TO_DISK
+}
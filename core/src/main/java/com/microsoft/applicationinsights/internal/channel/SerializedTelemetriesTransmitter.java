@@ -0,0 +1,40 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel;
+
+import java.util.Map;
+
+import com.microsoft.applicationinsights.internal.channel.common.Transmission;
+
+/**
+ * Implemented by {@link TelemetriesTransmitter} classes that also take batches the channel
+ * already serialized and compressed, such batches are only spared the serialization, the
+ * backpressure policy applies to them as to the other batches.
+ */
+public interface SerializedTelemetriesTransmitter {
+    /**
+     * @param transmission A whole batch, serialized and compressed
+     * @param telemetryCounts The number of telemetries of the batch per telemetry type, to count them if the batch is dropped
+     * @return True if the transmission was taken
+     */
+    boolean sendNow(Transmission transmission, Map<String, Integer> telemetryCounts);
+}
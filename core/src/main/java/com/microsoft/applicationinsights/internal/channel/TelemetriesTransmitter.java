@@ -45,6 +45,21 @@ public interface TelemetriesTransmitter<T> {
         Collection<T> fetch();
     }
 
+    /**
+     * A fetcher that knows when the batch it was scheduled for was already sent another way,
+     * so the transmitter can forget it before its timer expires.
+     */
+    public interface ExpiringTelemetriesFetcher<T> extends TelemetriesFetcher<T> {
+        /**
+         * @return True once {@link #fetch()} can only return nothing, the method does not take any lock
+         */
+        boolean isExpired();
+    }
+
+    /**
+     * @return False if the send cannot be scheduled, the fetcher is not called then and the caller
+     * still holds the telemetries, it is expected to hand them to {@link #sendNow(Collection)}
+     */
     boolean scheduleSend(TelemetriesFetcher<T> telemetriesFetcher, long value, TimeUnit timeUnit);
 
     boolean sendNow(Collection<T> telemetries);
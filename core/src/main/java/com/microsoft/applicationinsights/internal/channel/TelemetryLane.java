@@ -0,0 +1,102 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel;
+
+import com.microsoft.applicationinsights.telemetry.ExceptionTelemetry;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+import com.microsoft.applicationinsights.telemetry.TraceTelemetry;
+
+/**
+ * The lanes telemetries are routed to when the channel keeps them apart by priority, so a flood of
+ * telemetries of one lane does not take the room and the send share of the others.
+ */
+public enum TelemetryLane {
+    /**
+     * Requests and exceptions, the telemetries alerts are based on.
+     */
+    CRITICAL("Critical", 6, 20000, BackpressurePolicy.SPILL_TO_DISK),
+
+    /**
+     * Every telemetry that is neither critical nor verbose.
+     */
+    DEFAULT("Default", 3, 10000, BackpressurePolicy.DROP_OLDEST),
+
+    /**
+     * Traces, which come in floods during log storms.
+     */
+    VERBOSE("Verbose", 1, 5000, BackpressurePolicy.DROP_NEWEST);
+
+    private final String name;
+    private final int defaultWeight;
+    private final int defaultCapacity;
+    private final BackpressurePolicy defaultBackpressurePolicy;
+
+    TelemetryLane(String name, int defaultWeight, int defaultCapacity, BackpressurePolicy defaultBackpressurePolicy) {
+        this.name = name;
+        this.defaultWeight = defaultWeight;
+        this.defaultCapacity = defaultCapacity;
+        this.defaultBackpressurePolicy = defaultBackpressurePolicy;
+    }
+
+    /**
+     * @param telemetry The telemetry to route
+     * @return The lane of the telemetry
+     */
+    public static TelemetryLane of(Telemetry telemetry) {
+        if (telemetry instanceof RequestTelemetry || telemetry instanceof ExceptionTelemetry) {
+            return CRITICAL;
+        }
+        if (telemetry instanceof TraceTelemetry) {
+            return VERBOSE;
+        }
+        return DEFAULT;
+    }
+
+    /**
+     * @return The name of the lane as used in the configuration, e.g. 'Critical'
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The share of the sends the lane gets relative to the other lanes
+     */
+    public int getDefaultWeight() {
+        return defaultWeight;
+    }
+
+    /**
+     * @return The number of telemetries the lane holds while waiting to be sent
+     */
+    public int getDefaultCapacity() {
+        return defaultCapacity;
+    }
+
+    /**
+     * @return What the lane does with telemetries that do not fit
+     */
+    public BackpressurePolicy getDefaultBackpressurePolicy() {
+        return defaultBackpressurePolicy;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel;
+
+import com.microsoft.applicationinsights.internal.channel.common.Transmission;
+
+/**
+ * Defines the interface of the {@link TransmissionOutputSync} that keep the transmissions they
+ * get on the disk, until they are fetched back to be sent again.
+ */
+public interface TransmissionSpool extends TransmissionOutputSync {
+    /**
+     * Removes the oldest transmission from the spool.
+     *
+     * @return The oldest transmission, or null if there is none or it could not be read.
+     */
+    Transmission fetchOldest();
+
+    /**
+     * @return True if the spool holds no transmission, false if it holds some, even if they could not be fetched for now.
+     */
+    boolean isEmpty();
+
+    /**
+     * Sets what the spool does when it reaches its capacity, {@link SpoolRetentionPolicy#REJECT_NEW} by default.
+     *
+     * @param policy The retention policy.
+     * @param maxAgeInMillis The age after which the transmissions are evicted with {@link SpoolRetentionPolicy#MAX_AGE}.
+     */
+    void setRetentionPolicy(SpoolRetentionPolicy policy, long maxAgeInMillis);
+
+    /**
+     * Registers a listener that is called after every transmission the spool stores.
+     *
+     * @param listener The listener.
+     */
+    void addListener(TransmissionSpoolListener listener);
+
+    /**
+     * Releases what the spool holds on to, once the channel is shut down. The spool must not be used afterwards.
+     */
+    void close();
+}
@@ -26,6 +26,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.common.base.Preconditions;
 import com.microsoft.applicationinsights.internal.channel.TransmissionDispatcher;
+import com.microsoft.applicationinsights.internal.channel.TransmissionSpool;
+import com.microsoft.applicationinsights.internal.channel.TransmissionSpoolListener;
 import com.microsoft.applicationinsights.internal.channel.TransmissionsLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +37,9 @@ import org.slf4j.LoggerFactory;
  *
  * The class will ask for the oldest transmission file and will hand it to the dispatcher
  *
+ * The threads park when the spool is empty or the transmissions are blocked, until the spool stores
+ * a transmission or the transmission policy changes, so an idle process does no work to replay.
+ *
  * Created by gupele on 12/22/2014.
  */
 public final class ActiveTransmissionLoader implements TransmissionsLoader {
@@ -45,11 +50,10 @@ public final class ActiveTransmissionLoader implements TransmissionsLoader {
 
     private static final int DEFAULT_NUMBER_OF_THREADS = 1;
 
-    private static final long DEFAULT_SLEEP_INTERVAL_WHEN_NO_TRANSMISSIONS_FOUND_IN_MILLS = 2000;
     private static final long DEFAULT_SLEEP_INTERVAL_AFTER_DISPATCHING_IN_MILLS = 100;
 
     // The helper class that encapsulates the file system access
-    private final TransmissionFileSystemOutput fileSystem;
+    private final TransmissionSpool fileSystem;
 
     // A synchronized flag to let us know when to stop
     private final AtomicBoolean done = new AtomicBoolean(false);
@@ -64,13 +68,15 @@ public final class ActiveTransmissionLoader implements TransmissionsLoader {
     // The threads that do the work
     private final Thread[] threads;
 
-    private final long sleepIntervalWhenNoTransmissionsFoundInMills;
+    // Counts the stored transmissions and policy changes, the threads park until it moves
+    private final Object signalLock = new Object();
+    private long signals;
 
-    public ActiveTransmissionLoader(TransmissionFileSystemOutput fileSystem, TransmissionPolicyStateFetcher transmissionPolicy, TransmissionDispatcher dispatcher) {
+    public ActiveTransmissionLoader(TransmissionSpool fileSystem, TransmissionPolicyStateFetcher transmissionPolicy, TransmissionDispatcher dispatcher) {
         this(fileSystem, dispatcher, transmissionPolicy, DEFAULT_NUMBER_OF_THREADS);
     }
 
-    public ActiveTransmissionLoader(final TransmissionFileSystemOutput fileSystem,
+    public ActiveTransmissionLoader(final TransmissionSpool fileSystem,
                                     final TransmissionDispatcher dispatcher,
                                     final TransmissionPolicyStateFetcher transmissionPolicy,
                                     int numberOfThreads) {
@@ -80,9 +86,6 @@ public final class ActiveTransmissionLoader implements TransmissionsLoader {
         Preconditions.checkArgument(numberOfThreads > 0, "numberOfThreads must be a positive number");
         Preconditions.checkArgument(numberOfThreads < MAX_THREADS_ALLOWED, "numberOfThreads must be smaller than %s", MAX_THREADS_ALLOWED);
 
-        // Guy: This will probably be changed once we have configuration
-        this.sleepIntervalWhenNoTransmissionsFoundInMills = DEFAULT_SLEEP_INTERVAL_WHEN_NO_TRANSMISSIONS_FOUND_IN_MILLS;
-
         this.transmissionPolicyFetcher = transmissionPolicy;
 
         this.fileSystem = fileSystem;
@@ -99,25 +102,31 @@ public final class ActiveTransmissionLoader implements TransmissionsLoader {
                     // Avoid un-expected exit of threads
                     while (!done.get()) {
                         try {
+                            // Read before looking at the state and the spool, so a signal that comes meanwhile is not missed
+                            long observedSignals = getSignals();
                             TransmissionPolicy currentTransmissionState = transmissionPolicyFetcher.getCurrentState();
                             switch (currentTransmissionState) {
                                 case UNBLOCKED:
-                                    fetchNext(true);
+                                    if (!fetchNext(true)) {
+                                        awaitSignal(observedSignals);
+                                    }
                                     break;
                                 case BACKOFF:
                                 case BLOCKED_BUT_CAN_BE_PERSISTED:
-                                    Thread.sleep(DEFAULT_SLEEP_INTERVAL_AFTER_DISPATCHING_IN_MILLS);
+                                    awaitSignal(observedSignals);
                                     break;
 
                                 case BLOCKED_AND_CANNOT_BE_PERSISTED:
                                     // We fetch but don't do anything with the Transmission
                                     // which means that we are cleaning the disk as needed by that policy
-                                    fetchNext(false);
+                                    if (!fetchNext(false)) {
+                                        awaitSignal(observedSignals);
+                                    }
                                     break;
 
                                 default:
                                     logger.error("Could not find transmission policy '{}'", currentTransmissionState);
-                                    Thread.sleep(DEFAULT_SLEEP_INTERVAL_AFTER_DISPATCHING_IN_MILLS);
+                                    awaitSignal(observedSignals);
                                     break;
                             }
                         } catch (InterruptedException e) {
@@ -132,7 +141,21 @@ public final class ActiveTransmissionLoader implements TransmissionsLoader {
                 }
             }, String.format(threadNameFmt, i));
             threads[i].setDaemon(true);
-        }}
+        }
+
+        fileSystem.addListener(new TransmissionSpoolListener() {
+            @Override
+            public void onTransmissionStored() {
+                signal();
+            }
+        });
+        transmissionPolicy.addListener(new TransmissionPolicyListener() {
+            @Override
+            public void onTransmissionPolicyChanged(TransmissionPolicy newState) {
+                signal();
+            }
+        });
+    }
 
     @Override
     public synchronized boolean load(boolean waitForThreadsToStart) {
@@ -158,6 +181,7 @@ public final class ActiveTransmissionLoader implements TransmissionsLoader {
     @Override
     public void shutdown() {
         done.set(true);
+        signal();
         interruptAllThreads();
     }
 
@@ -167,16 +191,39 @@ public final class ActiveTransmissionLoader implements TransmissionsLoader {
         }
     }
 
-    private void fetchNext(boolean shouldDispatch) throws InterruptedException {
-        Transmission transmission = fileSystem.fetchOldestFile();
-        if (transmission == null) {
-            Thread.sleep(sleepIntervalWhenNoTransmissionsFoundInMills);
-        } else {
-            if (shouldDispatch) {
-                dispatcher.dispatch(transmission);
-            }
+    // Returns false if the spool is empty, a spool that holds transmissions that could not be fetched is tried again after the pause
+    private boolean fetchNext(boolean shouldDispatch) throws InterruptedException {
+        Transmission transmission = fileSystem.fetchOldest();
+        if (transmission == null && fileSystem.isEmpty()) {
+            return false;
+        }
+
+        if (transmission != null && shouldDispatch) {
+            dispatcher.dispatch(transmission);
+        }
+
+        Thread.sleep(DEFAULT_SLEEP_INTERVAL_AFTER_DISPATCHING_IN_MILLS);
+        return true;
+    }
+
+    private long getSignals() {
+        synchronized (signalLock) {
+            return signals;
+        }
+    }
 
-            Thread.sleep(DEFAULT_SLEEP_INTERVAL_AFTER_DISPATCHING_IN_MILLS);
+    private void signal() {
+        synchronized (signalLock) {
+            ++signals;
+            signalLock.notifyAll();
+        }
+    }
+
+    private void awaitSignal(long observedSignals) throws InterruptedException {
+        synchronized (signalLock) {
+            while (signals == observedSignals && !done.get()) {
+                signalLock.wait();
+            }
         }
     }
 }
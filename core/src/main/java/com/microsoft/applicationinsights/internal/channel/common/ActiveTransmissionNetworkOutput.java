@@ -21,12 +21,17 @@
 
 package com.microsoft.applicationinsights.internal.channel.common;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.base.Preconditions;
+import com.microsoft.applicationinsights.internal.channel.DrainableTransmissionOutput;
 import com.microsoft.applicationinsights.internal.channel.TransmissionOutputAsync;
 import com.microsoft.applicationinsights.internal.channel.TransmissionOutputSync;
 import com.microsoft.applicationinsights.internal.util.ThreadPoolUtils;
@@ -34,13 +39,35 @@ import com.microsoft.applicationinsights.internal.util.ThreadPoolUtils;
 /**
  * Created by gupele on 12/18/2014.
  */
-public final class ActiveTransmissionNetworkOutput implements TransmissionOutputAsync {
+public final class ActiveTransmissionNetworkOutput implements TransmissionOutputAsync, DrainableTransmissionOutput {
     private final static int DEFAULT_MAX_MESSAGES_IN_BUFFER = 128;
     private final static int DEFAULT_MIN_NUMBER_OF_THREADS = 7;
     private final static int DEFAULT_MAX_NUMBER_OF_THREADS = 7;
     private final static long DEFAULT_REMOVE_IDLE_THREAD_TIMEOUT_IN_SECONDS = 60L;
     private final static AtomicInteger INTSTANCE_ID_POOL = new AtomicInteger(1);
 
+    /**
+     * Sends one transmission, keeps it so the ones that did not start can be handed back by {@link #drain}.
+     */
+    private final class SendTask implements Runnable {
+        private final Transmission transmission;
+
+        private SendTask(Transmission transmission) {
+            this.transmission = transmission;
+        }
+
+        @Override
+        public void run() {
+            try {
+                actualOutput.sendSync(transmission);
+            } catch (ThreadDeath td) {
+                throw td;
+            } catch (Throwable throwable) {
+                // Avoid un-expected exit of thread
+            }
+        }
+    }
+
     private final int maxThreads;
     private final ThreadPoolExecutor outputThreads;
     private final TransmissionOutputSync actualOutput;
@@ -73,18 +100,7 @@ public final class ActiveTransmissionNetworkOutput implements TransmissionOutput
                 return false;
             }
 
-            outputThreads.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        actualOutput.sendSync(transmission);
-                    } catch (ThreadDeath td) {
-                        throw td;
-                    } catch (Throwable throwable) {
-                        // Avoid un-expected exit of thread
-                    }
-                }
-            });
+            outputThreads.execute(new SendTask(transmission));
             return true;
 
         } catch (RejectedExecutionException e) {
@@ -101,6 +117,26 @@ public final class ActiveTransmissionNetworkOutput implements TransmissionOutput
         outputThreads.awaitTermination(timeout, timeUnit);
     }
 
+    /**
+     * The threads send what is queued up to the timeout, the transmissions that did not start by then are handed back.
+     * The sends that already started are not waited for.
+     */
+    @Override
+    public Collection<Transmission> drain(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        outputThreads.shutdown();
+        if (outputThreads.awaitTermination(timeout, timeUnit)) {
+            return Collections.emptyList();
+        }
+
+        List<Transmission> notSent = new ArrayList<Transmission>();
+        for (Runnable pending : outputThreads.shutdownNow()) {
+            if (pending instanceof SendTask) {
+                notSent.add(((SendTask) pending).transmission);
+            }
+        }
+        return notSent;
+    }
+
     public int getNumberOfMaxThreads() {
         return this.maxThreads;
     }
@@ -0,0 +1,209 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.microsoft.applicationinsights.internal.channel.TransmissionLatencyListener;
+import com.microsoft.applicationinsights.internal.util.ThreadPoolUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retunes the batch size and the flush interval of a {@link TelemetryBuffer} from the arrival rate of
+ * telemetries and the latency of the ingestion endpoint.
+ *
+ * A telemetry waits in the buffer at most the target end-to-end latency minus the send latency, so the
+ * flush interval is set to that wait and the batch to the number of telemetries that arrive meanwhile.
+ * The batch is then raised so that full batches are not sent more than the maximum requests per second.
+ * The configured batch size and flush interval of the buffer are the upper limits.
+ *
+ * The rate follows increases at once and decreases slowly, and a retune is also triggered as soon as
+ * more telemetries arrived than the current batch size allows within the request rate.
+ */
+public final class AdaptiveBatchingController implements TransmissionLatencyListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveBatchingController.class);
+
+    private final static long RETUNE_INTERVAL_IN_SECONDS = 1;
+    private final static double SMOOTHING_FACTOR = 0.3;
+
+    private final long targetLatencyInMillis;
+    private final int maxRequestsPerSecond;
+
+    private final AtomicLong arrivals = new AtomicLong();
+    private final AtomicLong latencySumInNanos = new AtomicLong();
+    private final AtomicLong latencyCount = new AtomicLong();
+
+    /// A retune is triggered when 'arrivals' reaches that value
+    private volatile long earlyRetuneThreshold = Long.MAX_VALUE;
+
+    private volatile ScheduledExecutorService scheduler;
+
+    private final Runnable retuneTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                retune();
+            } catch (ThreadDeath td) {
+                throw td;
+            } catch (Throwable t) {
+                try {
+                    logger.error("Failed to retune the telemetry buffer", t);
+                } catch (ThreadDeath td) {
+                    throw td;
+                } catch (Throwable t2) {
+                    // chomp
+                }
+            }
+        }
+    };
+
+    @GuardedBy("this")
+    private TelemetryBuffer<?> buffer;
+    @GuardedBy("this")
+    private int maxTelemetriesInBatch;
+    @GuardedBy("this")
+    private int maxTransmitBufferTimeoutInSeconds;
+    @GuardedBy("this")
+    private double arrivalRatePerSecond;
+    @GuardedBy("this")
+    private double sendLatencyInMillis = -1;
+    @GuardedBy("this")
+    private long lastRetuneInNanos;
+
+    /**
+     * @param targetLatencyInMillis The time from tracking a telemetry until it is received by the endpoint
+     * @param maxRequestsPerSecond The maximum number of full batches sent every second
+     */
+    public AdaptiveBatchingController(long targetLatencyInMillis, int maxRequestsPerSecond) {
+        Preconditions.checkArgument(targetLatencyInMillis > 0, "targetLatencyInMillis must be a positive number");
+        Preconditions.checkArgument(maxRequestsPerSecond > 0, "maxRequestsPerSecond must be a positive number");
+
+        this.targetLatencyInMillis = targetLatencyInMillis;
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+    }
+
+    /**
+     * Starts retuning the buffer, its current batch size and flush interval are the upper limits.
+     * @param buffer The buffer to retune
+     */
+    public synchronized void start(TelemetryBuffer<?> buffer) {
+        Preconditions.checkNotNull(buffer, "buffer must be non-null value");
+        Preconditions.checkState(this.buffer == null, "the controller is already started");
+
+        this.buffer = buffer;
+        maxTelemetriesInBatch = buffer.getMaxTelemetriesInBatch();
+        maxTransmitBufferTimeoutInSeconds = buffer.getTransmitBufferTimeoutInSeconds();
+        lastRetuneInNanos = System.nanoTime();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(ThreadPoolUtils.createDaemonThreadFactory(AdaptiveBatchingController.class));
+        scheduler.scheduleWithFixedDelay(retuneTask, RETUNE_INTERVAL_IN_SECONDS, RETUNE_INTERVAL_IN_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public void stop(long timeout, TimeUnit timeUnit) {
+        ThreadPoolUtils.stop(scheduler, timeout, timeUnit);
+    }
+
+    /**
+     * Called for every telemetry that is added to the buffer.
+     */
+    public void onTelemetryArrived() {
+        if (arrivals.incrementAndGet() == earlyRetuneThreshold) {
+            ScheduledExecutorService currentScheduler = scheduler;
+            if (currentScheduler != null) {
+                try {
+                    currentScheduler.execute(retuneTask);
+                } catch (RejectedExecutionException e) {
+                    // Stopped
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onTransmissionLatency(long latencyInNanos) {
+        latencySumInNanos.addAndGet(latencyInNanos);
+        latencyCount.incrementAndGet();
+    }
+
+    @VisibleForTesting
+    synchronized void retune() {
+        long now = System.nanoTime();
+        long elapsedInNanos = now - lastRetuneInNanos;
+        lastRetuneInNanos = now;
+        retune(Math.max(elapsedInNanos, TimeUnit.MILLISECONDS.toNanos(1)));
+    }
+
+    @VisibleForTesting
+    synchronized void retune(long elapsedInNanos) {
+        if (buffer == null) {
+            return;
+        }
+
+        double currentRate = arrivals.getAndSet(0) * (double) TimeUnit.SECONDS.toNanos(1) / elapsedInNanos;
+        if (currentRate > arrivalRatePerSecond) {
+            arrivalRatePerSecond = currentRate;
+        } else {
+            arrivalRatePerSecond += SMOOTHING_FACTOR * (currentRate - arrivalRatePerSecond);
+        }
+
+        long count = latencyCount.getAndSet(0);
+        long sum = latencySumInNanos.getAndSet(0);
+        if (count > 0) {
+            double currentLatency = sum / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+            if (sendLatencyInMillis < 0) {
+                sendLatencyInMillis = currentLatency;
+            } else {
+                sendLatencyInMillis += SMOOTHING_FACTOR * (currentLatency - sendLatencyInMillis);
+            }
+        }
+
+        double waitInMillis = Math.max(0, targetLatencyInMillis - Math.max(0, sendLatencyInMillis));
+
+        int timeoutInSeconds = (int) Math.max(1, Math.min(maxTransmitBufferTimeoutInSeconds, (long) (waitInMillis / 1000)));
+
+        double batchForLatency = Math.floor(arrivalRatePerSecond * waitInMillis / 1000);
+        double batchForRequestRate = Math.ceil(arrivalRatePerSecond / maxRequestsPerSecond);
+        int batch = (int) Math.max(1, Math.min(maxTelemetriesInBatch, Math.max(batchForLatency, batchForRequestRate)));
+
+        if (batch != buffer.getMaxTelemetriesInBatch()) {
+            buffer.setMaxTelemetriesInBatch(batch);
+        }
+        if (timeoutInSeconds != buffer.getTransmitBufferTimeoutInSeconds()) {
+            buffer.setTransmitBufferTimeoutInSeconds(timeoutInSeconds);
+        }
+
+        earlyRetuneThreshold = Math.max(1L, (long) batch * maxRequestsPerSecond * RETUNE_INTERVAL_IN_SECONDS);
+
+        logger.trace("Retuned the telemetry buffer: {} telemetries/sec, {} ms send latency, batches of {} telemetries every {} sec at most",
+                arrivalRatePerSecond, sendLatencyInMillis, batch, timeoutInSeconds);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Limits the number of concurrent requests, the limit adapts with additive increase and multiplicative decrease.
+ *
+ * A request that succeeds within the latency threshold raises the limit by one over the current limit,
+ * so a full window of such requests raises it by about one. A request that is throttled, fails, or
+ * succeeds too slowly halves the limit, only once per window: requests that started before the last
+ * decrease do not decrease it again.
+ *
+ * When the minimum and the maximum are equal the limit is fixed.
+ */
+public final class AimdConcurrencyLimit {
+
+    public final static long DEFAULT_LATENCY_THRESHOLD_IN_MILLIS = 2000;
+
+    private final static double DECREASE_FACTOR = 0.5;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdInNanos;
+
+    private double limit;
+    private int inFlight;
+    private long lastDecreaseInNanos;
+
+    /**
+     * @param minLimit The lowest limit, at least one
+     * @param maxLimit The highest limit
+     * @param initialLimit The limit to start with
+     * @param latencyThresholdInMillis Requests that take longer than that decrease the limit
+     */
+    public AimdConcurrencyLimit(int minLimit, int maxLimit, int initialLimit, long latencyThresholdInMillis) {
+        Preconditions.checkArgument(minLimit > 0, "minLimit must be a positive number");
+        Preconditions.checkArgument(maxLimit >= minLimit, "maxLimit must not be smaller than minLimit");
+        Preconditions.checkArgument(initialLimit >= minLimit && initialLimit <= maxLimit, "initialLimit must be between minLimit and maxLimit");
+        Preconditions.checkArgument(latencyThresholdInMillis > 0, "latencyThresholdInMillis must be a positive number");
+
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.latencyThresholdInNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdInMillis);
+        this.lastDecreaseInNanos = System.nanoTime();
+    }
+
+    /**
+     * Creates a limit that does not adapt.
+     * @param limit The fixed limit
+     * @return The limit
+     */
+    public static AimdConcurrencyLimit createFixed(int limit) {
+        return new AimdConcurrencyLimit(limit, limit, limit, DEFAULT_LATENCY_THRESHOLD_IN_MILLIS);
+    }
+
+    /**
+     * @return True if the request can start, the caller then reports how it completed with its start time
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= (int) limit) {
+            return false;
+        }
+
+        ++inFlight;
+        return true;
+    }
+
+    /**
+     * The request got a successful response.
+     * @param startInNanos The {@link System#nanoTime()} of when the request started
+     */
+    public synchronized void onSuccess(long startInNanos) {
+        if (System.nanoTime() - startInNanos > latencyThresholdInNanos) {
+            decrease(startInNanos);
+        } else {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        release();
+    }
+
+    /**
+     * The request was throttled, failed, or timed out.
+     * @param startInNanos The {@link System#nanoTime()} of when the request started
+     */
+    public synchronized void onOverload(long startInNanos) {
+        decrease(startInNanos);
+        release();
+    }
+
+    /**
+     * The request ended in a way that says nothing about the load, e.g. it was rejected as invalid.
+     */
+    public synchronized void onIgnore() {
+        release();
+    }
+
+    /**
+     * Waits until no request is in flight.
+     * @param timeout The longest time to wait
+     * @param timeUnit The unit of the timeout
+     * @return True if no request is in flight
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public synchronized boolean awaitNoneInFlight(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+        while (inFlight > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    private void decrease(long startInNanos) {
+        if (startInNanos - lastDecreaseInNanos < 0) {
+            // Already decreased for the window of this request
+            return;
+        }
+
+        limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+        lastDecreaseInNanos = System.nanoTime();
+    }
+
+    private void release() {
+        if (inFlight > 0) {
+            --inFlight;
+        }
+        if (inFlight == 0) {
+            notifyAll();
+        }
+    }
+}
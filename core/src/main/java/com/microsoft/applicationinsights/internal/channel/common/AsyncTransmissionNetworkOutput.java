@@ -0,0 +1,467 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.microsoft.applicationinsights.TelemetryClient;
+import com.microsoft.applicationinsights.internal.channel.DrainableTransmissionOutput;
+import com.microsoft.applicationinsights.internal.channel.TransmissionOutputAsync;
+import com.microsoft.applicationinsights.internal.perfcounter.PerformanceCounter;
+import com.microsoft.applicationinsights.internal.perfcounter.PerformanceCounterContainer;
+import com.microsoft.applicationinsights.internal.util.SSLOptionsUtil;
+import com.microsoft.applicationinsights.internal.util.ThreadPoolUtils;
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.ssl.SSLContexts;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link TransmissionOutputAsync} that posts the transmissions with Apache's non-blocking HttpAsyncClient.
+ *
+ * No thread waits for a response, a few I/O threads serve up to 'maxInFlightRequests' concurrent posts.
+ * When that many posts are in flight the transmission is not taken, so the dispatcher moves on to
+ * the next output, as it does when the threads of the {@link ActiveTransmissionNetworkOutput} are all busy.
+ *
+ * The requests and the responses are handled by the {@link TransmissionNetworkOutput}, the same way as
+ * when sending synchronously, so the {@link TransmissionPolicyManager} and its handlers get the same callbacks.
+ * The response body is only read when the response code is not 200. The responses are handled by a couple
+ * of handler threads, so the I/O threads only move bytes.
+ *
+ * When adaptive, the limit of posts in flight starts low and follows an {@link AimdConcurrencyLimit}:
+ * it grows while responses are fast and is halved on throttling, server errors, failures or slow responses.
+ * The current limit is then reported as the '{@value #CONCURRENCY_LIMIT_METRIC_NAME}' metric.
+ *
+ * When drained, the transmissions of the posts that got no response in time are handed back, so the
+ * dispatcher can give them to the file system output.
+ */
+public final class AsyncTransmissionNetworkOutput implements TransmissionOutputAsync, DrainableTransmissionOutput {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncTransmissionNetworkOutput.class);
+
+    public final static int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 256;
+    public final static String CONCURRENCY_LIMIT_METRIC_NAME = "Send Concurrency Limit";
+    private final static int INITIAL_ADAPTIVE_IN_FLIGHT_REQUESTS = 8;
+    private final static int DEFAULT_NUMBER_OF_IO_THREADS = 2;
+    private final static int DEFAULT_NUMBER_OF_RESPONSE_HANDLER_THREADS = 2;
+    private final static long DEFAULT_REMOVE_IDLE_THREAD_TIMEOUT_IN_SECONDS = 60L;
+    private final static AtomicInteger INSTANCE_ID_POOL = new AtomicInteger(1);
+
+    /**
+     * Reports the current limit of posts in flight.
+     */
+    private final class ConcurrencyLimitPerformanceCounter implements PerformanceCounter {
+        @Override
+        public String getId() {
+            return AsyncTransmissionNetworkOutput.class.getSimpleName() + instanceId;
+        }
+
+        @Override
+        public void report(TelemetryClient telemetryClient) {
+            MetricTelemetry concurrencyLimit = new MetricTelemetry(CONCURRENCY_LIMIT_METRIC_NAME, inFlightRequests.getLimit());
+            concurrencyLimit.markAsCustomPerfCounter();
+            telemetryClient.track(concurrencyLimit);
+        }
+    }
+
+    /**
+     * Takes the outcome of a post on an I/O thread, and hands it to the {@link TransmissionNetworkOutput}
+     * on a response handler thread, so the handlers that read the body, resend or write to the disk
+     * do not hold up the other connections of that I/O thread.
+     */
+    private final class ResponseCallback implements FutureCallback<HttpResponse>, Runnable {
+        private final Transmission transmission;
+        private final long startInNanos;
+        private long completedInNanos;
+        private HttpResponse response;
+        private Exception failure;
+        private boolean cancelled;
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+        private ResponseCallback(Transmission transmission, long startInNanos) {
+            this.transmission = transmission;
+            this.startInNanos = startInNanos;
+        }
+
+        @Override
+        public void completed(HttpResponse response) {
+            this.response = response;
+            handle();
+        }
+
+        @Override
+        public void failed(Exception ex) {
+            this.failure = ex;
+            handle();
+        }
+
+        @Override
+        public void cancelled() {
+            this.cancelled = true;
+            handle();
+        }
+
+        /**
+         * @return True for the single caller that either handles the outcome of the post or hands its transmission back
+         */
+        private boolean claim() {
+            if (!claimed.compareAndSet(false, true)) {
+                return false;
+            }
+            awaitingResponses.remove(this);
+            return true;
+        }
+
+        private void handle() {
+            if (!claim()) {
+                // Handed back by the drain, only the permit is left
+                inFlightRequests.onIgnore();
+                return;
+            }
+
+            completedInNanos = System.nanoTime();
+            try {
+                responseHandlers.execute(this);
+            } catch (RejectedExecutionException e) {
+                // Shut down, there is no handler thread left to wait for
+                run();
+            }
+        }
+
+        @Override
+        public void run() {
+            // The latency is that of the post, without the time the response waited for a handler thread
+            long latencyStartInNanos = startInNanos + (System.nanoTime() - completedInNanos);
+            if (response != null) {
+                onCompleted(latencyStartInNanos);
+            } else if (cancelled) {
+                onCancelled();
+            } else {
+                onFailed(latencyStartInNanos);
+            }
+        }
+
+        private void onCompleted(long startInNanos) {
+            int code = 0;
+            try {
+                code = response.getStatusLine().getStatusCode();
+                networkOutput.onResponse(startInNanos);
+                String respString = null;
+                if (code != HttpStatus.SC_OK && response.getEntity() != null) {
+                    try {
+                        respString = EntityUtils.toString(response.getEntity());
+                    } catch (IOException e) {
+                        logger.trace("Failed to read the response body", e);
+                    }
+                }
+
+                networkOutput.onTransmissionSent(transmission, code, response.getStatusLine().getReasonPhrase(), respString,
+                        null, response.getFirstHeader(TransmissionNetworkOutput.RESPONSE_THROTTLING_HEADER));
+            } finally {
+                switch (code) {
+                    case TransmissionSendResult.SENT_SUCCESSFULLY:
+                    case TransmissionSendResult.PARTIAL_SUCCESS:
+                        inFlightRequests.onSuccess(startInNanos);
+                        break;
+
+                    case TransmissionSendResult.REQUEST_TIMEOUT:
+                    case TransmissionSendResult.THROTTLED:
+                    case TransmissionSendResult.THROTTLED_OVER_EXTENDED_TIME:
+                    case TransmissionSendResult.INTERNAL_SERVER_ERROR:
+                    case TransmissionSendResult.SERVICE_UNAVAILABLE:
+                        inFlightRequests.onOverload(startInNanos);
+                        break;
+
+                    default:
+                        inFlightRequests.onIgnore();
+                        break;
+                }
+            }
+        }
+
+        private void onFailed(long startInNanos) {
+            try {
+                logger.error("Failed to send, exception: {}", failure.toString());
+                logger.trace("Failed to send", failure);
+                networkOutput.onTransmissionSent(transmission, 0, null, null, failure, null);
+            } finally {
+                inFlightRequests.onOverload(startInNanos);
+            }
+        }
+
+        private void onCancelled() {
+            try {
+                networkOutput.onTransmissionSent(transmission, 0, null, null, new CancellationException("The request was cancelled"), null);
+            } finally {
+                inFlightRequests.onIgnore();
+            }
+        }
+    }
+
+    private final TransmissionNetworkOutput networkOutput;
+    private final TransmissionPolicyStateFetcher transmissionPolicy;
+    private final int maxInFlightRequests;
+    private final AimdConcurrencyLimit inFlightRequests;
+    private final ConcurrencyLimitPerformanceCounter concurrencyLimitCounter;
+    private final int instanceId = INSTANCE_ID_POOL.getAndIncrement();
+
+    /// Runs the handlers of the responses, a post keeps its permit until its response is handled
+    private final ThreadPoolExecutor responseHandlers;
+
+    /// The posts that did not get their outcome yet
+    private final Set<ResponseCallback> awaitingResponses = Collections.newSetFromMap(new ConcurrentHashMap<ResponseCallback, Boolean>());
+
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private CloseableHttpAsyncClient httpClient;
+
+    private volatile boolean stopped;
+
+    public AsyncTransmissionNetworkOutput(TransmissionNetworkOutput networkOutput, TransmissionPolicyStateFetcher transmissionPolicy) {
+        this(networkOutput, transmissionPolicy, DEFAULT_MAX_IN_FLIGHT_REQUESTS);
+    }
+
+    /**
+     * @param networkOutput Creates the requests and handles the responses
+     * @param transmissionPolicy The state of the transmission policy, nothing is sent while blocked
+     * @param maxInFlightRequests The maximum number of posts waiting for their response
+     */
+    public AsyncTransmissionNetworkOutput(TransmissionNetworkOutput networkOutput, TransmissionPolicyStateFetcher transmissionPolicy, int maxInFlightRequests) {
+        this(networkOutput, transmissionPolicy, maxInFlightRequests, false);
+    }
+
+    /**
+     * @param networkOutput Creates the requests and handles the responses
+     * @param transmissionPolicy The state of the transmission policy, nothing is sent while blocked
+     * @param maxInFlightRequests The maximum number of posts waiting for their response
+     * @param adaptive True to adapt the number of posts in flight to the latency and the throttling of the ingestion
+     */
+    public AsyncTransmissionNetworkOutput(TransmissionNetworkOutput networkOutput, TransmissionPolicyStateFetcher transmissionPolicy, int maxInFlightRequests, boolean adaptive) {
+        Preconditions.checkNotNull(networkOutput, "networkOutput must be a valid non-null value");
+        Preconditions.checkNotNull(transmissionPolicy, "transmissionPolicy must be a valid non-null value");
+        Preconditions.checkArgument(maxInFlightRequests > 0, "maxInFlightRequests must be a positive number");
+
+        this.networkOutput = networkOutput;
+        this.transmissionPolicy = transmissionPolicy;
+        this.maxInFlightRequests = maxInFlightRequests;
+        if (adaptive) {
+            this.inFlightRequests = new AimdConcurrencyLimit(1, maxInFlightRequests, Math.min(maxInFlightRequests, INITIAL_ADAPTIVE_IN_FLIGHT_REQUESTS),
+                    AimdConcurrencyLimit.DEFAULT_LATENCY_THRESHOLD_IN_MILLIS);
+            this.concurrencyLimitCounter = new ConcurrencyLimitPerformanceCounter();
+            PerformanceCounterContainer.INSTANCE.register(concurrencyLimitCounter);
+        } else {
+            this.inFlightRequests = AimdConcurrencyLimit.createFixed(maxInFlightRequests);
+            this.concurrencyLimitCounter = null;
+        }
+
+        // Never more responses wait than posts are in flight
+        responseHandlers = ThreadPoolUtils.newLimitedThreadPool(DEFAULT_NUMBER_OF_RESPONSE_HANDLER_THREADS, DEFAULT_NUMBER_OF_RESPONSE_HANDLER_THREADS,
+                DEFAULT_REMOVE_IDLE_THREAD_TIMEOUT_IN_SECONDS, maxInFlightRequests);
+        responseHandlers.setThreadFactory(ThreadPoolUtils.createDaemonThreadFactory(AsyncTransmissionNetworkOutput.class, "ResponseHandler-" + instanceId));
+    }
+
+    @Override
+    public boolean sendAsync(Transmission transmission) {
+        if (stopped || transmissionPolicy.getCurrentState() != TransmissionPolicy.UNBLOCKED) {
+            return false;
+        }
+
+        if (!inFlightRequests.tryAcquire()) {
+            return false;
+        }
+
+        boolean posted = false;
+        ResponseCallback callback = new ResponseCallback(transmission, System.nanoTime());
+        try {
+            CloseableHttpAsyncClient client = getHttpClient();
+            if (client == null) {
+                return false;
+            }
+
+            awaitingResponses.add(callback);
+            client.execute(networkOutput.createTransmissionPostRequest(transmission), callback);
+            posted = true;
+        } catch (ThreadDeath td) {
+            throw td;
+        } catch (Throwable t) {
+            try {
+                logger.error("Failed to send, unexpected exception: {}", t.toString());
+                logger.trace("Failed to send", t);
+            } catch (ThreadDeath td) {
+                throw td;
+            } catch (Throwable t2) {
+                // chomp
+            }
+        } finally {
+            if (!posted) {
+                awaitingResponses.remove(callback);
+                inFlightRequests.onIgnore();
+            }
+        }
+
+        return posted;
+    }
+
+    /**
+     * Waits for the posts in flight and the handling of their responses, up to the timeout, then closes the client.
+     */
+    @Override
+    public void shutdown(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        stop();
+
+        inFlightRequests.awaitNoneInFlight(timeout, timeUnit);
+
+        close();
+    }
+
+    /**
+     * Waits for the posts in flight and the handling of their responses up to the timeout. The transmissions
+     * of the posts that got no response by then are handed back, and their posts are cancelled.
+     * The responses that are being handled are not waited for.
+     */
+    @Override
+    public Collection<Transmission> drain(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        stop();
+
+        List<Transmission> notSent = new ArrayList<Transmission>();
+        if (!inFlightRequests.awaitNoneInFlight(timeout, timeUnit)) {
+            for (ResponseCallback callback : awaitingResponses) {
+                if (callback.claim()) {
+                    notSent.add(callback.transmission);
+                }
+            }
+        }
+
+        close();
+        return notSent;
+    }
+
+    private void stop() {
+        stopped = true;
+        if (concurrencyLimitCounter != null) {
+            PerformanceCounterContainer.INSTANCE.unregister(concurrencyLimitCounter);
+        }
+    }
+
+    private void close() {
+        // The responses that still come are handled on the I/O threads until the client is closed
+        responseHandlers.shutdown();
+
+        synchronized (lock) {
+            if (httpClient != null) {
+                try {
+                    httpClient.close();
+                } catch (IOException e) {
+                    logger.error("Failed to close http client, exception: {}", e.toString());
+                }
+            }
+        }
+    }
+
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    /**
+     * @return The current limit of posts in flight, the maximum unless adaptive
+     */
+    public int getInFlightRequestsLimit() {
+        return inFlightRequests.getLimit();
+    }
+
+    @VisibleForTesting
+    void setHttpClient(CloseableHttpAsyncClient client) {
+        synchronized (lock) {
+            this.httpClient = client;
+        }
+    }
+
+    /**
+     * @return The started client, null while SSL cannot be initialized yet
+     */
+    private CloseableHttpAsyncClient getHttpClient() {
+        synchronized (lock) {
+            if (httpClient == null) {
+                if (ApacheSender43.safeToInitLatch != null && ApacheSender43.safeToInitLatch.getCount() > 0) {
+                    // The I/O threads should not wait for it, the transmission goes to the next output
+                    return null;
+                }
+                httpClient = createHttpClient();
+            }
+            if (!httpClient.isRunning()) {
+                httpClient.start();
+            }
+            return httpClient;
+        }
+    }
+
+    private CloseableHttpAsyncClient createHttpClient() {
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(ApacheSender.REQUEST_TIMEOUT_IN_MILLIS)
+                .setSocketTimeout(ApacheSender.REQUEST_TIMEOUT_IN_MILLIS)
+                .setConnectTimeout(ApacheSender.REQUEST_TIMEOUT_IN_MILLIS)
+                .build();
+
+        final String[] allowedProtocols = SSLOptionsUtil.getAllowedProtocols();
+        HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+                .setDefaultRequestConfig(requestConfig)
+                .setDefaultIOReactorConfig(IOReactorConfig.custom().setIoThreadCount(DEFAULT_NUMBER_OF_IO_THREADS).build())
+                .setThreadFactory(ThreadPoolUtils.createDaemonThreadFactory(AsyncTransmissionNetworkOutput.class, instanceId))
+                .setSSLStrategy(new SSLIOSessionStrategy(SSLContexts.createDefault(), allowedProtocols, null, SSLIOSessionStrategy.getDefaultHostnameVerifier()))
+                .setMaxConnTotal(maxInFlightRequests)
+                .setMaxConnPerRoute(maxInFlightRequests)
+                // see ApacheSender43, the ingestion service would otherwise record the Apache User-Agent
+                .setUserAgent("")
+                .useSystemProperties();
+        if (ApacheSender43.proxy != null) {
+            builder.setProxy(ApacheSender43.proxy);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.Collection;
+import java.util.Map;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.microsoft.applicationinsights.internal.channel.BackpressurePolicy;
+import com.microsoft.applicationinsights.internal.channel.TelemetrySerializer;
+import com.microsoft.applicationinsights.internal.channel.TransmissionOutputSync;
+import com.microsoft.applicationinsights.internal.channel.TransmissionSpool;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the {@link BackpressurePolicy} of a transmitter and handles the batches the transmitter
+ * could not take: they are either spilled to the local storage or dropped and counted.
+ *
+ * How room is made for a batch, by dropping an older one or by waiting, is up to the transmitter.
+ */
+final class BackpressureHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(BackpressureHandler.class);
+
+    private static final int DROPPED_TELEMETRIES_LOG_MODULUS = 10000;
+
+    private final TelemetrySerializer serializer;
+
+    /// Where batches go under {@link BackpressurePolicy#SPILL_TO_DISK}, might be null
+    private final TransmissionOutputSync spillOutput;
+
+    private final TelemetryDropCounters dropCounters = new TelemetryDropCounters();
+
+    private volatile BackpressurePolicy policy = BackpressurePolicy.DROP_NEWEST;
+
+    private volatile long blockTimeoutInMillis;
+
+    BackpressureHandler(TelemetrySerializer serializer, TransmissionOutputSync spillOutput) {
+        this.serializer = serializer;
+        this.spillOutput = spillOutput;
+    }
+
+    void setPolicy(BackpressurePolicy policy, long blockTimeoutInMillis) {
+        Preconditions.checkNotNull(policy, "policy must be non-null value");
+        Preconditions.checkArgument(blockTimeoutInMillis >= 0, "blockTimeoutInMillis must not be negative");
+
+        if (policy == BackpressurePolicy.SPILL_TO_DISK && spillOutput == null) {
+            logger.warn("Backpressure policy {} has no local storage, telemetries will be dropped instead", policy);
+        }
+
+        this.blockTimeoutInMillis = blockTimeoutInMillis;
+        this.policy = policy;
+    }
+
+    BackpressurePolicy getPolicy() {
+        return policy;
+    }
+
+    long getBlockTimeoutInMillis() {
+        return blockTimeoutInMillis;
+    }
+
+    Map<String, Long> getDroppedTelemetries() {
+        return dropCounters.getSnapshot();
+    }
+
+    /**
+     * Handles a batch the transmitter could not take, on the calling thread.
+     * @param telemetries The batch
+     */
+    void onRejected(Collection<Telemetry> telemetries) {
+        if (telemetries.isEmpty()) {
+            return;
+        }
+
+        if (policy == BackpressurePolicy.SPILL_TO_DISK && spill(telemetries)) {
+            return;
+        }
+
+        onDropped(telemetries);
+    }
+
+    /**
+     * Handles a batch that can no longer be sent, on shutdown: it is spilled to the local storage
+     * whatever the policy, or dropped and counted when there is no local storage.
+     * @param telemetries The batch
+     */
+    void onNotSent(Collection<Telemetry> telemetries) {
+        if (telemetries.isEmpty()) {
+            return;
+        }
+
+        if (!spill(telemetries)) {
+            onDropped(telemetries);
+        }
+    }
+
+    /**
+     * Counts a batch that was dropped.
+     * @param telemetries The batch
+     */
+    void onDropped(Collection<Telemetry> telemetries) {
+        logDropped(dropCounters.record(telemetries), telemetries.size());
+    }
+
+    /**
+     * Handles a batch the transmitter could not take, the batch might be serialized already.
+     * @param batch The batch
+     */
+    void onRejected(PendingBatch batch) {
+        if (!batch.isSerialized()) {
+            onRejected(batch.getTelemetries());
+            return;
+        }
+
+        if (policy == BackpressurePolicy.SPILL_TO_DISK && spill(batch.getTransmission())) {
+            return;
+        }
+
+        onDropped(batch);
+    }
+
+    /**
+     * Handles a batch that can no longer be sent, the batch might be serialized already.
+     * @param batch The batch
+     */
+    void onNotSent(PendingBatch batch) {
+        if (!batch.isSerialized()) {
+            onNotSent(batch.getTelemetries());
+            return;
+        }
+
+        if (!spill(batch.getTransmission())) {
+            onDropped(batch);
+        }
+    }
+
+    /**
+     * Counts a batch that was dropped, the batch might be serialized already.
+     * @param batch The batch
+     */
+    void onDropped(PendingBatch batch) {
+        if (!batch.isSerialized()) {
+            onDropped(batch.getTelemetries());
+            return;
+        }
+
+        logDropped(dropCounters.record(batch.getTelemetryCounts()), batch.getNumberOfTelemetries());
+    }
+
+    /**
+     * Closes the local storage once the transmitter is shut down, so the spool releases its files.
+     */
+    void closeSpillOutput() {
+        if (spillOutput instanceof TransmissionSpool) {
+            ((TransmissionSpool) spillOutput).close();
+        }
+    }
+
+    private void logDropped(long total, int dropped) {
+        if ((total - dropped) / DROPPED_TELEMETRIES_LOG_MODULUS != total / DROPPED_TELEMETRIES_LOG_MODULUS || total == dropped) {
+            logger.error("Too many pending sends, {} telemetries were dropped so far by backpressure policy {}", total, policy);
+        }
+    }
+
+    private boolean spill(Transmission transmission) {
+        return spillOutput != null && spillOutput.sendSync(transmission);
+    }
+
+    private boolean spill(Collection<Telemetry> telemetries) {
+        if (spillOutput == null) {
+            return false;
+        }
+
+        Optional<Transmission> transmission = serializer.serialize(telemetries);
+        return transmission.isPresent() && spillOutput.sendSync(transmission.get());
+    }
+}
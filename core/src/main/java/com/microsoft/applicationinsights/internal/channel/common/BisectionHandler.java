@@ -0,0 +1,210 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.microsoft.applicationinsights.internal.channel.TransmissionHandler;
+import com.microsoft.applicationinsights.internal.channel.TransmissionHandlerArgs;
+import org.apache.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class isolates the items that make the ingestion service reject a whole transmission.
+ * HTTP status codes 400 and 413.
+ * <p>
+ * When the response tells which items were rejected, only the other items are sent again.
+ * Otherwise the transmission is split in two halves on the item boundaries and both are sent,
+ * a half that is rejected again is split again, so the rejected items end up alone and are dropped
+ * while the rest of the batch is delivered.
+ */
+public class BisectionHandler implements TransmissionHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(BisectionHandler.class);
+
+    private final GzipTelemetrySerializer serializer;
+
+    /**
+     * Ctor
+     *
+     * Constructs the BisectionHandler object.
+     *
+     * @param serializer
+     *            The {@link GzipTelemetrySerializer} that writes the halves, and the
+     *            items that are sent again, into new transmissions.
+     */
+    public BisectionHandler(GzipTelemetrySerializer serializer) {
+        Preconditions.checkNotNull(serializer, "serializer must be a non-null value");
+        this.serializer = serializer;
+    }
+
+    @Override
+    public void onTransmissionSent(TransmissionHandlerArgs args) {
+        validateTransmissionAndSend(args);
+    }
+
+    /**
+     * Provides the core logic for splitting the transmission
+     *
+     * @param args
+     *            The {@link TransmissionHandlerArgs} for this transmission.
+     * @return Returns a pass/fail for handling this transmission.
+     */
+    boolean validateTransmissionAndSend(TransmissionHandlerArgs args) {
+        if (args.getTransmission() == null || args.getTransmissionDispatcher() == null) {
+            return false;
+        }
+
+        switch (args.getResponseCode()) {
+        case HttpStatus.SC_BAD_REQUEST:
+        case HttpStatus.SC_REQUEST_TOO_LONG:
+            break;
+
+        default:
+            logger.trace("Http response code {} not handled by {}", args.getResponseCode(),
+                    this.getClass().getName());
+            return false;
+        }
+
+        TransmissionItems items = getItems(args.getTransmission());
+        if (items == null) {
+            logger.error("Error sending data: the transmission was rejected with status {} and cannot be split, it is dropped",
+                    args.getResponseCode());
+            return false;
+        }
+
+        // The items are copied into the new transmissions, so they can be released once they are sent
+        try {
+            BackendResponse backendResponse = PartialSuccessHandler.getBackendResponse(args.getResponseBody());
+            if (backendResponse != null && backendResponse.errors != null && backendResponse.errors.length > 0
+                    && backendResponse.itemsReceived == items.size()) {
+                return sendAllButRejectedItems(args, items, backendResponse);
+            }
+
+            if (items.size() == 1) {
+                onItemsRejected(items, Arrays.asList(0), args.getResponseCode(), null);
+                return true;
+            }
+
+            int middle = items.size() / 2;
+            logger.trace("Splitting a transmission of {} items that was rejected with status {}", items.size(), args.getResponseCode());
+            sendItems(args, items, range(0, middle));
+            sendItems(args, items, range(middle, items.size()));
+            return true;
+        } finally {
+            items.release();
+        }
+    }
+
+    private boolean sendAllButRejectedItems(TransmissionHandlerArgs args, TransmissionItems items, BackendResponse backendResponse) {
+        Set<Integer> rejected = new HashSet<Integer>();
+        Set<Integer> retriable = new HashSet<Integer>();
+        String message = null;
+        for (BackendResponse.Error e : backendResponse.errors) {
+            if (e == null || e.index < 0 || e.index >= items.size()) {
+                continue;
+            }
+            switch (e.statusCode) {
+            case TransmissionSendResult.REQUEST_TIMEOUT:
+            case TransmissionSendResult.INTERNAL_SERVER_ERROR:
+            case TransmissionSendResult.SERVICE_UNAVAILABLE:
+            case TransmissionSendResult.THROTTLED:
+            case TransmissionSendResult.THROTTLED_OVER_EXTENDED_TIME:
+                retriable.add(e.index);
+                break;
+
+            default:
+                rejected.add(e.index);
+                if (message == null) {
+                    message = e.message;
+                }
+                break;
+            }
+        }
+
+        List<Integer> resent = new ArrayList<Integer>();
+        List<Integer> dropped = new ArrayList<Integer>();
+        for (int i = 0; i < items.size(); ++i) {
+            if (rejected.contains(i)) {
+                dropped.add(i);
+            } else if (retriable.contains(i) || backendResponse.itemsAccepted == 0) {
+                // Nothing was accepted, so the items the response does not mention were not either
+                resent.add(i);
+            }
+        }
+
+        if (!dropped.isEmpty()) {
+            onItemsRejected(items, dropped, args.getResponseCode(), message);
+        }
+        if (!resent.isEmpty()) {
+            sendItems(args, items, resent);
+        }
+        return true;
+    }
+
+    private void sendItems(TransmissionHandlerArgs args, TransmissionItems items, List<Integer> indices) {
+        Optional<Transmission> newT = serializer.serializeItems(items, indices);
+        if (newT.isPresent()) {
+            args.getTransmissionDispatcher().dispatch(newT.get());
+        }
+    }
+
+    private static void onItemsRejected(TransmissionItems items, List<Integer> indices, int responseCode, String message) {
+        ChannelMetrics.INSTANCE.onTelemetriesDropped(indices.size());
+        logger.error("Error sending data: {} telemetry items were rejected with status {} and are dropped: {}",
+                indices.size(), responseCode, message);
+
+        if (logger.isTraceEnabled()) {
+            for (int index : indices) {
+                logger.trace("Rejected telemetry item: {}", items.readItem(index));
+            }
+        }
+    }
+
+    /**
+     * @return The items of the transmission, or null if it cannot be decompressed or there are none.
+     */
+    private static TransmissionItems getItems(Transmission transmission) {
+        try {
+            return TransmissionItems.read(transmission);
+        } catch (IOException e) {
+            logger.error("Failed to decompress the transmission: {}", e.toString());
+            return null;
+        }
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> indices = new ArrayList<Integer>(to - from);
+        for (int i = from; i < to; ++i) {
+            indices.add(i);
+        }
+        return indices;
+    }
+}
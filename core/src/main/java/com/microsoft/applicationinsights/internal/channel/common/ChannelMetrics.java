@@ -0,0 +1,287 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the counters and histograms of the telemetry pipeline of the process, from the buffers
+ * to the network and the local disk, and exposes them as the {@link ChannelMetricsMXBean}.
+ *
+ * Everything is recorded once per batch or per send, never per telemetry, with atomic counters only.
+ */
+public enum ChannelMetrics implements ChannelMetricsMXBean {
+    INSTANCE;
+
+    public static final String OBJECT_NAME = "com.microsoft.applicationinsights:type=ChannelMetrics";
+
+    private static final Logger logger = LoggerFactory.getLogger(ChannelMetrics.class);
+
+    private static final long NANOS_IN_MICRO = TimeUnit.MICROSECONDS.toNanos(1);
+
+    private static final long NANOS_IN_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final CopyOnWriteArrayList<TelemetryBuffer<?>> buffers = new CopyOnWriteArrayList<TelemetryBuffer<?>>();
+
+    private final AtomicLong droppedTelemetries = new AtomicLong(0);
+
+    private final AtomicLong spoolSizeInBytes = new AtomicLong(0);
+
+    private final AtomicLong evictedTransmissions = new AtomicLong(0);
+
+    private final AtomicLong evictedTelemetries = new AtomicLong(0);
+
+    private final AtomicLong evictedSpoolBytes = new AtomicLong(0);
+
+    private final AtomicLong uncompressedBytes = new AtomicLong(0);
+
+    private final AtomicLong compressedBytes = new AtomicLong(0);
+
+    private final LogLinearHistogram batchSize = new LogLinearHistogram();
+
+    private final LogLinearHistogram serializeLatency = new LogLinearHistogram();
+
+    private final LogLinearHistogram sendLatency = new LogLinearHistogram();
+
+    private final ConcurrentMap<Integer, AtomicLong> responseStatusCodes = new ConcurrentHashMap<Integer, AtomicLong>();
+
+    /// Guarded by the instance, so the MBean is not unregistered while a channel registers it
+    private boolean registered;
+
+    /**
+     * Registers the MBean with the platform MBean server, once until it is unregistered.
+     */
+    public synchronized void register() {
+        if (registered) {
+            return;
+        }
+        registered = true;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (ThreadDeath td) {
+            throw td;
+        } catch (Throwable t) {
+            try {
+                logger.warn("Failed to register the channel metrics MBean: {}", t.toString());
+                logger.trace("Failed to register the channel metrics MBean", t);
+            } catch (ThreadDeath td) {
+                throw td;
+            } catch (Throwable t2) {
+                // chomp
+            }
+        }
+    }
+
+    /**
+     * @param buffer A buffer whose telemetries are counted by {@link #getBufferedTelemetries()} until it is removed
+     */
+    public void addBuffer(TelemetryBuffer<?> buffer) {
+        Preconditions.checkNotNull(buffer, "buffer must be non-null value");
+
+        buffers.addIfAbsent(buffer);
+    }
+
+    /**
+     * @param buffer A buffer that was added, the MBean is unregistered once the last buffer is removed
+     */
+    public synchronized void removeBuffer(TelemetryBuffer<?> buffer) {
+        buffers.remove(buffer);
+
+        if (buffers.isEmpty()) {
+            unregister();
+        }
+    }
+
+    /**
+     * @return The number of buffers that were added and not removed, for testing.
+     */
+    int getNumberOfBuffers() {
+        return buffers.size();
+    }
+
+    /**
+     * The method assumes that the instance is locked before calling it.
+     *
+     * Unregisters the MBean from the platform MBean server, if it was registered.
+     */
+    private void unregister() {
+        if (!registered) {
+            return;
+        }
+        registered = false;
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (ThreadDeath td) {
+            throw td;
+        } catch (Throwable t) {
+            try {
+                logger.warn("Failed to unregister the channel metrics MBean: {}", t.toString());
+                logger.trace("Failed to unregister the channel metrics MBean", t);
+            } catch (ThreadDeath td) {
+                throw td;
+            } catch (Throwable t2) {
+                // chomp
+            }
+        }
+    }
+
+    /**
+     * @param numberOfTelemetries The size of a batch that was serialized
+     * @param uncompressedSizeInBytes The size of the batch before compression
+     * @param compressedSizeInBytes The size of the batch after compression
+     * @param latencyInNanos The time the serialization took
+     */
+    public void onBatchSerialized(int numberOfTelemetries, long uncompressedSizeInBytes, long compressedSizeInBytes, long latencyInNanos) {
+        batchSize.record(numberOfTelemetries);
+        uncompressedBytes.addAndGet(uncompressedSizeInBytes);
+        compressedBytes.addAndGet(compressedSizeInBytes);
+        serializeLatency.record(latencyInNanos);
+    }
+
+    /**
+     * @param latencyInNanos The time from posting a transmission to its response
+     */
+    public void onResponse(long latencyInNanos) {
+        sendLatency.record(latencyInNanos);
+    }
+
+    /**
+     * @param code The status code of the response, zero if there was no response
+     */
+    public void onStatusCode(int code) {
+        AtomicLong counter = responseStatusCodes.get(code);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong(0);
+            counter = responseStatusCodes.putIfAbsent(code, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    public void onTelemetriesDropped(long numberOfTelemetries) {
+        droppedTelemetries.addAndGet(numberOfTelemetries);
+    }
+
+    /**
+     * @param deltaInBytes The change of the size of the transmissions stored on the local disk
+     */
+    public void onSpoolSizeChanged(long deltaInBytes) {
+        spoolSizeInBytes.addAndGet(deltaInBytes);
+    }
+
+    /**
+     * @param numberOfTransmissions The number of transmissions evicted from the local disk
+     * @param numberOfTelemetries The number of telemetries in them, as far as it is known
+     * @param sizeInBytes Their size
+     */
+    public void onSpoolEvicted(long numberOfTransmissions, long numberOfTelemetries, long sizeInBytes) {
+        evictedTransmissions.addAndGet(numberOfTransmissions);
+        evictedTelemetries.addAndGet(numberOfTelemetries);
+        evictedSpoolBytes.addAndGet(sizeInBytes);
+    }
+
+    @Override
+    public long getBufferedTelemetries() {
+        long total = 0;
+        for (TelemetryBuffer<?> buffer : buffers) {
+            total += buffer.getBufferedTelemetries();
+        }
+        return total;
+    }
+
+    @Override
+    public long getDroppedTelemetries() {
+        return droppedTelemetries.get();
+    }
+
+    @Override
+    public long getSpoolSizeInBytes() {
+        return spoolSizeInBytes.get();
+    }
+
+    @Override
+    public long getEvictedTransmissions() {
+        return evictedTransmissions.get();
+    }
+
+    @Override
+    public long getEvictedTelemetries() {
+        return evictedTelemetries.get();
+    }
+
+    @Override
+    public long getEvictedSpoolBytes() {
+        return evictedSpoolBytes.get();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long compressed = compressedBytes.get();
+        return compressed == 0 ? 0 : (double) uncompressedBytes.get() / compressed;
+    }
+
+    @Override
+    public LogLinearHistogram.Snapshot getBatchSize() {
+        return batchSize.getSnapshot(1);
+    }
+
+    @Override
+    public LogLinearHistogram.Snapshot getSerializeLatencyInMicros() {
+        return serializeLatency.getSnapshot(NANOS_IN_MICRO);
+    }
+
+    @Override
+    public LogLinearHistogram.Snapshot getSendLatencyInMillis() {
+        return sendLatency.getSnapshot(NANOS_IN_MILLI);
+    }
+
+    @Override
+    public Map<String, Long> getResponseStatusCodes() {
+        Map<String, Long> snapshot = new HashMap<String, Long>();
+        for (Map.Entry<Integer, AtomicLong> entry : responseStatusCodes.entrySet()) {
+            snapshot.put(String.valueOf(entry.getKey()), entry.getValue().get());
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.Map;
+
+/**
+ * The self-instrumentation of the telemetry channels, registered under {@link ChannelMetrics#OBJECT_NAME}.
+ *
+ * Latencies are read in the unit their name says, sizes are numbers of telemetries.
+ */
+public interface ChannelMetricsMXBean {
+    /**
+     * @return The number of telemetries waiting in the buffers of the channels
+     */
+    long getBufferedTelemetries();
+
+    /**
+     * @return The number of telemetries dropped so far, by the buffers and by the backpressure policies
+     */
+    long getDroppedTelemetries();
+
+    /**
+     * @return The size of the transmissions stored on the local disk
+     */
+    long getSpoolSizeInBytes();
+
+    /**
+     * @return The number of stored transmissions evicted so far by the retention policy of the local disk
+     */
+    long getEvictedTransmissions();
+
+    /**
+     * @return The number of telemetries in the stored transmissions evicted so far by the retention policy of the local disk,
+     *         transmissions persisted by an older version do not count
+     */
+    long getEvictedTelemetries();
+
+    /**
+     * @return The size of the stored transmissions evicted so far by the retention policy of the local disk
+     */
+    long getEvictedSpoolBytes();
+
+    /**
+     * @return The size of the serialized batches before compression divided by their size after it
+     */
+    double getCompressionRatio();
+
+    LogLinearHistogram.Snapshot getBatchSize();
+
+    LogLinearHistogram.Snapshot getSerializeLatencyInMicros();
+
+    LogLinearHistogram.Snapshot getSendLatencyInMillis();
+
+    /**
+     * @return The number of responses per HTTP status code, '0' counts the sends that got no response
+     */
+    Map<String, Long> getResponseStatusCodes();
+}
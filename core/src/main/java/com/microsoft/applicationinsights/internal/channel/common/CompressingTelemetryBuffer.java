@@ -0,0 +1,267 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.microsoft.applicationinsights.internal.channel.SerializedTelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.channel.TelemetrySizeEstimator;
+import com.microsoft.applicationinsights.internal.util.LimitsEnforcer;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+import okio.Buffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link TelemetryBuffer} that serializes every {@link Telemetry} when it is added and compresses it
+ * into the current batch right away, so that only compact bytes stay buffered, not the telemetry objects.
+ *
+ * The batching rules are the ones of the {@link TelemetryBuffer}, when batching by size the exact
+ * size of the serialized telemetries is used. A batch that is ready only needs its deflate stream
+ * finished, it is then handed to the {@link SerializedTelemetriesTransmitter} as a whole, which applies
+ * its backpressure policy to it as to any other batch.
+ * The timer still goes through {@link TelemetriesTransmitter#scheduleSend}, the fetcher sends the
+ * batch itself and returns nothing for the transmitter to serialize.
+ */
+public final class CompressingTelemetryBuffer extends TelemetryBuffer<Telemetry> {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompressingTelemetryBuffer.class);
+
+    /**
+     * Sends the batch of 'expectedGeneration' when the timer expires, if it was not sent already.
+     */
+    private final class CompressedBatchFetcher implements TelemetriesTransmitter.ExpiringTelemetriesFetcher<Telemetry> {
+
+        private final long expectedGeneration;
+
+        private CompressedBatchFetcher(long expectedGeneration) {
+            this.expectedGeneration = expectedGeneration;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return expectedGeneration != generation;
+        }
+
+        @Override
+        public Collection<Telemetry> fetch() {
+            GzipTelemetryBatch readyToBeSent;
+            synchronized (lock) {
+                if (expectedGeneration != generation) {
+                    return Collections.emptyList();
+                }
+
+                readyToBeSent = prepareBatchForSend();
+            }
+
+            send(readyToBeSent, "Failed to send buffer data to network");
+
+            // The batch was already handed over as a whole
+            return Collections.emptyList();
+        }
+    }
+
+    private final TelemetriesTransmitter<Telemetry> sender;
+
+    private final SerializedTelemetriesTransmitter serializedSender;
+
+    /// The batch that is being built, null until the first telemetry of the batch is added
+    private GzipTelemetryBatch batch;
+
+    /// A way to help incoming threads make sure they are picking up the right batch
+    private volatile long generation = 0;
+
+    /// A synchronization object to avoid race conditions with the batch and generation
+    private final Object lock = new Object();
+
+    /**
+     * @param sender The sender that runs the timer of the batches
+     * @param serializedSender The sender of the compressed batches, usually the 'sender' itself
+     * @param maxTelemetriesInBatchEnforcer For getting the number of maximum number of telemetries in a batch within limits
+     * @param transmitBufferTimeoutInSecondsEnforcer For getting the number of transmit buffer timeout in seconds within limits
+     */
+    public CompressingTelemetryBuffer(TelemetriesTransmitter<Telemetry> sender, SerializedTelemetriesTransmitter serializedSender,
+                                      LimitsEnforcer maxTelemetriesInBatchEnforcer, LimitsEnforcer transmitBufferTimeoutInSecondsEnforcer) {
+        super(sender, maxTelemetriesInBatchEnforcer, transmitBufferTimeoutInSecondsEnforcer);
+        Preconditions.checkNotNull(serializedSender, "serializedSender must be non-null value");
+
+        this.sender = sender;
+        this.serializedSender = serializedSender;
+    }
+
+    @Override
+    public void setMaxTelemetriesInBatch(int value) {
+        super.setMaxTelemetriesInBatch(value);
+        boolean shouldFlush;
+        synchronized (lock) {
+            // Request for smaller buffers, we flush if our buffer contains more elements
+            shouldFlush = batch != null && getMaxTelemetriesInBatch() < batch.getNumberOfTelemetries();
+        }
+        if (shouldFlush) {
+            flush();
+        }
+    }
+
+    /**
+     * The size estimator is not used, the exact size of the serialized telemetries is known.
+     */
+    @Override
+    public void setMaxBatchSizeInBytes(TelemetrySizeEstimator<? super Telemetry> sizeEstimator, int value) {
+        super.setMaxBatchSizeInBytes(sizeEstimator, value);
+        boolean shouldFlush;
+        synchronized (lock) {
+            // Request for smaller batches, we flush if our buffer is already bigger
+            shouldFlush = batch != null && getMaxBatchSizeInBytes() <= batch.getSizeInBytes();
+        }
+        if (shouldFlush) {
+            flush();
+        }
+    }
+
+    /**
+     * Serializes the telemetry, then compresses it into the current batch.
+     *
+     * If that is the first instance in the batch, we schedule a 'pick-up' in a configurable amount of time.
+     * If by adding that item the batch is full, it is finished and sent now.
+     * @param telemetry The {@link com.microsoft.applicationinsights.telemetry.Telemetry} to add to the buffer.
+     */
+    @Override
+    public void add(Telemetry telemetry) {
+        Preconditions.checkNotNull(telemetry, "Telemetry must be non null value");
+
+        // The serialization is done before taking the lock, only the compression is done under it
+        Buffer serializedTelemetry;
+        try {
+            serializedTelemetry = GzipTelemetryBatch.serialize(telemetry);
+        } catch (IOException e) {
+            logger.error("Failed to serialize Telemetry");
+            logger.trace("Failed to serialize Telemetry", e);
+            return;
+        }
+
+        GzipTelemetryBatch previousBatch = null;
+        GzipTelemetryBatch fullBatch = null;
+        CompressedBatchFetcher fetcher = null;
+        synchronized (lock) {
+            int maxBatchSizeInBytes = getMaxBatchSizeInBytes();
+            boolean batchBySize = maxBatchSizeInBytes > 0;
+            if (batchBySize && batch != null && batch.getSizeInBytes() + serializedTelemetry.size() > maxBatchSizeInBytes) {
+                // The telemetry does not fit, we send the current batch so it stays within the maximum size
+                previousBatch = prepareBatchForSend();
+            }
+
+            if (batch == null) {
+                batch = new GzipTelemetryBatch();
+            }
+
+            try {
+                batch.append(serializedTelemetry, telemetry.getClass().getSimpleName());
+            } catch (IOException e) {
+                // The deflate stream cannot be trusted anymore
+                logger.error("Failed to compress Telemetry, {} telemetries were not sent", batch.getNumberOfTelemetries() + 1);
+                logger.trace("Failed to compress Telemetry", e);
+                prepareBatchForSend().discard();
+                serializedTelemetry.clear();
+            }
+
+            int currentSize = batch == null ? 0 : batch.getNumberOfTelemetries();
+
+            if (currentSize >= getMaxTelemetriesInBatch() || (batchBySize && currentSize > 0 && batch.getSizeInBytes() >= maxBatchSizeInBytes)) {
+                fullBatch = prepareBatchForSend();
+            } else if (currentSize == 1) {
+                fetcher = new CompressedBatchFetcher(generation);
+            }
+        }
+
+        // Finishing the deflate streams and sending are done out of the lock
+        send(previousBatch, "Failed to send buffer data to network");
+        send(fullBatch, "Failed to send buffer data to network");
+
+        if (fetcher != null && !sender.scheduleSend(fetcher, getTransmitBufferTimeoutInSeconds(), TimeUnit.SECONDS)) {
+            // We cannot schedule send so the batch is sent now, where the backpressure policy
+            // of the sender applies to it, unless the sender already fetched it
+            GzipTelemetryBatch notScheduled = null;
+            synchronized (lock) {
+                if (fetcher.expectedGeneration == generation && batch != null) {
+                    notScheduled = prepareBatchForSend();
+                }
+            }
+
+            send(notScheduled, "Failed to schedule send of the buffer to network");
+        }
+    }
+
+    /**
+     * Finishes the current batch and sends it.
+     */
+    @Override
+    public void flush() {
+        GzipTelemetryBatch readyToBeSent = null;
+        synchronized (lock) {
+            if (batch != null) {
+                readyToBeSent = prepareBatchForSend();
+            }
+        }
+
+        send(readyToBeSent, "Failed to flush buffer data to network");
+    }
+
+    @Override
+    public int getBufferedTelemetries() {
+        synchronized (lock) {
+            return batch == null ? 0 : batch.getNumberOfTelemetries();
+        }
+    }
+
+    /**
+     * The method assumes that the lock is held before calling it.
+     *
+     * @return The current batch, a new one is started with the next telemetry
+     */
+    private GzipTelemetryBatch prepareBatchForSend() {
+        ++generation;
+
+        GzipTelemetryBatch readyToBeSent = batch;
+        batch = null;
+
+        return readyToBeSent;
+    }
+
+    private void send(GzipTelemetryBatch readyToBeSent, String errorMessage) {
+        if (readyToBeSent == null) {
+            return;
+        }
+
+        try {
+            if (!serializedSender.sendNow(readyToBeSent.finish(), readyToBeSent.getTelemetryCounts())) {
+                logger.error(errorMessage);
+            }
+        } catch (IOException e) {
+            logger.error("Failed to compress {} telemetries, exception: {}", readyToBeSent.getNumberOfTelemetries(), e.toString());
+        }
+    }
+}
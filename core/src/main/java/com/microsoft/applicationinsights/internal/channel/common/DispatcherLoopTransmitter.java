@@ -0,0 +1,468 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.microsoft.applicationinsights.internal.channel.BackpressureAwareTransmitter;
+import com.microsoft.applicationinsights.internal.channel.BackpressurePolicy;
+import com.microsoft.applicationinsights.internal.channel.Drainable;
+import com.microsoft.applicationinsights.internal.channel.SerializedTelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.channel.TelemetrySerializer;
+import com.microsoft.applicationinsights.internal.channel.TransmissionDispatcher;
+import com.microsoft.applicationinsights.internal.channel.TransmissionOutputSync;
+import com.microsoft.applicationinsights.internal.channel.TransmissionsLoader;
+import com.microsoft.applicationinsights.internal.util.ThreadPoolUtils;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link TelemetriesTransmitter} with a single, long-lived dispatcher thread.
+ *
+ * Batches handed through {@link #sendNow} are queued as they are, and scheduled fetches are kept
+ * ordered by their deadline. The dispatcher thread serializes and dispatches the queued batches
+ * and sleeps until the nearest deadline otherwise, so there is one timer however many fetches
+ * are scheduled, and no task object or permit per batch.
+ *
+ * The number of queued batches and scheduled fetches is bounded, the {@link BackpressurePolicy}
+ * decides what happens when it is reached. Before that, the scheduled fetches whose batch was already
+ * handed through {@link #sendNow} are forgotten, see {@link ExpiringTelemetriesFetcher}.
+ *
+ * When drained, what the dispatcher thread did not send when half the budget is spent is written
+ * to the local storage.
+ */
+public final class DispatcherLoopTransmitter implements TelemetriesTransmitter<Telemetry>, BackpressureAwareTransmitter, SerializedTelemetriesTransmitter, Drainable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DispatcherLoopTransmitter.class);
+
+    private static final int MAX_PENDING_SCHEDULE_REQUESTS = 16384;
+
+    private static final AtomicInteger INSTANCE_ID_POOL = new AtomicInteger(1);
+
+    private static final class ScheduledFetch implements Comparable<ScheduledFetch> {
+        private final long deadlineInNanos;
+        private final long sequence;
+        private final TelemetriesFetcher<Telemetry> telemetriesFetcher;
+
+        private ScheduledFetch(long deadlineInNanos, long sequence, TelemetriesFetcher<Telemetry> telemetriesFetcher) {
+            this.deadlineInNanos = deadlineInNanos;
+            this.sequence = sequence;
+            this.telemetriesFetcher = telemetriesFetcher;
+        }
+
+        @Override
+        public int compareTo(ScheduledFetch other) {
+            long difference = deadlineInNanos - other.deadlineInNanos;
+            if (difference == 0) {
+                difference = sequence - other.sequence;
+            }
+            return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+        }
+    }
+
+    private final TransmissionDispatcher transmissionDispatcher;
+
+    private final TelemetrySerializer serializer;
+
+    private final TransmissionsLoader transmissionsLoader;
+
+    private final BackpressureHandler backpressureHandler;
+
+    private final int maxPendingScheduleRequests;
+
+    private final Thread dispatcherThread;
+
+    /// Guards the queues and 'stopped'
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /// Signaled when a batch is queued, when an earlier deadline is scheduled and when stopped
+    private final Condition workAvailable = lock.newCondition();
+
+    /// Signaled when the dispatcher takes a batch or a fetch
+    private final Condition roomAvailable = lock.newCondition();
+
+    private final ArrayDeque<PendingBatch> readyBatches = new ArrayDeque<PendingBatch>();
+
+    private final PriorityQueue<ScheduledFetch> scheduledFetches = new PriorityQueue<ScheduledFetch>();
+
+    private long scheduledFetchesSequence = 0;
+
+    /// The batches queued since the expired fetches were last removed, a fetch only expires when its batch is sent
+    private long batchesSincePurge = 0;
+
+    private boolean stopped = false;
+
+    /// Set once drained, new batches go to the local storage
+    private volatile boolean draining = false;
+
+    public DispatcherLoopTransmitter(TransmissionDispatcher transmissionDispatcher, TelemetrySerializer serializer, TransmissionsLoader transmissionsLoader,
+                                     @Nullable TransmissionOutputSync spillOutput) {
+        this(transmissionDispatcher, serializer, transmissionsLoader, spillOutput, MAX_PENDING_SCHEDULE_REQUESTS);
+    }
+
+    @VisibleForTesting
+    DispatcherLoopTransmitter(TransmissionDispatcher transmissionDispatcher, TelemetrySerializer serializer, TransmissionsLoader transmissionsLoader,
+                              TransmissionOutputSync spillOutput, int maxPendingScheduleRequests) {
+        Preconditions.checkNotNull(transmissionDispatcher, "transmissionDispatcher must be non-null value");
+        Preconditions.checkNotNull(serializer, "serializer must be non-null value");
+        Preconditions.checkNotNull(transmissionsLoader, "transmissionsLoader must be non-null value");
+        Preconditions.checkArgument(maxPendingScheduleRequests > 0, "maxPendingScheduleRequests must be a positive number");
+
+        this.transmissionDispatcher = transmissionDispatcher;
+        this.serializer = serializer;
+        this.backpressureHandler = new BackpressureHandler(serializer, spillOutput);
+        this.maxPendingScheduleRequests = maxPendingScheduleRequests;
+
+        dispatcherThread = ThreadPoolUtils.createDaemonThreadFactory(DispatcherLoopTransmitter.class, INSTANCE_ID_POOL.getAndIncrement()).newThread(new Runnable() {
+            @Override
+            public void run() {
+                dispatchLoop();
+            }
+        });
+        dispatcherThread.start();
+
+        this.transmissionsLoader = transmissionsLoader;
+        this.transmissionsLoader.load(false);
+    }
+
+    @Override
+    public boolean scheduleSend(TelemetriesFetcher<Telemetry> telemetriesFetcher, long value, TimeUnit timeUnit) {
+        Preconditions.checkNotNull(telemetriesFetcher, "telemetriesFetcher should be non-null value");
+
+        if (draining) {
+            // The caller still holds the telemetries, its send now spills them
+            return false;
+        }
+
+        lock.lock();
+        try {
+            if (stopped) {
+                return false;
+            }
+
+            if (hasRoom()) {
+                ScheduledFetch scheduledFetch = new ScheduledFetch(System.nanoTime() + timeUnit.toNanos(value), scheduledFetchesSequence++, telemetriesFetcher);
+                scheduledFetches.add(scheduledFetch);
+                if (scheduledFetches.peek() == scheduledFetch) {
+                    workAvailable.signal();
+                }
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // The telemetries cannot wait for the timer, the caller still holds them and
+        // sends them now, where the backpressure policy applies to them
+        return false;
+    }
+
+    @Override
+    public boolean sendNow(Collection<Telemetry> telemetries) {
+        Preconditions.checkNotNull(telemetries, "telemetries should be non-null value");
+
+        return sendNow(PendingBatch.of(telemetries));
+    }
+
+    /**
+     * The batch is already serialized, it is queued and handled by the backpressure policy
+     * like any other batch, only its serialization is skipped.
+     */
+    @Override
+    public boolean sendNow(Transmission transmission, Map<String, Integer> telemetryCounts) {
+        Preconditions.checkNotNull(transmission, "transmission should be non-null value");
+
+        return sendNow(PendingBatch.of(transmission, telemetryCounts));
+    }
+
+    private boolean sendNow(PendingBatch batch) {
+        if (draining) {
+            backpressureHandler.onNotSent(batch);
+            return false;
+        }
+
+        lock.lock();
+        try {
+            if (stopped) {
+                return false;
+            }
+
+            if (makeRoom()) {
+                readyBatches.addLast(batch);
+                ++batchesSincePurge;
+                workAvailable.signal();
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        backpressureHandler.onRejected(batch);
+        return false;
+    }
+
+    @Override
+    public void setBackpressurePolicy(BackpressurePolicy policy, long blockTimeoutInMillis) {
+        backpressureHandler.setPolicy(policy, blockTimeoutInMillis);
+    }
+
+    @Override
+    public BackpressurePolicy getBackpressurePolicy() {
+        return backpressureHandler.getPolicy();
+    }
+
+    @Override
+    public Map<String, Long> getDroppedTelemetries() {
+        return backpressureHandler.getDroppedTelemetries();
+    }
+
+    /**
+     * Stops taking new batches, the dispatcher thread sends what is queued and what is scheduled
+     * without waiting for the deadlines, up to the timeout.
+     */
+    @Override
+    public void shutdown(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+
+        transmissionsLoader.shutdown();
+        stop();
+
+        dispatcherThread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+
+        long remaining = deadline - System.nanoTime();
+        if (remaining > 0) {
+            transmissionDispatcher.shutdown(remaining, TimeUnit.NANOSECONDS);
+        }
+        backpressureHandler.closeSpillOutput();
+    }
+
+    /**
+     * Stops taking new batches, the dispatcher thread sends what is queued and what is scheduled up to
+     * half the timeout. What it did not take by then goes to the local storage, and the dispatcher
+     * is drained with what is left of the timeout.
+     */
+    @Override
+    public void drainAndShutdown(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+
+        transmissionsLoader.shutdown();
+        draining = true;
+        stop();
+
+        dispatcherThread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeUnit.toNanos(timeout) / 2)));
+
+        List<PendingBatch> notSent = new ArrayList<PendingBatch>();
+        List<TelemetriesFetcher<Telemetry>> notFetched = new ArrayList<TelemetriesFetcher<Telemetry>>();
+        lock.lock();
+        try {
+            notSent.addAll(readyBatches);
+            readyBatches.clear();
+            for (ScheduledFetch scheduledFetch : scheduledFetches) {
+                notFetched.add(scheduledFetch.telemetriesFetcher);
+            }
+            scheduledFetches.clear();
+        } finally {
+            lock.unlock();
+        }
+
+        for (PendingBatch batch : notSent) {
+            backpressureHandler.onNotSent(batch);
+        }
+        for (TelemetriesFetcher<Telemetry> telemetriesFetcher : notFetched) {
+            backpressureHandler.onNotSent(telemetriesFetcher.fetch());
+        }
+
+        long remaining = deadline - System.nanoTime();
+        if (transmissionDispatcher instanceof Drainable) {
+            ((Drainable) transmissionDispatcher).drainAndShutdown(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+        } else if (remaining > 0) {
+            transmissionDispatcher.shutdown(remaining, TimeUnit.NANOSECONDS);
+        }
+        backpressureHandler.closeSpillOutput();
+    }
+
+    private void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            workAvailable.signal();
+            roomAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The method assumes that the 'lock' is held before calling it.
+     *
+     * @return True if there is room for one more batch or fetch, without applying the backpressure policy
+     */
+    private boolean hasRoom() {
+        return readyBatches.size() + scheduledFetches.size() < maxPendingScheduleRequests || removeExpiredFetches();
+    }
+
+    /**
+     * The method assumes that the 'lock' is held before calling it.
+     *
+     * @return True if there is room for one more batch or fetch, after applying the backpressure policy
+     */
+    private boolean makeRoom() {
+        if (hasRoom()) {
+            return true;
+        }
+
+        switch (backpressureHandler.getPolicy()) {
+            case DROP_OLDEST:
+                PendingBatch oldest = readyBatches.pollFirst();
+                if (oldest == null) {
+                    return false;
+                }
+                backpressureHandler.onDropped(oldest);
+                return true;
+
+            case BLOCK_WITH_TIMEOUT:
+                long remaining = TimeUnit.MILLISECONDS.toNanos(backpressureHandler.getBlockTimeoutInMillis());
+                try {
+                    while (!stopped && readyBatches.size() + scheduledFetches.size() >= maxPendingScheduleRequests) {
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        remaining = roomAvailable.awaitNanos(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                return !stopped;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * The method assumes that the 'lock' is held before calling it.
+     *
+     * @return True if a scheduled fetch whose batch was already sent was removed
+     */
+    private boolean removeExpiredFetches() {
+        if (batchesSincePurge == 0) {
+            return false;
+        }
+        batchesSincePurge = 0;
+
+        boolean removed = false;
+        for (Iterator<ScheduledFetch> iterator = scheduledFetches.iterator(); iterator.hasNext(); ) {
+            TelemetriesFetcher<Telemetry> telemetriesFetcher = iterator.next().telemetriesFetcher;
+            if (telemetriesFetcher instanceof ExpiringTelemetriesFetcher && ((ExpiringTelemetriesFetcher<Telemetry>) telemetriesFetcher).isExpired()) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    private void dispatchLoop() {
+        while (true) {
+            PendingBatch batch = null;
+            TelemetriesFetcher<Telemetry> dueFetcher = null;
+
+            lock.lock();
+            try {
+                while (batch == null && dueFetcher == null) {
+                    if (!readyBatches.isEmpty()) {
+                        batch = readyBatches.pollFirst();
+                        break;
+                    }
+
+                    ScheduledFetch next = scheduledFetches.peek();
+                    if (next == null) {
+                        if (stopped) {
+                            return;
+                        }
+                        workAvailable.await();
+                        continue;
+                    }
+
+                    long waitInNanos = next.deadlineInNanos - System.nanoTime();
+                    if (waitInNanos <= 0 || stopped) {
+                        dueFetcher = scheduledFetches.poll().telemetriesFetcher;
+                        break;
+                    }
+                    workAvailable.awaitNanos(waitInNanos);
+                }
+
+                roomAvailable.signal();
+            } catch (InterruptedException e) {
+                logger.trace("Dispatcher thread was interrupted", e);
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                if (dueFetcher != null) {
+                    // A fetch whose generation already moved on is empty, and cheap
+                    batch = PendingBatch.of(dueFetcher.fetch());
+                }
+                dispatch(batch);
+            } catch (ThreadDeath td) {
+                throw td;
+            } catch (Throwable t) {
+                try {
+                    logger.error("Error while dispatching telemetry items: {}", t.toString());
+                    logger.trace("Error while dispatching telemetry items", t);
+                } catch (ThreadDeath td) {
+                    throw td;
+                } catch (Throwable t2) {
+                    // chomp
+                }
+            }
+        }
+    }
+
+    private void dispatch(PendingBatch batch) {
+        Optional<Transmission> transmission = batch.serialize(serializer);
+        if (!transmission.isPresent()) {
+            return;
+        }
+
+        transmissionDispatcher.dispatch(transmission.get());
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+import com.squareup.moshi.JsonWriter;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * A batch that is compressed while it is being built, using the same format as the {@link GzipTelemetrySerializer}:
+ * the telemetries are separated by newline and the whole batch is compressed by Gzip.
+ *
+ * Only the compressed bytes are kept, finishing the batch only finishes the deflate stream.
+ * The class is not thread safe.
+ */
+final class GzipTelemetryBatch {
+
+    private final byte[] newlineString;
+
+    private final Buffer compressed = new Buffer();
+
+    private final BufferedSink sink = Okio.buffer(new GzipSink(compressed));
+
+    private int numberOfTelemetries;
+
+    /// The number of telemetries per telemetry type, so they are counted if the batch is dropped
+    private final Map<String, Integer> telemetryCounts = new HashMap<String, Integer>();
+
+    /// The size of the serialized telemetries before compression
+    private long sizeInBytes;
+
+    GzipTelemetryBatch() {
+        this.newlineString = System.getProperty("line.separator").getBytes();
+    }
+
+    /**
+     * Serializes the telemetry to Json, the way the {@link GzipTelemetrySerializer} does.
+     * @param telemetry The telemetry to serialize
+     * @return The serialized telemetry, to be appended to a batch
+     * @throws IOException If the telemetry cannot be serialized
+     */
+    static Buffer serialize(Telemetry telemetry) throws IOException {
+        Buffer buffer = new Buffer();
+        JsonTelemetryDataSerializer jsonWriter = new JsonTelemetryDataSerializer(JsonWriter.of(buffer));
+        telemetry.serialize(jsonWriter);
+        jsonWriter.close();
+        telemetry.markUsed();
+
+        return buffer;
+    }
+
+    /**
+     * @param serializedTelemetry A telemetry returned by {@link #serialize(Telemetry)}, it is consumed
+     * @param telemetryType The simple name of the class of the telemetry
+     * @throws IOException If the telemetry cannot be compressed
+     */
+    void append(Buffer serializedTelemetry, String telemetryType) throws IOException {
+        long telemetrySizeInBytes = serializedTelemetry.size();
+        if (numberOfTelemetries != 0) {
+            sink.write(newlineString);
+            telemetrySizeInBytes += newlineString.length;
+        }
+
+        sink.writeAll(serializedTelemetry);
+        ++numberOfTelemetries;
+        sizeInBytes += telemetrySizeInBytes;
+        Integer count = telemetryCounts.get(telemetryType);
+        telemetryCounts.put(telemetryType, count == null ? 1 : count + 1);
+    }
+
+    int getNumberOfTelemetries() {
+        return numberOfTelemetries;
+    }
+
+    long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    Map<String, Integer> getTelemetryCounts() {
+        return telemetryCounts;
+    }
+
+    /**
+     * Finishes the deflate stream, the batch cannot be appended to afterwards.
+     * @return The compressed batch
+     * @throws IOException If the deflate stream cannot be finished
+     */
+    Transmission finish() throws IOException {
+        try {
+            sink.close();
+            Transmission transmission = Transmission.fromBuffer(compressed, GzipTelemetrySerializer.GZIP_WEB_CONTENT_TYPE, GzipTelemetrySerializer.GZIP_WEB_ENCODING_TYPE);
+            transmission.setNumberOfItems(numberOfTelemetries);
+            return transmission;
+        } finally {
+            compressed.clear();
+        }
+    }
+
+    /**
+     * Releases the batch without sending it.
+     */
+    void discard() {
+        try {
+            sink.close();
+        } catch (IOException e) {
+            // chomp
+        } finally {
+            compressed.clear();
+        }
+    }
+}
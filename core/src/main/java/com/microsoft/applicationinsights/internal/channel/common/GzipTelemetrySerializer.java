@@ -23,6 +23,10 @@ package com.microsoft.applicationinsights.internal.channel.common;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
@@ -31,9 +35,6 @@ import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
 import com.microsoft.applicationinsights.telemetry.Telemetry;
 import com.squareup.moshi.JsonWriter;
 import okio.Buffer;
-import okio.BufferedSink;
-import okio.GzipSink;
-import okio.Okio;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,14 +42,155 @@ import org.slf4j.LoggerFactory;
  * The class is an implementation of the {@link TelemetrySerializer}
  * where the {@link Telemetry} instances are compressed by Gzip after converted to Json format
  *
+ * The {@link GzipEncoder}s are taken from a small pool shared by all the serializers and given back after
+ * every batch, so the Json writer, the {@link Deflater} and the working buffers are reused from batch to batch
+ * instead of being created per item. The pool is bounded, an encoder that does not fit back in ends its
+ * {@link Deflater} to free its native memory, so threads that serialize now and then, e.g. application
+ * threads that spill to disk, do not keep an encoder each.
+ *
  * Created by gupele on 12/17/2014.
  */
 public final class GzipTelemetrySerializer implements TelemetrySerializer {
 
     private static final Logger logger = LoggerFactory.getLogger(GzipTelemetrySerializer.class);
 
-    private final static String GZIP_WEB_CONTENT_TYPE = "application/x-json-stream";
-    private final static String GZIP_WEB_ENCODING_TYPE = "gzip";
+    /**
+     * Writes one Gzip member out of items that are added one by one.
+     *
+     * Each item is first written to an uncompressed buffer and is only deflated once it is complete,
+     * so an item that fails half way is dropped without leaving partial Json in the batch.
+     * The offsets of the complete items in the uncompressed content are kept, see {@link TransmissionItems}.
+     * The okio buffers give their segments back to the okio pool when cleared.
+     */
+    static final class GzipEncoder {
+        private static final int CHUNK_SIZE = 8192;
+
+        // magic, deflate method, no flags, no modification time, no extra flags, unknown OS
+        private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final CRC32 crc = new CRC32();
+        private final byte[] inputChunk = new byte[CHUNK_SIZE];
+        private final byte[] outputChunk = new byte[CHUNK_SIZE];
+        private final Buffer item = new Buffer();
+        private final Buffer output = new Buffer();
+        private final TransmissionItems.Offsets.Builder itemOffsets = new TransmissionItems.Offsets.Builder();
+
+        private JsonTelemetryDataSerializer dataSerializer;
+        private boolean itemOpen;
+
+        /// The size of the separator at the start of the current item, it is not part of the item offsets
+        private int separatorSize;
+
+        void begin() {
+            end();
+            deflater.reset();
+            crc.reset();
+            output.write(GZIP_HEADER);
+        }
+
+        void writeSeparator(byte[] separator) {
+            itemOpen = true;
+            item.write(separator);
+            separatorSize += separator.length;
+        }
+
+        /**
+         * Returns the buffer of the current item, to write an item that is already serialized.
+         */
+        Buffer beginItem() {
+            itemOpen = true;
+            return item;
+        }
+
+        /**
+         * Returns the reusable Json serializer, already positioned inside a new top level object.
+         * Every item gets a new strict writer, a writer only takes a single top level value.
+         */
+        JsonTelemetryDataSerializer beginJson() throws IOException {
+            itemOpen = true;
+            JsonWriter jsonWriter = JsonWriter.of(item);
+            if (dataSerializer == null) {
+                dataSerializer = new JsonTelemetryDataSerializer(jsonWriter);
+            } else {
+                dataSerializer.reset(jsonWriter);
+            }
+            return dataSerializer;
+        }
+
+        void commitItem() {
+            long start = deflater.getBytesRead() + separatorSize;
+            while (item.size() > 0) {
+                int read = item.read(inputChunk, 0, CHUNK_SIZE);
+                crc.update(inputChunk, 0, read);
+                deflater.setInput(inputChunk, 0, read);
+                while (!deflater.needsInput()) {
+                    output.write(outputChunk, 0, deflater.deflate(outputChunk));
+                }
+            }
+            itemOffsets.add(start, deflater.getBytesRead());
+            separatorSize = 0;
+            itemOpen = false;
+        }
+
+        void discardItem() {
+            item.clear();
+            separatorSize = 0;
+            // The serializer might be left in the middle of an object, so a new one is needed
+            dataSerializer = null;
+            itemOpen = false;
+        }
+
+        /**
+         * Completes the Gzip member, the returned buffer is valid until the next call to {@link #begin()} or {@link #end()}.
+         * Its segments can be moved out of it with {@link Transmission#fromBuffer(Buffer, String, String)}.
+         */
+        Buffer finish() {
+            deflater.finish();
+            while (!deflater.finished()) {
+                output.write(outputChunk, 0, deflater.deflate(outputChunk));
+            }
+            output.writeIntLe((int) crc.getValue());
+            output.writeIntLe((int) deflater.getBytesRead());
+            return output;
+        }
+
+        long getUncompressedSize() {
+            return deflater.getBytesRead();
+        }
+
+        /**
+         * @return The offsets of the items that were committed since {@link #begin()}.
+         */
+        TransmissionItems.Offsets takeItemOffsets() {
+            return itemOffsets.build();
+        }
+
+        void end() {
+            if (itemOpen) {
+                discardItem();
+            }
+            item.clear();
+            output.clear();
+            itemOffsets.clear();
+        }
+
+        /**
+         * Frees the native memory of the {@link Deflater}, the encoder cannot be used anymore.
+         */
+        void dispose() {
+            end();
+            deflater.end();
+        }
+    }
+
+    /// The number of idle encoders kept for reuse, enough for the sender threads
+    static final int MAX_IDLE_ENCODERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static final BlockingQueue<GzipEncoder> idleEncoders = new ArrayBlockingQueue<GzipEncoder>(MAX_IDLE_ENCODERS);
+
+    final static String GZIP_WEB_CONTENT_TYPE = "application/x-json-stream";
+    final static String GZIP_WEB_ENCODING_TYPE = "gzip";
 
     private final byte[] newlineString;
 
@@ -61,41 +203,31 @@ public final class GzipTelemetrySerializer implements TelemetrySerializer {
         Preconditions.checkNotNull(telemetries, "telemetries must be non-null value");
         Preconditions.checkArgument(!telemetries.isEmpty(), "telemetries: One or more telemetry item is expected");
 
+        long startInNanos = System.nanoTime();
         Transmission result = null;
-        boolean succeeded = false;
+        GzipEncoder encoder = acquireEncoder();
         try {
-            Buffer buffer = new Buffer();
-
-            try {
-                GzipSink gzipSink = new GzipSink(buffer);
-                BufferedSink bufferedSink = Okio.buffer(gzipSink);
-
-                try {
-                    succeeded = compress(bufferedSink, telemetries);
-                } catch (Exception e) {
-                    logger.error("Failed to serialize , exception: {}", e.toString());
-                } catch (ThreadDeath td) {
-                    throw td;
-                } catch (Throwable t) {
-                    try {
-                        logger.error("Failed to serialize, unknown exception: {}", t.toString());                    } catch (ThreadDeath td) {
-                        throw td;
-                    } catch (Throwable t2) {
-                        // chomp
-                    }
-                } finally {
-                    bufferedSink.close();
-                }
-            } finally {
-                // The creation of the result must be done after the 'zipStream' is closed
-                if (succeeded) {
-                    // TODO further optimize by passing buffer and using okio http
-                    result = new Transmission(buffer.readByteArray(), GZIP_WEB_CONTENT_TYPE, GZIP_WEB_ENCODING_TYPE);
-                }
-                buffer.clear();
+            encoder.begin();
+            if (compress(encoder, telemetries)) {
+                Buffer buffer = encoder.finish();
+                long compressedSizeInBytes = buffer.size();
+                result = Transmission.fromBuffer(buffer, GZIP_WEB_CONTENT_TYPE, GZIP_WEB_ENCODING_TYPE, encoder.takeItemOffsets());
+                ChannelMetrics.INSTANCE.onBatchSerialized(telemetries.size(), encoder.getUncompressedSize(), compressedSizeInBytes, System.nanoTime() - startInNanos);
             }
-        } catch(Exception e) {
+        } catch (Exception e) {
             logger.error("Failed to serialize , exception: {}", e.toString());
+        } catch (ThreadDeath td) {
+            throw td;
+        } catch (Throwable t) {
+            try {
+                logger.error("Failed to serialize, unknown exception: {}", t.toString());
+            } catch (ThreadDeath td) {
+                throw td;
+            } catch (Throwable t2) {
+                // chomp
+            }
+        } finally {
+            releaseEncoder(encoder);
         }
 
         return Optional.fromNullable(result);
@@ -106,48 +238,85 @@ public final class GzipTelemetrySerializer implements TelemetrySerializer {
         Preconditions.checkArgument(!telemetries.isEmpty(), "telemetries: One or more telemetry item is expected");
 
         Transmission result = null;
-        boolean succeeded = false;
+        GzipEncoder encoder = acquireEncoder();
         try {
-            Buffer buffer = new Buffer();
-
-            try {
-                GzipSink gzipSink = new GzipSink(buffer);
-                BufferedSink bufferedSink = Okio.buffer(gzipSink);
-
-                try {
-                    succeeded = compressFromStrings(bufferedSink, telemetries);
-                } catch (Exception e) {
-                    logger.error("Failed to serialize , exception: {}", e.toString());
-                } catch (ThreadDeath td) {
-                    throw td;
-                } catch (Throwable t) {
-                    try {
-                        logger.error("Failed to serialize, unknown exception: {}", t.toString());                    } catch (ThreadDeath td) {
-                        throw td;
-                    } catch (Throwable t2) {
-                        // chomp
-                    }
-                } finally {
-                    bufferedSink.close();
-                }
-            } finally {
-                // The creation of the result must be done after the 'zipStream' is closed
-                if (succeeded) {
-                    // TODO further optimize by passing buffer and using okio http
-                    result = new Transmission(buffer.readByteArray(), GZIP_WEB_CONTENT_TYPE, GZIP_WEB_ENCODING_TYPE);
-                }
-                buffer.clear();
+            encoder.begin();
+            if (compressFromStrings(encoder, telemetries)) {
+                result = Transmission.fromBuffer(encoder.finish(), GZIP_WEB_CONTENT_TYPE, GZIP_WEB_ENCODING_TYPE, encoder.takeItemOffsets());
             }
-        } catch(Exception e) {
+        } catch (Exception e) {
             logger.error("Failed to serialize , exception: {}", e.toString());
+        } catch (ThreadDeath td) {
+            throw td;
+        } catch (Throwable t) {
+            try {
+                logger.error("Failed to serialize, unknown exception: {}", t.toString());
+            } catch (ThreadDeath td) {
+                throw td;
+            } catch (Throwable t2) {
+                // chomp
+            }
+        } finally {
+            releaseEncoder(encoder);
         }
 
         return Optional.fromNullable(result);
     }
 
-    private boolean compress(BufferedSink sink, Collection<Telemetry> telemetries) throws IOException {
-        int counter = 0;
+    /**
+     * Creates a transmission out of some of the items of another one, as they were serialized.
+     *
+     * @param items The items of the original transmission.
+     * @param indices The indices of the items to send.
+     * @return The new transmission, which keeps the offsets of its own items, or absent if there are no indices.
+     */
+    Optional<Transmission> serializeItems(TransmissionItems items, Collection<Integer> indices) {
+        Preconditions.checkNotNull(items, "items must be non-null value");
+        Preconditions.checkNotNull(indices, "indices must be non-null value");
 
+        if (indices.isEmpty()) {
+            return Optional.absent();
+        }
+
+        GzipEncoder encoder = acquireEncoder();
+        try {
+            encoder.begin();
+            int counter = 0;
+            for (int index : indices) {
+                if (counter != 0) {
+                    encoder.writeSeparator(newlineString);
+                }
+                items.copyItemTo(index, encoder.beginItem());
+                encoder.commitItem();
+                ++counter;
+            }
+            return Optional.of(Transmission.fromBuffer(encoder.finish(), GZIP_WEB_CONTENT_TYPE, GZIP_WEB_ENCODING_TYPE, encoder.takeItemOffsets()));
+        } finally {
+            releaseEncoder(encoder);
+        }
+    }
+
+    /**
+     * @return The number of idle encoders kept for reuse, for testing.
+     */
+    static int getIdleEncoders() {
+        return idleEncoders.size();
+    }
+
+    private static GzipEncoder acquireEncoder() {
+        GzipEncoder encoder = idleEncoders.poll();
+        return encoder != null ? encoder : new GzipEncoder();
+    }
+
+    private static void releaseEncoder(GzipEncoder encoder) {
+        encoder.end();
+        if (!idleEncoders.offer(encoder)) {
+            encoder.dispose();
+        }
+    }
+
+    private boolean compress(GzipEncoder encoder, Collection<Telemetry> telemetries) {
+        int counter = 0;
 
         // The format is:
         // 1. Separate each Telemetry by newline
@@ -155,16 +324,19 @@ public final class GzipTelemetrySerializer implements TelemetrySerializer {
         for (Telemetry telemetry : telemetries) {
 
             if (counter != 0) {
-                sink.write(newlineString);
+                encoder.writeSeparator(newlineString);
             }
 
             try {
-                JsonTelemetryDataSerializer jsonWriter = new JsonTelemetryDataSerializer(JsonWriter.of(sink));
+                JsonTelemetryDataSerializer jsonWriter = encoder.beginJson();
                 telemetry.serialize(jsonWriter);
                 jsonWriter.close();
+                encoder.commitItem();
                 telemetry.markUsed();
                 ++counter;
-            } catch (IOException e) {
+            } catch (IOException | IllegalArgumentException e) {
+                // The strict writer rejects the values that are not valid Json, e.g. NaN
+                encoder.discardItem();
                 logger.error("Failed to serialize Telemetry");
                 logger.trace("Failed to serialize Telemetry", e);
             }
@@ -173,7 +345,7 @@ public final class GzipTelemetrySerializer implements TelemetrySerializer {
         return counter > 0;
     }
 
-    private boolean compressFromStrings(BufferedSink sink, Collection<String> telemetries) throws IOException {
+    private boolean compressFromStrings(GzipEncoder encoder, Collection<String> telemetries) {
         int counter = 0;
 
         // The format is:
@@ -182,13 +354,16 @@ public final class GzipTelemetrySerializer implements TelemetrySerializer {
         for (String telemetry : telemetries) {
 
             if (counter != 0) {
-                sink.write(newlineString);
+                encoder.writeSeparator(newlineString);
             }
 
             try {
-                sink.write(telemetry.getBytes());
+                // The items are Json, which is written in UTF-8 whatever the default charset is
+                encoder.beginItem().writeUtf8(telemetry);
+                encoder.commitItem();
                 ++counter;
             } catch (Exception e) {
+                encoder.discardItem();
                 logger.error("Failed to serialize , exception: {}", e.toString());
             }
         }
@@ -0,0 +1,191 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.List;
+import java.util.Map;
+
+import com.microsoft.applicationinsights.internal.channel.TelemetrySizeEstimator;
+import com.microsoft.applicationinsights.internal.schemav2.ExceptionDetails;
+import com.microsoft.applicationinsights.internal.schemav2.StackFrame;
+import com.microsoft.applicationinsights.telemetry.EventTelemetry;
+import com.microsoft.applicationinsights.telemetry.ExceptionTelemetry;
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import com.microsoft.applicationinsights.telemetry.PageViewTelemetry;
+import com.microsoft.applicationinsights.telemetry.RemoteDependencyTelemetry;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+import com.microsoft.applicationinsights.telemetry.TelemetryContext;
+import com.microsoft.applicationinsights.telemetry.TraceTelemetry;
+
+/**
+ * Estimates the Json size of a {@link Telemetry} without serializing it, from the UTF-8 lengths of the
+ * strings it holds: the known fields of the telemetry types, the properties, the measurements, the
+ * context tags and the stack frames of the exceptions.
+ *
+ * The names of the fields, the numbers and the envelope are counted as fixed overheads and Json escaping
+ * is ignored, so the estimate is usually within ten percent of the serialized size, never exact.
+ */
+public final class JsonTelemetrySizeEstimator implements TelemetrySizeEstimator<Telemetry> {
+
+    /// The envelope, the time, the sequence, the base type and the fields that are numbers or enums
+    static final int ENVELOPE_SIZE_IN_BYTES = 192;
+
+    /// The quotes, the colon and the comma around a string value, and a short field name
+    static final int FIELD_OVERHEAD_IN_BYTES = 12;
+
+    /// The quotes, the colon and the comma of an entry of a map of strings
+    static final int ENTRY_OVERHEAD_IN_BYTES = 6;
+
+    /// The number of a measurement, with its colon and comma
+    static final int MEASUREMENT_VALUE_SIZE_IN_BYTES = 16;
+
+    /// The level, the line and the field names of a stack frame
+    static final int STACK_FRAME_OVERHEAD_IN_BYTES = 64;
+
+    private final int newlineSize;
+
+    public JsonTelemetrySizeEstimator() {
+        this.newlineSize = System.getProperty("line.separator").getBytes().length;
+    }
+
+    @Override
+    public int estimateSizeInBytes(Telemetry telemetry) {
+        long size = ENVELOPE_SIZE_IN_BYTES + newlineSize;
+
+        TelemetryContext context = telemetry.getContext();
+        // The key is also part of the name of the envelope
+        size += sizeOf(context.getInstrumentationKey()) + utf8Length(context.getInstrumentationKey());
+        size += sizeOfStrings(context.getTags());
+        size += sizeOfStrings(telemetry.getProperties());
+
+        if (telemetry instanceof TraceTelemetry) {
+            size += sizeOf(((TraceTelemetry) telemetry).getMessage());
+        } else if (telemetry instanceof EventTelemetry) {
+            EventTelemetry event = (EventTelemetry) telemetry;
+            size += sizeOf(event.getName()) + sizeOfMeasurements(event.getMetrics());
+        } else if (telemetry instanceof RequestTelemetry) {
+            RequestTelemetry request = (RequestTelemetry) telemetry;
+            size += sizeOf(request.getName()) + sizeOf(request.getId()) + sizeOf(request.getResponseCode())
+                    + sizeOf(request.getSource()) + sizeOf(request.getUrlString()) + sizeOfMeasurements(request.getMetrics());
+        } else if (telemetry instanceof RemoteDependencyTelemetry) {
+            RemoteDependencyTelemetry dependency = (RemoteDependencyTelemetry) telemetry;
+            size += sizeOf(dependency.getName()) + sizeOf(dependency.getId()) + sizeOf(dependency.getCommandName())
+                    + sizeOf(dependency.getType()) + sizeOf(dependency.getTarget()) + sizeOf(dependency.getResultCode())
+                    + sizeOfMeasurements(dependency.getMetrics());
+        } else if (telemetry instanceof ExceptionTelemetry) {
+            ExceptionTelemetry exception = (ExceptionTelemetry) telemetry;
+            size += sizeOfExceptions(exception.getExceptions()) + sizeOfMeasurements(exception.getMetrics());
+        } else if (telemetry instanceof MetricTelemetry) {
+            size += sizeOf(((MetricTelemetry) telemetry).getName()) + MEASUREMENT_VALUE_SIZE_IN_BYTES * 2;
+        } else if (telemetry instanceof PageViewTelemetry) {
+            PageViewTelemetry pageView = (PageViewTelemetry) telemetry;
+            size += sizeOf(pageView.getName()) + sizeOf(pageView.getUrlString()) + sizeOfMeasurements(pageView.getMetrics());
+        } else {
+            size += sizeOfPerformanceCounter(telemetry);
+        }
+
+        return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
+    }
+
+    /**
+     * The type is deprecated, it is referred to by its full name so the warning stays suppressed within this method
+     */
+    @SuppressWarnings("deprecation")
+    private static long sizeOfPerformanceCounter(Telemetry telemetry) {
+        if (!(telemetry instanceof com.microsoft.applicationinsights.telemetry.PerformanceCounterTelemetry)) {
+            return 0;
+        }
+
+        com.microsoft.applicationinsights.telemetry.PerformanceCounterTelemetry counter =
+                (com.microsoft.applicationinsights.telemetry.PerformanceCounterTelemetry) telemetry;
+        return sizeOf(counter.getCategoryName()) + sizeOf(counter.getCounterName()) + sizeOf(counter.getInstanceName())
+                + MEASUREMENT_VALUE_SIZE_IN_BYTES;
+    }
+
+    private static long sizeOfExceptions(List<ExceptionDetails> exceptions) {
+        if (exceptions == null) {
+            return 0;
+        }
+
+        long size = 0;
+        for (ExceptionDetails details : exceptions) {
+            size += sizeOf(details.getTypeName()) + sizeOf(details.getMessage()) + sizeOf(details.getStack());
+            List<StackFrame> frames = details.getParsedStack();
+            if (frames != null) {
+                for (StackFrame frame : frames) {
+                    size += STACK_FRAME_OVERHEAD_IN_BYTES + sizeOf(frame.getMethod()) + sizeOf(frame.getAssembly())
+                            + sizeOf(frame.getFileName());
+                }
+            }
+        }
+        return size;
+    }
+
+    private static long sizeOfStrings(Map<String, String> strings) {
+        if (strings == null) {
+            return 0;
+        }
+
+        long size = 0;
+        for (Map.Entry<String, String> entry : strings.entrySet()) {
+            size += ENTRY_OVERHEAD_IN_BYTES + utf8Length(entry.getKey()) + utf8Length(entry.getValue());
+        }
+        return size;
+    }
+
+    private static long sizeOfMeasurements(Map<String, Double> measurements) {
+        if (measurements == null) {
+            return 0;
+        }
+
+        long size = 0;
+        for (String name : measurements.keySet()) {
+            size += ENTRY_OVERHEAD_IN_BYTES + utf8Length(name) + MEASUREMENT_VALUE_SIZE_IN_BYTES;
+        }
+        return size;
+    }
+
+    private static long sizeOf(String value) {
+        return value == null ? 0 : FIELD_OVERHEAD_IN_BYTES + utf8Length(value);
+    }
+
+    /**
+     * @return The UTF-8 length of the string, a surrogate pair takes 4 bytes
+     */
+    private static long utf8Length(String value) {
+        if (value == null) {
+            return 0;
+        }
+
+        long size = value.length();
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c >= 0x800) {
+                size += Character.isSurrogate(c) ? 1 : 2;
+            } else if (c >= 0x80) {
+                size += 1;
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A lock-free histogram of non-negative values, in the spirit of HdrHistogram.
+ *
+ * Values are counted in buckets whose width grows with the value: every power of two is split into
+ * {@link #SUB_BUCKETS} linear buckets, so a percentile is off by at most 1/{@link #SUB_BUCKETS} of its
+ * value, whatever the range. Recording a value is a few atomic increments and takes no lock, reading
+ * walks the buckets and is meant for the occasional monitoring call.
+ */
+public final class LogLinearHistogram {
+
+    /**
+     * The state of a histogram at some point, in the unit asked for.
+     */
+    public static final class Snapshot {
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        @ConstructorProperties({"count", "mean", "p50", "p90", "p99", "max"})
+        public Snapshot(long count, double mean, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /// Values below 'SUB_BUCKETS' get a bucket each, every further power of two gets 'SUB_BUCKETS' buckets
+    private static final int NUMBER_OF_BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUMBER_OF_BUCKETS);
+
+    private final AtomicLong count = new AtomicLong(0);
+
+    private final AtomicLong sum = new AtomicLong(0);
+
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * @param value The value to count, negative values are counted as zero
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        buckets.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax;
+        while (value > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, value)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return The highest value of the bucket that holds the percentile, never above the recorded maximum, zero if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        Preconditions.checkArgument(percentile >= 0 && percentile <= 100, "percentile must be between 0 and 100");
+
+        long total = 0;
+        long[] counts = new long[NUMBER_OF_BUCKETS];
+        for (int i = 0; i < NUMBER_OF_BUCKETS; ++i) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < NUMBER_OF_BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @param unit The values are divided by it, e.g. 1000 for microseconds out of nanoseconds
+     * @return The count, mean, 50th, 90th and 99th percentiles and maximum in that unit
+     */
+    public Snapshot getSnapshot(long unit) {
+        Preconditions.checkArgument(unit > 0, "unit must be a positive number");
+
+        long currentCount = count.get();
+        double mean = currentCount == 0 ? 0 : (double) sum.get() / currentCount / unit;
+        return new Snapshot(currentCount, mean,
+                getValueAtPercentile(50) / unit,
+                getValueAtPercentile(90) / unit,
+                getValueAtPercentile(99) / unit,
+                max.get() / unit);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowest = (1L << exponent) | ((long) (bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS));
+        return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Preconditions;
+import com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.channel.TelemetrySizeEstimator;
+import com.microsoft.applicationinsights.internal.util.LimitsEnforcer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link TelemetryBuffer} backed by a bounded, lock-free multi-producer/single-consumer ring buffer.
+ *
+ * Application threads only claim a slot and publish the telemetry into it, they never take a lock
+ * and never wait for the sender. The ring is drained by the {@link TelemetriesTransmitter} threads
+ * through the same fetcher/generation hand-off that the {@link TelemetryBuffer} uses:
+ *
+ * The first item of a batch arms a timer through {@link TelemetriesTransmitter#scheduleSend}, and
+ * every time the buffer holds a full batch, by number of telemetries or by estimated size, an immediate
+ * fetch is scheduled. A fetcher whose generation
+ * is no longer the current one returns an empty collection, and whoever drained the ring re-arms the
+ * timer for anything that is left.
+ *
+ * When the ring is full the incoming telemetry is dropped.
+ */
+public class MpscTelemetryBuffer<T> extends TelemetryBuffer<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(MpscTelemetryBuffer.class);
+
+    public static final int DEFAULT_RING_CAPACITY = 4096;
+
+    private static final int DROPPED_TELEMETRIES_LOG_MODULUS = 10000;
+
+    /**
+     * Fetches the next batch out of the ring, on behalf of the consumer that was scheduled for 'expectedGeneration'.
+     */
+    private final class RingTelemetriesFetcher implements TelemetriesTransmitter.ExpiringTelemetriesFetcher<T> {
+
+        private final long expectedGeneration;
+
+        private RingTelemetriesFetcher(long expectedGeneration) {
+            this.expectedGeneration = expectedGeneration;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return expectedGeneration != generation;
+        }
+
+        @Override
+        public Collection<T> fetch() {
+            if (expectedGeneration != generation) {
+                return Collections.emptyList();
+            }
+
+            // Only the transmitter threads wait here, never the producers
+            consumerLock.lock();
+            try {
+                if (expectedGeneration != generation) {
+                    return Collections.emptyList();
+                }
+
+                List<T> readyToBeSent = drainBatch(Long.MAX_VALUE);
+                scheduleRemaining();
+
+                return readyToBeSent;
+            } finally {
+                consumerLock.unlock();
+            }
+        }
+    }
+
+    private final TelemetriesTransmitter<T> sender;
+
+    /// The ring, a slot is null until the producer that claimed it publishes its telemetry
+    private final AtomicReferenceArray<T> slots;
+
+    /// The estimated size of the telemetry of every slot, written before the telemetry is published
+    private final AtomicIntegerArray slotSizes;
+    private final int mask;
+    private final int capacity;
+
+    /// The next slot to be claimed by a producer
+    private final AtomicLong producerIndex = new AtomicLong(0);
+
+    /// The next slot to be drained, only advanced by the consumer holding the 'consumerLock'
+    private final AtomicLong consumerIndex = new AtomicLong(0);
+
+    /// Number of published telemetries that were not drained yet
+    private final AtomicInteger pending = new AtomicInteger(0);
+
+    /// The estimated size of the published telemetries that were not drained yet
+    private final AtomicLong pendingBytes = new AtomicLong(0);
+
+    /// Set while a timed fetch is scheduled for the current generation
+    private final AtomicBoolean timerArmed = new AtomicBoolean(false);
+
+    /// The telemetries dropped since the ring was full, per telemetry type
+    private final TelemetryDropCounters dropCounters = new TelemetryDropCounters();
+
+    /// Only one transmitter thread drains the ring at a time
+    private final ReentrantLock consumerLock = new ReentrantLock();
+
+    /// Advanced by every drain, fetchers of older generations will not send anything
+    private volatile long generation = 0;
+
+    public MpscTelemetryBuffer(TelemetriesTransmitter<T> sender, LimitsEnforcer maxTelemetriesInBatchEnforcer, LimitsEnforcer transmitBufferTimeoutInSecondsEnforcer) {
+        this(sender, maxTelemetriesInBatchEnforcer, transmitBufferTimeoutInSecondsEnforcer, DEFAULT_RING_CAPACITY);
+    }
+
+    /**
+     * @param sender The sender object for transmitting the telemetries
+     * @param maxTelemetriesInBatchEnforcer For getting the number of maximum number of telemetries in a batch within limits
+     * @param transmitBufferTimeoutInSecondsEnforcer For getting the number of transmit buffer timeout in seconds within limits
+     * @param ringCapacity The number of telemetries the ring can hold, rounded up to a power of two and to at least
+     *                     the maximum batch size
+     */
+    public MpscTelemetryBuffer(TelemetriesTransmitter<T> sender, LimitsEnforcer maxTelemetriesInBatchEnforcer, LimitsEnforcer transmitBufferTimeoutInSecondsEnforcer, int ringCapacity) {
+        super(sender, maxTelemetriesInBatchEnforcer, transmitBufferTimeoutInSecondsEnforcer);
+        Preconditions.checkArgument(ringCapacity > 0, "ringCapacity must be a positive number");
+
+        this.sender = sender;
+        this.capacity = roundUpToPowerOfTwo(Math.max(ringCapacity, maxTelemetriesInBatchEnforcer.getMaximum()));
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<T>(capacity);
+        this.slotSizes = new AtomicIntegerArray(capacity);
+    }
+
+    @Override
+    public void setMaxTelemetriesInBatch(int value) {
+        super.setMaxTelemetriesInBatch(value);
+        if (getMaxTelemetriesInBatch() < pending.get()) {
+            // Request for smaller buffers, we flush if our buffer contains more elements
+            flush();
+        }
+    }
+
+    @Override
+    public void setMaxBatchSizeInBytes(TelemetrySizeEstimator<? super T> sizeEstimator, int value) {
+        super.setMaxBatchSizeInBytes(sizeEstimator, value);
+        if (getMaxBatchSizeInBytes() <= pendingBytes.get()) {
+            // Request for smaller batches, we flush if our buffer is already bigger
+            flush();
+        }
+    }
+
+    /**
+     * Publishes the telemetry into the ring, the calling thread never blocks.
+     *
+     * If that is the first instance of a batch we arm the timer, if the ring now holds a full batch,
+     * by number of telemetries or by estimated size, we ask the sender to pick it up now.
+     * @param telemetry The {@link com.microsoft.applicationinsights.telemetry.Telemetry} to add to the buffer.
+     */
+    @Override
+    public void add(T telemetry) {
+        Preconditions.checkNotNull(telemetry, "Telemetry must be non null value");
+
+        TelemetrySizeEstimator<? super T> sizeEstimator = getSizeEstimator();
+        int telemetrySizeInBytes = sizeEstimator == null ? 0 : sizeEstimator.estimateSizeInBytes(telemetry);
+
+        if (!offer(telemetry, telemetrySizeInBytes)) {
+            long dropped = dropCounters.record(Collections.singletonList(telemetry));
+            if (dropped % DROPPED_TELEMETRIES_LOG_MODULUS == 1) {
+                logger.error("Telemetry buffer is full, {} telemetries were dropped so far", dropped);
+            }
+            return;
+        }
+
+        countBufferedTelemetries(1);
+        int currentSize = pending.incrementAndGet();
+        long currentSizeInBytes = pendingBytes.addAndGet(telemetrySizeInBytes);
+        if (currentSize <= 0) {
+            // A consumer already drained it before we counted it
+            return;
+        }
+
+        if (currentSize % getMaxTelemetriesInBatch() == 0 || crossedMaxBatchSizeInBytes(currentSizeInBytes, telemetrySizeInBytes)) {
+            if (!sender.scheduleSend(new RingTelemetriesFetcher(generation), 0, TimeUnit.SECONDS)) {
+                // The telemetries stay in the ring, the armed timer will pick them up
+                logger.error("Failed to send buffer data to network");
+            }
+        } else {
+            armTimer();
+        }
+    }
+
+    /**
+     * Drains the ring on the calling thread and hands the batches to the sender.
+     */
+    @Override
+    public void flush() {
+        consumerLock.lock();
+        try {
+            // Only drain what is already there, so that busy producers cannot keep us here forever
+            long flushUpTo = producerIndex.get();
+            while (true) {
+                List<T> readyToBeSent = drainBatch(flushUpTo);
+                if (readyToBeSent.isEmpty()) {
+                    break;
+                }
+
+                if (!sender.sendNow(readyToBeSent)) {
+                    logger.error("Failed to flush buffer data to network");
+                }
+            }
+
+            scheduleRemaining();
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    @Override
+    public int getBufferedTelemetries() {
+        return pending.get();
+    }
+
+    /**
+     * @return The number of telemetries dropped since the ring was full
+     */
+    public long getDroppedTelemetries() {
+        return dropCounters.getTotalDroppedTelemetries();
+    }
+
+    /**
+     * @return The number of telemetries dropped since the ring was full, keyed by telemetry type
+     */
+    @Override
+    public Map<String, Long> getDroppedTelemetriesByType() {
+        return dropCounters.getSnapshot();
+    }
+
+    private boolean crossedMaxBatchSizeInBytes(long currentSizeInBytes, int telemetrySizeInBytes) {
+        int maxBatchSizeInBytes = getMaxBatchSizeInBytes();
+        return maxBatchSizeInBytes > 0 && currentSizeInBytes >= maxBatchSizeInBytes && currentSizeInBytes - telemetrySizeInBytes < maxBatchSizeInBytes;
+    }
+
+    private boolean offer(T telemetry, int telemetrySizeInBytes) {
+        long claimed;
+        do {
+            claimed = producerIndex.get();
+            if (claimed - consumerIndex.get() >= capacity) {
+                return false;
+            }
+        } while (!producerIndex.compareAndSet(claimed, claimed + 1));
+
+        int offset = (int) claimed & mask;
+        slotSizes.lazySet(offset, telemetrySizeInBytes);
+        slots.lazySet(offset, telemetry);
+        return true;
+    }
+
+    /**
+     * The method assumes that the 'consumerLock' is held before calling it.
+     *
+     * Drains up to a batch of published telemetries and moves to the next generation.
+     * When batching by size, the batch stops before the telemetry that would take it over the maximum size.
+     *
+     * @param upTo The producer index at which to stop
+     * @return The list of telemetries that are ready to be sent
+     */
+    private List<T> drainBatch(long upTo) {
+        int maxTelemetriesInBatch = getMaxTelemetriesInBatch();
+        int maxBatchSizeInBytes = getMaxBatchSizeInBytes();
+        long batchSizeInBytes = 0;
+        List<T> readyToBeSent = new ArrayList<T>(Math.max(0, Math.min(maxTelemetriesInBatch, pending.get())));
+
+        long index = consumerIndex.get();
+        while (readyToBeSent.size() < maxTelemetriesInBatch && index < upTo) {
+            int offset = (int) index & mask;
+            T telemetry = slots.get(offset);
+            if (telemetry == null) {
+                // Either empty, or a producer claimed the slot but did not publish yet
+                break;
+            }
+
+            int telemetrySizeInBytes = slotSizes.get(offset);
+            if (maxBatchSizeInBytes > 0 && !readyToBeSent.isEmpty() && batchSizeInBytes + telemetrySizeInBytes > maxBatchSizeInBytes) {
+                break;
+            }
+
+            slots.lazySet(offset, null);
+            readyToBeSent.add(telemetry);
+            batchSizeInBytes += telemetrySizeInBytes;
+            ++index;
+        }
+
+        if (!readyToBeSent.isEmpty()) {
+            consumerIndex.lazySet(index);
+            pending.addAndGet(-readyToBeSent.size());
+            pendingBytes.addAndGet(-batchSizeInBytes);
+            countBufferedTelemetries(-readyToBeSent.size());
+            ++generation;
+        }
+
+        return readyToBeSent;
+    }
+
+    /**
+     * The method assumes that the 'consumerLock' is held before calling it.
+     *
+     * Makes sure whatever is left in the ring after a drain will be picked up.
+     */
+    private void scheduleRemaining() {
+        timerArmed.set(false);
+
+        int remaining = pending.get();
+        int maxBatchSizeInBytes = getMaxBatchSizeInBytes();
+        if (remaining >= getMaxTelemetriesInBatch() || (maxBatchSizeInBytes > 0 && pendingBytes.get() >= maxBatchSizeInBytes)) {
+            if (!sender.scheduleSend(new RingTelemetriesFetcher(generation), 0, TimeUnit.SECONDS)) {
+                logger.error("Failed to send buffer data to network");
+                armTimer();
+            }
+        } else if (remaining > 0) {
+            armTimer();
+        }
+    }
+
+    private void armTimer() {
+        if (timerArmed.get() || !timerArmed.compareAndSet(false, true)) {
+            return;
+        }
+
+        if (!sender.scheduleSend(new RingTelemetriesFetcher(generation), getTransmitBufferTimeoutInSeconds(), TimeUnit.SECONDS)) {
+            // Let the next producer try again, the telemetries are kept in the ring meanwhile
+            timerArmed.set(false);
+            logger.error("Failed to schedule send of the buffer to network");
+        }
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        int highestOneBit = Integer.highestOneBit(value);
+        return highestOneBit == value ? value : highestOneBit << 1;
+    }
+}
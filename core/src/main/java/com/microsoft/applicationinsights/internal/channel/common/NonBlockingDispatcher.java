@@ -21,10 +21,13 @@
 
 package com.microsoft.applicationinsights.internal.channel.common;
 
+import java.util.Collection;
 import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
+import com.microsoft.applicationinsights.internal.channel.Drainable;
+import com.microsoft.applicationinsights.internal.channel.DrainableTransmissionOutput;
 import com.microsoft.applicationinsights.internal.channel.TransmissionDispatcher;
 import com.microsoft.applicationinsights.internal.channel.TransmissionOutputAsync;
 
@@ -36,9 +39,15 @@ import com.microsoft.applicationinsights.internal.channel.TransmissionOutputAsyn
  *
  * It is a non blocking behavior in the sense that if no one can accept it will drop the data
  *
+ * When drained, the transmissions an output did not send in time are given to the outputs that follow it,
+ * the network output hands them to the file system output that way.
+ *
  * Created by gupele on 12/18/2014.
  */
-public final class NonBlockingDispatcher implements TransmissionDispatcher {
+public final class NonBlockingDispatcher implements TransmissionDispatcher, Drainable {
+    /// The part of the budget of {@link #drainAndShutdown} kept for the outputs that follow one that is drained
+    private static final int DRAIN_RESERVE_DIVISOR = 5;
+
     private final TransmissionOutputAsync[] transmissionOutputs;
 
     public NonBlockingDispatcher(TransmissionOutputAsync[] transmissionOutputs) {
@@ -52,22 +61,47 @@ public final class NonBlockingDispatcher implements TransmissionDispatcher {
     public void dispatch(Transmission transmission) {
         Preconditions.checkNotNull(transmission, "transmission should be non-null value");
 
-        for (TransmissionOutputAsync output : transmissionOutputs) {
-            if (output.sendAsync(transmission)) {
-                return;
-            }
-        }
+        dispatch(transmission, 0);
     }
 
     @Override
     public void shutdown(long timeout, TimeUnit timeUnit) throws InterruptedException {
         Stopwatch stopwatch = Stopwatch.createStarted();
         for (TransmissionOutputAsync output : transmissionOutputs) {
+            // Shut down even when the timeout expired, so the threads of the output do not leak
             long remaining = timeout - stopwatch.elapsed(timeUnit);
-            if (remaining > 0) {
-                output.shutdown(remaining, timeUnit);
+            output.shutdown(Math.max(0, remaining), timeUnit);
+        }
+    }
+
+    /**
+     * Shuts the outputs down in order within the timeout. An output that is followed by others gets
+     * the budget but a fifth, and if it can be drained, what it did not send goes to the next outputs.
+     */
+    @Override
+    public void drainAndShutdown(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+        long reserve = timeUnit.toNanos(timeout) / DRAIN_RESERVE_DIVISOR;
+        for (int i = 0; i < transmissionOutputs.length; ++i) {
+            TransmissionOutputAsync output = transmissionOutputs[i];
+            boolean last = i == transmissionOutputs.length - 1;
+            long remaining = deadline - System.nanoTime() - (last ? 0 : reserve);
+            if (!last && output instanceof DrainableTransmissionOutput) {
+                Collection<Transmission> notSent = ((DrainableTransmissionOutput) output).drain(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+                for (Transmission transmission : notSent) {
+                    dispatch(transmission, i + 1);
+                }
+            } else {
+                output.shutdown(Math.max(0, remaining), TimeUnit.NANOSECONDS);
             }
         }
     }
-}
 
+    private void dispatch(Transmission transmission, int firstOutput) {
+        for (int i = firstOutput; i < transmissionOutputs.length; ++i) {
+            if (transmissionOutputs[i].sendAsync(transmission)) {
+                return;
+            }
+        }
+    }
+}
@@ -61,38 +61,23 @@ public class PartialSuccessHandler implements TransmissionHandler {
         if (args.getTransmission() != null && args.getTransmissionDispatcher() != null) {
             switch (args.getResponseCode()) {
             case HttpStatus.SC_PARTIAL_CONTENT:
-                BackendResponse backendResponse = getBackendResponse(args.getResponseBody());
-                List<String> originalItems = generateOriginalItems(args);
-
-                // Somehow the amount of items received and the items sent do not match
-                if (backendResponse != null && (originalItems.size() != backendResponse.itemsReceived)) {
-                    logger.trace(
-                            "Skipping partial content handler due to itemsReceived being larger than the items sent.");
+                // A Gzip transmission is decompressed once and its items are sliced, otherwise it is split into strings
+                TransmissionItems items;
+                try {
+                    items = TransmissionItems.read(args.getTransmission());
+                } catch (IOException e) {
+                    // Reading the same content again would fail the same way
+                    logger.error("Error sending data: the transmission cannot be decompressed, it is dropped: {}", e.toString());
                     return false;
                 }
 
-                if (backendResponse != null && (backendResponse.itemsAccepted < backendResponse.itemsReceived)) {
-                    List<String> newTransmission = new ArrayList<String>();
-                    for (BackendResponse.Error e : backendResponse.errors) {
-                        switch (e.statusCode) {
-                        case TransmissionSendResult.REQUEST_TIMEOUT:
-                        case TransmissionSendResult.INTERNAL_SERVER_ERROR:
-                        case TransmissionSendResult.SERVICE_UNAVAILABLE:
-                        case TransmissionSendResult.THROTTLED:
-                        case TransmissionSendResult.THROTTLED_OVER_EXTENDED_TIME:
-                            // Unknown condition where backend response returns an index greater than the
-                            // items we're returning
-                            if (e.index < originalItems.size()) {
-                                newTransmission.add(originalItems.get(e.index));
-                            }
-                            break;
-                        }
+                try {
+                    return resendRetriableItems(args, items);
+                } finally {
+                    if (items != null) {
+                        items.release();
                     }
-                    return sendNewTransmissionFromStrings(args, newTransmission);
                 }
-                logger
-                        .trace("Skipping partial content handler due to itemsAccepted and itemsReceived being equal.");
-                return false;
 
             default:
                 logger.trace("Http response code {} not handled by {}", args.getResponseCode(),
@@ -103,6 +88,55 @@ public class PartialSuccessHandler implements TransmissionHandler {
         return false;
     }
 
+    /**
+     * @param items The items of the transmission, or null if it is not Gzip and has to be split into strings.
+     * @return Returns a pass/fail for handling this transmission.
+     */
+    private boolean resendRetriableItems(TransmissionHandlerArgs args, TransmissionItems items) {
+        BackendResponse backendResponse = getBackendResponse(args.getResponseBody());
+        List<String> originalItems = items == null ? generateOriginalItems(args) : null;
+        int numberOfItems = items == null ? originalItems.size() : items.size();
+
+        // Somehow the amount of items received and the items sent do not match
+        if (backendResponse != null && (numberOfItems != backendResponse.itemsReceived)) {
+            logger.trace(
+                    "Skipping partial content handler due to itemsReceived being larger than the items sent.");
+            return false;
+        }
+
+        if (backendResponse != null && (backendResponse.itemsAccepted < backendResponse.itemsReceived)) {
+            List<Integer> retriedIndices = new ArrayList<Integer>();
+            for (BackendResponse.Error e : backendResponse.errors) {
+                switch (e.statusCode) {
+                case TransmissionSendResult.REQUEST_TIMEOUT:
+                case TransmissionSendResult.INTERNAL_SERVER_ERROR:
+                case TransmissionSendResult.SERVICE_UNAVAILABLE:
+                case TransmissionSendResult.THROTTLED:
+                case TransmissionSendResult.THROTTLED_OVER_EXTENDED_TIME:
+                    // Unknown condition where backend response returns an index greater than the
+                    // items we're returning
+                    if (e.index < numberOfItems) {
+                        retriedIndices.add(e.index);
+                    }
+                    break;
+                }
+            }
+
+            if (items != null) {
+                return sendNewTransmissionFromItems(args, items, retriedIndices);
+            }
+
+            List<String> newTransmission = new ArrayList<String>(retriedIndices.size());
+            for (int index : retriedIndices) {
+                newTransmission.add(originalItems.get(index));
+            }
+            return sendNewTransmissionFromStrings(args, newTransmission);
+        }
+        logger
+                .trace("Skipping partial content handler due to itemsAccepted and itemsReceived being equal.");
+        return false;
+    }
+
     /**
      * Used to parse the original telemetry request in order to resend the failed
      * ones.
@@ -113,16 +147,26 @@ public class PartialSuccessHandler implements TransmissionHandler {
      * @return A List<> of each sent item
      */
     List<String> generateOriginalItems(TransmissionHandlerArgs args) {
+        return readOriginalItems(args.getTransmission());
+    }
+
+    /**
+     * Decompresses and splits the content of a transmission into its items.
+     *
+     * @param transmission The transmission to read.
+     * @return A List<> of each sent item
+     */
+    static List<String> readOriginalItems(Transmission transmission) {
         List<String> originalItems = new ArrayList<String>();
 
-        if ("gzip".equalsIgnoreCase(args.getTransmission().getWebContentEncodingType())) {
+        if ("gzip".equalsIgnoreCase(transmission.getWebContentEncodingType())) {
 
             GZIPInputStream gis = null;
             BufferedReader bufferedReader = null;
 
             try {
                 gis = new GZIPInputStream(
-                        new ByteArrayInputStream(args.getTransmission().getContent()));
+                        new ByteArrayInputStream(transmission.getContent()));
                 bufferedReader = new BufferedReader(new InputStreamReader(gis));
                 String line;
                 while ((line = bufferedReader.readLine()) != null) {
@@ -149,7 +193,7 @@ public class PartialSuccessHandler implements TransmissionHandler {
                 }
             }
         } else {
-            for (String s : new String(args.getTransmission().getContent()).split("\r\n")) {
+            for (String s : new String(transmission.getContent()).split("\r\n")) {
                 originalItems.add(s);
             }
         }
@@ -187,6 +231,28 @@ public class PartialSuccessHandler implements TransmissionHandler {
         return false;
     }
 
+    /**
+     * Sends a new transmission made of some of the items of the original one, as they were serialized.
+     *
+     * @param args
+     *            The {@link TransmissionHandlerArgs} object that contains the
+     *            {@link TransmissionDispatcher}
+     * @param items
+     *            The items of the original transmission
+     * @param indices
+     *            The indices of the items to resend
+     * @return A pass/fail response
+     */
+    boolean sendNewTransmissionFromItems(TransmissionHandlerArgs args, TransmissionItems items, List<Integer> indices) {
+        if (!indices.isEmpty()) {
+            GzipTelemetrySerializer serializer = new GzipTelemetrySerializer();
+            Optional<Transmission> newT = serializer.serializeItems(items, indices);
+            args.getTransmissionDispatcher().dispatch(newT.get());
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Helper method to parse the 206 response. Uses {@link Gson}
      *
@@ -195,7 +261,7 @@ public class PartialSuccessHandler implements TransmissionHandler {
      * @return A {@link BackendResponse} object that contains the status of the
      *         partial success.
      */
-    private BackendResponse getBackendResponse(String response) {
+    static BackendResponse getBackendResponse(String response) {
 
         BackendResponse backend = null;
         try {
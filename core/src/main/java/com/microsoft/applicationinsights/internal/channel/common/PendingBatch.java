@@ -0,0 +1,118 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.Collection;
+import java.util.Map;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.microsoft.applicationinsights.internal.channel.TelemetrySerializer;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+
+/**
+ * A batch a transmitter holds until it is sent: either telemetries that are serialized when the batch is sent,
+ * or a transmission the channel already serialized together with the number of its telemetries per type,
+ * so the backpressure policy spills it or counts its telemetries when it is dropped.
+ */
+final class PendingBatch {
+
+    private final Collection<Telemetry> telemetries;
+
+    private final Transmission transmission;
+
+    private final Map<String, Integer> telemetryCounts;
+
+    private final int numberOfTelemetries;
+
+    private PendingBatch(Collection<Telemetry> telemetries, Transmission transmission, Map<String, Integer> telemetryCounts,
+                         int numberOfTelemetries) {
+        this.telemetries = telemetries;
+        this.transmission = transmission;
+        this.telemetryCounts = telemetryCounts;
+        this.numberOfTelemetries = numberOfTelemetries;
+    }
+
+    static PendingBatch of(Collection<Telemetry> telemetries) {
+        Preconditions.checkNotNull(telemetries, "telemetries should be non-null value");
+
+        return new PendingBatch(telemetries, null, null, telemetries.size());
+    }
+
+    /**
+     * @param transmission The serialized batch
+     * @param telemetryCounts The number of telemetries of the batch per telemetry type
+     */
+    static PendingBatch of(Transmission transmission, Map<String, Integer> telemetryCounts) {
+        Preconditions.checkNotNull(transmission, "transmission should be non-null value");
+        Preconditions.checkNotNull(telemetryCounts, "telemetryCounts should be non-null value");
+
+        int numberOfTelemetries = 0;
+        for (int count : telemetryCounts.values()) {
+            numberOfTelemetries += count;
+        }
+        return new PendingBatch(null, transmission, telemetryCounts, numberOfTelemetries);
+    }
+
+    boolean isSerialized() {
+        return transmission != null;
+    }
+
+    /**
+     * @return The telemetries, or null if the batch is serialized
+     */
+    Collection<Telemetry> getTelemetries() {
+        return telemetries;
+    }
+
+    /**
+     * @return The transmission, or null if the batch is not serialized
+     */
+    Transmission getTransmission() {
+        return transmission;
+    }
+
+    /**
+     * @return The number of telemetries per telemetry type, or null if the batch is not serialized
+     */
+    Map<String, Integer> getTelemetryCounts() {
+        return telemetryCounts;
+    }
+
+    int getNumberOfTelemetries() {
+        return numberOfTelemetries;
+    }
+
+    /**
+     * @param serializer The serializer of the telemetries
+     * @return The transmission of the batch, serializing the telemetries if needed
+     */
+    Optional<Transmission> serialize(TelemetrySerializer serializer) {
+        if (transmission != null) {
+            return Optional.of(transmission);
+        }
+        if (telemetries.isEmpty()) {
+            return Optional.absent();
+        }
+        return serializer.serialize(telemetries);
+    }
+}
@@ -0,0 +1,623 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.microsoft.applicationinsights.internal.channel.BackpressureAwareTransmitter;
+import com.microsoft.applicationinsights.internal.channel.BackpressurePolicy;
+import com.microsoft.applicationinsights.internal.channel.Drainable;
+import com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.channel.TelemetryLane;
+import com.microsoft.applicationinsights.internal.channel.TelemetrySerializer;
+import com.microsoft.applicationinsights.internal.channel.TransmissionOutputSync;
+import com.microsoft.applicationinsights.internal.util.ThreadPoolUtils;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link TelemetriesTransmitter} that routes the telemetries into a {@link TelemetryLane} by their type
+ * before they reach the shared transmitter.
+ *
+ * Every lane holds up to its own capacity of telemetries and applies its own {@link BackpressurePolicy}
+ * to the telemetries that do not fit, the telemetries it spills go to its own local storage, so a lane
+ * cannot use up the quota of the others.
+ *
+ * A dispatcher thread hands the shared transmitter a few sends at a time, and the lane of a send is
+ * picked by a smooth weighted round robin only when the shared transmitter starts it. So however long
+ * the queue of the shared transmitter gets, under load every lane gets a share of the sends in proportion
+ * to its weight, and the telemetries wait, and are dropped, in their lanes rather than in that queue.
+ *
+ * When drained, what the lanes still hold when half the budget is spent is written to the local storage.
+ */
+public final class PriorityLaneTransmitter implements TelemetriesTransmitter<Telemetry>, BackpressureAwareTransmitter, Drainable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PriorityLaneTransmitter.class);
+
+    private static final int MAX_TELEMETRIES_IN_BATCH = 500;
+
+    private static final long DEFAULT_BLOCK_TIMEOUT_IN_MILLIS = 1000;
+
+    private static final long TARGET_BLOCK_TIMEOUT_IN_MILLIS = 60000;
+
+    /// The sends handed to the shared transmitter that did not start yet, enough to keep its threads busy
+    private static final int MAX_PENDING_SENDS = 4;
+
+    private static final AtomicInteger INSTANCE_ID_POOL = new AtomicInteger(1);
+
+    /**
+     * The capacity, weight and backpressure policy of a lane.
+     */
+    public static final class LaneSettings {
+        private final int capacity;
+        private final int weight;
+        private final BackpressurePolicy backpressurePolicy;
+
+        /**
+         * @param capacity The number of telemetries the lane holds while waiting to be sent
+         * @param weight The share of the sends the lane gets relative to the other lanes
+         * @param backpressurePolicy What the lane does with telemetries that do not fit
+         */
+        public LaneSettings(int capacity, int weight, BackpressurePolicy backpressurePolicy) {
+            Preconditions.checkArgument(capacity > 0, "capacity must be a positive number");
+            Preconditions.checkArgument(weight > 0, "weight must be a positive number");
+            Preconditions.checkNotNull(backpressurePolicy, "backpressurePolicy must be non-null value");
+
+            this.capacity = capacity;
+            this.weight = weight;
+            this.backpressurePolicy = backpressurePolicy;
+        }
+
+        public static LaneSettings createDefault(TelemetryLane lane) {
+            return new LaneSettings(lane.getDefaultCapacity(), lane.getDefaultWeight(), lane.getDefaultBackpressurePolicy());
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public BackpressurePolicy getBackpressurePolicy() {
+            return backpressurePolicy;
+        }
+    }
+
+    private static final class Lane {
+        private final int capacity;
+        private final int weight;
+        private final BackpressureHandler backpressureHandler;
+        private final ArrayDeque<Telemetry> telemetries = new ArrayDeque<Telemetry>();
+
+        /// The running weight of the smooth weighted round robin
+        private int currentWeight;
+
+        private Lane(LaneSettings settings, BackpressureHandler backpressureHandler) {
+            this.capacity = settings.getCapacity();
+            this.weight = settings.getWeight();
+            this.backpressureHandler = backpressureHandler;
+        }
+    }
+
+    /**
+     * A send handed to the shared transmitter, it takes a batch from the lane that is next when the send starts.
+     * Only its first fetch takes a batch.
+     */
+    private final class LaneBatchFetcher implements TelemetriesFetcher<Telemetry> {
+        /// Guarded by the 'lock'
+        private boolean fetched = false;
+
+        @Override
+        public Collection<Telemetry> fetch() {
+            lock.lock();
+            try {
+                if (fetched) {
+                    return Collections.emptyList();
+                }
+                fetched = true;
+                --pendingSends;
+                workAvailable.signal();
+
+                Lane lane = nextLane();
+                if (lane == null) {
+                    return Collections.emptyList();
+                }
+
+                int size = Math.min(maxTelemetriesInBatch, lane.telemetries.size());
+                List<Telemetry> batch = new ArrayList<Telemetry>(size);
+                for (int i = 0; i < size; ++i) {
+                    batch.add(lane.telemetries.pollFirst());
+                }
+
+                roomAvailable.signalAll();
+                return batch;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Routes the fetched telemetries into the lanes, so the shared transmitter has nothing to send itself.
+     */
+    private final class LaneRoutingFetcher implements ExpiringTelemetriesFetcher<Telemetry> {
+        private final TelemetriesFetcher<Telemetry> telemetriesFetcher;
+
+        private LaneRoutingFetcher(TelemetriesFetcher<Telemetry> telemetriesFetcher) {
+            this.telemetriesFetcher = telemetriesFetcher;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return telemetriesFetcher instanceof ExpiringTelemetriesFetcher && ((ExpiringTelemetriesFetcher<Telemetry>) telemetriesFetcher).isExpired();
+        }
+
+        @Override
+        public Collection<Telemetry> fetch() {
+            route(telemetriesFetcher.fetch());
+            return Collections.emptyList();
+        }
+    }
+
+    private final TelemetriesTransmitter<Telemetry> transmitter;
+
+    private final Lane[] lanes;
+
+    private final int maxTelemetriesInBatch;
+
+    private final Thread dispatcherThread;
+
+    /// Guards the lanes and 'stopped'
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /// Signaled when telemetries are queued, when a send starts and when stopped
+    private final Condition workAvailable = lock.newCondition();
+
+    /// Signaled when a send takes telemetries
+    private final Condition roomAvailable = lock.newCondition();
+
+    private boolean stopped = false;
+
+    /// The sends handed to the shared transmitter that did not take their batch yet
+    private int pendingSends = 0;
+
+    /// Set once drained, new telemetries go to the local storage
+    private volatile boolean draining = false;
+
+    /**
+     * @param transmitter The shared transmitter the batches of all the lanes are sent with
+     * @param laneSettings The settings of the lanes, lanes that are missing get their defaults
+     * @param serializer Serializes the telemetries that are spilled to the local storage
+     * @param spillOutputs Where the telemetries of every lane go under {@link BackpressurePolicy#SPILL_TO_DISK},
+     *                     might be null, lanes that are missing do not spill
+     */
+    public PriorityLaneTransmitter(TelemetriesTransmitter<Telemetry> transmitter, Map<TelemetryLane, LaneSettings> laneSettings,
+                                   TelemetrySerializer serializer, @Nullable Map<TelemetryLane, ? extends TransmissionOutputSync> spillOutputs) {
+        this(transmitter, laneSettings, serializer, spillOutputs, MAX_TELEMETRIES_IN_BATCH);
+    }
+
+    @VisibleForTesting
+    PriorityLaneTransmitter(TelemetriesTransmitter<Telemetry> transmitter, Map<TelemetryLane, LaneSettings> laneSettings,
+                            TelemetrySerializer serializer, Map<TelemetryLane, ? extends TransmissionOutputSync> spillOutputs, int maxTelemetriesInBatch) {
+        Preconditions.checkNotNull(transmitter, "transmitter must be non-null value");
+        Preconditions.checkNotNull(laneSettings, "laneSettings must be non-null value");
+        Preconditions.checkNotNull(serializer, "serializer must be non-null value");
+        Preconditions.checkArgument(maxTelemetriesInBatch > 0, "maxTelemetriesInBatch must be a positive number");
+
+        this.transmitter = transmitter;
+        this.maxTelemetriesInBatch = maxTelemetriesInBatch;
+
+        TelemetryLane[] types = TelemetryLane.values();
+        lanes = new Lane[types.length];
+        for (TelemetryLane type : types) {
+            LaneSettings settings = laneSettings.get(type);
+            if (settings == null) {
+                settings = LaneSettings.createDefault(type);
+            }
+            BackpressureHandler backpressureHandler = new BackpressureHandler(serializer, spillOutputs == null ? null : spillOutputs.get(type));
+            backpressureHandler.setPolicy(settings.getBackpressurePolicy(), DEFAULT_BLOCK_TIMEOUT_IN_MILLIS);
+            lanes[type.ordinal()] = new Lane(settings, backpressureHandler);
+        }
+
+        if (transmitter instanceof BackpressureAwareTransmitter) {
+            ((BackpressureAwareTransmitter) transmitter).setBackpressurePolicy(BackpressurePolicy.BLOCK_WITH_TIMEOUT, TARGET_BLOCK_TIMEOUT_IN_MILLIS);
+        }
+
+        dispatcherThread = ThreadPoolUtils.createDaemonThreadFactory(PriorityLaneTransmitter.class, INSTANCE_ID_POOL.getAndIncrement()).newThread(new Runnable() {
+            @Override
+            public void run() {
+                dispatchLoop();
+            }
+        });
+        dispatcherThread.start();
+    }
+
+    /**
+     * The shared transmitter keeps the timer, when it is due the telemetries are routed into their lanes.
+     */
+    @Override
+    public boolean scheduleSend(TelemetriesFetcher<Telemetry> telemetriesFetcher, long value, TimeUnit timeUnit) {
+        Preconditions.checkNotNull(telemetriesFetcher, "telemetriesFetcher should be non-null value");
+
+        return transmitter.scheduleSend(new LaneRoutingFetcher(telemetriesFetcher), value, timeUnit);
+    }
+
+    @Override
+    public boolean sendNow(Collection<Telemetry> telemetries) {
+        Preconditions.checkNotNull(telemetries, "telemetries should be non-null value");
+
+        return route(telemetries);
+    }
+
+    /**
+     * Applies the policy to every lane, replacing the policies the lanes were created with.
+     */
+    @Override
+    public void setBackpressurePolicy(BackpressurePolicy policy, long blockTimeoutInMillis) {
+        for (Lane lane : lanes) {
+            lane.backpressureHandler.setPolicy(policy, blockTimeoutInMillis);
+        }
+    }
+
+    /**
+     * @return The policy of the {@link TelemetryLane#DEFAULT} lane
+     */
+    @Override
+    public BackpressurePolicy getBackpressurePolicy() {
+        return lanes[TelemetryLane.DEFAULT.ordinal()].backpressureHandler.getPolicy();
+    }
+
+    /**
+     * @return The number of telemetries dropped by all the lanes and by the shared transmitter, per telemetry type
+     */
+    @Override
+    public Map<String, Long> getDroppedTelemetries() {
+        Map<String, Long> dropped = new HashMap<String, Long>();
+        for (Lane lane : lanes) {
+            addAll(dropped, lane.backpressureHandler.getDroppedTelemetries());
+        }
+        if (transmitter instanceof BackpressureAwareTransmitter) {
+            addAll(dropped, ((BackpressureAwareTransmitter) transmitter).getDroppedTelemetries());
+        }
+        return dropped;
+    }
+
+    /**
+     * @param lane The lane
+     * @return The number of telemetries waiting in the lane
+     */
+    public int getQueuedTelemetries(TelemetryLane lane) {
+        lock.lock();
+        try {
+            return lanes[lane.ordinal()].telemetries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops taking new telemetries, the dispatcher thread hands what the lanes hold to the shared
+     * transmitter, which is then shut down, up to the timeout.
+     */
+    @Override
+    public void shutdown(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+
+        stop();
+
+        dispatcherThread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+
+        transmitter.shutdown(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        closeSpillOutputs();
+    }
+
+    /**
+     * Stops taking new telemetries, the dispatcher thread hands what the lanes hold to the shared transmitter
+     * up to half the timeout. What the lanes still hold by then goes to the local storage, and the shared
+     * transmitter is drained with what is left of the timeout.
+     */
+    @Override
+    public void drainAndShutdown(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+
+        draining = true;
+        stop();
+
+        dispatcherThread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeUnit.toNanos(timeout) / 2)));
+
+        List<List<Telemetry>> notSent = new ArrayList<List<Telemetry>>(lanes.length);
+        lock.lock();
+        try {
+            for (Lane lane : lanes) {
+                notSent.add(new ArrayList<Telemetry>(lane.telemetries));
+                lane.telemetries.clear();
+            }
+            workAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        for (int i = 0; i < lanes.length; ++i) {
+            List<Telemetry> laneNotSent = notSent.get(i);
+            for (int from = 0; from < laneNotSent.size(); from += maxTelemetriesInBatch) {
+                lanes[i].backpressureHandler.onNotSent(laneNotSent.subList(from, Math.min(laneNotSent.size(), from + maxTelemetriesInBatch)));
+            }
+        }
+
+        long remaining = Math.max(0, deadline - System.nanoTime());
+        if (transmitter instanceof Drainable) {
+            ((Drainable) transmitter).drainAndShutdown(remaining, TimeUnit.NANOSECONDS);
+        } else {
+            transmitter.shutdown(remaining, TimeUnit.NANOSECONDS);
+        }
+        closeSpillOutputs();
+    }
+
+    // The lane spools are loaded by the loader of the shared transmitter, which is shut down by now
+    private void closeSpillOutputs() {
+        for (Lane lane : lanes) {
+            lane.backpressureHandler.closeSpillOutput();
+        }
+    }
+
+    private void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            workAvailable.signal();
+            roomAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param telemetries The telemetries to route, of any lane
+     * @return True if every telemetry was queued
+     */
+    private boolean route(Collection<Telemetry> telemetries) {
+        if (telemetries.isEmpty()) {
+            return true;
+        }
+
+        Map<TelemetryLane, List<Telemetry>> telemetriesByLane = new EnumMap<TelemetryLane, List<Telemetry>>(TelemetryLane.class);
+        for (Telemetry telemetry : telemetries) {
+            TelemetryLane lane = TelemetryLane.of(telemetry);
+            List<Telemetry> laneTelemetries = telemetriesByLane.get(lane);
+            if (laneTelemetries == null) {
+                laneTelemetries = new ArrayList<Telemetry>();
+                telemetriesByLane.put(lane, laneTelemetries);
+            }
+            laneTelemetries.add(telemetry);
+        }
+
+        boolean queuedAll = true;
+        for (Map.Entry<TelemetryLane, List<Telemetry>> entry : telemetriesByLane.entrySet()) {
+            queuedAll &= offer(lanes[entry.getKey().ordinal()], entry.getValue());
+        }
+        return queuedAll;
+    }
+
+    /**
+     * @return True if every telemetry was queued
+     */
+    private boolean offer(Lane lane, List<Telemetry> telemetries) {
+        List<Telemetry> evicted = null;
+        List<Telemetry> rejected = null;
+
+        lock.lock();
+        try {
+            if (stopped) {
+                rejected = telemetries;
+            } else {
+                int room = lane.capacity - lane.telemetries.size();
+                if (room < telemetries.size()) {
+                    switch (lane.backpressureHandler.getPolicy()) {
+                        case DROP_OLDEST:
+                            evicted = new ArrayList<Telemetry>();
+                            while (room < telemetries.size() && !lane.telemetries.isEmpty()) {
+                                evicted.add(lane.telemetries.pollFirst());
+                                ++room;
+                            }
+                            break;
+
+                        case BLOCK_WITH_TIMEOUT:
+                            room = awaitRoom(lane, telemetries.size());
+                            break;
+
+                        default:
+                            break;
+                    }
+                }
+
+                int accepted = Math.min(room, telemetries.size());
+                if (accepted > 0) {
+                    lane.telemetries.addAll(telemetries.subList(0, accepted));
+                    workAvailable.signal();
+                }
+                if (accepted < telemetries.size()) {
+                    rejected = telemetries.subList(Math.max(0, accepted), telemetries.size());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (evicted != null && !evicted.isEmpty()) {
+            lane.backpressureHandler.onDropped(evicted);
+        }
+        if (rejected != null) {
+            if (draining) {
+                lane.backpressureHandler.onNotSent(rejected);
+            } else {
+                lane.backpressureHandler.onRejected(rejected);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The method assumes that the 'lock' is held before calling it.
+     *
+     * @return The room in the lane once there is enough of it, or once the block timeout expired
+     */
+    private int awaitRoom(Lane lane, int needed) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(lane.backpressureHandler.getBlockTimeoutInMillis());
+        try {
+            while (!stopped && lane.capacity - lane.telemetries.size() < needed && remaining > 0) {
+                remaining = roomAvailable.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return stopped ? 0 : lane.capacity - lane.telemetries.size();
+    }
+
+    /**
+     * The method assumes that the 'lock' is held before calling it.
+     *
+     * @return True if the lanes hold more telemetries than the pending sends will take
+     */
+    private boolean needsSend() {
+        if (pendingSends >= MAX_PENDING_SENDS) {
+            return false;
+        }
+
+        long queued = 0;
+        for (Lane lane : lanes) {
+            queued += lane.telemetries.size();
+        }
+        return queued > (long) pendingSends * maxTelemetriesInBatch;
+    }
+
+    /**
+     * The method assumes that the 'lock' is held before calling it.
+     *
+     * @return True if the lanes hold no telemetries
+     */
+    private boolean lanesAreEmpty() {
+        for (Lane lane : lanes) {
+            if (!lane.telemetries.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The method assumes that the 'lock' is held before calling it.
+     *
+     * @return The non-empty lane that is next by the smooth weighted round robin, null if all are empty
+     */
+    private Lane nextLane() {
+        Lane selected = null;
+        int totalWeight = 0;
+        for (Lane lane : lanes) {
+            if (lane.telemetries.isEmpty()) {
+                continue;
+            }
+            lane.currentWeight += lane.weight;
+            totalWeight += lane.weight;
+            if (selected == null || lane.currentWeight > selected.currentWeight) {
+                selected = lane;
+            }
+        }
+
+        if (selected != null) {
+            selected.currentWeight -= totalWeight;
+        }
+        return selected;
+    }
+
+    /**
+     * Hands the shared transmitter a send while the lanes hold telemetries that no pending send will take,
+     * up to {@link #MAX_PENDING_SENDS}. Once stopped, it returns when the lanes are empty.
+     */
+    private void dispatchLoop() {
+        while (true) {
+            lock.lock();
+            try {
+                while (!needsSend()) {
+                    if (stopped && lanesAreEmpty()) {
+                        return;
+                    }
+                    workAvailable.await();
+                }
+
+                ++pendingSends;
+            } catch (InterruptedException e) {
+                logger.trace("Dispatcher thread was interrupted", e);
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                LaneBatchFetcher fetcher = new LaneBatchFetcher();
+                if (!transmitter.scheduleSend(fetcher, 0, TimeUnit.MILLISECONDS)) {
+                    // The shared transmitter is full, the batch is taken here and its backpressure policy applies to it
+                    Collection<Telemetry> batch = fetcher.fetch();
+                    if (!batch.isEmpty()) {
+                        transmitter.sendNow(batch);
+                    }
+                }
+            } catch (ThreadDeath td) {
+                throw td;
+            } catch (Throwable t) {
+                try {
+                    logger.error("Error while dispatching telemetry items: {}", t.toString());
+                    logger.trace("Error while dispatching telemetry items", t);
+                } catch (ThreadDeath td) {
+                    throw td;
+                } catch (Throwable t2) {
+                    // chomp
+                }
+            }
+        }
+    }
+
+    private static void addAll(Map<String, Long> total, Map<String, Long> counters) {
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            Long current = total.get(entry.getKey());
+            total.put(entry.getKey(), current == null ? entry.getValue() : current + entry.getValue());
+        }
+    }
+}
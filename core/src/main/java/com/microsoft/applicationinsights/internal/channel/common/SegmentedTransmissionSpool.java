@@ -0,0 +1,585 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.microsoft.applicationinsights.internal.channel.SpoolRetentionPolicy;
+import com.microsoft.applicationinsights.internal.channel.TransmissionSpool;
+import com.microsoft.applicationinsights.internal.channel.TransmissionSpoolListener;
+import com.microsoft.applicationinsights.internal.util.LimitsEnforcer;
+import com.microsoft.applicationinsights.internal.util.LocalFileSystemUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link TransmissionSpool} that appends the transmissions to memory mapped segment files of a fixed size,
+ * instead of creating, renaming and listing a file per transmission.
+ *
+ * Every transmission is a record of {@link TransmissionFileFormat}, the records of a segment are followed by
+ * a zero int. The transmissions are fetched oldest first from a read cursor, which is kept in a small mapped
+ * file so the transmissions that were already fetched are not sent again after a restart.
+ * A segment is deleted once the cursor moved past all its records.
+ *
+ * A segment that was torn by a crash is read up to its first torn record.
+ *
+ * The spool holds an exclusive lock on its cursor file until it is closed, a folder that is already used by
+ * another process or channel is refused with an {@link IllegalStateException}.
+ */
+public final class SegmentedTransmissionSpool implements TransmissionSpool {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentedTransmissionSpool.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE_IN_BYTES = 4 * 1024 * 1024;
+
+    private static final String SEGMENT_FILE_PREFIX = "Segment-";
+    private static final String SEGMENT_FILE_EXTENSION = ".seg";
+    private static final Pattern SEGMENT_FILE_NAME = Pattern.compile("Segment-(\\d{19})\\.seg");
+    private static final String CURSOR_FILE_NAME = "Segments.cursor";
+
+    // The sequence of the segment, the offset in it and a checksum of both
+    private static final int CURSOR_SIZE_IN_BYTES = 8 + 4 + 4;
+    private static final int END_OF_SEGMENT_SIZE_IN_BYTES = 4;
+    private static final HashFunction CURSOR_CHECKSUM = Hashing.crc32c();
+
+    private final File folder;
+    private final int segmentSizeInBytes;
+    private final LimitsEnforcer capacityEnforcer;
+    private volatile long capacityInBytes;
+
+    // The segments from the oldest, the last one is the one written to
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private final RandomAccessFile cursorFile;
+    private final FileLock cursorLock;
+    private final MappedByteBuffer cursor;
+    private int readOffset;
+    private long nextSequence;
+    private boolean closed;
+
+    /// The size of the records that were not fetched yet
+    private long sizeInBytes;
+
+    private final CopyOnWriteArrayList<TransmissionSpoolListener> listeners = new CopyOnWriteArrayList<TransmissionSpoolListener>();
+
+    private SpoolRetentionPolicy retentionPolicy = SpoolRetentionPolicy.REJECT_NEW;
+    private long maxAgeInMillis = Long.MAX_VALUE;
+
+    private static final class Segment {
+        final long sequence;
+        final File file;
+        final MappedByteBuffer buffer;
+
+        // The bytes of the records that were not fetched yet
+        long liveBytes;
+
+        long lastWriteTimeInMillis;
+
+        Segment(long sequence, File file, MappedByteBuffer buffer, long lastWriteTimeInMillis) {
+            this.sequence = sequence;
+            this.file = file;
+            this.buffer = buffer;
+            this.lastWriteTimeInMillis = lastWriteTimeInMillis;
+        }
+    }
+
+    public SegmentedTransmissionSpool(String folderPath, String maxTransmissionStorageCapacity) {
+        this(folderPath, maxTransmissionStorageCapacity, DEFAULT_SEGMENT_SIZE_IN_BYTES);
+    }
+
+    public SegmentedTransmissionSpool(String folderPath, String maxTransmissionStorageCapacity, int segmentSizeInBytes) {
+        Preconditions.checkArgument(segmentSizeInBytes > END_OF_SEGMENT_SIZE_IN_BYTES, "segmentSizeInBytes must be a positive number");
+
+        if (folderPath == null) {
+            folderPath = new File(LocalFileSystemUtils.getTempDir(), TransmissionFileSystemOutput.TRANSMISSION_DEFAULT_FOLDER).getPath();
+        }
+
+        capacityEnforcer = LimitsEnforcer.createWithClosestLimitOnError(TransmissionFileSystemOutput.MIN_CAPACITY_MEGABYTES,
+                                                                        TransmissionFileSystemOutput.MAX_CAPACITY_MEGABYTES,
+                                                                        TransmissionFileSystemOutput.DEFAULT_CAPACITY_MEGABYTES,
+                                                                        TransmissionFileSystemOutput.MAX_TRANSMISSION_STORAGE_CAPACITY_NAME,
+                                                                        maxTransmissionStorageCapacity);
+        capacityInBytes = capacityEnforcer.getCurrentValue() * 1024L * 1024L;
+        this.segmentSizeInBytes = segmentSizeInBytes;
+
+        folder = new File(folderPath);
+
+        if (!folder.exists()) {
+            folder.mkdir();
+        }
+
+        if (!folder.exists() || !folder.canRead() || !folder.canWrite()) {
+            throw new IllegalArgumentException("Folder must exist with read and write permissions");
+        }
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(new File(folder, CURSOR_FILE_NAME), "rw");
+            FileLock lock = tryLock(file.getChannel());
+            if (lock == null) {
+                throw new IllegalStateException("The spool segments in " + folder + " are used by another process or channel");
+            }
+            if (file.length() < CURSOR_SIZE_IN_BYTES) {
+                file.setLength(CURSOR_SIZE_IN_BYTES);
+            }
+            cursorFile = file;
+            cursorLock = lock;
+            cursor = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, CURSOR_SIZE_IN_BYTES);
+            openSegments();
+        } catch (IOException e) {
+            closeQuietly(file);
+            throw new IllegalArgumentException("Failed to open the spool segments in " + folder, e);
+        } catch (RuntimeException e) {
+            closeQuietly(file);
+            throw e;
+        }
+
+        ChannelMetrics.INSTANCE.onSpoolSizeChanged(sizeInBytes);
+    }
+
+    public SegmentedTransmissionSpool(String folderPath) {
+        this(folderPath, null);
+    }
+
+    @Override
+    public boolean sendSync(Transmission transmission) {
+        if (!store(transmission)) {
+            return false;
+        }
+
+        // Outside of the lock, so the listeners can fetch right away
+        for (TransmissionSpoolListener listener : listeners) {
+            listener.onTransmissionStored();
+        }
+        return true;
+    }
+
+    private synchronized boolean store(Transmission transmission) {
+        if (closed) {
+            logger.error("The spool in {} is closed, the transmission is not persisted", folder);
+            return false;
+        }
+
+        if (sizeInBytes >= capacityInBytes && !makeRoom()) {
+            logger.error("Persistent storage max capacity has been reached; "
+                + "currently at {} bytes. Telemetry will be lost, "
+                + "please consider increasing the value of MaxTransmissionStorageFilesCapacityInMB property in the configuration file.",
+                sizeInBytes);
+            return false;
+        }
+
+        try {
+            ByteBuffer header = TransmissionFileFormat.encodeHeader(transmission);
+            int recordSize = TransmissionFileFormat.getRecordSize(header, transmission);
+
+            Segment segment = segments.peekLast();
+            if (segment == null || segment.buffer.remaining() < recordSize + END_OF_SEGMENT_SIZE_IN_BYTES) {
+                segment = appendSegment(recordSize + END_OF_SEGMENT_SIZE_IN_BYTES);
+            }
+
+            TransmissionFileFormat.write(segment.buffer, header, transmission);
+            markEndOfSegment(segment.buffer);
+            segment.lastWriteTimeInMillis = System.currentTimeMillis();
+            segment.liveBytes += recordSize;
+            sizeInBytes += recordSize;
+            ChannelMetrics.INSTANCE.onSpoolSizeChanged(recordSize);
+        } catch (IOException e) {
+            logger.error("Failed to save transmission, exception: {}", e.toString());
+            return false;
+        }
+
+        logger.info("Data persisted to spool segment. To be sent when the network is available.");
+        return true;
+    }
+
+    @Override
+    public synchronized Transmission fetchOldest() {
+        try {
+            if (retentionPolicy == SpoolRetentionPolicy.MAX_AGE) {
+                evictExpired();
+            }
+
+            while (!segments.isEmpty()) {
+                Segment segment = segments.peekFirst();
+                boolean isWritten = segment == segments.peekLast();
+
+                ByteBuffer records = segment.buffer.duplicate();
+                records.limit(isWritten ? segment.buffer.position() : segment.buffer.capacity());
+                records.position(readOffset);
+                if (TransmissionFileFormat.hasRecord(records)) {
+                    try {
+                        Transmission transmission = TransmissionFileFormat.read(records);
+                        onRecordsFetched(segment, records.position() - readOffset);
+                        readOffset = records.position();
+                        storeCursor(segment.sequence, readOffset);
+                        return transmission;
+                    } catch (IOException e) {
+                        logger.error("Dropping the rest of spool segment {}, exception: {}", segment.file.getName(), e.toString());
+                        if (isWritten) {
+                            // The records after it are appended by this process and cannot be reached, start a new segment for them
+                            appendSegment(segmentSizeInBytes);
+                        }
+                    }
+                } else if (isWritten) {
+                    return null;
+                }
+
+                deleteFirstSegment();
+            }
+        } catch (Exception e) {
+            logger.error("Error fetching oldest transmission", e);
+        }
+
+        return null;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return sizeInBytes == 0;
+    }
+
+    public void setCapacity(int suggestedCapacity) {
+        this.capacityInBytes = capacityEnforcer.normalizeValue(suggestedCapacity) * 1024L * 1024L;
+    }
+
+    @Override
+    public synchronized void setRetentionPolicy(SpoolRetentionPolicy policy, long maxAgeInMillis) {
+        Preconditions.checkNotNull(policy, "policy must be a non-null value");
+        Preconditions.checkArgument(maxAgeInMillis > 0, "maxAgeInMillis must be a positive number");
+
+        this.retentionPolicy = policy;
+        this.maxAgeInMillis = maxAgeInMillis;
+    }
+
+    @Override
+    public void addListener(TransmissionSpoolListener listener) {
+        Preconditions.checkNotNull(listener, "listener must be a non-null value");
+        listeners.add(listener);
+    }
+
+    // Evicts records as the retention policy says, returns true if there is room for a new one then
+    private boolean makeRoom() {
+        switch (retentionPolicy) {
+            case EVICT_OLDEST:
+                int evicted = 0;
+                long evictedSize = 0;
+                while (sizeInBytes >= capacityInBytes) {
+                    int recordSize = evictOldestRecord();
+                    if (recordSize < 0) {
+                        break;
+                    }
+                    ++evicted;
+                    evictedSize += recordSize;
+                }
+                if (evicted > 0) {
+                    logger.warn("Persistent storage max capacity has been reached; evicted the {} oldest transmissions of {} bytes", evicted, evictedSize);
+                }
+                break;
+
+            case MAX_AGE:
+                evictExpired();
+                break;
+
+            default:
+                break;
+        }
+
+        return sizeInBytes < capacityInBytes;
+    }
+
+    // A segment expires as a whole once its last record is older than the maximum age
+    private void evictExpired() {
+        long oldestTimeToKeep = System.currentTimeMillis() - maxAgeInMillis;
+        int evicted = 0;
+        long evictedSize = 0;
+        while (!segments.isEmpty() && segments.peekFirst().lastWriteTimeInMillis < oldestTimeToKeep) {
+            Segment segment = segments.peekFirst();
+            if (segment == segments.peekLast()) {
+                // The segment that is written to stays, new records are appended to it
+                int recordSize;
+                while ((recordSize = evictOldestRecord()) >= 0) {
+                    ++evicted;
+                    evictedSize += recordSize;
+                }
+                break;
+            }
+
+            ByteBuffer records = segment.buffer.duplicate();
+            records.position(readOffset);
+            int segmentEvicted = 0;
+            long segmentEvictedItems = 0;
+            while (TransmissionFileFormat.hasRecord(records)) {
+                try {
+                    int numberOfItems = TransmissionFileFormat.readNumberOfItems(records);
+                    TransmissionFileFormat.skip(records, false);
+                    ++segmentEvicted;
+                    segmentEvictedItems += numberOfItems;
+                } catch (IOException e) {
+                    break;
+                }
+            }
+            long segmentEvictedSize = segment.liveBytes;
+            deleteFirstSegment();
+            ChannelMetrics.INSTANCE.onSpoolEvicted(segmentEvicted, segmentEvictedItems, segmentEvictedSize);
+            evicted += segmentEvicted;
+            evictedSize += segmentEvictedSize;
+        }
+        if (evicted > 0) {
+            logger.warn("Evicted {} transmissions of {} bytes that were persisted more than {} ms ago", evicted, evictedSize, maxAgeInMillis);
+        }
+    }
+
+    // Moves the cursor past the oldest record without reading its content, returns its size or -1 if there is none
+    private int evictOldestRecord() {
+        while (!segments.isEmpty()) {
+            Segment segment = segments.peekFirst();
+            boolean isWritten = segment == segments.peekLast();
+
+            ByteBuffer records = segment.buffer.duplicate();
+            records.limit(isWritten ? segment.buffer.position() : segment.buffer.capacity());
+            records.position(readOffset);
+            if (TransmissionFileFormat.hasRecord(records)) {
+                try {
+                    int numberOfItems = TransmissionFileFormat.readNumberOfItems(records);
+                    int recordSize = TransmissionFileFormat.skip(records, false);
+                    onRecordsFetched(segment, recordSize);
+                    readOffset = records.position();
+                    storeCursor(segment.sequence, readOffset);
+                    ChannelMetrics.INSTANCE.onSpoolEvicted(1, numberOfItems, recordSize);
+                    return recordSize;
+                } catch (IOException e) {
+                    logger.error("Dropping the rest of spool segment {}, exception: {}", segment.file.getName(), e.toString());
+                    if (isWritten) {
+                        return -1;
+                    }
+                }
+            } else if (isWritten) {
+                return -1;
+            }
+
+            deleteFirstSegment();
+        }
+        return -1;
+    }
+
+    private void openSegments() throws IOException {
+        List<Long> sequences = new ArrayList<Long>();
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = SEGMENT_FILE_NAME.matcher(file.getName());
+                if (matcher.matches()) {
+                    sequences.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        Collections.sort(sequences);
+
+        long cursorSequence = cursor.getLong(0);
+        int cursorOffset = cursor.getInt(8);
+        if (cursor.getInt(12) != getCursorChecksum(cursorSequence, cursorOffset)) {
+            if (!sequences.isEmpty()) {
+                logger.warn("Spool cursor is torn, sending the remaining segments from the start");
+            }
+            cursorSequence = -1;
+            cursorOffset = 0;
+        }
+
+        for (Long sequence : sequences) {
+            File file = getSegmentFile(sequence);
+            if (sequence < cursorSequence) {
+                // Fetched before the segment could be deleted
+                if (!file.delete()) {
+                    logger.warn("Failed to delete spool segment {}", file.getName());
+                }
+                continue;
+            }
+
+            Segment segment = new Segment(sequence, file, map(file, 0), file.lastModified());
+            if (sequence == cursorSequence) {
+                readOffset = Math.min(cursorOffset, segment.buffer.capacity());
+            }
+            segments.addLast(segment);
+            nextSequence = sequence + 1;
+        }
+
+        for (Segment segment : segments) {
+            boolean isWritten = segment == segments.peekLast();
+            segment.buffer.position(segment == segments.peekFirst() ? readOffset : 0);
+            while (TransmissionFileFormat.hasRecord(segment.buffer)) {
+                try {
+                    // Only the records of the last segment may have been torn before they were all written
+                    segment.liveBytes += TransmissionFileFormat.skip(segment.buffer, isWritten);
+                } catch (IOException e) {
+                    logger.warn("Spool segment {} is torn, exception: {}", segment.file.getName(), e.toString());
+                    break;
+                }
+            }
+            if (isWritten) {
+                markEndOfSegment(segment.buffer);
+            }
+            sizeInBytes += segment.liveBytes;
+        }
+
+        if (segments.isEmpty()) {
+            readOffset = 0;
+            nextSequence = Math.max(nextSequence, cursorSequence + 1);
+        }
+    }
+
+    private Segment appendSegment(int minSizeInBytes) throws IOException {
+        Segment last = segments.peekLast();
+        if (last != null) {
+            last.buffer.force();
+        }
+
+        long sequence = nextSequence++;
+        File file = getSegmentFile(sequence);
+        Segment segment = new Segment(sequence, file, map(file, Math.max(segmentSizeInBytes, minSizeInBytes)), System.currentTimeMillis());
+        segments.addLast(segment);
+        if (segments.size() == 1) {
+            readOffset = 0;
+            storeCursor(sequence, 0);
+        }
+        return segment;
+    }
+
+    private void deleteFirstSegment() {
+        Segment segment = segments.removeFirst();
+        onRecordsFetched(segment, segment.liveBytes);
+
+        Segment next = segments.peekFirst();
+        readOffset = 0;
+        if (next != null) {
+            storeCursor(next.sequence, 0);
+        } else {
+            storeCursor(segment.sequence + 1, 0);
+        }
+
+        // The file stays on Windows until the mapping is collected, it is deleted on the next start then
+        if (!segment.file.delete()) {
+            logger.debug("Failed to delete spool segment {}", segment.file.getName());
+        }
+    }
+
+    private void onRecordsFetched(Segment segment, long bytes) {
+        segment.liveBytes -= bytes;
+        sizeInBytes -= bytes;
+        ChannelMetrics.INSTANCE.onSpoolSizeChanged(-bytes);
+    }
+
+    private void storeCursor(long sequence, int offset) {
+        cursor.putLong(0, sequence);
+        cursor.putInt(8, offset);
+        cursor.putInt(12, getCursorChecksum(sequence, offset));
+    }
+
+    private static int getCursorChecksum(long sequence, int offset) {
+        return CURSOR_CHECKSUM.newHasher().putLong(sequence).putInt(offset).hash().asInt();
+    }
+
+    private static void markEndOfSegment(ByteBuffer buffer) {
+        if (buffer.remaining() >= END_OF_SEGMENT_SIZE_IN_BYTES) {
+            buffer.putInt(buffer.position(), 0);
+        }
+    }
+
+    private File getSegmentFile(long sequence) {
+        return new File(folder, SEGMENT_FILE_PREFIX + String.format("%019d", sequence) + SEGMENT_FILE_EXTENSION);
+    }
+
+    /**
+     * Writes the segments out, drops them and releases the lock on the folder, so a new spool can open it.
+     * The mappings are released once they are collected, the transmissions that come later are refused.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            Segment last = segments.peekLast();
+            if (last != null) {
+                last.buffer.force();
+            }
+            cursor.force();
+            cursorLock.release();
+        } catch (IOException e) {
+            logger.error("Failed to release the lock of the spool in {}", folder, e);
+        } finally {
+            segments.clear();
+            // The records are counted again by the spool that opens the folder next
+            ChannelMetrics.INSTANCE.onSpoolSizeChanged(-sizeInBytes);
+            sizeInBytes = 0;
+            closeQuietly(cursorFile);
+        }
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Another spool of this process holds it
+            return null;
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            logger.error("Failed to close {}", CURSOR_FILE_NAME, e);
+        }
+    }
+
+    // Maps the whole file, growing it to the size when it is larger than zero
+    private static MappedByteBuffer map(File file, long sizeInBytes) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            if (sizeInBytes > 0 && raf.length() < sizeInBytes) {
+                raf.setLength(sizeInBytes);
+            }
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Preconditions;
+import com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.channel.TelemetrySizeEstimator;
+import com.microsoft.applicationinsights.internal.util.LimitsEnforcer;
+
+/**
+ * A {@link TelemetryBuffer} that shards the incoming telemetries into a number of independent stripes.
+ *
+ * Each application thread always works with the same stripe, chosen by its thread id, so threads
+ * working with different stripes never touch the same lock or the same cache lines. Every stripe
+ * batches on its own and hands its batches to the shared {@link TelemetriesTransmitter}.
+ *
+ * Every stripe batches up to the maximum number of telemetries in a batch and sends its own full batches.
+ * The stripes share a count of the telemetries they hold, which is only used to keep them within the
+ * configured capacity, once all the stripes together hold it the fullest stripe sends its batch.
+ */
+public class StripedTelemetryBuffer<T> extends TelemetryBuffer<T> {
+
+    public static final int MAX_NUMBER_OF_STRIPES = 64;
+
+    private static final String STRIPE_MAX_TELEMETRIES_IN_BATCH_NAME = "StripeMaxTelemetriesInBatch";
+    private static final String STRIPE_TRANSMIT_BUFFER_TIMEOUT_IN_SECONDS_NAME = "StripeTransmitBufferTimeoutInSeconds";
+
+    private final TelemetryBuffer<T>[] stripes;
+
+    /// The number of telemetries held by all the stripes together
+    private final AtomicInteger bufferedTelemetries = new AtomicInteger(0);
+
+    /**
+     * @param sender The sender object for transmitting the telemetries
+     * @param maxTelemetriesInBatchEnforcer For getting the number of maximum number of telemetries in all the stripes within limits
+     * @param transmitBufferTimeoutInSecondsEnforcer For getting the number of transmit buffer timeout in seconds within limits
+     * @param numberOfStripes The number of stripes, between 1 and {@link #MAX_NUMBER_OF_STRIPES}
+     * @param lockFreeStripes True to use a {@link MpscTelemetryBuffer} for every stripe, otherwise a {@link TelemetryBuffer} is used
+     */
+    @SuppressWarnings("unchecked")
+    public StripedTelemetryBuffer(TelemetriesTransmitter<T> sender, LimitsEnforcer maxTelemetriesInBatchEnforcer, LimitsEnforcer transmitBufferTimeoutInSecondsEnforcer,
+                                  int numberOfStripes, boolean lockFreeStripes) {
+        super(sender, maxTelemetriesInBatchEnforcer, transmitBufferTimeoutInSecondsEnforcer);
+        Preconditions.checkArgument(numberOfStripes > 0, "numberOfStripes must be a positive number");
+        Preconditions.checkArgument(numberOfStripes <= MAX_NUMBER_OF_STRIPES, "numberOfStripes must not be larger than %s", MAX_NUMBER_OF_STRIPES);
+
+        stripes = (TelemetryBuffer<T>[]) new TelemetryBuffer<?>[numberOfStripes];
+        for (int i = 0; i < numberOfStripes; ++i) {
+            // Every stripe needs its own enforcers since they keep the current value
+            LimitsEnforcer stripeMaxEnforcer = LimitsEnforcer.createWithClosestLimitOnError(
+                    STRIPE_MAX_TELEMETRIES_IN_BATCH_NAME,
+                    maxTelemetriesInBatchEnforcer.getMinimum(),
+                    maxTelemetriesInBatchEnforcer.getMaximum(),
+                    maxTelemetriesInBatchEnforcer.getDefaultValue(),
+                    getMaxTelemetriesInBatch());
+            LimitsEnforcer stripeTimeoutEnforcer = LimitsEnforcer.createWithClosestLimitOnError(
+                    STRIPE_TRANSMIT_BUFFER_TIMEOUT_IN_SECONDS_NAME,
+                    transmitBufferTimeoutInSecondsEnforcer.getMinimum(),
+                    transmitBufferTimeoutInSecondsEnforcer.getMaximum(),
+                    transmitBufferTimeoutInSecondsEnforcer.getDefaultValue(),
+                    getTransmitBufferTimeoutInSeconds());
+
+            if (lockFreeStripes) {
+                stripes[i] = new MpscTelemetryBuffer<>(sender, stripeMaxEnforcer, stripeTimeoutEnforcer,
+                        Math.max(1, MpscTelemetryBuffer.DEFAULT_RING_CAPACITY / numberOfStripes));
+            } else {
+                stripes[i] = new TelemetryBuffer<>(sender, stripeMaxEnforcer, stripeTimeoutEnforcer);
+            }
+            stripes[i].shareBufferedTelemetriesCount(bufferedTelemetries);
+        }
+    }
+
+    /**
+     * Sets the maximum number of telemetries in a batch, which is also the number of telemetries all the stripes together may hold.
+     * @param value The max amount of Telemetries that are allowed in a batch and in all the stripes.
+     */
+    @Override
+    public void setMaxTelemetriesInBatch(int value) {
+        super.setMaxTelemetriesInBatch(value);
+
+        for (TelemetryBuffer<T> stripe : stripes) {
+            stripe.setMaxTelemetriesInBatch(getMaxTelemetriesInBatch());
+        }
+        if (bufferedTelemetries.get() >= getMaxTelemetriesInBatch()) {
+            flush();
+        }
+    }
+
+    /**
+     * Enables batching by size for every stripe, each stripe cuts its own batches at the given size
+     * @param sizeEstimator Estimates the serialized size of every telemetry that is added
+     * @param value The maximum estimated size of a batch in bytes.
+     */
+    @Override
+    public void setMaxBatchSizeInBytes(TelemetrySizeEstimator<? super T> sizeEstimator, int value) {
+        super.setMaxBatchSizeInBytes(sizeEstimator, value);
+
+        for (TelemetryBuffer<T> stripe : stripes) {
+            stripe.setMaxBatchSizeInBytes(sizeEstimator, value);
+        }
+    }
+
+    @Override
+    public void setTransmitBufferTimeoutInSeconds(int value) {
+        super.setTransmitBufferTimeoutInSeconds(value);
+
+        for (TelemetryBuffer<T> stripe : stripes) {
+            stripe.setTransmitBufferTimeoutInSeconds(value);
+        }
+    }
+
+    /**
+     * Adds the telemetry to the stripe of the calling thread.
+     *
+     * If all the stripes together now hold the configured capacity, the fullest stripe sends its batch.
+     * @param telemetry The {@link com.microsoft.applicationinsights.telemetry.Telemetry} to add to the buffer.
+     */
+    @Override
+    public void add(T telemetry) {
+        stripes[(int) (Thread.currentThread().getId() % stripes.length)].add(telemetry);
+
+        if (bufferedTelemetries.get() >= getMaxTelemetriesInBatch()) {
+            flushFullestStripe();
+        }
+    }
+
+    /**
+     * Every stripe sends its own telemetries.
+     */
+    @Override
+    public void flush() {
+        for (TelemetryBuffer<T> stripe : stripes) {
+            stripe.flush();
+        }
+    }
+
+    @Override
+    public int getBufferedTelemetries() {
+        int total = 0;
+        for (TelemetryBuffer<T> stripe : stripes) {
+            total += stripe.getBufferedTelemetries();
+        }
+        return total;
+    }
+
+    /**
+     * @return The number of telemetries dropped since the ring of a lock-free stripe was full
+     */
+    public long getDroppedTelemetries() {
+        long dropped = 0;
+        for (TelemetryBuffer<T> stripe : stripes) {
+            if (stripe instanceof MpscTelemetryBuffer) {
+                dropped += ((MpscTelemetryBuffer<T>) stripe).getDroppedTelemetries();
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * @return The number of telemetries dropped since the ring of a lock-free stripe was full, keyed by telemetry type
+     */
+    @Override
+    public Map<String, Long> getDroppedTelemetriesByType() {
+        Map<String, Long> dropped = new HashMap<String, Long>();
+        for (TelemetryBuffer<T> stripe : stripes) {
+            for (Map.Entry<String, Long> entry : stripe.getDroppedTelemetriesByType().entrySet()) {
+                Long current = dropped.get(entry.getKey());
+                dropped.put(entry.getKey(), current == null ? entry.getValue() : current + entry.getValue());
+            }
+        }
+        return dropped;
+    }
+
+    public int getNumberOfStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * Only the stripe that holds the most telemetries is flushed, through its own lock,
+     * so threads that reach the capacity together do not wait for each other.
+     */
+    private void flushFullestStripe() {
+        TelemetryBuffer<T> fullest = null;
+        int fullestSize = 0;
+        for (TelemetryBuffer<T> stripe : stripes) {
+            int size = stripe.getBufferedTelemetries();
+            if (size > fullestSize) {
+                fullest = stripe;
+                fullestSize = size;
+            }
+        }
+
+        if (fullest != null) {
+            fullest.flush();
+        }
+    }
+}
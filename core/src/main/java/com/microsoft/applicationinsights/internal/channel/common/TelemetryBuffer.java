@@ -25,10 +25,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.base.Preconditions;
 import com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.channel.TelemetrySizeEstimator;
 import com.microsoft.applicationinsights.internal.util.LimitsEnforcer;
 import com.microsoft.applicationinsights.telemetry.Telemetry;
 import org.slf4j.Logger;
@@ -42,6 +45,12 @@ import org.slf4j.LoggerFactory;
  *
  * If the buffer is full before the timeout expired, it will initiate a 'send now' activity to send the buffer asap.
  *
+ * The buffer is full when it holds the maximum number of telemetries in a batch, or, when batching by size
+ * is enabled, when the estimated size of its telemetries reaches the maximum batch size in bytes.
+ *
+ * The lock only guards the container, the sender is called once it is released, so a sender that
+ * blocks or writes to the disk under its backpressure policy does not hold up the other threads that add.
+ *
  * The class is responsible for handing the corner cases that might rise
  *
  * Created by gupele on 12/17/2014.
@@ -57,7 +66,7 @@ public class TelemetryBuffer<T> {
      * is no valid anymore, nothing will be sent.
      * Else, a new buffer is created, the generation is incremented and the 'ready' buffer is sent
      */
-    private final class TelemetryBufferTelemetriesFetcher implements TelemetriesTransmitter.TelemetriesFetcher {
+    private final class TelemetryBufferTelemetriesFetcher implements TelemetriesTransmitter.ExpiringTelemetriesFetcher<T> {
 
         private final long expectedGeneration;
 
@@ -65,6 +74,11 @@ public class TelemetryBuffer<T> {
             this.expectedGeneration = expectedGeneration;
         }
 
+        @Override
+        public boolean isExpired() {
+            return expectedGeneration != generation;
+        }
+
         @Override
         public Collection<T> fetch() {
             synchronized (lock) {
@@ -75,6 +89,8 @@ public class TelemetryBuffer<T> {
                 ++generation;
                 List<T> readyToBeSent = telemetries;
                 telemetries = new ArrayList<T>();
+                telemetriesSizeInBytes = 0;
+                countBufferedTelemetries(-readyToBeSent.size());
 
                 return readyToBeSent;
             }
@@ -86,21 +102,31 @@ public class TelemetryBuffer<T> {
 
     /// The maximum amount of Telemetries in a batch. If the buffer is
     /// full before the timeout expired, we will need to send it anyway and not wait for the timeout to expire
-    private int maxTelemetriesInBatch;
+    private volatile int maxTelemetriesInBatch;
     private LimitsEnforcer maxTelemetriesInBatchEnforcer;
 
-    private int transmitBufferTimeoutInSeconds;
+    private volatile int transmitBufferTimeoutInSeconds;
     private LimitsEnforcer transmitBufferTimeoutInSecondsEnforcer;
 
+    /// When set, batches are also cut once the estimated size of their telemetries reaches 'maxBatchSizeInBytes'
+    private volatile TelemetrySizeEstimator<? super T> sizeEstimator;
+    private volatile int maxBatchSizeInBytes;
+
     /// The Telemetry instances are kept here
     private List<T> telemetries;
 
+    /// The estimated size of the Telemetry instances that are kept in 'telemetries'
+    private long telemetriesSizeInBytes;
+
     /// A way to help incoming threads make sure they are picking up the right Telemetry container
-    private long generation = 0;
+    private volatile long generation = 0;
 
     /// A synchronization object to avoid race conditions with the container and generation
     private final Object lock = new Object();
 
+    /// When the buffer is a stripe, counts the telemetries held by all the stripes together
+    private AtomicInteger sharedBufferedTelemetries;
+
     /**
      * The constructor needs to get the 'sender' we work with
      * @param sender The sender object for transmitting the telemetries
@@ -128,12 +154,14 @@ public class TelemetryBuffer<T> {
      * @param value The max amount of Telemetries that are allowed in a batch.
      */
     public void setMaxTelemetriesInBatch(int value) {
+        boolean shouldFlush;
         synchronized (lock) {
             maxTelemetriesInBatch = maxTelemetriesInBatchEnforcer.normalizeValue(value);
-            if (telemetries != null && maxTelemetriesInBatch < telemetries.size()) {
-                // Request for smaller buffers, we flush if our buffer contains more elements
-                flush();
-            }
+            // Request for smaller buffers, we flush if our buffer contains more elements
+            shouldFlush = telemetries != null && maxTelemetriesInBatch < telemetries.size();
+        }
+        if (shouldFlush) {
+            flush();
         }
     }
 
@@ -145,18 +173,58 @@ public class TelemetryBuffer<T> {
         return this.maxTelemetriesInBatch;
     }
 
+    /**
+     * Enables batching by size, a batch is sent once the estimated size of its telemetries reaches
+     * the maximum batch size in bytes. The maximum number of telemetries in a batch still applies.
+     * @param sizeEstimator Estimates the serialized size of every telemetry that is added
+     * @param value The maximum estimated size of a batch in bytes.
+     */
+    public void setMaxBatchSizeInBytes(TelemetrySizeEstimator<? super T> sizeEstimator, int value) {
+        Preconditions.checkNotNull(sizeEstimator, "sizeEstimator must be non-null value");
+        Preconditions.checkArgument(value > 0, "maxBatchSizeInBytes must be a positive number");
+
+        boolean shouldFlush;
+        synchronized (lock) {
+            this.sizeEstimator = sizeEstimator;
+            maxBatchSizeInBytes = value;
+            // Request for smaller batches, we flush if our buffer is already bigger
+            shouldFlush = telemetriesSizeInBytes >= maxBatchSizeInBytes;
+        }
+        if (shouldFlush) {
+            flush();
+        }
+    }
+
+    /**
+     * Gets the maximum estimated size of a batch in bytes
+     * @return The maximum estimated size of a batch in bytes, zero if batching by size is not enabled
+     */
+    public int getMaxBatchSizeInBytes() {
+        return sizeEstimator == null ? 0 : maxBatchSizeInBytes;
+    }
+
+    /**
+     * Gets the size estimator used for batching by size
+     * @return The size estimator, null if batching by size is not enabled
+     */
+    protected TelemetrySizeEstimator<? super T> getSizeEstimator() {
+        return sizeEstimator;
+    }
+
     /**
      * Sets the transmit buffer timeout in seconds
      * @param value The amount of time to wait before sending the buffer.
      */
     public void setTransmitBufferTimeoutInSeconds(int value) {
+        boolean shouldFlush;
         synchronized (lock) {
             int oldValue = transmitBufferTimeoutInSeconds;
             transmitBufferTimeoutInSeconds = this.transmitBufferTimeoutInSecondsEnforcer.normalizeValue(value);
             // Request for quicker flushes, we flush if the previous timeout is bigger
-            if (transmitBufferTimeoutInSeconds < oldValue) {
-                flush();
-            }
+            shouldFlush = transmitBufferTimeoutInSeconds < oldValue;
+        }
+        if (shouldFlush) {
+            flush();
         }
     }
 
@@ -173,34 +241,71 @@ public class TelemetryBuffer<T> {
      *
      * If that is the first instance in the container, we schedule a 'pick-up' in a configurable amount of time
      * If by adding that item we exceeded the maximum number of instances, we trigger a send request now.
+     * When batching by size, a telemetry that would take the batch over the maximum size is added to a new
+     * batch, after the current one is sent.
      *
      * Note that a lock is used to make sure we avoid race conditions and to make sure that we cleanly
-     * move from a ready to send buffer to a new one
+     * move from a ready to send buffer to a new one, the sender is called after it is released
      * @param telemetry The {@link com.microsoft.applicationinsights.telemetry.Telemetry} to add to the buffer.
      */
     public void add(T telemetry) {
         Preconditions.checkNotNull(telemetry, "Telemetry must be non null value");
 
+        // The estimation might be costly, so it is done before taking the lock
+        TelemetrySizeEstimator<? super T> currentSizeEstimator = sizeEstimator;
+        int telemetrySizeInBytes = currentSizeEstimator == null ? 0 : currentSizeEstimator.estimateSizeInBytes(telemetry);
+
+        List<T> previousBatch = null;
+        List<T> fullBatch = null;
+        TelemetryBufferTelemetriesFetcher fetcher = null;
         synchronized (lock) {
+            boolean batchBySize = currentSizeEstimator != null;
+            if (batchBySize && !telemetries.isEmpty() && telemetriesSizeInBytes + telemetrySizeInBytes > maxBatchSizeInBytes) {
+                // The telemetry does not fit, we send the current batch so it stays within the maximum size
+                previousBatch = prepareTelemetriesForSend();
+            }
+
             telemetries.add(telemetry);
+            telemetriesSizeInBytes += telemetrySizeInBytes;
+            countBufferedTelemetries(1);
 
             int currentSize = telemetries.size();
 
-            if (currentSize >= maxTelemetriesInBatch) {
-                if (!sender.sendNow(prepareTelemetriesForSend())) {
-                    // 'prepareTelemetriesForSend' already created a new container
-                    // so basically we have nothing to do, the old container is lost
-                    logger.error("Failed to send buffer data to network");
-                }
+            if (currentSize >= maxTelemetriesInBatch || (batchBySize && telemetriesSizeInBytes >= maxBatchSizeInBytes)) {
+                fullBatch = prepareTelemetriesForSend();
             } else if (currentSize == 1) {
-                if (!sender.scheduleSend(new TelemetryBufferTelemetriesFetcher(generation), transmitBufferTimeoutInSeconds, TimeUnit.SECONDS)) {
-                    // We cannot schedule send so we give up the Telemetry
-                    // The reason for this is that in case the maximum buffer size is greater than 2
-                    // than in case a new Telemetry arrives it won't trigger the schedule and might be lost too
-                    logger.error("Failed to schedule send of the buffer to network");
-                    telemetries.clear();
+                fetcher = new TelemetryBufferTelemetriesFetcher(generation);
+            }
+        }
+
+        // 'prepareTelemetriesForSend' already created a new container
+        // so if the sender does not take them, the old container is lost
+        send(previousBatch, "Failed to send buffer data to network");
+        send(fullBatch, "Failed to send buffer data to network");
+
+        if (fetcher != null && !sender.scheduleSend(fetcher, transmitBufferTimeoutInSeconds, TimeUnit.SECONDS)) {
+            // We cannot schedule send so the batch is swapped out and sent now, where the backpressure policy
+            // of the sender applies to it, unless the sender already fetched it.
+            // The reason for this is that in case the maximum buffer size is greater than 2
+            // than in case a new Telemetry arrives it won't trigger the schedule and might wait forever
+            List<T> notScheduled = null;
+            synchronized (lock) {
+                if (fetcher.expectedGeneration == generation && !telemetries.isEmpty()) {
+                    notScheduled = prepareTelemetriesForSend();
                 }
             }
+
+            send(notScheduled, "Failed to schedule send of the buffer to network");
+        }
+    }
+
+    /**
+     * Gets the number of telemetries waiting in the buffer, for monitoring
+     * @return The number of telemetries that were added and not handed to the sender yet
+     */
+    public int getBufferedTelemetries() {
+        synchronized (lock) {
+            return telemetries.size();
         }
     }
 
@@ -208,13 +313,37 @@ public class TelemetryBuffer<T> {
      * The method will flush the telemetries currently in the buffer to the {@link com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter}
      */
     public void flush() {
+        List<T> readyToBeSent = null;
         synchronized (lock) {
             if (telemetries.size() != 0) {
-                if (!sender.sendNow(prepareTelemetriesForSend())) {
-                    logger.error("Failed to flush buffer data to network");
-                }
+                readyToBeSent = prepareTelemetriesForSend();
             }
         }
+
+        send(readyToBeSent, "Failed to flush buffer data to network");
+    }
+
+    /**
+     * Gets the telemetries the buffer itself dropped, the buffer does not drop any unless it is bounded
+     * @return The number of dropped telemetries keyed by telemetry type, e.g. 'RequestTelemetry'
+     */
+    public Map<String, Long> getDroppedTelemetriesByType() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Makes the buffer count the telemetries it holds in the given counter as well,
+     * must be called before the first telemetry is added
+     * @param counter The counter shared by all the stripes of a {@link StripedTelemetryBuffer}
+     */
+    void shareBufferedTelemetriesCount(AtomicInteger counter) {
+        sharedBufferedTelemetries = counter;
+    }
+
+    void countBufferedTelemetries(int delta) {
+        if (sharedBufferedTelemetries != null) {
+            sharedBufferedTelemetries.addAndGet(delta);
+        }
     }
 
     /**
@@ -230,7 +359,15 @@ public class TelemetryBuffer<T> {
         final List<T> readyToBeSent = telemetries;
 
         telemetries = new ArrayList<T>(maxTelemetriesInBatch);
+        telemetriesSizeInBytes = 0;
+        countBufferedTelemetries(-readyToBeSent.size());
 
         return readyToBeSent;
     }
+
+    private void send(List<T> readyToBeSent, String errorMessage) {
+        if (readyToBeSent != null && !sender.sendNow(readyToBeSent)) {
+            logger.error(errorMessage);
+        }
+    }
 }
@@ -0,0 +1,97 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts dropped telemetries per telemetry type, the type being the simple name of the telemetry class.
+ */
+public final class TelemetryDropCounters {
+
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final AtomicLong total = new AtomicLong(0);
+
+    /**
+     * @param telemetries The dropped telemetries
+     * @return The total number of dropped telemetries so far
+     */
+    public long record(Collection<?> telemetries) {
+        for (Object telemetry : telemetries) {
+            getCounter(telemetry.getClass().getSimpleName()).incrementAndGet();
+        }
+        ChannelMetrics.INSTANCE.onTelemetriesDropped(telemetries.size());
+        return total.addAndGet(telemetries.size());
+    }
+
+    /**
+     * @param telemetryCounts The number of dropped telemetries per telemetry type
+     * @return The total number of dropped telemetries so far
+     */
+    public long record(Map<String, Integer> telemetryCounts) {
+        long dropped = 0;
+        for (Map.Entry<String, Integer> entry : telemetryCounts.entrySet()) {
+            getCounter(entry.getKey()).addAndGet(entry.getValue());
+            dropped += entry.getValue();
+        }
+        ChannelMetrics.INSTANCE.onTelemetriesDropped(dropped);
+        return total.addAndGet(dropped);
+    }
+
+    public long getDroppedTelemetries(String telemetryType) {
+        AtomicLong counter = counters.get(telemetryType);
+        return counter == null ? 0 : counter.get();
+    }
+
+    public long getTotalDroppedTelemetries() {
+        return total.get();
+    }
+
+    /**
+     * @return A copy of the counters, keyed by telemetry type
+     */
+    public Map<String, Long> getSnapshot() {
+        Map<String, Long> snapshot = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+
+    private AtomicLong getCounter(String telemetryType) {
+        AtomicLong counter = counters.get(telemetryType);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong(0);
+            counter = counters.putIfAbsent(telemetryType, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+}
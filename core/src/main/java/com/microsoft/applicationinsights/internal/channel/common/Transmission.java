@@ -21,50 +21,189 @@
 
 package com.microsoft.applicationinsights.internal.channel.common;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import okio.Buffer;
 
 /**
  * Holds the stuff that defines a transmission of data to the server.
  * It also holds the meta data that describes the content, for example encoding type
  *
+ * The content of a transmission that was just serialized stays in okio segments, which are streamed as is
+ * into the request body or the spool file. It is copied to an array only when the transmission is parsed.
+ * Such a transmission also keeps where its items are in the uncompressed content, so the items of a partially
+ * accepted transmission are sliced out after decompressing it once. The offsets are not persisted.
+ *
  * Created by gupele on 12/17/2014.
  */
 public final class Transmission implements Serializable {
+    // The value computed before it was declared, so the transmissions that were already persisted can be loaded
+    private static final long serialVersionUID = -7135156212077487555L;
+
     private int version;
 
     private int numberOfSends;
 
     private int numberOfPersistence;
 
-    private final byte[] content;
+    private byte[] content;
+
+    private transient Buffer body;
+
+    private transient boolean released;
+
+    private transient TransmissionItems.Offsets itemOffsets;
+
+    private transient int numberOfItems;
 
     private final String webContentType;
 
     private final String webContentEncodingType;
 
     public Transmission(byte[] content, String webContentType, String webContentEncodingType, int version) {
+        this(content, null, webContentType, webContentEncodingType, version);
         Preconditions.checkNotNull(content, "Content must be non-null value");
+    }
+
+    public Transmission(byte[] content, String webContentType, String webContentEncodingType) {
+        this(content, webContentType, webContentEncodingType, 1);
+    }
+
+    private Transmission(byte[] content, Buffer body, String webContentType, String webContentEncodingType, int version) {
         Preconditions.checkArgument(!Strings.isNullOrEmpty(webContentType), "webContentType must be a non empty string");
         Preconditions.checkArgument(!Strings.isNullOrEmpty(webContentEncodingType), "webContentEncodingType must be a non empty string");
 
         numberOfSends = numberOfPersistence = 0;
         this.version = version;
         this.content = content;
+        this.body = body;
         this.webContentType = webContentType;
         this.webContentEncodingType = webContentEncodingType;
     }
 
-    public Transmission(byte[] content, String webContentType, String webContentEncodingType) {
-        this(content, webContentType, webContentEncodingType, 1);
+    /**
+     * Creates a transmission that takes over the segments of the buffer, the buffer is left empty.
+     *
+     * @param body The content of the transmission.
+     * @param webContentType The content type.
+     * @param webContentEncodingType The content encoding.
+     * @return The transmission.
+     */
+    static Transmission fromBuffer(Buffer body, String webContentType, String webContentEncodingType) {
+        return fromBuffer(body, webContentType, webContentEncodingType, null);
     }
 
-    public byte[] getContent() {
+    /**
+     * Creates a transmission that takes over the segments of the buffer, the buffer is left empty.
+     *
+     * @param body The content of the transmission.
+     * @param webContentType The content type.
+     * @param webContentEncodingType The content encoding.
+     * @param itemOffsets The offsets of the items in the uncompressed content, or null if they are not known.
+     * @return The transmission.
+     */
+    static Transmission fromBuffer(Buffer body, String webContentType, String webContentEncodingType, TransmissionItems.Offsets itemOffsets) {
+        Transmission transmission = fromBuffer(body, webContentType, webContentEncodingType, 1);
+        transmission.itemOffsets = itemOffsets;
+        if (itemOffsets != null) {
+            transmission.numberOfItems = itemOffsets.size();
+        }
+        return transmission;
+    }
+
+    /**
+     * Creates a transmission of the given version that takes over the segments of the buffer, the buffer is left empty.
+     *
+     * @param body The content of the transmission.
+     * @param webContentType The content type.
+     * @param webContentEncodingType The content encoding.
+     * @param version The version of the transmission.
+     * @return The transmission.
+     */
+    static Transmission fromBuffer(Buffer body, String webContentType, String webContentEncodingType, int version) {
+        Preconditions.checkNotNull(body, "body must be non-null value");
+
+        Buffer owned = new Buffer();
+        owned.write(body, body.size());
+        return new Transmission(null, owned, webContentType, webContentEncodingType, version);
+    }
+
+    /**
+     * @return The offsets of the items in the uncompressed content, or null if they were released,
+     *         or the transmission was loaded from the disk.
+     */
+    synchronized TransmissionItems.Offsets getItemOffsets() {
+        return itemOffsets;
+    }
+
+    /**
+     * Returns the content as an array, copying it out of the segments the first time it is needed.
+     *
+     * @return The content.
+     */
+    public synchronized byte[] getContent() {
+        if (content == null) {
+            Preconditions.checkState(!released, "The content of the transmission was already released");
+            content = body.readByteArray();
+            body = null;
+        }
         return content;
     }
 
+    public synchronized long getContentLength() {
+        if (content == null) {
+            Preconditions.checkState(!released, "The content of the transmission was already released");
+            return body.size();
+        }
+        return content.length;
+    }
+
+    /**
+     * Writes the content without consuming it, so the transmission can be sent again.
+     *
+     * @param out The stream to write to.
+     * @throws IOException If the stream throws.
+     */
+    public synchronized void writeContentTo(OutputStream out) throws IOException {
+        if (content == null) {
+            Preconditions.checkState(!released, "The content of the transmission was already released");
+            body.copyTo(out);
+        } else {
+            out.write(content);
+        }
+    }
+
+    /**
+     * @return A stream over the content that shares the segments of the transmission instead of copying them.
+     */
+    public synchronized InputStream openContent() {
+        if (content == null) {
+            Preconditions.checkState(!released, "The content of the transmission was already released");
+            return body.clone().inputStream();
+        }
+        return new ByteArrayInputStream(content);
+    }
+
+    /**
+     * Gives the segments back to the okio pool once the transmission was delivered and will not be used anymore.
+     * A transmission whose content is an array keeps it.
+     */
+    synchronized void releaseBody() {
+        itemOffsets = null;
+        if (body != null) {
+            body.clear();
+            body = null;
+            released = true;
+        }
+    }
+
     public String getWebContentType() {
         return webContentType;
     }
@@ -97,7 +236,25 @@ public final class Transmission implements Serializable {
         this.numberOfPersistence = numberOfPersistence;
     }
 
+    /**
+     * @return The number of telemetries in the transmission, or 0 if it is not known,
+     *         as for a transmission that was created from an array.
+     */
+    public int getNumberOfItems() {
+        return numberOfItems;
+    }
+
+    public void setNumberOfItems(int numberOfItems) {
+        this.numberOfItems = numberOfItems;
+    }
+
     public int getVersion() {
         return version;
     }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        // Java serialization is the one place where the content has to be an array
+        getContent();
+        out.defaultWriteObject();
+    }
 }
@@ -0,0 +1,445 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.hash.HashingOutputStream;
+import okio.Buffer;
+
+/**
+ * Reads and writes the files of {@link TransmissionFileSystemOutput} and the records of {@link SegmentedTransmissionSpool}.
+ *
+ * A file, or a record, holds a header, the raw content and a CRC32C of everything before it, all numbers are big endian:
+ * <pre>
+ *     int     magic
+ *     byte    format version
+ *     int     transmission version
+ *     int     number of sends
+ *     int     number of persistence
+ *     int     number of telemetries, 0 if it is not known
+ *     short   length of the content type, followed by its UTF-8 bytes
+ *     short   length of the content encoding, followed by its UTF-8 bytes
+ *     int     length of the content
+ *     byte[]  content
+ *     int     CRC32C
+ * </pre>
+ *
+ * A file that does not start with the magic is read as a serialized {@link Transmission}, the format that was
+ * used before, so the files that were already persisted are still sent.
+ * A file whose length or checksum does not match its header was torn by a crash while it was written,
+ * reading it throws an {@link IOException}.
+ * The number of telemetries sits at a fixed offset, so evicting a file or a record reports the telemetries
+ * that were lost without reading its content.
+ *
+ * The content is read into the pooled segments of an okio {@link Buffer} that becomes the body of the transmission,
+ * not into an array of its own. It is still copied once out of the file or the mapped spool segment, since the body
+ * outlives them, the file is closed and the spool segment is reused or deleted once its records were fetched.
+ */
+final class TransmissionFileFormat {
+
+    static final int MAGIC = 0x41495446;
+    static final byte FORMAT_VERSION = 1;
+
+    private static final Charset CHARSET = Charsets.UTF_8;
+    private static final HashFunction CHECKSUM = Hashing.crc32c();
+
+    // The header without the two strings
+    private static final int FIXED_HEADER_SIZE_IN_BYTES = 4 + 1 + 4 + 4 + 4 + 4 + 2 + 2 + 4;
+    private static final int NUMBER_OF_ITEMS_OFFSET = 4 + 1 + 4 + 4 + 4;
+    private static final int CHECKSUM_SIZE_IN_BYTES = 4;
+    private static final int MAX_STRING_LENGTH = 0xFFFF;
+    private static final int MAX_RECORD_OVERHEAD_IN_BYTES = FIXED_HEADER_SIZE_IN_BYTES + 2 * MAX_STRING_LENGTH + CHECKSUM_SIZE_IN_BYTES;
+
+    // Large enough for the header of any reasonable file, the content is read past it
+    private static final int READ_BUFFER_SIZE_IN_BYTES = 512;
+
+    private TransmissionFileFormat() {
+    }
+
+    /**
+     * Writes the transmission to the file, replacing its content.
+     *
+     * @param file The file to write to.
+     * @param transmission The transmission to write, its content is not consumed.
+     * @throws IOException If the file could not be written.
+     */
+    static void write(File file, Transmission transmission) throws IOException {
+        ByteBuffer header = encodeHeader(transmission);
+
+        try (FileOutputStream stream = new FileOutputStream(file);
+             FileChannel channel = stream.getChannel()) {
+            // The content goes to the channel one segment at a time, the stream only hashes what it passes on
+            HashingOutputStream out = new HashingOutputStream(CHECKSUM, Channels.newOutputStream(channel));
+            out.write(header.array(), 0, header.remaining());
+            transmission.writeContentTo(out);
+
+            ByteBuffer trailer = ByteBuffer.allocate(CHECKSUM_SIZE_IN_BYTES);
+            trailer.putInt(out.hash().asInt());
+            trailer.flip();
+            while (trailer.hasRemaining()) {
+                channel.write(trailer);
+            }
+        }
+    }
+
+    /**
+     * Encodes the header of a record, which is then written by {@link #write(ByteBuffer, ByteBuffer, Transmission)}.
+     *
+     * @param transmission The transmission to encode.
+     * @return The header, ready to be read.
+     * @throws IOException If the transmission is too large or its header values too long to be persisted.
+     */
+    static ByteBuffer encodeHeader(Transmission transmission) throws IOException {
+        byte[] contentType = toBytes(transmission.getWebContentType());
+        byte[] contentEncoding = toBytes(transmission.getWebContentEncodingType());
+        long contentLength = transmission.getContentLength();
+        if (contentLength > Integer.MAX_VALUE - MAX_RECORD_OVERHEAD_IN_BYTES) {
+            throw new IOException("Transmission of " + contentLength + " bytes is too large to be persisted");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_SIZE_IN_BYTES + contentType.length + contentEncoding.length);
+        header.putInt(MAGIC)
+              .put(FORMAT_VERSION)
+              .putInt(transmission.getVersion())
+              .putInt(transmission.getNumberOfSends())
+              .putInt(transmission.getNumberOfPersistence())
+              .putInt(transmission.getNumberOfItems())
+              .putShort((short) contentType.length)
+              .put(contentType)
+              .putShort((short) contentEncoding.length)
+              .put(contentEncoding)
+              .putInt((int) contentLength);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * @param header The header of the transmission.
+     * @param transmission The transmission.
+     * @return The number of bytes of the record of the transmission.
+     */
+    static int getRecordSize(ByteBuffer header, Transmission transmission) {
+        return header.remaining() + (int) transmission.getContentLength() + CHECKSUM_SIZE_IN_BYTES;
+    }
+
+    /**
+     * Writes the record of the transmission at the position of the target, which is moved past it.
+     *
+     * @param target The buffer to write to, with at least {@link #getRecordSize} bytes remaining.
+     * @param header The header of the transmission, it is not consumed.
+     * @param transmission The transmission to write, its content is not consumed.
+     * @throws IOException If the content could not be written.
+     */
+    static void write(ByteBuffer target, ByteBuffer header, Transmission transmission) throws IOException {
+        HashingOutputStream out = new HashingOutputStream(CHECKSUM, new ByteBufferOutputStream(target));
+        out.write(header.array(), 0, header.remaining());
+        transmission.writeContentTo(out);
+        target.putInt(out.hash().asInt());
+    }
+
+    /**
+     * @param source The buffer to look at.
+     * @return True if a record starts at the position of the buffer.
+     */
+    static boolean hasRecord(ByteBuffer source) {
+        return source.remaining() >= FIXED_HEADER_SIZE_IN_BYTES && source.getInt(source.position()) == MAGIC;
+    }
+
+    /**
+     * Reads the record at the position of the source, which is moved past it.
+     *
+     * @param source The buffer to read from.
+     * @return The transmission.
+     * @throws IOException If the record is torn, the position of the source is not moved then.
+     */
+    static Transmission read(ByteBuffer source) throws IOException {
+        ByteBuffer record = source.slice();
+        RecordHeader header = readHeader(record, true);
+        record.limit(record.position() + header.contentLength);
+        Buffer body = new Buffer();
+        while (record.hasRemaining()) {
+            body.write(record);
+        }
+        source.position(source.position() + header.getRecordSize());
+        return header.toTransmission(body);
+    }
+
+    /**
+     * Reads the number of telemetries of the record at the position of the source, the position is not moved.
+     *
+     * @param source The buffer to read from, {@link #hasRecord} must be true for it.
+     * @return The number of telemetries, 0 if it is not known.
+     */
+    static int readNumberOfItems(ByteBuffer source) {
+        return Math.max(0, source.getInt(source.position() + NUMBER_OF_ITEMS_OFFSET));
+    }
+
+    /**
+     * Moves the position of the source past the record at its position.
+     *
+     * @param source The buffer to read from.
+     * @param verifyChecksum True to verify the checksum of the record, false to trust its header.
+     * @return The number of bytes of the record.
+     * @throws IOException If the record is torn, the position of the source is not moved then.
+     */
+    static int skip(ByteBuffer source, boolean verifyChecksum) throws IOException {
+        int recordSize = readHeader(source.slice(), verifyChecksum).getRecordSize();
+        source.position(source.position() + recordSize);
+        return recordSize;
+    }
+
+    // Leaves the position of the record at the start of the content
+    private static RecordHeader readHeader(ByteBuffer record, boolean verifyChecksum) throws IOException {
+        try {
+            RecordHeader header = new RecordHeader();
+            record.getInt();
+            byte formatVersion = record.get();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported transmission record format version " + formatVersion);
+            }
+            header.version = record.getInt();
+            header.numberOfSends = record.getInt();
+            header.numberOfPersistence = record.getInt();
+            header.numberOfItems = record.getInt();
+            header.contentType = getString(record);
+            header.contentEncoding = getString(record);
+            header.contentLength = record.getInt();
+            header.headerSize = record.position();
+            if (header.contentLength < 0 || (long) header.contentLength + CHECKSUM_SIZE_IN_BYTES > record.remaining()) {
+                throw new IOException("Torn transmission record, " + header.contentLength + " bytes of content do not fit");
+            }
+
+            if (verifyChecksum) {
+                int checksumPosition = header.headerSize + header.contentLength;
+                ByteBuffer checked = record.duplicate();
+                checked.position(0);
+                checked.limit(checksumPosition);
+                int actualChecksum = CHECKSUM.newHasher().putBytes(checked).hash().asInt();
+                if (actualChecksum != record.getInt(checksumPosition)) {
+                    throw new IOException("Torn transmission record, checksum mismatch");
+                }
+            }
+            return header;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Torn transmission record, truncated header");
+        }
+    }
+
+    private static byte[] getString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort() & MAX_STRING_LENGTH];
+        record.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads the number of telemetries of a file in this format without reading its content.
+     *
+     * @param file The file to read.
+     * @return The number of telemetries, 0 if it is not known or the file is not in this format.
+     * @throws IOException If the file could not be read.
+     */
+    static int readNumberOfItems(File file) throws IOException {
+        try (FileInputStream stream = new FileInputStream(file);
+             FileChannel channel = stream.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(NUMBER_OF_ITEMS_OFFSET + 4);
+            while (header.hasRemaining()) {
+                if (channel.read(header) == -1) {
+                    return 0;
+                }
+            }
+            if (header.getInt(0) != MAGIC || header.get(4) != FORMAT_VERSION) {
+                return 0;
+            }
+            return Math.max(0, header.getInt(NUMBER_OF_ITEMS_OFFSET));
+        }
+    }
+
+    /**
+     * Reads a transmission from a file in either this format or the serialized format used before.
+     *
+     * @param file The file to read.
+     * @return The transmission.
+     * @throws IOException If the file could not be read, is torn or does not hold a transmission.
+     */
+    @SuppressWarnings("lgtm[java/input-resource-leak]") // All the streams close their delegates.
+    static Transmission read(File file) throws IOException {
+        try (FileInputStream stream = new FileInputStream(file);
+             FileChannel channel = stream.getChannel()) {
+            long fileLength = channel.size();
+
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining()) {
+                if (channel.read(magic) == -1) {
+                    break;
+                }
+            }
+            channel.position(0);
+
+            InputStream in = Channels.newInputStream(channel);
+            if (magic.hasRemaining() || magic.getInt(0) != MAGIC) {
+                return readSerialized(in);
+            }
+            return readCurrent(in, fileLength);
+        }
+    }
+
+    private static Transmission readCurrent(InputStream channelStream, long fileLength) throws IOException {
+        // Reads of the content bypass the buffer of the stream and go straight into the segments of the body
+        HashingInputStream hashing = new HashingInputStream(CHECKSUM, new BufferedInputStream(channelStream, READ_BUFFER_SIZE_IN_BYTES));
+        DataInputStream in = new DataInputStream(hashing);
+
+        in.readInt();
+        byte formatVersion = in.readByte();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported transmission file format version " + formatVersion);
+        }
+        int version = in.readInt();
+        int numberOfSends = in.readInt();
+        int numberOfPersistence = in.readInt();
+        int numberOfItems = in.readInt();
+        byte[] contentType = readString(in);
+        byte[] contentEncoding = readString(in);
+        int contentLength = in.readInt();
+
+        long expectedLength = FIXED_HEADER_SIZE_IN_BYTES + contentType.length + contentEncoding.length
+                + (long) contentLength + CHECKSUM_SIZE_IN_BYTES;
+        if (contentLength < 0 || expectedLength != fileLength) {
+            throw new IOException("Torn transmission file, expected " + expectedLength + " bytes but found " + fileLength);
+        }
+
+        Buffer body = new Buffer();
+        body.readFrom(in, contentLength);
+        int actualChecksum = hashing.hash().asInt();
+        int expectedChecksum = in.readInt();
+        if (actualChecksum != expectedChecksum) {
+            throw new IOException("Torn transmission file, checksum mismatch");
+        }
+
+        RecordHeader header = new RecordHeader();
+        header.version = version;
+        header.numberOfSends = numberOfSends;
+        header.numberOfPersistence = numberOfPersistence;
+        header.numberOfItems = numberOfItems;
+        header.contentType = contentType;
+        header.contentEncoding = contentEncoding;
+        return header.toTransmission(body);
+    }
+
+    private static Transmission readSerialized(InputStream in) throws IOException {
+        try {
+            return (Transmission) new SafeObjectInputStream(new BufferedInputStream(in)).readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Non transmission file", e);
+        }
+    }
+
+    private static byte[] readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static byte[] toBytes(String value) throws IOException {
+        byte[] bytes = value.getBytes(CHARSET);
+        if (bytes.length > MAX_STRING_LENGTH) {
+            throw new IOException("Header value of " + bytes.length + " bytes is too long to be persisted");
+        }
+        return bytes;
+    }
+
+    private final static class RecordHeader {
+        int version;
+        int numberOfSends;
+        int numberOfPersistence;
+        int numberOfItems;
+        byte[] contentType;
+        byte[] contentEncoding;
+        int contentLength;
+        int headerSize;
+
+        int getRecordSize() {
+            return headerSize + contentLength + CHECKSUM_SIZE_IN_BYTES;
+        }
+
+        Transmission toTransmission(Buffer body) {
+            Transmission transmission = Transmission.fromBuffer(body, new String(contentType, CHARSET),
+                    new String(contentEncoding, CHARSET), version);
+            transmission.setNumberOfSends(numberOfSends);
+            transmission.setNumberOfPersistence(numberOfPersistence);
+            transmission.setNumberOfItems(numberOfItems);
+            return transmission;
+        }
+    }
+
+    private final static class ByteBufferOutputStream extends OutputStream {
+        private final ByteBuffer target;
+
+        ByteBufferOutputStream(ByteBuffer target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) {
+            target.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            target.put(b, off, len);
+        }
+    }
+
+    private final static class SafeObjectInputStream extends ObjectInputStream {
+
+        public SafeObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            if (!desc.getName().equals(Transmission.class.getName()) && !desc.getName().equals(byte[].class.getName())) {
+                throw new InvalidClassException("Cannot deserialize "+desc.getName());
+            } else {
+                return super.resolveClass(desc);
+            }
+        }
+    }
+}
@@ -22,36 +22,27 @@
 package com.microsoft.applicationinsights.internal.channel.common;
 
 import java.io.File;
-import java.io.InputStream;
-import java.io.InvalidClassException;
-import java.io.ObjectInput;
-import java.io.FileInputStream;
-import java.io.BufferedInputStream;
-import java.io.ObjectInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.FileOutputStream;
-import java.io.ObjectStreamClass;
-import java.io.BufferedOutputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
 
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 
-import com.microsoft.applicationinsights.internal.channel.TransmissionOutputSync;
+import com.microsoft.applicationinsights.internal.channel.SpoolRetentionPolicy;
+import com.microsoft.applicationinsights.internal.channel.TransmissionSpool;
+import com.microsoft.applicationinsights.internal.channel.TransmissionSpoolListener;
 import com.microsoft.applicationinsights.internal.util.LimitsEnforcer;
 import com.microsoft.applicationinsights.internal.util.LocalFileSystemUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 
 import com.google.common.base.Optional;
-import com.google.common.collect.Lists;
+import com.google.common.base.Preconditions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -62,28 +53,34 @@ import org.slf4j.LoggerFactory;
  * The class works on a pre-defined folder and should know the size of disk it can use.
  *
  * With that data it knows how to store incoming Transmissions and store them into files that can be later
- * be read back into Transmissions.
+ * be read back into Transmissions. The layout of the files is described in {@link TransmissionFileFormat}.
+ *
+ * The folder is listed once on startup, the files are then tracked by an in-memory index ordered by their names,
+ * which start with the time they were written. The folder is listed again only when the index is empty, to
+ * pick up the files that other channels or processes left there.
  *
  * Created by gupele on 12/18/2014.
  */
-public final class TransmissionFileSystemOutput implements TransmissionOutputSync {
+public final class TransmissionFileSystemOutput implements TransmissionSpool {
 
     private static final Logger logger = LoggerFactory.getLogger(TransmissionFileSystemOutput.class);
 
     private final static String TRANSMISSION_FILE_PREFIX = "Transmission";
-    private final static String TRANSMISSION_DEFAULT_FOLDER = "transmissions";
+    public final static String TRANSMISSION_DEFAULT_FOLDER = "transmissions";
     private final static String TEMP_FILE_EXTENSION = ".tmp";
     private final static String TRANSMISSION_FILE_EXTENSION = ".trn";
     private final static String TRANSMISSION_FILE_EXTENSION_FOR_SEARCH = "trn";
-    private final static int NUMBER_OF_FILES_TO_CACHE = 128;
+
+    // Picks up the files that other channels and processes left in the shared folder
+    private final static long FOLDER_SCAN_INTERVAL_WHEN_EMPTY_IN_MILLIS = 60 * 1000;
 
     private final static int MAX_RETRY_FOR_DELETE = 2;
     private final static int DELETE_TIMEOUT_ON_FAILURE_IN_MILLS = 100;
 
     public final static int DEFAULT_CAPACITY_MEGABYTES = 10;
-    private final static int MAX_CAPACITY_MEGABYTES = 1000;
-    private final static int MIN_CAPACITY_MEGABYTES = 1;
-    private static final String MAX_TRANSMISSION_STORAGE_CAPACITY_NAME = "Channel.MaxTransmissionStorageCapacityInMB";
+    final static int MAX_CAPACITY_MEGABYTES = 1000;
+    final static int MIN_CAPACITY_MEGABYTES = 1;
+    static final String MAX_TRANSMISSION_STORAGE_CAPACITY_NAME = "Channel.MaxTransmissionStorageCapacityInMB";
 
 
     /// The folder in which we save transmission files
@@ -94,12 +91,17 @@ public final class TransmissionFileSystemOutput implements TransmissionOutputSyn
 
     LimitsEnforcer capacityEnforcer;
 
-    /// The size of the current files we have on the disk
-    private final AtomicLong size;
+    /// The size of the current files we have on the disk, the sum of the sizes in the index
+    private final AtomicLong size = new AtomicLong();
+
+    private final CopyOnWriteArrayList<TransmissionSpoolListener> listeners = new CopyOnWriteArrayList<TransmissionSpoolListener>();
 
-    /// Cache old files here to re-send to have better performance
-    private final ArrayList<File> cacheOfOldestFiles = new ArrayList<File>();
-    private final HashSet<String> filesThatAreBeingLoaded = new HashSet<String>();
+    private volatile SpoolRetentionPolicy retentionPolicy = SpoolRetentionPolicy.REJECT_NEW;
+    private volatile long maxAgeInMillis = Long.MAX_VALUE;
+
+    /// The names of the files that were not fetched yet with their sizes, the oldest first since the names start with their time
+    private final TreeMap<String, Long> index = new TreeMap<String, Long>();
+    private long nextFolderScanTimeInMillis;
 
     public TransmissionFileSystemOutput(String folderPath, String maxTransmissionStorageCapacity) {
         if (folderPath == null) {
@@ -123,8 +125,7 @@ public final class TransmissionFileSystemOutput implements TransmissionOutputSyn
             throw new IllegalArgumentException("Folder must exist with read and write permissions");
         }
 
-        long currentSize = getTotalSizeOfTransmissionFiles();
-        size = new AtomicLong(currentSize);
+        scanFolder();
     }
 
     public TransmissionFileSystemOutput() {
@@ -139,7 +140,7 @@ public final class TransmissionFileSystemOutput implements TransmissionOutputSyn
     public boolean sendSync(Transmission transmission) {
 
         long currentSizeInBytes = size.get();
-        if (currentSizeInBytes >= capacityInBytes) {
+        if (currentSizeInBytes >= capacityInBytes && !makeRoom()) {
             logger.error("Persistent storage max capacity has been reached; "
                 + "currently at {} bytes. Telemetry will be lost, "
                 + "please consider increasing the value of MaxTransmissionStorageFilesCapacityInMB property in the configuration file.",
@@ -160,22 +161,38 @@ public final class TransmissionFileSystemOutput implements TransmissionOutputSyn
             return false;
         }
 
+        for (TransmissionSpoolListener listener : listeners) {
+            listener.onTransmissionStored();
+        }
+
         logger.info("Data persisted to file. To be sent when the network is available.");
         return true;
     }
 
+    @Override
+    public Transmission fetchOldest() {
+        return fetchOldestFile();
+    }
+
+    /**
+     * Removes the oldest file that can be read, the files that are torn or cannot be read are deleted on the way,
+     * the files that cannot be renamed are skipped and stay for a later fetch.
+     *
+     * @return The oldest transmission, or null if no file could be read.
+     */
     public Transmission fetchOldestFile() {
+        List<File> skippedFiles = new ArrayList<File>();
         try {
-            Optional<File> oldestFile = fetchOldestFromCache();
-            if (!oldestFile.isPresent()) {
-                return null;
-            }
+            while (true) {
+                Optional<File> oldestFile = pollOldestFromIndex();
+                if (!oldestFile.isPresent() || skippedFiles.contains(oldestFile.get())) {
+                    return null;
+                }
 
-            String fileName = oldestFile.get().getName();
-            try {
                 Optional<File> oldestFileAsTemp = renameToTemporaryName(oldestFile.get());
                 if (!oldestFileAsTemp.isPresent()) {
-                    return null;
+                    skippedFiles.add(oldestFile.get());
+                    continue;
                 }
 
                 File tempFile = oldestFileAsTemp.get();
@@ -196,58 +213,79 @@ public final class TransmissionFileSystemOutput implements TransmissionOutputSyn
                     }
                 }
 
-                return transmission.get();
-            } finally {
-                synchronized (this) {
-                    filesThatAreBeingLoaded.remove(fileName);
+                if (transmission.isPresent()) {
+                    return transmission.get();
                 }
             }
         } catch (Exception e) {
             logger.error("Error fetching oldest file", e);
+        } finally {
+            // The skipped files are fetched again later, unless they are gone
+            for (File file : skippedFiles) {
+                if (file.exists()) {
+                    addToIndex(file.getName(), file.length());
+                }
+            }
         }
 
         return null;
     }
 
+    @Override
+    public synchronized boolean isEmpty() {
+        return index.isEmpty();
+    }
+
     public void setCapacity(int suggestedCapacity) {
         this.capacityInBytes = capacityEnforcer.normalizeValue(suggestedCapacity) * 1024L * 1024L;
     }
 
-    private List<File> sortOldestLastAndTrim(Collection<File> transmissions, int limit) {
-        List<File> asList;
-        if (!(transmissions instanceof List)) {
-            asList = Lists.newArrayList(transmissions);
-        } else {
-            asList = (List<File>)transmissions;
+    /**
+     * Splits the storage capacity between spools that share it, every spool gets at least the minimum capacity.
+     * @param maxTransmissionStorageCapacity The capacity in megabytes, the default one is used when it is null or not valid
+     * @param weights The share of every spool relative to the others
+     * @return The capacity of every spool in megabytes, in the order of the weights
+     */
+    public static int[] splitCapacity(String maxTransmissionStorageCapacity, int... weights) {
+        Preconditions.checkArgument(weights.length > 0, "weights must not be empty");
+
+        long totalWeight = 0;
+        for (int weight : weights) {
+            Preconditions.checkArgument(weight > 0, "weight must be a positive number");
+            totalWeight += weight;
         }
 
-        Collections.sort(asList, new Comparator<File>() {
-            @Override
-            public int compare(File file1, File file2) {
-            	return file2.getName().compareTo(file1.getName());
-            }
-        });
-
-        if (asList.size() > limit) {
-            asList = asList.subList(0, limit);
+        int capacity = LimitsEnforcer.createWithClosestLimitOnError(MIN_CAPACITY_MEGABYTES,
+                                                                    MAX_CAPACITY_MEGABYTES,
+                                                                    DEFAULT_CAPACITY_MEGABYTES,
+                                                                    MAX_TRANSMISSION_STORAGE_CAPACITY_NAME,
+                                                                    maxTransmissionStorageCapacity).getCurrentValue();
+        int[] capacities = new int[weights.length];
+        for (int i = 0; i < weights.length; ++i) {
+            capacities[i] = (int) Math.max(MIN_CAPACITY_MEGABYTES, capacity * weights[i] / totalWeight);
         }
+        return capacities;
+    }
 
-        return asList;
+    @Override
+    public void setRetentionPolicy(SpoolRetentionPolicy policy, long maxAgeInMillis) {
+        Preconditions.checkNotNull(policy, "policy must be a non-null value");
+        Preconditions.checkArgument(maxAgeInMillis > 0, "maxAgeInMillis must be a positive number");
+
+        this.retentionPolicy = policy;
+        this.maxAgeInMillis = maxAgeInMillis;
     }
 
-    @SuppressWarnings("lgtm[java/input-resource-leak]") // All the streams close their delegates.
     private Optional<Transmission> loadTransmission(File file) {
         Transmission transmission = null;
 
         if (file == null) {
             return Optional.absent();
         }
-        try (ObjectInput input = new SafeObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-            transmission = (Transmission)input.readObject();
+        try {
+            transmission = TransmissionFileFormat.read(file);
         } catch (FileNotFoundException e) {
             logger.error("Failed to load transmission, file not found, exception: {}", e.toString());
-        } catch (ClassNotFoundException e) {
-            logger.error("Failed to load transmission, non transmission, exception: {}", e.toString());
         } catch (IOException e) {
             logger.error("Failed to load transmission, io exception: {}", e.toString());
         }
@@ -255,27 +293,12 @@ public final class TransmissionFileSystemOutput implements TransmissionOutputSyn
         return Optional.fromNullable(transmission);
     }
 
-    private final static class SafeObjectInputStream extends ObjectInputStream {
-
-        public SafeObjectInputStream(InputStream in) throws IOException {
-            super(in);
-        }
-
-        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
-            if (!desc.getName().equals(Transmission.class.getName()) && !desc.getName().equals(byte[].class.getName())) {
-                throw new InvalidClassException("Cannot deserialize "+desc.getName());
-            } else {
-                return super.resolveClass(desc);
-            }
-        }
-    }
-
     private boolean renameToPermanentName(File tempTransmissionFile) {
         File transmissionFile = new File(folder, FilenameUtils.getBaseName(tempTransmissionFile.getName()) + TRANSMISSION_FILE_EXTENSION);
         try {
             long fileLength = tempTransmissionFile.length();
             FileUtils.moveFile(tempTransmissionFile, transmissionFile);
-            size.addAndGet(fileLength);
+            addToIndex(transmissionFile.getName(), fileLength);
             return true;
         } catch (Exception e) {
             logger.error("Rename To Permanent Name failed, exception: {}", e.toString());
@@ -289,20 +312,18 @@ public final class TransmissionFileSystemOutput implements TransmissionOutputSyn
         try {
             File renamedFile = new File(folder, FilenameUtils.getBaseName(tempTransmissionFile.getName()) + TEMP_FILE_EXTENSION);
             FileUtils.moveFile(tempTransmissionFile, renamedFile);
-            size.addAndGet(-renamedFile.length());
             transmissionFile = renamedFile;
         } catch (Exception ignore) {
             logger.error("Rename To Temporary Name failed, exception: {}", ignore.toString());
-            // Consume the exception, since there isn't anything 'smart' to do now
+            // Consume the exception
         }
 
         return Optional.fromNullable(transmissionFile);
     }
 
-    @SuppressWarnings("lgtm[java/input-resource-leak]") // All the streams close their delegates.
     private boolean saveTransmission(File transmissionFile, Transmission transmission) {
-        try (ObjectOutput output = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(transmissionFile)))) {
-            output.writeObject(transmission);
+        try {
+            TransmissionFileFormat.write(transmissionFile, transmission);
             return true;
         } catch (IOException e) {
             logger.error("Failed to save transmission, exception: {}", e.toString());
@@ -323,48 +344,151 @@ public final class TransmissionFileSystemOutput implements TransmissionOutputSyn
         return Optional.fromNullable(file);
     }
 
-    private long getTotalSizeOfTransmissionFiles() {
+    @Override
+    public void addListener(TransmissionSpoolListener listener) {
+        Preconditions.checkNotNull(listener, "listener must be a non-null value");
+        listeners.add(listener);
+    }
+
+    /**
+     * Nothing to release, every file is closed once it is written or read.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return The size of the files that were not fetched yet.
+     */
+    long getSizeInBytes() {
+        return size.get();
+    }
+
+    // Adds the files that are not indexed yet, the whole folder when called by the constructor
+    private synchronized void scanFolder() {
         Collection<File> transmissions = FileUtils.listFiles(folder, new String[] {TRANSMISSION_FILE_EXTENSION_FOR_SEARCH}, false);
 
-        long totalSize = 0;
+        long addedSize = 0;
         for (File file : transmissions) {
-            totalSize += file.length();
+            String fileName = file.getName();
+            if (!index.containsKey(fileName)) {
+                long fileLength = file.length();
+                index.put(fileName, fileLength);
+                addedSize += fileLength;
+            }
         }
+        onSizeChanged(addedSize);
 
-        return totalSize;
+        nextFolderScanTimeInMillis = System.currentTimeMillis() + FOLDER_SCAN_INTERVAL_WHEN_EMPTY_IN_MILLIS;
     }
 
-    private Optional<File> fetchOldestFromCache() {
-        synchronized (this) {
-            if (cacheOfOldestFiles.isEmpty()) {
+    private synchronized void addToIndex(String fileName, long fileLength) {
+        Long previousLength = index.put(fileName, fileLength);
+        onSizeChanged(previousLength == null ? fileLength : fileLength - previousLength);
+    }
 
-                // Fill the cache
-                Collection<File> transmissions = FileUtils.listFiles(folder, new String[] {TRANSMISSION_FILE_EXTENSION_FOR_SEARCH}, false);
+    // Removing the file from the index keeps other threads from loading it too
+    private synchronized Optional<File> pollOldestFromIndex() {
+        if (index.isEmpty() && System.currentTimeMillis() >= nextFolderScanTimeInMillis) {
+            scanFolder();
+        }
+        if (retentionPolicy == SpoolRetentionPolicy.MAX_AGE) {
+            evictExpired();
+        }
 
-                if (transmissions.isEmpty()) {
-                    // No files
-                    return Optional.absent();
-                }
+        Map.Entry<String, Long> oldest = index.pollFirstEntry();
+        if (oldest == null) {
+            return Optional.absent();
+        }
 
-                List<File> filesToLoad = sortOldestLastAndTrim(transmissions, NUMBER_OF_FILES_TO_CACHE);
+        onSizeChanged(-oldest.getValue());
+        return Optional.of(new File(folder, oldest.getKey()));
+    }
 
-                if (filesToLoad == null || filesToLoad.isEmpty()) {
-                    return Optional.absent();
+    // Evicts files as the retention policy says, returns true if there is room for a new one then
+    private synchronized boolean makeRoom() {
+        switch (retentionPolicy) {
+            case EVICT_OLDEST:
+                int evicted = 0;
+                long evictedSize = 0;
+                while (size.get() >= capacityInBytes && !index.isEmpty()) {
+                    Map.Entry<String, Long> oldest = index.firstEntry();
+                    if (evict(oldest.getKey())) {
+                        ++evicted;
+                        evictedSize += oldest.getValue();
+                    }
                 }
+                if (evicted > 0) {
+                    logger.warn("Persistent storage max capacity has been reached; evicted the {} oldest transmissions of {} bytes", evicted, evictedSize);
+                }
+                break;
 
-                cacheOfOldestFiles.addAll(filesToLoad);
-            }
+            case MAX_AGE:
+                evictExpired();
+                break;
+
+            default:
+                break;
+        }
 
-            File fileToLoad = cacheOfOldestFiles.remove(cacheOfOldestFiles.size() - 1);
+        return size.get() < capacityInBytes;
+    }
 
-            String fileName = fileToLoad.getName();
-            if (filesThatAreBeingLoaded.contains(fileName)) {
-                return Optional.absent();
+    private void evictExpired() {
+        long oldestTimeToKeep = System.currentTimeMillis() - maxAgeInMillis;
+        int evicted = 0;
+        long evictedSize = 0;
+        while (!index.isEmpty()) {
+            Map.Entry<String, Long> oldest = index.firstEntry();
+            long writeTime = getWriteTimeInMillis(oldest.getKey());
+            if (writeTime < 0 || writeTime >= oldestTimeToKeep) {
+                break;
+            }
+            if (evict(oldest.getKey())) {
+                ++evicted;
+                evictedSize += oldest.getValue();
             }
+        }
+        if (evicted > 0) {
+            logger.warn("Evicted {} transmissions of {} bytes that were persisted more than {} ms ago", evicted, evictedSize, maxAgeInMillis);
+        }
+    }
+
+    // Removes the file from the index and the disk, returns false if another process fetched it already
+    private boolean evict(String fileName) {
+        long fileLength = index.remove(fileName);
+        onSizeChanged(-fileLength);
+
+        File file = new File(folder, fileName);
+        int numberOfItems;
+        try {
+            numberOfItems = TransmissionFileFormat.readNumberOfItems(file);
+        } catch (IOException e) {
+            numberOfItems = 0;
+        }
+        if (!file.delete()) {
+            return false;
+        }
+        ChannelMetrics.INSTANCE.onSpoolEvicted(1, numberOfItems, fileLength);
+        return true;
+    }
 
-            filesThatAreBeingLoaded.add(fileName);
-            // Remove oldest which is the last one, this is optimized for not doing a copy
-            return Optional.fromNullable(fileToLoad);
+    // The names are the prefix, the time and a unique suffix, -1 if the file was named otherwise
+    private static long getWriteTimeInMillis(String fileName) {
+        int start = TRANSMISSION_FILE_PREFIX.length() + 1;
+        int end = fileName.indexOf('-', start);
+        if (!fileName.startsWith(TRANSMISSION_FILE_PREFIX + "-") || end < 0) {
+            return -1;
         }
+        try {
+            return Long.parseLong(fileName.substring(start, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void onSizeChanged(long deltaInBytes) {
+        size.addAndGet(deltaInBytes);
+        ChannelMetrics.INSTANCE.onSpoolSizeChanged(deltaInBytes);
     }
 }
@@ -0,0 +1,178 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import com.google.common.base.Preconditions;
+import okio.Buffer;
+
+/**
+ * The uncompressed items of a transmission, together with the offsets where every item starts and ends.
+ *
+ * A transmission only keeps the {@link Offsets} of its items while it is in flight, the items themselves
+ * are decompressed once when the ingestion service rejects some of them, and the items that have to be
+ * sent again are sliced out instead of splitting the whole transmission into strings.
+ * The items are kept without their separators.
+ */
+final class TransmissionItems {
+
+    /**
+     * Where the items start and end in the uncompressed content of a transmission.
+     */
+    static final class Offsets {
+
+        /**
+         * Collects the offsets while a transmission is being serialized.
+         * The class is not thread safe.
+         */
+        static final class Builder {
+            private long[] offsets = new long[128];
+            private int count;
+
+            void add(long start, long end) {
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                offsets[count++] = start;
+                offsets[count++] = end;
+            }
+
+            /**
+             * @return The offsets, or null if there are none. The builder is reset.
+             */
+            Offsets build() {
+                Offsets result = count == 0 ? null : new Offsets(Arrays.copyOf(offsets, count));
+                clear();
+                return result;
+            }
+
+            void clear() {
+                count = 0;
+            }
+        }
+
+        // The start and the end of every item
+        private final long[] offsets;
+
+        private Offsets(long[] offsets) {
+            this.offsets = offsets;
+        }
+
+        int size() {
+            return offsets.length / 2;
+        }
+    }
+
+    private final Buffer content;
+
+    private final long[] offsets;
+
+    /**
+     * Decompresses the content of a transmission once, its items are found from the offsets that were kept
+     * at serialization, or by splitting the lines for a transmission that was loaded from the disk.
+     *
+     * @param transmission The transmission to read.
+     * @return The items, or null if the transmission is not Gzip or has no items.
+     * @throws IOException If the content cannot be decompressed.
+     */
+    static TransmissionItems read(Transmission transmission) throws IOException {
+        Preconditions.checkNotNull(transmission, "transmission must be non-null value");
+
+        if (!GzipTelemetrySerializer.GZIP_WEB_ENCODING_TYPE.equalsIgnoreCase(transmission.getWebContentEncodingType())) {
+            return null;
+        }
+
+        Buffer content = new Buffer();
+        InputStream in = new GZIPInputStream(transmission.openContent());
+        try {
+            content.readFrom(in);
+        } finally {
+            in.close();
+        }
+
+        Offsets offsets = transmission.getItemOffsets();
+        if (offsets != null && offsets.offsets[offsets.offsets.length - 1] == content.size()) {
+            return new TransmissionItems(content, offsets.offsets);
+        }
+        return split(content);
+    }
+
+    private static TransmissionItems split(Buffer content) {
+        Offsets.Builder builder = new Offsets.Builder();
+        long start = 0;
+        while (start < content.size()) {
+            long newline = content.indexOf((byte) '\n', start);
+            long next = newline == -1 ? content.size() : newline + 1;
+            long end = newline == -1 ? content.size() : newline;
+            if (end > start && content.getByte(end - 1) == '\r') {
+                --end;
+            }
+            builder.add(start, end);
+            start = next;
+        }
+        Offsets offsets = builder.build();
+        return offsets == null ? null : new TransmissionItems(content, offsets.offsets);
+    }
+
+    private TransmissionItems(Buffer content, long[] offsets) {
+        this.content = content;
+        this.offsets = offsets;
+    }
+
+    int size() {
+        return offsets.length / 2;
+    }
+
+    /**
+     * Appends the bytes of one item to the sink, the items are not consumed.
+     *
+     * @param index The index of the item, as it is reported by the ingestion service.
+     * @param sink The buffer to append to.
+     */
+    void copyItemTo(int index, Buffer sink) {
+        Preconditions.checkElementIndex(index, size(), "index");
+
+        long start = offsets[2 * index];
+        content.copyTo(sink, start, offsets[2 * index + 1] - start);
+    }
+
+    /**
+     * @param index The index of the item.
+     * @return The item as a string.
+     */
+    String readItem(int index) {
+        Buffer item = new Buffer();
+        copyItemTo(index, item);
+        return item.readUtf8();
+    }
+
+    /**
+     * Returns the uncompressed content to the segment pool, the items cannot be read afterwards.
+     */
+    void release() {
+        content.clear();
+    }
+}
@@ -25,6 +25,7 @@ import com.google.common.base.Preconditions;
 import com.microsoft.applicationinsights.TelemetryConfiguration;
 import com.microsoft.applicationinsights.internal.channel.TransmissionDispatcher;
 import com.microsoft.applicationinsights.internal.channel.TransmissionHandlerArgs;
+import com.microsoft.applicationinsights.internal.channel.TransmissionLatencyListener;
 import com.microsoft.applicationinsights.internal.channel.TransmissionOutputSync;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.Header;
@@ -33,7 +34,6 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.conn.ConnectionPoolTimeoutException;
-import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,7 +57,7 @@ public final class TransmissionNetworkOutput implements TransmissionOutputSync {
 
     private static final String CONTENT_TYPE_HEADER = "Content-Type";
     private static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
-    private static final String RESPONSE_THROTTLING_HEADER = "Retry-After";
+    static final String RESPONSE_THROTTLING_HEADER = "Retry-After";
 
     public static final String DEFAULT_SERVER_URI = "https://dc.services.visualstudio.com/v2/track";
 
@@ -74,6 +74,8 @@ public final class TransmissionNetworkOutput implements TransmissionOutputSync {
 
     private TransmissionPolicyManager transmissionPolicyManager;
 
+    private volatile TransmissionLatencyListener latencyListener;
+
     /**
      * Creates an instance of the network transmission class.
      *
@@ -126,6 +128,15 @@ public final class TransmissionNetworkOutput implements TransmissionOutputSync {
         this.transmissionDispatcher = transmissionDispatcher;
     }
 
+    /**
+     * Sets the listener that gets the time it took to get the response of every transmission.
+     *
+     * @param latencyListener The listener, null for none.
+     */
+    public void setLatencyListener(@Nullable TransmissionLatencyListener latencyListener) {
+        this.latencyListener = latencyListener;
+    }
+
     /**
      * Tries to send a
      * {@link com.microsoft.applicationinsights.internal.channel.common.Transmission}
@@ -152,11 +163,13 @@ public final class TransmissionNetworkOutput implements TransmissionOutputSync {
             String respString = null;
             Throwable ex = null;
             Header retryAfterHeader = null;
+            long startInNanos = System.nanoTime();
             try {
                 // POST the transmission data to the endpoint
                 request = createTransmissionPostRequest(transmission);
                 httpClient.enhanceRequest(request);
                 response = httpClient.sendPostRequest(request);
+                onResponse(startInNanos);
                 HttpEntity respEntity = response.getEntity();
                 code = response.getStatusLine().getStatusCode();
                 reason = response.getStatusLine().getReasonPhrase();
@@ -166,10 +179,6 @@ public final class TransmissionNetworkOutput implements TransmissionOutputSync {
                 // After we reach our instant retry limit we should fail to second transmission output
                 if (code > HttpStatus.SC_PARTIAL_CONTENT && transmission.getNumberOfSends() > this.transmissionPolicyManager.getMaxInstantRetries()) {
                     return false;
-                } else if (code == HttpStatus.SC_OK) {
-                    // If we've completed then clear the back off flags as the channel does not need
-                    // to be throttled
-                    transmissionPolicyManager.clearBackoff();
                 }
                 return true;
 
@@ -205,21 +214,7 @@ public final class TransmissionNetworkOutput implements TransmissionOutputSync {
                 }
                 httpClient.dispose(response);
 
-                if (code == HttpStatus.SC_BAD_REQUEST) {
-                    logger.error("Error sending data: {}", reason);
-                } else if (code != HttpStatus.SC_OK) {
-                    // Invoke the listeners for handling things like errors
-                    // The listeners will handle the back off logic as well as the dispatch
-                    // operation
-                    TransmissionHandlerArgs args = new TransmissionHandlerArgs();
-                    args.setTransmission(transmission);
-                    args.setTransmissionDispatcher(transmissionDispatcher);
-                    args.setResponseBody(respString);
-                    args.setResponseCode(code);
-                    args.setException(ex);
-                    args.setRetryHeader(retryAfterHeader);
-                    this.transmissionPolicyManager.onTransmissionSent(args);
-                }
+                onTransmissionSent(transmission, code, reason, respString, ex, retryAfterHeader);
             }
         }
         // If we end up here we've hit an error code we do not expect (403, 401, 400,
@@ -229,19 +224,73 @@ public final class TransmissionNetworkOutput implements TransmissionOutputSync {
         return true;
     }
 
+    /**
+     * Handles the outcome of sending a transmission, also used by the {@link AsyncTransmissionNetworkOutput}.
+     *
+     * @param transmission The transmission that was sent.
+     * @param code The response code, zero if there was no response.
+     * @param reason The reason phrase of the response.
+     * @param respString The response body, only needed when the response code is not 200.
+     * @param ex The exception thrown while sending, if any.
+     * @param retryAfterHeader The 'Retry-After' header of the response, if any.
+     */
+    void onTransmissionSent(Transmission transmission, int code, @Nullable String reason, @Nullable String respString,
+                            @Nullable Throwable ex, @Nullable Header retryAfterHeader) {
+        ChannelMetrics.INSTANCE.onStatusCode(code);
+        if (code == HttpStatus.SC_OK) {
+            // If we've completed then clear the back off flags as the channel does not need
+            // to be throttled
+            transmissionPolicyManager.clearBackoff();
+
+            // Delivered, nothing will read the content again
+            transmission.releaseBody();
+        } else {
+            if (code == HttpStatus.SC_BAD_REQUEST) {
+                // The rejected items are isolated by the BisectionHandler
+                logger.warn("Error sending data: {}", reason);
+            }
+
+            // Invoke the listeners for handling things like errors
+            // The listeners will handle the back off logic as well as the dispatch
+            // operation
+            TransmissionHandlerArgs args = new TransmissionHandlerArgs();
+            args.setTransmission(transmission);
+            args.setTransmissionDispatcher(transmissionDispatcher);
+            args.setResponseBody(respString);
+            args.setResponseCode(code);
+            args.setException(ex);
+            args.setRetryHeader(retryAfterHeader);
+            this.transmissionPolicyManager.onTransmissionSent(args);
+        }
+    }
+
+    /**
+     * Reports the latency of a transmission that got a response, also used by the {@link AsyncTransmissionNetworkOutput}.
+     *
+     * @param startInNanos The {@link System#nanoTime()} of when the transmission was posted.
+     */
+    void onResponse(long startInNanos) {
+        long latencyInNanos = System.nanoTime() - startInNanos;
+        ChannelMetrics.INSTANCE.onResponse(latencyInNanos);
+
+        TransmissionLatencyListener listener = latencyListener;
+        if (listener != null) {
+            listener.onTransmissionLatency(latencyInNanos);
+        }
+    }
+
     /**
      * Generates the HTTP POST to send to the endpoint.
      *
      * @param transmission The transmission to send.
      * @return The completed {@link HttpPost} object
      */
-    private HttpPost createTransmissionPostRequest(Transmission transmission) {
+    HttpPost createTransmissionPostRequest(Transmission transmission) {
         HttpPost request = new HttpPost(getIngestionEndpoint());
         request.addHeader(CONTENT_TYPE_HEADER, transmission.getWebContentType());
         request.addHeader(CONTENT_ENCODING_HEADER, transmission.getWebContentEncodingType());
 
-        ByteArrayEntity bae = new ByteArrayEntity(transmission.getContent());
-        request.setEntity(bae);
+        request.setEntity(new TransmissionEntity(transmission));
 
         return request;
     }
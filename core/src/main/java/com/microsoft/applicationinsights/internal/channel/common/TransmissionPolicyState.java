@@ -21,13 +21,17 @@
 
 package com.microsoft.applicationinsights.internal.channel.common;
 
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicReference;
 
+import com.google.common.base.Preconditions;
+
 /**
  * Created by gupele on 6/29/2015.
  */
 final class TransmissionPolicyState implements TransmissionPolicyStateFetcher, TransmissionPolicyStateSetter {
     private AtomicReference<TransmissionPolicy> currentState = new AtomicReference<>(TransmissionPolicy.UNBLOCKED);
+    private final CopyOnWriteArrayList<TransmissionPolicyListener> listeners = new CopyOnWriteArrayList<TransmissionPolicyListener>();
 
     @Override
     public TransmissionPolicy getCurrentState() {
@@ -36,6 +40,19 @@ final class TransmissionPolicyState implements TransmissionPolicyStateFetcher, T
 
     @Override
     public boolean setCurrentState(TransmissionPolicy newState) {
-        return this.currentState.getAndSet(newState) != newState;
+        if (this.currentState.getAndSet(newState) == newState) {
+            return false;
+        }
+
+        for (TransmissionPolicyListener listener : listeners) {
+            listener.onTransmissionPolicyChanged(newState);
+        }
+        return true;
+    }
+
+    @Override
+    public void addListener(TransmissionPolicyListener listener) {
+        Preconditions.checkNotNull(listener, "listener must be a non-null value");
+        listeners.add(listener);
     }
 }
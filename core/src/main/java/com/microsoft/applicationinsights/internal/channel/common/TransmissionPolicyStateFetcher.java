@@ -26,4 +26,10 @@ package com.microsoft.applicationinsights.internal.channel.common;
  */
 public interface TransmissionPolicyStateFetcher {
     TransmissionPolicy getCurrentState();
+
+    /**
+     * Registers a listener that is called after every change of the current state.
+     * @param listener The listener
+     */
+    void addListener(TransmissionPolicyListener listener);
 }
@@ -22,16 +22,29 @@
 package com.microsoft.applicationinsights.internal.channel.common;
 
 import java.util.Collection;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
+import com.microsoft.applicationinsights.internal.channel.BackpressureAwareTransmitter;
+import com.microsoft.applicationinsights.internal.channel.BackpressurePolicy;
+import com.microsoft.applicationinsights.internal.channel.Drainable;
+import com.microsoft.applicationinsights.internal.channel.SerializedTelemetriesTransmitter;
 import com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter;
 import com.microsoft.applicationinsights.internal.channel.TelemetrySerializer;
 import com.microsoft.applicationinsights.internal.channel.TransmissionDispatcher;
+import com.microsoft.applicationinsights.internal.channel.TransmissionOutputSync;
 import com.microsoft.applicationinsights.internal.channel.TransmissionsLoader;
 import com.microsoft.applicationinsights.internal.util.ThreadPoolUtils;
 
@@ -50,9 +63,15 @@ import org.slf4j.LoggerFactory;
  * The class makes sure that the container of telemetries is sent using internal threads
  * and not the 'application' threads
  *
+ * When too many sends are pending, the {@link BackpressurePolicy} decides what happens with the
+ * incoming batch, the telemetries that are dropped are counted per telemetry type.
+ *
+ * When drained, the scheduled batches are sent without waiting for their timer, and the batches
+ * still waiting for a thread when half the budget is spent are written to the local storage.
+ *
  * Created by gupele on 12/18/2014.
  */
-public final class TransmitterImpl implements TelemetriesTransmitter<Telemetry> {
+public final class TransmitterImpl implements TelemetriesTransmitter<Telemetry>, BackpressureAwareTransmitter, SerializedTelemetriesTransmitter, Drainable {
 
     private static final Logger logger = LoggerFactory.getLogger(TransmitterImpl.class);
 
@@ -101,18 +120,110 @@ public final class TransmitterImpl implements TelemetriesTransmitter<Telemetry>
     }
 
     private static final class SendNowHandler extends SendHandler {
-        private final Collection<Telemetry> telemetries;
+        private final PendingBatch batch;
 
-        public SendNowHandler(TransmissionDispatcher transmissionDispatcher, TelemetrySerializer serializer, Collection<Telemetry> telemetries) {
+        public SendNowHandler(TransmissionDispatcher transmissionDispatcher, TelemetrySerializer serializer, PendingBatch batch) {
             super(transmissionDispatcher,  serializer);
 
-            Preconditions.checkNotNull(telemetries, "telemetries should be non-null value");
+            Preconditions.checkNotNull(batch, "batch should be non-null value");
+
+            this.batch = batch;
+        }
+
+        public void run() {
+            Optional<Transmission> transmission = batch.serialize(serializer);
+            if (transmission.isPresent()) {
+                transmissionDispatcher.dispatch(transmission.get());
+            }
+        }
+    }
+
+    /**
+     * A scheduled request, it runs when its timer expires or when the transmitter is drained, whichever comes first.
+     */
+    private final class ScheduledSend implements Runnable {
+        private final ScheduledSendHandler command;
+
+        private ScheduledSend(ScheduledSendHandler command) {
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            if (!scheduledSends.remove(this)) {
+                // Already sent by the drain
+                return;
+            }
+
+            try {
+                semaphore.release();
+                command.run();
+            } catch (ThreadDeath td) {
+                throw td;
+            } catch (Throwable t) {
+                try {
+                    logger.trace(t.getMessage(), t);
+                } catch (ThreadDeath td) {
+                    throw td;
+                } catch (Throwable t2) {
+                    // chomp
+                }
+            }
+        }
+    }
+
+    /**
+     * A 'send now' request that waits for a thread while holding a permit of the 'semaphore'.
+     *
+     * Under {@link BackpressurePolicy#DROP_OLDEST} the request might be dropped before it runs,
+     * its permit then goes to the request that replaces it.
+     */
+    private final class PendingSend implements Runnable {
+        private final SendNowHandler command;
+        private final PendingBatch batch;
+        private final boolean tracked;
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+        private PendingSend(PendingBatch batch, boolean tracked) {
+            this.command = new SendNowHandler(transmissionDispatcher, serializer, batch);
+            this.batch = batch;
+            this.tracked = tracked;
+        }
 
-            this.telemetries = telemetries;
+        /**
+         * @return True for the single caller that either runs or drops the request
+         */
+        private boolean claim() {
+            return claimed.compareAndSet(false, true);
         }
 
+        @Override
         public void run() {
-            dispatch(telemetries);
+            if (!claim()) {
+                // Dropped, the permit was handed over
+                return;
+            }
+
+            if (tracked) {
+                pendingSends.remove(this);
+            }
+            waitingSends.remove(this);
+
+            try {
+                semaphore.release();
+                command.run();
+            } catch (ThreadDeath td) {
+                throw td;
+            } catch (Throwable t) {
+                try {
+                    logger.error("exception in runnable sendNow()");
+                    logger.trace("exception in runnable sendNow()", t);
+                } catch (ThreadDeath td) {
+                    throw td;
+                } catch (Throwable t2) {
+                    // chomp
+                }
+            }
         }
     }
 
@@ -124,7 +235,7 @@ public final class TransmitterImpl implements TelemetriesTransmitter<Telemetry>
 
     private final TelemetrySerializer serializer;
 
-    private final ScheduledExecutorService threadPool;
+    private final ScheduledThreadPoolExecutor threadPool;
 
     private final TransmissionsLoader transmissionsLoader;
 
@@ -132,60 +243,84 @@ public final class TransmitterImpl implements TelemetriesTransmitter<Telemetry>
 
     private final int instanceId = INSTANCE_ID_POOL.getAndIncrement();
 
+    /// The 'send now' requests that did not run yet, only kept under {@link BackpressurePolicy#DROP_OLDEST}
+    private final ConcurrentLinkedQueue<PendingSend> pendingSends = new ConcurrentLinkedQueue<PendingSend>();
+
+    private final BackpressureHandler backpressureHandler;
+
+    /// The scheduled requests that did not run yet
+    private final Set<ScheduledSend> scheduledSends = Collections.newSetFromMap(new ConcurrentHashMap<ScheduledSend, Boolean>());
+
+    /// The 'send now' requests that did not run yet, whatever the policy
+    private final Set<PendingSend> waitingSends = Collections.newSetFromMap(new ConcurrentHashMap<PendingSend, Boolean>());
+
+    /// Set once drained, new batches go to the local storage
+    private volatile boolean draining = false;
+
     public TransmitterImpl(TransmissionDispatcher transmissionDispatcher, TelemetrySerializer serializer, TransmissionsLoader transmissionsLoader) {
+        this(transmissionDispatcher, serializer, transmissionsLoader, null);
+    }
+
+    /**
+     * @param transmissionDispatcher The dispatcher of the serialized batches
+     * @param serializer The serializer of the batches
+     * @param transmissionsLoader The loader of the stored transmissions
+     * @param spillOutput The local storage used under {@link BackpressurePolicy#SPILL_TO_DISK}, might be null
+     */
+    public TransmitterImpl(TransmissionDispatcher transmissionDispatcher, TelemetrySerializer serializer, TransmissionsLoader transmissionsLoader,
+                           @Nullable TransmissionOutputSync spillOutput) {
+        this(transmissionDispatcher, serializer, transmissionsLoader, spillOutput, MAX_PENDING_SCHEDULE_REQUESTS);
+    }
+
+    @VisibleForTesting
+    TransmitterImpl(TransmissionDispatcher transmissionDispatcher, TelemetrySerializer serializer, TransmissionsLoader transmissionsLoader,
+                    TransmissionOutputSync spillOutput, int maxPendingScheduleRequests) {
         Preconditions.checkNotNull(transmissionDispatcher, "transmissionDispatcher must be non-null value");
         Preconditions.checkNotNull(serializer, "serializer must be non-null value");
         Preconditions.checkNotNull(transmissionsLoader, "transmissionsLoader must be non-null value");
 
         this.transmissionDispatcher = transmissionDispatcher;
         this.serializer = serializer;
+        this.backpressureHandler = new BackpressureHandler(serializer, spillOutput);
 
-        semaphore = new Semaphore(MAX_PENDING_SCHEDULE_REQUESTS);
+        semaphore = new Semaphore(maxPendingScheduleRequests);
 
-        threadPool = Executors.newScheduledThreadPool(2, ThreadPoolUtils.createDaemonThreadFactory(TransmitterImpl.class, instanceId));
+        threadPool = new ScheduledThreadPoolExecutor(2, ThreadPoolUtils.createDaemonThreadFactory(TransmitterImpl.class, instanceId));
 
         this.transmissionsLoader = transmissionsLoader;
         this.transmissionsLoader.load(false);
     }
 
     @Override
-    public boolean scheduleSend(TelemetriesFetcher telemetriesFetcher, long value, TimeUnit timeUnit) {
+    public boolean scheduleSend(TelemetriesFetcher<Telemetry> telemetriesFetcher, long value, TimeUnit timeUnit) {
         Preconditions.checkNotNull(telemetriesFetcher, "telemetriesFetcher should be non-null value");
 
+        if (draining) {
+            // The caller still holds the telemetries, its send now spills them
+            return false;
+        }
+
         if (!semaphore.tryAcquire()) {
+            // The telemetries cannot wait for the timer, the caller still holds them and
+            // sends them now, where the backpressure policy applies to them
             return false;
         }
 
+        ScheduledSend scheduledSend = new ScheduledSend(new ScheduledSendHandler(transmissionDispatcher, telemetriesFetcher, serializer));
+        scheduledSends.add(scheduledSend);
         try {
-            final ScheduledSendHandler command = new ScheduledSendHandler(transmissionDispatcher, telemetriesFetcher, serializer);
-            threadPool.schedule(new Runnable() {
-                public void run() {
-                    try {
-                        semaphore.release();
-                        command.run();
-                    } catch (ThreadDeath td) {
-                        throw td;
-                    } catch (Throwable t) {
-                        try {
-                            logger.trace(t.getMessage(), t);
-                        } catch (ThreadDeath td) {
-                            throw td;
-                        } catch (Throwable t2) {
-                            // chomp
-                        }
-                    } finally {
-                    }
-                }
-            }, value, timeUnit);
+            threadPool.schedule(scheduledSend, value, timeUnit);
 
             return true;
         } catch (ThreadDeath td) {
             throw td;
         } catch (Throwable t) {
             try {
-                semaphore.release();
-                logger.error("Error in scheduledSend of telemetry items failed. {} items were not sent", telemetriesFetcher.fetch().size());
-                logger.trace("Error in scheduledSend of telemetry items failed. {} items were not sent", telemetriesFetcher.fetch().size(), t);
+                if (scheduledSends.remove(scheduledSend)) {
+                    semaphore.release();
+                }
+                logger.error("Error in scheduledSend of telemetry items failed");
+                logger.trace("Error in scheduledSend of telemetry items failed", t);
             } catch (ThreadDeath td) {
                 throw td;
             } catch (Throwable t2) {
@@ -193,48 +328,59 @@ public final class TransmitterImpl implements TelemetriesTransmitter<Telemetry>
             }
         }
 
-        return true;
+        return false;
     }
 
     @Override
     public boolean sendNow(Collection<Telemetry> telemetries) {
         Preconditions.checkNotNull(telemetries, "telemetries should be non-null value");
 
-        if (!semaphore.tryAcquire()) {
+        return sendNow(PendingBatch.of(telemetries));
+    }
+
+    /**
+     * The batch is already serialized, it takes a permit and is handled by the backpressure policy
+     * like any other batch, only its serialization is skipped.
+     */
+    @Override
+    public boolean sendNow(Transmission transmission, Map<String, Integer> telemetryCounts) {
+        Preconditions.checkNotNull(transmission, "transmission should be non-null value");
+
+        return sendNow(PendingBatch.of(transmission, telemetryCounts));
+    }
+
+    private boolean sendNow(PendingBatch batch) {
+        if (draining) {
+            backpressureHandler.onNotSent(batch);
+            return false;
+        }
+
+        if (!acquirePermit()) {
+            backpressureHandler.onRejected(batch);
             return false;
         }
 
-        final SendNowHandler command = new SendNowHandler(transmissionDispatcher, serializer, telemetries);
+        boolean tracked = backpressureHandler.getPolicy() == BackpressurePolicy.DROP_OLDEST;
+        final PendingSend pendingSend = new PendingSend(batch, tracked);
+        if (tracked) {
+            pendingSends.offer(pendingSend);
+        }
+        waitingSends.add(pendingSend);
         try {
-            threadPool.execute(new Runnable() {
-                public void run() {
-                    try {
-                        semaphore.release();
-                        command.run();
-                    } catch (ThreadDeath td) {
-                        throw td;
-                    } catch (Throwable t) {
-                        try {
-                            logger.error("exception in runnable sendNow()");
-                            logger.trace("exception in runnable sendNow()", t);
-                        } catch (ThreadDeath td) {
-                            throw td;
-                        } catch (Throwable t2) {
-                            // chomp
-                        }
-                    } finally {
-                    }
-                }
-            });
+            threadPool.execute(pendingSend);
 
             return true;
         } catch (ThreadDeath td) {
             throw td;
         } catch (Throwable t) {
             try {
-                semaphore.release();
-                logger.error("Error in scheduledSend of telemetry items failed. {} items were not sent", telemetries.size());
-                logger.trace("Error in scheduledSend of telemetry items failed. {} items were not sent", telemetries.size(), t);
+                if (pendingSend.claim()) {
+                    pendingSends.remove(pendingSend);
+                    waitingSends.remove(pendingSend);
+                    semaphore.release();
+                }
+                logger.error("Error in scheduledSend of telemetry items failed. {} items were not sent", batch.getNumberOfTelemetries());
+                logger.trace("Error in scheduledSend of telemetry items failed. {} items were not sent", batch.getNumberOfTelemetries(), t);
             } catch (ThreadDeath td) {
                 throw td;
             } catch (Throwable t2) {
@@ -245,6 +391,21 @@ public final class TransmitterImpl implements TelemetriesTransmitter<Telemetry>
         return false;
     }
 
+    @Override
+    public void setBackpressurePolicy(BackpressurePolicy policy, long blockTimeoutInMillis) {
+        backpressureHandler.setPolicy(policy, blockTimeoutInMillis);
+    }
+
+    @Override
+    public BackpressurePolicy getBackpressurePolicy() {
+        return backpressureHandler.getPolicy();
+    }
+
+    @Override
+    public Map<String, Long> getDroppedTelemetries() {
+        return backpressureHandler.getDroppedTelemetries();
+    }
+
     @Override
     public void shutdown(long timeout, TimeUnit timeUnit) throws InterruptedException {
         Stopwatch stopwatch = Stopwatch.createStarted();
@@ -255,5 +416,81 @@ public final class TransmitterImpl implements TelemetriesTransmitter<Telemetry>
         if (remaining > 0) {
             transmissionDispatcher.shutdown(remaining, timeUnit);
         }
+        backpressureHandler.closeSpillOutput();
+    }
+
+    /**
+     * Stops taking new batches, sends the scheduled ones at once and waits for the pending sends up to
+     * half the timeout. The pending sends that are left then go to the local storage, and the dispatcher
+     * is drained with what is left of the timeout.
+     */
+    @Override
+    public void drainAndShutdown(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+
+        transmissionsLoader.shutdown();
+        draining = true;
+        threadPool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        threadPool.shutdown();
+
+        for (ScheduledSend scheduledSend : scheduledSends) {
+            scheduledSend.run();
+        }
+
+        if (!threadPool.awaitTermination(timeUnit.toNanos(timeout) / 2, TimeUnit.NANOSECONDS)) {
+            // Too late to send them within the budget
+            for (PendingSend pendingSend : waitingSends) {
+                if (pendingSend.claim()) {
+                    waitingSends.remove(pendingSend);
+                    backpressureHandler.onNotSent(pendingSend.batch);
+                }
+            }
+        }
+
+        long remaining = deadline - System.nanoTime();
+        if (transmissionDispatcher instanceof Drainable) {
+            ((Drainable) transmissionDispatcher).drainAndShutdown(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+        } else if (remaining > 0) {
+            transmissionDispatcher.shutdown(remaining, TimeUnit.NANOSECONDS);
+        }
+        backpressureHandler.closeSpillOutput();
+    }
+
+    private boolean acquirePermit() {
+        if (semaphore.tryAcquire()) {
+            return true;
+        }
+
+        switch (backpressureHandler.getPolicy()) {
+            case DROP_OLDEST:
+                return dropOldestPendingSend();
+
+            case BLOCK_WITH_TIMEOUT:
+                try {
+                    return semaphore.tryAcquire(backpressureHandler.getBlockTimeoutInMillis(), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Drops the oldest 'send now' request that did not run yet, the caller gets its permit.
+     * @return True if a request was dropped
+     */
+    private boolean dropOldestPendingSend() {
+        PendingSend oldest;
+        while ((oldest = pendingSends.poll()) != null) {
+            if (oldest.claim()) {
+                backpressureHandler.onDropped(oldest.batch);
+                return true;
+            }
+        }
+
+        return false;
     }
 }
@@ -47,6 +47,56 @@ public class ChannelXmlElement {
 
     private String maxInstantRetry;
 
+    private String telemetryBufferType;
+
+    private String telemetryBufferStripes;
+
+    private String maxTelemetryBufferSizeInBytes;
+
+    private String backpressurePolicy;
+
+    private String backpressureBlockTimeoutInMillis;
+
+    private String transmitterType;
+
+    private String maxInFlightRequests;
+
+    private String adaptiveInFlightRequests;
+
+    private String adaptiveBatching;
+
+    private String adaptiveBatchingTargetLatencyInMillis;
+
+    private String adaptiveBatchingMaxRequestsPerSecond;
+
+    private String priorityLanes;
+
+    private String criticalLaneCapacity;
+
+    private String criticalLaneWeight;
+
+    private String criticalLaneBackpressurePolicy;
+
+    private String defaultLaneCapacity;
+
+    private String defaultLaneWeight;
+
+    private String defaultLaneBackpressurePolicy;
+
+    private String verboseLaneCapacity;
+
+    private String verboseLaneWeight;
+
+    private String verboseLaneBackpressurePolicy;
+
+    private String gracefulShutdown;
+
+    private String spoolType;
+
+    private String spoolRetentionPolicy;
+
+    private String spoolMaxAgeInMinutes;
+
     private String type = "com.microsoft.applicationinsights.channel.concrete.inprocess.InProcessTelemetryChannel";
 
     public String getType() {
@@ -129,6 +179,206 @@ public class ChannelXmlElement {
         this.maxInstantRetry = maxInstantRetry;
     }
 
+    public String getTelemetryBufferType() {
+        return telemetryBufferType;
+    }
+
+    public void setTelemetryBufferType(String telemetryBufferType) {
+        this.telemetryBufferType = telemetryBufferType;
+    }
+
+    public String getTelemetryBufferStripes() {
+        return telemetryBufferStripes;
+    }
+
+    public void setTelemetryBufferStripes(String telemetryBufferStripes) {
+        this.telemetryBufferStripes = telemetryBufferStripes;
+    }
+
+    public String getMaxTelemetryBufferSizeInBytes() {
+        return maxTelemetryBufferSizeInBytes;
+    }
+
+    public void setMaxTelemetryBufferSizeInBytes(String maxTelemetryBufferSizeInBytes) {
+        this.maxTelemetryBufferSizeInBytes = maxTelemetryBufferSizeInBytes;
+    }
+
+    public String getBackpressurePolicy() {
+        return backpressurePolicy;
+    }
+
+    public void setBackpressurePolicy(String backpressurePolicy) {
+        this.backpressurePolicy = backpressurePolicy;
+    }
+
+    public String getBackpressureBlockTimeoutInMillis() {
+        return backpressureBlockTimeoutInMillis;
+    }
+
+    public void setBackpressureBlockTimeoutInMillis(String backpressureBlockTimeoutInMillis) {
+        this.backpressureBlockTimeoutInMillis = backpressureBlockTimeoutInMillis;
+    }
+
+    public String getTransmitterType() {
+        return transmitterType;
+    }
+
+    public void setTransmitterType(String transmitterType) {
+        this.transmitterType = transmitterType;
+    }
+
+    public String getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    public void setMaxInFlightRequests(String maxInFlightRequests) {
+        this.maxInFlightRequests = maxInFlightRequests;
+    }
+
+    public String getAdaptiveInFlightRequests() {
+        return adaptiveInFlightRequests;
+    }
+
+    public void setAdaptiveInFlightRequests(String adaptiveInFlightRequests) {
+        this.adaptiveInFlightRequests = adaptiveInFlightRequests;
+    }
+
+    public String getAdaptiveBatching() {
+        return adaptiveBatching;
+    }
+
+    public void setAdaptiveBatching(String adaptiveBatching) {
+        this.adaptiveBatching = adaptiveBatching;
+    }
+
+    public String getAdaptiveBatchingTargetLatencyInMillis() {
+        return adaptiveBatchingTargetLatencyInMillis;
+    }
+
+    public void setAdaptiveBatchingTargetLatencyInMillis(String adaptiveBatchingTargetLatencyInMillis) {
+        this.adaptiveBatchingTargetLatencyInMillis = adaptiveBatchingTargetLatencyInMillis;
+    }
+
+    public String getAdaptiveBatchingMaxRequestsPerSecond() {
+        return adaptiveBatchingMaxRequestsPerSecond;
+    }
+
+    public void setAdaptiveBatchingMaxRequestsPerSecond(String adaptiveBatchingMaxRequestsPerSecond) {
+        this.adaptiveBatchingMaxRequestsPerSecond = adaptiveBatchingMaxRequestsPerSecond;
+    }
+
+    public String getPriorityLanes() {
+        return priorityLanes;
+    }
+
+    public void setPriorityLanes(String priorityLanes) {
+        this.priorityLanes = priorityLanes;
+    }
+
+    public String getCriticalLaneCapacity() {
+        return criticalLaneCapacity;
+    }
+
+    public void setCriticalLaneCapacity(String criticalLaneCapacity) {
+        this.criticalLaneCapacity = criticalLaneCapacity;
+    }
+
+    public String getCriticalLaneWeight() {
+        return criticalLaneWeight;
+    }
+
+    public void setCriticalLaneWeight(String criticalLaneWeight) {
+        this.criticalLaneWeight = criticalLaneWeight;
+    }
+
+    public String getCriticalLaneBackpressurePolicy() {
+        return criticalLaneBackpressurePolicy;
+    }
+
+    public void setCriticalLaneBackpressurePolicy(String criticalLaneBackpressurePolicy) {
+        this.criticalLaneBackpressurePolicy = criticalLaneBackpressurePolicy;
+    }
+
+    public String getDefaultLaneCapacity() {
+        return defaultLaneCapacity;
+    }
+
+    public void setDefaultLaneCapacity(String defaultLaneCapacity) {
+        this.defaultLaneCapacity = defaultLaneCapacity;
+    }
+
+    public String getDefaultLaneWeight() {
+        return defaultLaneWeight;
+    }
+
+    public void setDefaultLaneWeight(String defaultLaneWeight) {
+        this.defaultLaneWeight = defaultLaneWeight;
+    }
+
+    public String getDefaultLaneBackpressurePolicy() {
+        return defaultLaneBackpressurePolicy;
+    }
+
+    public void setDefaultLaneBackpressurePolicy(String defaultLaneBackpressurePolicy) {
+        this.defaultLaneBackpressurePolicy = defaultLaneBackpressurePolicy;
+    }
+
+    public String getVerboseLaneCapacity() {
+        return verboseLaneCapacity;
+    }
+
+    public void setVerboseLaneCapacity(String verboseLaneCapacity) {
+        this.verboseLaneCapacity = verboseLaneCapacity;
+    }
+
+    public String getVerboseLaneWeight() {
+        return verboseLaneWeight;
+    }
+
+    public void setVerboseLaneWeight(String verboseLaneWeight) {
+        this.verboseLaneWeight = verboseLaneWeight;
+    }
+
+    public String getVerboseLaneBackpressurePolicy() {
+        return verboseLaneBackpressurePolicy;
+    }
+
+    public void setVerboseLaneBackpressurePolicy(String verboseLaneBackpressurePolicy) {
+        this.verboseLaneBackpressurePolicy = verboseLaneBackpressurePolicy;
+    }
+
+    public String getGracefulShutdown() {
+        return gracefulShutdown;
+    }
+
+    public void setGracefulShutdown(String gracefulShutdown) {
+        this.gracefulShutdown = gracefulShutdown;
+    }
+
+    public String getSpoolType() {
+        return spoolType;
+    }
+
+    public void setSpoolType(String spoolType) {
+        this.spoolType = spoolType;
+    }
+
+    public String getSpoolRetentionPolicy() {
+        return spoolRetentionPolicy;
+    }
+
+    public void setSpoolRetentionPolicy(String spoolRetentionPolicy) {
+        this.spoolRetentionPolicy = spoolRetentionPolicy;
+    }
+
+    public String getSpoolMaxAgeInMinutes() {
+        return spoolMaxAgeInMinutes;
+    }
+
+    public void setSpoolMaxAgeInMinutes(String spoolMaxAgeInMinutes) {
+        this.spoolMaxAgeInMinutes = spoolMaxAgeInMinutes;
+    }
+
     public Map<String, String> getData() {
         HashMap<String, String> data = new HashMap<String, String>();
         if (developerMode) {
@@ -156,6 +406,106 @@ public class ChannelXmlElement {
             data.put("MaxInstantRetry", maxInstantRetry);
         }
 
+        if (!Strings.isNullOrEmpty(telemetryBufferType)) {
+            data.put("TelemetryBufferType", telemetryBufferType);
+        }
+
+        if (!Strings.isNullOrEmpty(telemetryBufferStripes)) {
+            data.put("TelemetryBufferStripes", telemetryBufferStripes);
+        }
+
+        if (!Strings.isNullOrEmpty(maxTelemetryBufferSizeInBytes)) {
+            data.put("MaxTelemetryBufferSizeInBytes", maxTelemetryBufferSizeInBytes);
+        }
+
+        if (!Strings.isNullOrEmpty(backpressurePolicy)) {
+            data.put("BackpressurePolicy", backpressurePolicy);
+        }
+
+        if (!Strings.isNullOrEmpty(backpressureBlockTimeoutInMillis)) {
+            data.put("BackpressureBlockTimeoutInMillis", backpressureBlockTimeoutInMillis);
+        }
+
+        if (!Strings.isNullOrEmpty(transmitterType)) {
+            data.put("TransmitterType", transmitterType);
+        }
+
+        if (!Strings.isNullOrEmpty(maxInFlightRequests)) {
+            data.put("MaxInFlightRequests", maxInFlightRequests);
+        }
+
+        if (!Strings.isNullOrEmpty(adaptiveInFlightRequests)) {
+            data.put("AdaptiveInFlightRequests", adaptiveInFlightRequests);
+        }
+
+        if (!Strings.isNullOrEmpty(adaptiveBatching)) {
+            data.put("AdaptiveBatching", adaptiveBatching);
+        }
+
+        if (!Strings.isNullOrEmpty(adaptiveBatchingTargetLatencyInMillis)) {
+            data.put("AdaptiveBatchingTargetLatencyInMillis", adaptiveBatchingTargetLatencyInMillis);
+        }
+
+        if (!Strings.isNullOrEmpty(adaptiveBatchingMaxRequestsPerSecond)) {
+            data.put("AdaptiveBatchingMaxRequestsPerSecond", adaptiveBatchingMaxRequestsPerSecond);
+        }
+
+        if (!Strings.isNullOrEmpty(priorityLanes)) {
+            data.put("PriorityLanes", priorityLanes);
+        }
+
+        if (!Strings.isNullOrEmpty(criticalLaneCapacity)) {
+            data.put("CriticalLaneCapacity", criticalLaneCapacity);
+        }
+
+        if (!Strings.isNullOrEmpty(criticalLaneWeight)) {
+            data.put("CriticalLaneWeight", criticalLaneWeight);
+        }
+
+        if (!Strings.isNullOrEmpty(criticalLaneBackpressurePolicy)) {
+            data.put("CriticalLaneBackpressurePolicy", criticalLaneBackpressurePolicy);
+        }
+
+        if (!Strings.isNullOrEmpty(defaultLaneCapacity)) {
+            data.put("DefaultLaneCapacity", defaultLaneCapacity);
+        }
+
+        if (!Strings.isNullOrEmpty(defaultLaneWeight)) {
+            data.put("DefaultLaneWeight", defaultLaneWeight);
+        }
+
+        if (!Strings.isNullOrEmpty(defaultLaneBackpressurePolicy)) {
+            data.put("DefaultLaneBackpressurePolicy", defaultLaneBackpressurePolicy);
+        }
+
+        if (!Strings.isNullOrEmpty(verboseLaneCapacity)) {
+            data.put("VerboseLaneCapacity", verboseLaneCapacity);
+        }
+
+        if (!Strings.isNullOrEmpty(verboseLaneWeight)) {
+            data.put("VerboseLaneWeight", verboseLaneWeight);
+        }
+
+        if (!Strings.isNullOrEmpty(verboseLaneBackpressurePolicy)) {
+            data.put("VerboseLaneBackpressurePolicy", verboseLaneBackpressurePolicy);
+        }
+
+        if (!Strings.isNullOrEmpty(gracefulShutdown)) {
+            data.put("GracefulShutdown", gracefulShutdown);
+        }
+
+        if (!Strings.isNullOrEmpty(spoolType)) {
+            data.put("SpoolType", spoolType);
+        }
+
+        if (!Strings.isNullOrEmpty(spoolRetentionPolicy)) {
+            data.put("SpoolRetentionPolicy", spoolRetentionPolicy);
+        }
+
+        if (!Strings.isNullOrEmpty(spoolMaxAgeInMinutes)) {
+            data.put("SpoolMaxAgeInMinutes", spoolMaxAgeInMinutes);
+        }
+
         data.put("Throttling", throttling ? "true" : "false");
 
         return data;
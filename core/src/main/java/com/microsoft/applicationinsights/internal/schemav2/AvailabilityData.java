@@ -28,6 +28,8 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentHashMap;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.GenerateJsonWriter;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.JsonField;
 import com.microsoft.applicationinsights.telemetry.JsonSerializable;
 import com.microsoft.applicationinsights.telemetry.Duration;
 import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
@@ -36,51 +38,61 @@ import com.google.common.base.Preconditions;
 /**
  * Data contract class AvailabilityData.
  */
+@GenerateJsonWriter
 public class AvailabilityData extends Domain
 {
     /**
      * Backing field for property Ver.
      */
+    @JsonField("ver")
     private int ver = 2;
 
     /**
      * Backing field for property Id.
      */
+    @JsonField(value = "id", maxLength = 64, required = true)
     private String id;
 
     /**
      * Backing field for property Name.
      */
+    @JsonField(value = "name", maxLength = 1024, required = true)
     private String name;
 
     /**
      * Backing field for property Duration.
      */
+    @JsonField("duration")
     private Duration duration = new Duration(0);
 
     /**
      * Backing field for property Success.
      */
+    @JsonField("success")
     private boolean success;
 
     /**
      * Backing field for property RunLocation.
      */
+    @JsonField(value = "runLocation", maxLength = 1024)
     private String runLocation;
 
     /**
      * Backing field for property Message.
      */
+    @JsonField(value = "message", maxLength = 8192)
     private String message;
 
     /**
      * Backing field for property Properties.
      */
+    @JsonField("properties")
     private ConcurrentMap<String, String> properties;
 
     /**
      * Backing field for property Measurements.
      */
+    @JsonField("measurements")
     private ConcurrentMap<String, Double> measurements;
 
     /**
@@ -230,16 +242,7 @@ public class AvailabilityData extends Domain
      */
     protected void serializeContent(JsonTelemetryDataSerializer writer) throws IOException
     {
-        super.serializeContent(writer);
-        writer.write("ver", ver);
-        writer.writeRequired("id", id, 64);
-        writer.writeRequired("name", name, 1024);
-        writer.write("duration", duration);
-        writer.write("success", success);
-        writer.write("runLocation", runLocation, 1024);
-        writer.write("message", message, 8192);
-        writer.write("properties", properties);
-        writer.write("measurements", measurements);
+        AvailabilityDataJsonWriter.serializeContent(writer, this);
     }
 
     /**
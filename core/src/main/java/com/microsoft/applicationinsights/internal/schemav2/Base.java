@@ -24,6 +24,8 @@
 package com.microsoft.applicationinsights.internal.schemav2;
 
 import com.google.common.base.Preconditions;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.GenerateJsonWriter;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.JsonField;
 import com.microsoft.applicationinsights.telemetry.JsonSerializable;
 import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
 
@@ -32,12 +34,14 @@ import java.io.IOException;
 /**
  * Data contract class Base.
  */
+@GenerateJsonWriter
 public class Base
     implements JsonSerializable
 {
     /**
      * Backing field for property BaseType.
      */
+    @JsonField(value = "baseType", maxLength = 1000, required = true)
     private String baseType;
 
     /**
@@ -80,7 +84,7 @@ public class Base
      */
     protected void serializeContent(JsonTelemetryDataSerializer writer) throws IOException
     {
-        writer.writeRequired("baseType", baseType, 1000);
+        BaseJsonWriter.serializeContent(writer, this);
     }
 
     /**
@@ -23,6 +23,8 @@
 */
 package com.microsoft.applicationinsights.internal.schemav2;
 
+import com.microsoft.applicationinsights.internal.schemav2.codegen.GenerateJsonWriter;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.JsonField;
 import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
 
 import java.io.IOException;
@@ -30,11 +32,13 @@ import java.io.IOException;
 /**
  * Data contract class Data.
  */
+@GenerateJsonWriter
 public class Data<TDomain extends Domain> extends Base
 {
     /**
      * Backing field for property BaseData.
      */
+    @JsonField("baseData")
     private TDomain baseData;
 
     /**
@@ -66,9 +70,7 @@ public class Data<TDomain extends Domain> extends Base
      */
     protected void serializeContent(JsonTelemetryDataSerializer writer) throws IOException
     {
-        super.serializeContent(writer);
-        writer.write("baseData", baseData);
-
+        DataJsonWriter.serializeContent(writer, this);
     }
 
     /**
@@ -24,6 +24,8 @@
 package com.microsoft.applicationinsights.internal.schemav2;
 
 import com.google.common.base.Preconditions;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.GenerateJsonWriter;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.JsonField;
 import com.microsoft.applicationinsights.telemetry.JsonSerializable;
 import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
 
@@ -32,42 +34,50 @@ import java.io.IOException;
 /**
  * Data contract class DataPoint.
  */
+@GenerateJsonWriter
 public class DataPoint
     implements JsonSerializable
 {
     /**
      * Backing field for property Name.
      */
+    @JsonField(value = "name", maxLength = 1024, required = true)
     private String name;
 
     /**
      * Backing field for property Kind.
      */
+    @JsonField("kind")
     private DataPointType kind = DataPointType.Measurement;
 
     /**
      * Backing field for property Value.
      */
+    @JsonField("value")
     private double value;
 
     /**
      * Backing field for property Count.
      */
+    @JsonField("count")
     private Integer count;
 
     /**
      * Backing field for property Min.
      */
+    @JsonField("min")
     private Double min;
 
     /**
      * Backing field for property Max.
      */
+    @JsonField("max")
     private Double max;
 
     /**
      * Backing field for property StdDev.
      */
+    @JsonField("stdDev")
     private Double stdDev;
 
     /**
@@ -194,13 +204,7 @@ public class DataPoint
      */
     protected void serializeContent(JsonTelemetryDataSerializer writer) throws IOException
     {
-        writer.writeRequired("name", name, 1024);
-        writer.write("kind", kind);
-        writer.write("value", value);
-        writer.write("count", count);
-        writer.write("min", min);
-        writer.write("max", max);
-        writer.write("stdDev", stdDev);
+        DataPointJsonWriter.serializeContent(writer, this);
     }
 
     /**
@@ -23,6 +23,8 @@
 */
 package com.microsoft.applicationinsights.internal.schemav2;
 
+import com.microsoft.applicationinsights.internal.schemav2.codegen.GenerateJsonWriter;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.JsonField;
 import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
 
 import java.io.IOException;
@@ -32,26 +34,31 @@ import java.util.concurrent.ConcurrentMap;
 /**
  * Data contract class EventData.
  */
+@GenerateJsonWriter
 public class EventData extends Domain
 {
     /**
      * Backing field for property Ver.
      */
+    @JsonField("ver")
     private int ver = 2;
 
     /**
      * Backing field for property Name.
      */
+    @JsonField(value = "name", maxLength = 512, required = true)
     private String name;
 
     /**
      * Backing field for property Properties.
      */
+    @JsonField("properties")
     private ConcurrentMap<String, String> properties;
 
     /**
      * Backing field for property Measurements.
      */
+    @JsonField("measurements")
     private ConcurrentMap<String, Double> measurements;
 
     /**
@@ -131,11 +138,7 @@ public class EventData extends Domain
      */
     protected void serializeContent(JsonTelemetryDataSerializer writer) throws IOException
     {
-        super.serializeContent(writer);
-        writer.write("ver", ver);
-        writer.writeRequired("name", name, 512);
-        writer.write("properties", properties);
-        writer.write("measurements", measurements);
+        EventDataJsonWriter.serializeContent(writer, this);
     }
 
     /**
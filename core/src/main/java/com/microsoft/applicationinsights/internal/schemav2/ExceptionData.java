@@ -23,6 +23,8 @@
 */
 package com.microsoft.applicationinsights.internal.schemav2;
 
+import com.microsoft.applicationinsights.internal.schemav2.codegen.GenerateJsonWriter;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.JsonField;
 import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
 
 import java.io.IOException;
@@ -34,36 +36,43 @@ import java.util.concurrent.ConcurrentMap;
 /**
  * Data contract class ExceptionData.
  */
+@GenerateJsonWriter
 public class ExceptionData extends Domain
 {
     /**
      * Backing field for property Ver.
      */
+    @JsonField("ver")
     private int ver = 2;
 
     /**
      * Backing field for property Exceptions.
      */
+    @JsonField("exceptions")
     private List<ExceptionDetails> exceptions;
 
     /**
      * Backing field for property SeverityLevel.
      */
+    @JsonField("severityLevel")
     private SeverityLevel severityLevel;
 
     /**
      * Backing field for property ProblemId.
      */
+    @JsonField(value = "problemId", maxLength = 1024)
     private String problemId;
 
     /**
      * Backing field for property Properties.
      */
+    @JsonField("properties")
     private ConcurrentMap<String, String> properties;
 
     /**
      * Backing field for property Measurements.
      */
+    @JsonField("measurements")
     private ConcurrentMap<String, Double> measurements;
 
     /**
@@ -174,13 +183,7 @@ public class ExceptionData extends Domain
      */
     protected void serializeContent(JsonTelemetryDataSerializer writer) throws IOException
     {
-        super.serializeContent(writer);
-        writer.write("ver", ver);
-        writer.write("exceptions", exceptions);
-        writer.write("severityLevel", severityLevel);
-        writer.write("problemId", problemId, 1024);
-        writer.write("properties", properties);
-        writer.write("measurements", measurements);
+        ExceptionDataJsonWriter.serializeContent(writer, this);
     }
 
     /**
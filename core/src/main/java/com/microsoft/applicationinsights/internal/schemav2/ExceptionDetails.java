@@ -24,6 +24,8 @@
 package com.microsoft.applicationinsights.internal.schemav2;
 
 import com.google.common.base.Preconditions;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.GenerateJsonWriter;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.JsonField;
 import com.microsoft.applicationinsights.telemetry.JsonSerializable;
 import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
 
@@ -34,42 +36,50 @@ import java.util.List;
 /**
  * Data contract class ExceptionDetails.
  */
+@GenerateJsonWriter
 public class ExceptionDetails
     implements JsonSerializable
 {
     /**
      * Backing field for property Id.
      */
+    @JsonField("id")
     private int id;
 
     /**
      * Backing field for property OuterId.
      */
+    @JsonField("outerId")
     private int outerId;
 
     /**
      * Backing field for property TypeName.
      */
+    @JsonField(value = "typeName", maxLength = 1024, required = true)
     private String typeName;
 
     /**
      * Backing field for property Message.
      */
+    @JsonField(value = "message", maxLength = 32768, required = true)
     private String message;
 
     /**
      * Backing field for property HasFullStack.
      */
+    @JsonField("hasFullStack")
     private boolean hasFullStack = true;
 
     /**
      * Backing field for property Stack.
      */
+    @JsonField(value = "stack", maxLength = 32768)
     private String stack;
 
     /**
      * Backing field for property ParsedStack.
      */
+    @JsonField("parsedStack")
     private List<StackFrame> parsedStack;
 
     /**
@@ -199,13 +209,7 @@ public class ExceptionDetails
      */
     protected void serializeContent(JsonTelemetryDataSerializer writer) throws IOException
     {
-        writer.write("id", id);
-        writer.write("outerId", outerId);
-        writer.writeRequired("typeName", typeName, 1024);
-        writer.writeRequired("message", message, 32768);
-        writer.write("hasFullStack", hasFullStack);
-        writer.write("stack", stack, 32768);
-        writer.write("parsedStack", parsedStack);
+        ExceptionDetailsJsonWriter.serializeContent(writer, this);
     }
 
     /**
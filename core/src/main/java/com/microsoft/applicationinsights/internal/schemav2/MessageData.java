@@ -23,6 +23,8 @@
 */
 package com.microsoft.applicationinsights.internal.schemav2;
 
+import com.microsoft.applicationinsights.internal.schemav2.codegen.GenerateJsonWriter;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.JsonField;
 import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
 
 import java.io.IOException;
@@ -32,26 +34,31 @@ import java.util.concurrent.ConcurrentMap;
 /**
  * Data contract class MessageData.
  */
+@GenerateJsonWriter
 public class MessageData extends Domain
 {
     /**
      * Backing field for property Ver.
      */
+    @JsonField("ver")
     private int ver = 2;
 
     /**
      * Backing field for property Message.
      */
+    @JsonField(value = "message", maxLength = 32768, required = true)
     private String message;
 
     /**
      * Backing field for property SeverityLevel.
      */
+    @JsonField("severityLevel")
     private SeverityLevel severityLevel;
 
     /**
      * Backing field for property Properties.
      */
+    @JsonField("properties")
     private ConcurrentMap<String, String> properties;
 
     /**
@@ -128,11 +135,7 @@ public class MessageData extends Domain
      */
     protected void serializeContent(JsonTelemetryDataSerializer writer) throws IOException
     {
-        super.serializeContent(writer);
-        writer.write("ver", ver);
-        writer.writeRequired("message", message, 32768);
-        writer.write("severityLevel", severityLevel);
-        writer.write("properties", properties);
+        MessageDataJsonWriter.serializeContent(writer, this);
     }
 
     /**
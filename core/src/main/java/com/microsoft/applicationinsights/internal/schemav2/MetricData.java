@@ -23,6 +23,8 @@
 */
 package com.microsoft.applicationinsights.internal.schemav2;
 
+import com.microsoft.applicationinsights.internal.schemav2.codegen.GenerateJsonWriter;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.JsonField;
 import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
 
 import java.io.IOException;
@@ -34,21 +36,25 @@ import java.util.concurrent.ConcurrentMap;
 /**
  * Data contract class MetricData.
  */
+@GenerateJsonWriter
 public class MetricData extends Domain
 {
     /**
      * Backing field for property Ver.
      */
+    @JsonField("ver")
     private int ver = 2;
 
     /**
      * Backing field for property Metrics.
      */
+    @JsonField("metrics")
     private List<DataPoint> metrics;
 
     /**
      * Backing field for property Properties.
      */
+    @JsonField("properties")
     private ConcurrentMap<String, String> properties;
 
     /**
@@ -114,12 +120,7 @@ public class MetricData extends Domain
      */
     protected void serializeContent(JsonTelemetryDataSerializer writer) throws IOException
     {
-        super.serializeContent(writer);
-        writer.write("ver", ver);
-
-        writer.write("metrics", metrics);
-
-        writer.write("properties", properties);
+        MetricDataJsonWriter.serializeContent(writer, this);
     }
 
     /**
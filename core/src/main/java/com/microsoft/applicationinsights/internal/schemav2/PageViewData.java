@@ -23,6 +23,8 @@
 */
 package com.microsoft.applicationinsights.internal.schemav2;
 
+import com.microsoft.applicationinsights.internal.schemav2.codegen.GenerateJsonWriter;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.JsonField;
 import com.microsoft.applicationinsights.telemetry.Duration;
 import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
 
@@ -31,16 +33,19 @@ import java.io.IOException;
 /**
  * Data contract class PageViewData.
  */
+@GenerateJsonWriter
 public class PageViewData extends EventData
 {
     /**
      * Backing field for property Url.
      */
+    @JsonField(value = "url", maxLength = 2048)
     private String url;
 
     /**
      * Backing field for property Duration.
      */
+    @JsonField("duration")
     private Duration duration = new Duration(0);
 
     /**
@@ -86,9 +91,7 @@ public class PageViewData extends EventData
      */
     protected void serializeContent(JsonTelemetryDataSerializer writer) throws IOException
     {
-        super.serializeContent(writer);
-        writer.write("url", url, 2048);
-        writer.write("duration", duration);
+        PageViewDataJsonWriter.serializeContent(writer, this);
     }
 
     /**
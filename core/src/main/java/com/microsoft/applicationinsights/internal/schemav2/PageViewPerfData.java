@@ -23,6 +23,8 @@
 */
 package com.microsoft.applicationinsights.internal.schemav2;
 
+import com.microsoft.applicationinsights.internal.schemav2.codegen.GenerateJsonWriter;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.JsonField;
 import com.microsoft.applicationinsights.telemetry.Duration;
 import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
 
@@ -31,31 +33,37 @@ import java.io.IOException;
 /**
  * Data contract class PageViewPerfData.
  */
+@GenerateJsonWriter
 public class PageViewPerfData extends PageViewData
 {
     /**
      * Backing field for property PerfTotal.
      */
+    @JsonField("perfTotal")
     private Duration perfTotal = new Duration(0);
 
     /**
      * Backing field for property NetworkConnect.
      */
+    @JsonField("networkConnect")
     private Duration networkConnect = new Duration(0);
 
     /**
      * Backing field for property SentRequest.
      */
+    @JsonField("sentRequest")
     private Duration sentRequest = new Duration(0);
 
     /**
      * Backing field for property ReceivedResponse.
      */
+    @JsonField("receivedResponse")
     private Duration receivedResponse = new Duration(0);
 
     /**
      * Backing field for property DomProcessing.
      */
+    @JsonField("domProcessing")
     private Duration domProcessing = new Duration(0);
 
     /**
@@ -143,12 +151,7 @@ public class PageViewPerfData extends PageViewData
      */
     protected void serializeContent(JsonTelemetryDataSerializer writer) throws IOException
     {
-        super.serializeContent(writer);
-        writer.write("perfTotal", perfTotal);
-        writer.write("networkConnect", networkConnect);
-        writer.write("sentRequest", sentRequest);
-        writer.write("receivedResponse", receivedResponse);
-        writer.write("domProcessing", domProcessing);
+        PageViewPerfDataJsonWriter.serializeContent(writer, this);
     }
 
     /**
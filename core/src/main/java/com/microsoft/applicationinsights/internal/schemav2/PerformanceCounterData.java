@@ -22,6 +22,8 @@
 package com.microsoft.applicationinsights.internal.schemav2;
 
 import com.google.common.base.Preconditions;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.GenerateJsonWriter;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.JsonField;
 import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
 
 import java.io.IOException;
@@ -33,6 +35,7 @@ import java.util.concurrent.ConcurrentMap;
  * Created by gupele on 3/1/2015.
  */
 @Deprecated
+@GenerateJsonWriter
 public final class PerformanceCounterData extends Domain {
     /**
      * Envelope Name for this telemetry.
@@ -44,11 +47,17 @@ public final class PerformanceCounterData extends Domain {
      */
     private static final String PERFORMANCE_COUNTER_BASE_TYPE = "PerformanceCounterData";
 
+    @JsonField("ver")
     private static final int ver = 2;
+    @JsonField(value = "categoryName", maxLength = 1000)
     private String categoryName;
+    @JsonField(value = "counterName", maxLength = 1000)
     private String counterName;
+    @JsonField(value = "instanceName", maxLength = 1000)
     private String instanceName;
+    @JsonField("value")
     private double value;
+    @JsonField("properties")
     private ConcurrentMap<String, String> properties;
 
     public int getVer() {
@@ -96,11 +105,6 @@ public final class PerformanceCounterData extends Domain {
     protected void serializeContent(JsonTelemetryDataSerializer writer) throws IOException {
         Preconditions.checkNotNull(writer, "writer must be a non-null value");
 
-        writer.write("ver", ver);
-        writer.write("categoryName", categoryName, 1000);
-        writer.write("counterName", counterName, 1000);
-        writer.write("instanceName", instanceName, 1000);
-        writer.write("value", value);
-        writer.write("properties", properties);
+        PerformanceCounterDataJsonWriter.serializeContent(writer, this);
     }
 }
\ No newline at end of file
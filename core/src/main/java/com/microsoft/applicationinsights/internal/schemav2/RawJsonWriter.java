@@ -0,0 +1,340 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.schemav2;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Strings;
+import com.microsoft.applicationinsights.telemetry.JsonSerializable;
+import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
+import com.squareup.moshi.JsonWriter;
+import okio.Buffer;
+
+/**
+ * Writes Json straight into a buffer for the writers generated from the schema classes.
+ *
+ * The output is byte for byte the output of {@link JsonTelemetryDataSerializer} over Moshi's {@link JsonWriter}:
+ * the same escaping, number formats, truncation and defaults. Only the field names are encoded in advance,
+ * and the strings are escaped up to their length limit instead of being copied by {@code substring}.
+ * Values without a generated writer are serialized by {@link JsonTelemetryDataSerializer} and copied in.
+ *
+ * The class is not thread safe.
+ */
+public final class RawJsonWriter {
+
+    private static final int MAX_KEY_LENGTH = 150;
+    private static final int MAX_VALUE_LENGTH = 8192;
+    private static final String EMPTY_KEY = "(required property name is empty)";
+
+    // The escaping of Moshi's JsonUtf8Writer
+    private static final String[] REPLACEMENT_CHARS = new String[128];
+
+    static {
+        for (int i = 0; i <= 0x1f; i++) {
+            REPLACEMENT_CHARS[i] = String.format("\\u%04x", i);
+        }
+        REPLACEMENT_CHARS['"'] = "\\\"";
+        REPLACEMENT_CHARS['\\'] = "\\\\";
+        REPLACEMENT_CHARS['\t'] = "\\t";
+        REPLACEMENT_CHARS['\b'] = "\\b";
+        REPLACEMENT_CHARS['\n'] = "\\n";
+        REPLACEMENT_CHARS['\r'] = "\\r";
+        REPLACEMENT_CHARS['\f'] = "\\f";
+    }
+
+    private Buffer sink;
+
+    // Whether the object or array at each depth already has a member
+    private boolean[] nonEmpty = new boolean[16];
+    private int depth;
+
+    public RawJsonWriter(Buffer sink) {
+        reset(sink);
+    }
+
+    public void reset(Buffer sink) {
+        this.sink = sink;
+        this.depth = 0;
+    }
+
+    /**
+     * @param name The name of a field.
+     * @return The name as a Json string followed by a colon.
+     */
+    public static byte[] encodeName(String name) {
+        Buffer buffer = new Buffer();
+        string(buffer, name, name.length());
+        buffer.writeByte(':');
+        return buffer.readByteArray();
+    }
+
+    /**
+     * @param value A number of a map or a list.
+     * @return True if the number is a NaN or an infinite double or float, which Json cannot hold and is written as 0.
+     */
+    public static boolean isNonFinite(Number value) {
+        if (value instanceof Double) {
+            return ((Double) value).isNaN() || ((Double) value).isInfinite();
+        }
+        if (value instanceof Float) {
+            return ((Float) value).isNaN() || ((Float) value).isInfinite();
+        }
+        return false;
+    }
+
+    public void beginObject() {
+        open('{');
+    }
+
+    public void endObject() {
+        close('}');
+    }
+
+    /**
+     * Continues an object whose opening brace and first members were already written to the sink as is.
+     */
+    public void continueObject() {
+        push();
+        nonEmpty[depth - 1] = true;
+    }
+
+    public void write(byte[] name, long value) {
+        name(name);
+        sink.writeUtf8(Long.toString(value));
+    }
+
+    public void write(byte[] name, Number value) {
+        if (value == null) {
+            return;
+        }
+        name(name);
+        sink.writeUtf8(value.toString());
+    }
+
+    public void write(byte[] name, double value) {
+        name(name);
+        writeDouble(value);
+    }
+
+    public void write(byte[] name, Double value) {
+        if (value == null) {
+            return;
+        }
+        name(name);
+        writeDouble(value);
+    }
+
+    public void write(byte[] name, boolean value) {
+        name(name);
+        sink.writeUtf8(value ? "true" : "false");
+    }
+
+    public void write(byte[] name, Boolean value) {
+        if (value == null) {
+            return;
+        }
+        write(name, value.booleanValue());
+    }
+
+    public void writeString(byte[] name, String value) {
+        name(name);
+        string(sink, value, value.length());
+    }
+
+    public void write(byte[] name, String value, int maxLength) {
+        if (value == null || value.equals("")) {
+            return;
+        }
+        name(name);
+        string(sink, value, Math.min(value.length(), maxLength));
+    }
+
+    public void writeRequired(byte[] name, String value, int maxLength, String defaultValue) {
+        if (value == null || value.equals("")) {
+            value = defaultValue;
+        }
+        name(name);
+        string(sink, value, Math.min(value.length(), maxLength));
+    }
+
+    public void write(byte[] name, JsonSerializable value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        name(name);
+        writeObject(value);
+    }
+
+    public void write(byte[] name, Map<String, ?> map) throws IOException {
+        if (map == null || map.isEmpty()) {
+            return;
+        }
+
+        name(name);
+        open('{');
+        for (Map.Entry<String, ?> entry : map.entrySet()) {
+            writeMember(entry.getKey(), entry.getValue());
+        }
+        close('}');
+    }
+
+    /**
+     * Writes a member of the current object the way the entries of a map are written.
+     * @param key The key of the entry, trimmed and truncated.
+     * @param value The value of the entry.
+     * @throws IOException If the value cannot be serialized.
+     */
+    public void writeMember(String key, Object value) throws IOException {
+        separate();
+        String trimmed = key != null ? key.trim() : null;
+        if (Strings.isNullOrEmpty(trimmed)) {
+            trimmed = EMPTY_KEY;
+        }
+        string(sink, trimmed, Math.min(trimmed.length(), MAX_KEY_LENGTH));
+        sink.writeByte(':');
+        writeItem(value);
+    }
+
+    public void write(byte[] name, List<?> list) throws IOException {
+        if (list == null) {
+            return;
+        }
+
+        name(name);
+        if (list.isEmpty()) {
+            sink.writeUtf8("null");
+            return;
+        }
+
+        open('[');
+        for (Object item : list) {
+            separate();
+            writeItem(item);
+        }
+        close(']');
+    }
+
+    private void writeItem(Object item) throws IOException {
+        if (item instanceof JsonSerializable) {
+            writeObject((JsonSerializable) item);
+        } else if (item instanceof Number) {
+            if (isNonFinite((Number) item)) {
+                sink.writeByte('0');
+            } else {
+                sink.writeUtf8(item.toString());
+            }
+        } else if (item instanceof Boolean) {
+            sink.writeUtf8(((Boolean) item) ? "true" : "false");
+        } else if (item instanceof Character) {
+            // Moshi gets the char as a long
+            sink.writeUtf8(Long.toString((Character) item));
+        } else {
+            String value = String.valueOf(item);
+            string(sink, value, Math.min(value.length(), MAX_VALUE_LENGTH));
+        }
+    }
+
+    private void writeObject(JsonSerializable value) throws IOException {
+        if (SchemaJsonWriters.write(this, value)) {
+            return;
+        }
+
+        Buffer buffer = new Buffer();
+        JsonWriter jsonWriter = JsonWriter.of(buffer);
+        jsonWriter.setLenient(true);
+        JsonTelemetryDataSerializer serializer = new JsonTelemetryDataSerializer(jsonWriter);
+        value.serialize(serializer);
+        serializer.close();
+        sink.write(buffer, buffer.size());
+    }
+
+    private void writeDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            sink.writeByte('0');
+        } else {
+            sink.writeUtf8(Double.toString(value));
+        }
+    }
+
+    private void name(byte[] name) {
+        separate();
+        sink.write(name);
+    }
+
+    private void separate() {
+        if (nonEmpty[depth - 1]) {
+            sink.writeByte(',');
+        } else {
+            nonEmpty[depth - 1] = true;
+        }
+    }
+
+    private void open(char c) {
+        push();
+        sink.writeByte(c);
+    }
+
+    private void push() {
+        if (depth == nonEmpty.length) {
+            nonEmpty = Arrays.copyOf(nonEmpty, depth * 2);
+        }
+        nonEmpty[depth++] = false;
+    }
+
+    private void close(char c) {
+        --depth;
+        sink.writeByte(c);
+    }
+
+    private static void string(Buffer sink, String value, int length) {
+        sink.writeByte('"');
+        int last = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement;
+            if (c < 128) {
+                replacement = REPLACEMENT_CHARS[c];
+                if (replacement == null) {
+                    continue;
+                }
+            } else if (c == '\u2028') {
+                replacement = "\\u2028";
+            } else if (c == '\u2029') {
+                replacement = "\\u2029";
+            } else {
+                continue;
+            }
+            if (last < i) {
+                sink.writeUtf8(value, last, i);
+            }
+            sink.writeUtf8(replacement);
+            last = i + 1;
+        }
+        if (last < length) {
+            sink.writeUtf8(value, last, length);
+        }
+        sink.writeByte('"');
+    }
+}
@@ -23,6 +23,8 @@
 */
 package com.microsoft.applicationinsights.internal.schemav2;
 
+import com.microsoft.applicationinsights.internal.schemav2.codegen.GenerateJsonWriter;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.JsonField;
 import com.microsoft.applicationinsights.telemetry.Duration;
 import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
 
@@ -33,61 +35,73 @@ import java.util.concurrent.ConcurrentMap;
 /**
  * Data contract class RemoteDependencyData.
  */
+@GenerateJsonWriter
 public class RemoteDependencyData extends Domain
 {
     /**
      * Backing field for property Ver.
      */
+    @JsonField("ver")
     private int ver = 2;
 
     /**
      * Backing field for property Name.
      */
+    @JsonField(value = "name", maxLength = 1024, required = true)
     private String name;
 
     /**
      * Backing field for property Id.
      */
+    @JsonField(value = "id", maxLength = 128)
     private String id;
 
     /**
      * Backing field for property ResultCode.
      */
+    @JsonField(value = "resultCode", maxLength = 1024)
     private String resultCode;
 
     /**
      * Backing field for property Duration.
      */
+    @JsonField("duration")
     private Duration duration = new Duration(0);
 
     /**
      * Backing field for property Success.
      */
+    @JsonField("success")
     private Boolean success = true;
 
     /**
      * Backing field for property Data.
      */
+    @JsonField(value = "data", maxLength = 8192)
     private String data;
 
     /**
      * Backing field for property Type.
      */
+    @JsonField(value = "type", maxLength = 1024)
     private String type;
 
     /**
      * Backing field for property Target.
      */
+    @JsonField(value = "target", maxLength = 1024)
     private String target;
 
     /**
      * Backing field for property Properties.
      */
+    @JsonField("properties")
     private ConcurrentMap<String, String> properties;
 
     /**
      * Backing field for property Measurements.
      */
+    @JsonField("measurements")
     private ConcurrentMap<String, Double> measurements;
 
     /**
@@ -265,18 +279,7 @@ public class RemoteDependencyData extends Domain
      */
     protected void serializeContent(JsonTelemetryDataSerializer writer) throws IOException
     {
-        super.serializeContent(writer);
-        writer.write("ver", ver);
-        writer.writeRequired("name", name, 1024);
-        writer.write("id", id, 128);
-        writer.write("resultCode", resultCode, 1024);
-        writer.write("duration", duration);
-        writer.write("success", success);
-        writer.write("data", data, 8192);
-        writer.write("type", type, 1024);
-        writer.write("target", target, 1024);
-        writer.write("properties", properties);
-        writer.write("measurements", measurements);
+        RemoteDependencyDataJsonWriter.serializeContent(writer, this);
     }
 
     /**
@@ -23,6 +23,8 @@
 */
 package com.microsoft.applicationinsights.internal.schemav2;
 
+import com.microsoft.applicationinsights.internal.schemav2.codegen.GenerateJsonWriter;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.JsonField;
 import com.microsoft.applicationinsights.telemetry.Duration;
 import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
 
@@ -33,56 +35,67 @@ import java.util.concurrent.ConcurrentMap;
 /**
  * Data contract class RequestData.
  */
+@GenerateJsonWriter
 public class RequestData extends Domain
 {
     /**
      * Backing field for property Ver.
      */
+    @JsonField("ver")
     private int ver = 2;
 
     /**
      * Backing field for property Id.
      */
+    @JsonField(value = "id", maxLength = 128, required = true)
     private String id;
 
     /**
      * Backing field for property Duration.
      */
+    @JsonField("duration")
     private Duration duration = new Duration(0);
 
     /**
      * Backing field for property ResponseCode.
      */
+    @JsonField(value = "responseCode", maxLength = 1024, required = true)
     private String responseCode;
 
     /**
      * Backing field for property Success.
      */
+    @JsonField("success")
     private boolean success;
 
     /**
      * Backing field for property Source.
      */
+    @JsonField(value = "source", maxLength = 1024)
     private String source;
 
     /**
      * Backing field for property Name.
      */
+    @JsonField(value = "name", maxLength = 1024)
     private String name;
 
     /**
      * Backing field for property Url.
      */
+    @JsonField(value = "url", maxLength = 2048)
     private String url;
 
     /**
      * Backing field for property Properties.
      */
+    @JsonField("properties")
     private ConcurrentMap<String, String> properties;
 
     /**
      * Backing field for property Measurements.
      */
+    @JsonField("measurements")
     private ConcurrentMap<String, Double> measurements;
 
     /**
@@ -246,17 +259,7 @@ public class RequestData extends Domain
      */
     protected void serializeContent(JsonTelemetryDataSerializer writer) throws IOException
     {
-        super.serializeContent(writer);
-        writer.write("ver", ver);
-        writer.writeRequired("id", id, 128);
-        writer.write("duration", duration);
-        writer.writeRequired("responseCode", responseCode, 1024);
-        writer.write("success", success);
-        writer.write("source", source, 1024);
-        writer.write("name", name, 1024);
-        writer.write("url", url, 2048);
-        writer.write("properties", properties);
-        writer.write("measurements", measurements);
+        RequestDataJsonWriter.serializeContent(writer, this);
     }
 
     /**
@@ -24,6 +24,8 @@
 package com.microsoft.applicationinsights.internal.schemav2;
 
 import com.google.common.base.Preconditions;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.GenerateJsonWriter;
+import com.microsoft.applicationinsights.internal.schemav2.codegen.JsonField;
 import com.microsoft.applicationinsights.telemetry.JsonSerializable;
 import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
 
@@ -32,32 +34,38 @@ import java.io.IOException;
 /**
  * Data contract class StackFrame.
  */
+@GenerateJsonWriter
 public class StackFrame
     implements JsonSerializable
 {
     /**
      * Backing field for property Level.
      */
+    @JsonField("level")
     private int level;
 
     /**
      * Backing field for property Method.
      */
+    @JsonField(value = "method", maxLength = 1024, required = true)
     private String method;
 
     /**
      * Backing field for property Assembly.
      */
+    @JsonField(value = "assembly", maxLength = 1024)
     private String assembly;
 
     /**
      * Backing field for property FileName.
      */
+    @JsonField(value = "fileName", maxLength = 1024)
     private String fileName;
 
     /**
      * Backing field for property Line.
      */
+    @JsonField("line")
     private int line;
 
     /**
@@ -156,13 +164,7 @@ public class StackFrame
      */
     protected void serializeContent(JsonTelemetryDataSerializer writer) throws IOException
     {
-        writer.write("level", level);
-
-        writer.writeRequired("method", method, 1024);
-
-        writer.write("assembly", assembly, 1024);
-        writer.write("fileName", fileName, 1024);
-        writer.write("line", line);
+        StackFrameJsonWriter.serializeContent(writer, this);
     }
 
     /**
@@ -0,0 +1,219 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.util;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import okio.Buffer;
+
+/**
+ * Formats UTC timestamps without {@link SimpleDateFormat} on the serialization path.
+ *
+ * Every thread keeps the date and time of the last second it formatted, so only the milliseconds
+ * are written for the timestamps of the same second. Dates before the Gregorian calendar
+ * or after the year 9999 are formatted by {@link SimpleDateFormat}.
+ */
+public final class UtcTimestampEncoder {
+
+    // yyyy-MM-dd'T'HH:mm:ss.SSS+0000, the format of LocalStringsUtils.getDateFormatter() in UTC
+    static final int ISO_8601_LENGTH = 28;
+    private static final String ISO_8601_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSZZ";
+    private static final String RFC_1123_PATTERN = "EEE, dd MMM yyyy HH:mm:ss 'GMT'";
+
+    private static final int MIN_YEAR = 1583;
+    private static final int MAX_YEAR = 9999;
+
+    private static final long SECONDS_PER_DAY = 86400;
+
+    private static final String[] DAYS_OF_WEEK = {"Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat"};
+    private static final String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+    private static final class Encoder {
+        private final byte[] iso8601 = new byte[ISO_8601_LENGTH];
+        private long iso8601Second = Long.MIN_VALUE;
+        private boolean iso8601InRange;
+
+        private String rfc1123;
+        private long rfc1123Second = Long.MIN_VALUE;
+
+        // The fields of the last second that was split
+        private long second = Long.MIN_VALUE;
+        private int year, month, day, dayOfWeek, hour, minute, secondOfMinute;
+
+        private Encoder() {
+            iso8601[4] = iso8601[7] = '-';
+            iso8601[10] = 'T';
+            iso8601[13] = iso8601[16] = ':';
+            iso8601[19] = '.';
+            iso8601[23] = '+';
+            iso8601[24] = iso8601[25] = iso8601[26] = iso8601[27] = '0';
+        }
+
+        /**
+         * Writes the timestamp into the array, returns false if it cannot be encoded.
+         */
+        private boolean encodeIso8601(long timeInMillis) {
+            long epochSecond = floorDiv(timeInMillis, 1000);
+            if (epochSecond != iso8601Second) {
+                split(epochSecond);
+                iso8601Second = epochSecond;
+                iso8601InRange = year >= MIN_YEAR && year <= MAX_YEAR;
+                if (iso8601InRange) {
+                    putDigits(iso8601, 0, year, 4);
+                    putDigits(iso8601, 5, month, 2);
+                    putDigits(iso8601, 8, day, 2);
+                    putDigits(iso8601, 11, hour, 2);
+                    putDigits(iso8601, 14, minute, 2);
+                    putDigits(iso8601, 17, secondOfMinute, 2);
+                }
+            }
+            putDigits(iso8601, 20, (int) (timeInMillis - epochSecond * 1000), 3);
+            return iso8601InRange;
+        }
+
+        private String formatRfc1123(long timeInMillis) {
+            long epochSecond = floorDiv(timeInMillis, 1000);
+            if (epochSecond != rfc1123Second) {
+                split(epochSecond);
+                if (year < MIN_YEAR || year > MAX_YEAR) {
+                    return format(RFC_1123_PATTERN, timeInMillis);
+                }
+                StringBuilder sb = new StringBuilder(29);
+                sb.append(DAYS_OF_WEEK[dayOfWeek]).append(", ");
+                appendDigits(sb, day, 2).append(' ').append(MONTHS[month - 1]).append(' ');
+                appendDigits(sb, year, 4).append(' ');
+                appendDigits(sb, hour, 2).append(':');
+                appendDigits(sb, minute, 2).append(':');
+                appendDigits(sb, secondOfMinute, 2).append(" GMT");
+                rfc1123 = sb.toString();
+                rfc1123Second = epochSecond;
+            }
+            return rfc1123;
+        }
+
+        private void split(long epochSecond) {
+            if (epochSecond == second) {
+                return;
+            }
+            second = epochSecond;
+
+            long epochDay = floorDiv(epochSecond, SECONDS_PER_DAY);
+            int secondOfDay = (int) (epochSecond - epochDay * SECONDS_PER_DAY);
+            hour = secondOfDay / 3600;
+            minute = secondOfDay / 60 % 60;
+            secondOfMinute = secondOfDay % 60;
+            // 1970-01-01 was a Thursday
+            dayOfWeek = (int) (epochDay - floorDiv(epochDay + 4, 7) * 7 + 4);
+
+            // The civil date of the proleptic Gregorian calendar, counted in eras of 400 years from 0000-03-01
+            long shiftedDay = epochDay + 719468;
+            long era = floorDiv(shiftedDay, 146097);
+            int dayOfEra = (int) (shiftedDay - era * 146097);
+            int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            int shiftedMonth = (5 * dayOfYear + 2) / 153;
+            day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+            month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+            long fullYear = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+            year = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, fullYear));
+        }
+    }
+
+    private static final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+        @Override
+        protected Encoder initialValue() {
+            return new Encoder();
+        }
+    };
+
+    private UtcTimestampEncoder() {
+    }
+
+    /**
+     * @param timeInMillis The time since the epoch.
+     * @return The time as 'yyyy-MM-ddTHH:mm:ss.SSS+0000'.
+     */
+    public static String formatIso8601(long timeInMillis) {
+        Encoder encoder = encoders.get();
+        if (!encoder.encodeIso8601(timeInMillis)) {
+            return format(ISO_8601_PATTERN, timeInMillis);
+        }
+        return new String(encoder.iso8601, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes the time as a Json string, 'yyyy-MM-ddTHH:mm:ss.SSS+0000' in quotes, without creating a string.
+     *
+     * @param timeInMillis The time since the epoch.
+     * @param sink The buffer to write to.
+     */
+    public static void writeQuotedIso8601(long timeInMillis, Buffer sink) {
+        Encoder encoder = encoders.get();
+        sink.writeByte('"');
+        if (encoder.encodeIso8601(timeInMillis)) {
+            sink.write(encoder.iso8601);
+        } else {
+            sink.writeUtf8(format(ISO_8601_PATTERN, timeInMillis));
+        }
+        sink.writeByte('"');
+    }
+
+    /**
+     * @param timeInMillis The time since the epoch.
+     * @return The time as 'EEE, dd MMM yyyy HH:mm:ss GMT', the string is the same for every call within a second.
+     */
+    public static String formatRfc1123(long timeInMillis) {
+        return encoders.get().formatRfc1123(timeInMillis);
+    }
+
+    private static String format(String pattern, long timeInMillis) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(timeInMillis));
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            --q;
+        }
+        return q;
+    }
+
+    private static void putDigits(byte[] target, int offset, int value, int width) {
+        for (int i = offset + width - 1; i >= offset; --i) {
+            target[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static StringBuilder appendDigits(StringBuilder sb, int value, int width) {
+        for (int divisor = width == 4 ? 1000 : 10; divisor > 0; divisor /= 10) {
+            sb.append((char) ('0' + value / divisor % 10));
+        }
+        return sb;
+    }
+}
@@ -22,7 +22,6 @@
 package com.microsoft.applicationinsights.telemetry;
 
 import java.io.IOException;
-import java.text.DateFormat;
 import java.util.Date;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -32,7 +31,7 @@ import com.google.common.base.Charsets;
 import com.microsoft.applicationinsights.internal.schemav2.Data;
 import com.microsoft.applicationinsights.internal.schemav2.Domain;
 import com.microsoft.applicationinsights.internal.schemav2.Envelope;
-import com.microsoft.applicationinsights.internal.util.LocalStringsUtils;
+import com.microsoft.applicationinsights.internal.util.UtcTimestampEncoder;
 import com.microsoft.applicationinsights.internal.util.Sanitizer;
 import com.squareup.moshi.JsonWriter;
 import okio.Buffer;
@@ -51,12 +50,6 @@ public abstract class BaseTelemetry<T extends Domain> implements Telemetry {
 
     public static final String TELEMETRY_NAME_PREFIX = "Microsoft.ApplicationInsights.";
 
-    private static final ThreadLocal<DateFormat> dateFormat = new ThreadLocal<DateFormat>() {
-        protected DateFormat initialValue() {
-            return LocalStringsUtils.getDateFormatter();
-        }
-    };
-
     protected BaseTelemetry() {
     }
 
@@ -170,7 +163,7 @@ public abstract class BaseTelemetry<T extends Domain> implements Telemetry {
         tmp.setBaseData(getData());
         tmp.setBaseType(this.getBaseTypeName());
         envelope.setData(tmp);
-        if (getTimestamp() != null) envelope.setTime(dateFormat.get().format(getTimestamp()));
+        if (getTimestamp() != null) envelope.setTime(UtcTimestampEncoder.formatIso8601(getTimestamp().getTime()));
         envelope.setTags(context.getTags());
 
         envelope.serialize(writer);
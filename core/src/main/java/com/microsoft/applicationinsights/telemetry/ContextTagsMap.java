@@ -1,12 +1,16 @@
 package com.microsoft.applicationinsights.telemetry;
 
+import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.common.base.Strings;
 import com.microsoft.applicationinsights.extensibility.context.ContextTagKeys;
 import org.apache.commons.lang3.StringUtils;
 
@@ -44,6 +48,93 @@ class ContextTagsMap implements ConcurrentMap<String, String> {
 
     private final ConcurrentMap<String, String> tags = new ConcurrentHashMap<>();
 
+    // The views are read only, so every change goes through the methods that track it
+    private final Map<String, String> readOnlyTags = Collections.unmodifiableMap(tags);
+
+    // Bumped by every change of the tags
+    private final AtomicLong version = new AtomicLong(0);
+
+    // The Json of these tags, when they are the shared source of other tags
+    private volatile SerializedContextTags serialized;
+
+    // The Json of the tags these were initialized from, usually the tags of the TelemetryClient's context,
+    // null once one of those tags is changed here
+    private volatile SerializedContextTags sharedTags;
+
+    /**
+     * Copies the tags of the source that are not set here yet. The Json of the source tags is kept,
+     * to be spliced into the Json of these tags as long as none of the source tags is changed here.
+     * @param source The tags to initialize from.
+     */
+    void initializeFrom(ContextTagsMap source) {
+        if (source == this) {
+            return;
+        }
+
+        SerializedContextTags shared;
+        try {
+            shared = source.getSerialized();
+        } catch (IOException e) {
+            shared = null;
+        }
+        if (shared == null) {
+            copyAbsent(source);
+            sharedTags = null;
+            return;
+        }
+
+        // The values of the source are already sanitized
+        boolean asIs = !shared.isEmpty();
+        for (Entry<String, String> entry : shared.entrySet()) {
+            if (Strings.isNullOrEmpty(entry.getKey())) {
+                asIs = false;
+                continue;
+            }
+            String current = tags.putIfAbsent(entry.getKey(), entry.getValue());
+            if (current != null && !current.equals(entry.getValue())) {
+                asIs = false;
+            }
+        }
+        version.incrementAndGet();
+        sharedTags = asIs ? shared : null;
+    }
+
+    /**
+     * @return The Json of the tags these were initialized from, null if there are none or one of them was changed.
+     */
+    SerializedContextTags getSharedSerializedTags() {
+        return sharedTags;
+    }
+
+    private SerializedContextTags getSerialized() throws IOException {
+        long currentVersion = version.get();
+        SerializedContextTags current = serialized;
+        // Serialized again whenever the tags were changed since
+        if (current == null || current.getVersion() != currentVersion) {
+            current = SerializedContextTags.of(tags, currentVersion);
+            serialized = current;
+        }
+        return current;
+    }
+
+    private void copyAbsent(ContextTagsMap source) {
+        for (Entry<String, String> entry : source.tags.entrySet()) {
+            if (!Strings.isNullOrEmpty(entry.getKey())) {
+                tags.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+        }
+        version.incrementAndGet();
+    }
+
+    // Called after every change, so a Json serialized in between is serialized again
+    private void onChanged(Object key) {
+        version.incrementAndGet();
+        SerializedContextTags shared = sharedTags;
+        if (shared != null && (key == null || shared.containsKey(key))) {
+            sharedTags = null;
+        }
+    }
+
     private static String sanitizeKey(String key) {
         return key;
     }
@@ -65,22 +156,38 @@ class ContextTagsMap implements ConcurrentMap<String, String> {
 
     @Override
     public String putIfAbsent(String key, String value) {
-        return tags.putIfAbsent(key, sanitizeValue(key, value));
+        String previous = tags.putIfAbsent(key, sanitizeValue(key, value));
+        if (previous == null) {
+            onChanged(key);
+        }
+        return previous;
     }
 
     @Override
     public boolean remove(Object key, Object value) {
-        return tags.remove(key, value);
+        boolean removed = tags.remove(key, value);
+        if (removed) {
+            onChanged(key);
+        }
+        return removed;
     }
 
     @Override
     public boolean replace(String key, String oldValue, String newValue) {
-        return tags.replace(key, oldValue, sanitizeValue(key, newValue));
+        boolean replaced = tags.replace(key, oldValue, sanitizeValue(key, newValue));
+        if (replaced) {
+            onChanged(key);
+        }
+        return replaced;
     }
 
     @Override
     public String replace(String key, String value) {
-        return tags.replace(key, sanitizeValue(key, value));
+        String previous = tags.replace(key, sanitizeValue(key, value));
+        if (previous != null) {
+            onChanged(key);
+        }
+        return previous;
     }
 
     @Override
@@ -110,12 +217,18 @@ class ContextTagsMap implements ConcurrentMap<String, String> {
 
     @Override
     public String put(String key, String value) {
-        return tags.put(key, sanitizeValue(key, value));
+        String previous = tags.put(key, sanitizeValue(key, value));
+        onChanged(key);
+        return previous;
     }
 
     @Override
     public String remove(Object key) {
-        return tags.remove(key);
+        String previous = tags.remove(key);
+        if (previous != null) {
+            onChanged(key);
+        }
+        return previous;
     }
 
     @Override
@@ -125,26 +238,30 @@ class ContextTagsMap implements ConcurrentMap<String, String> {
             sanitized.put(entry.getKey(), sanitizeValue(entry.getKey(), entry.getValue()));
         }
         tags.putAll(sanitized);
+        for (String key : sanitized.keySet()) {
+            onChanged(key);
+        }
     }
 
     @Override
     public void clear() {
         tags.clear();
+        onChanged(null);
     }
 
     @Override
     public Set<String> keySet() {
-        return tags.keySet();
+        return readOnlyTags.keySet();
     }
 
     @Override
     public Collection<String> values() {
-        return tags.values();
+        return readOnlyTags.values();
     }
 
     @Override
     public Set<Entry<String, String>> entrySet() {
-        return tags.entrySet();
+        return readOnlyTags.entrySet();
     }
 
     @Override
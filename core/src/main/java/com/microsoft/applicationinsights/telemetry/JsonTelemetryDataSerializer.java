@@ -28,8 +28,11 @@ import java.util.Map;
 
 import com.google.common.base.Strings;
 import com.microsoft.applicationinsights.internal.schemav2.DataPointType;
-import com.microsoft.applicationinsights.internal.util.LocalStringsUtils;
+import com.microsoft.applicationinsights.internal.schemav2.RawJsonWriter;
+import com.microsoft.applicationinsights.internal.schemav2.SchemaJsonWriters;
+import com.microsoft.applicationinsights.internal.util.UtcTimestampEncoder;
 import com.squareup.moshi.JsonWriter;
+import okio.Buffer;
 
 /**
  * This class knows how to transform data that is relevant to {@link Telemetry} instances into JSON.
@@ -38,7 +41,25 @@ public final class JsonTelemetryDataSerializer {
 
     private JsonWriter out;
 
+    // Holds the Json values that are written as is, it is emptied by every write
+    private final Buffer scratch = new Buffer();
+
+    private final boolean useGeneratedWriters;
+
+    private RawJsonWriter rawWriter;
+
     public JsonTelemetryDataSerializer(JsonWriter out) throws IOException {
+        this(out, true);
+    }
+
+    /**
+     * @param out The writer to write to.
+     * @param useGeneratedWriters False to write the schema classes by their own 'serializeContent' instead of
+     *                            by the generated {@link SchemaJsonWriters}, the output is the same.
+     * @throws IOException If the writer throws.
+     */
+    JsonTelemetryDataSerializer(JsonWriter out, boolean useGeneratedWriters) throws IOException {
+        this.useGeneratedWriters = useGeneratedWriters;
         reset(out);
     }
 
@@ -156,7 +177,8 @@ public final class JsonTelemetryDataSerializer {
         }
 
         writeName(name);
-        out.value(LocalStringsUtils.getDateFormatter().format(value));
+        UtcTimestampEncoder.writeQuotedIso8601(value.getTime(), scratch);
+        out.value(scratch);
     }
 
     public void write(String name, String value, int len) throws IOException {
@@ -186,7 +208,33 @@ public final class JsonTelemetryDataSerializer {
         }
 
         writeName(name);
-        writeObject(value);
+        if (!useGeneratedWriters || !writeGenerated(value)) {
+            writeObject(value);
+        }
+    }
+
+    private boolean writeGenerated(JsonSerializable value) throws IOException {
+        boolean written = false;
+        try {
+            written = SchemaJsonWriters.write(getRawWriter(), value);
+        } finally {
+            if (!written) {
+                scratch.clear();
+            }
+        }
+        if (written) {
+            out.value(scratch);
+        }
+        return written;
+    }
+
+    private RawJsonWriter getRawWriter() {
+        if (rawWriter == null) {
+            rawWriter = new RawJsonWriter(scratch);
+        } else {
+            rawWriter.reset(scratch);
+        }
+        return rawWriter;
     }
 
     public <T> void write(String name, Map<String, T> map) throws IOException {
@@ -195,15 +243,61 @@ public final class JsonTelemetryDataSerializer {
             return;
         }
 
+        if (map instanceof ContextTagsMap) {
+            writeTags(name, (ContextTagsMap) (Map<?, ?>) map);
+            return;
+        }
+
         writeName(name);
         out.beginObject();
+        writeEntries(map);
+        out.endObject();
+    }
 
+    <T> void writeEntries(Map<String, T> map) throws IOException {
         for (Map.Entry<String, T> entry : map.entrySet()) {
             sanitizeKey(out, entry.getKey());
             write(entry.getValue());
         }
+    }
 
-        out.endObject();
+    /**
+     * Splices the Json of the tags shared with the source context, and only writes the tags of the item itself.
+     */
+    private void writeTags(String name, ContextTagsMap tags) throws IOException {
+        SerializedContextTags shared = tags.getSharedSerializedTags();
+        if (shared == null) {
+            writeName(name);
+            out.beginObject();
+            writeEntries(tags);
+            out.endObject();
+            return;
+        }
+
+        // None of the shared tags was changed since the item was initialized, so the item has them all
+        if (tags.size() > shared.size()) {
+            RawJsonWriter writer = getRawWriter();
+            shared.writeTo(scratch, true);
+            writer.continueObject();
+            boolean written = false;
+            try {
+                for (Map.Entry<String, String> entry : tags.entrySet()) {
+                    if (!shared.containsKey(entry.getKey())) {
+                        writer.writeMember(entry.getKey(), entry.getValue());
+                    }
+                }
+                writer.endObject();
+                written = true;
+            } finally {
+                if (!written) {
+                    scratch.clear();
+                }
+            }
+        } else {
+            shared.writeTo(scratch, false);
+        }
+        writeName(name);
+        out.value(scratch);
     }
 
 
@@ -228,7 +322,11 @@ public final class JsonTelemetryDataSerializer {
         if (item instanceof JsonSerializable) {
             writeObject((JsonSerializable) item);
         } else if (item instanceof Number) {
-            out.value((Number) item);
+            if (RawJsonWriter.isNonFinite((Number) item)) {
+                out.value(0);
+            } else {
+                out.value((Number) item);
+            }
         } else if (item instanceof Boolean) {
             out.value((Boolean) item);
         } else if (item instanceof Character) {
@@ -0,0 +1,99 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.telemetry;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.squareup.moshi.JsonWriter;
+import okio.Buffer;
+
+/**
+ * The Json of the tags of a shared context, e.g. the context of the {@link com.microsoft.applicationinsights.TelemetryClient},
+ * written once and spliced into the envelope of every item whose context was initialized from it.
+ *
+ * The tags are kept along with the Json so the serializer can tell them from the tags of the item itself,
+ * and the version of the source tags it was written from so the source knows when to write it again.
+ */
+final class SerializedContextTags {
+
+    private final Map<String, String> tags;
+
+    private final long version;
+
+    // The Json object of the tags, including the braces
+    private final byte[] json;
+
+    private SerializedContextTags(Map<String, String> tags, long version, byte[] json) {
+        this.tags = tags;
+        this.version = version;
+        this.json = json;
+    }
+
+    /**
+     * @param source The tags to write.
+     * @param version The version of the tags, read before they are copied.
+     * @return The Json of the tags.
+     * @throws IOException If the tags cannot be serialized.
+     */
+    static SerializedContextTags of(Map<String, String> source, long version) throws IOException {
+        Map<String, String> tags = new HashMap<String, String>(source);
+
+        Buffer buffer = new Buffer();
+        JsonTelemetryDataSerializer writer = new JsonTelemetryDataSerializer(JsonWriter.of(buffer));
+        writer.writeEntries(tags);
+        writer.close();
+
+        return new SerializedContextTags(tags, version, buffer.readByteArray());
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    boolean isEmpty() {
+        return tags.isEmpty();
+    }
+
+    int size() {
+        return tags.size();
+    }
+
+    boolean containsKey(Object key) {
+        return tags.containsKey(key);
+    }
+
+    Set<Map.Entry<String, String>> entrySet() {
+        return tags.entrySet();
+    }
+
+    /**
+     * Writes the Json object of these tags.
+     * @param sink The buffer to write to.
+     * @param open True to leave out the closing brace, so that more members can be written after these tags.
+     */
+    void writeTo(Buffer sink, boolean open) {
+        sink.write(json, 0, open ? json.length - 1 : json.length);
+    }
+}
@@ -211,7 +211,7 @@ public final class TelemetryContext {
         if (Strings.isNullOrEmpty(this.instrumentationKey) && !Strings.isNullOrEmpty(source.getInstrumentationKey()))
             setInstrumentationKey(source.getInstrumentationKey(), source.getNormalizedInstrumentationKey());
 
-        MapUtil.copy(source.tags, this.tags);
+        this.tags.initializeFrom(source.tags);
         MapUtil.copy(source.properties, this.properties);
     }
 
@@ -23,13 +23,17 @@ package com.microsoft.applicationinsights.internal.channel.common;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import com.microsoft.applicationinsights.internal.channel.TransmissionDispatcher;
 import org.junit.*;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mockito;
 
 import org.apache.commons.io.FileUtils;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyObject;
@@ -37,6 +41,9 @@ import static org.mockito.Matchers.anyObject;
 public class ActiveTransmissionLoaderTest {
     private final static String TEMP_TEST_FOLDER = "TransmissionTests";
 
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
     @Test(expected = NullPointerException.class)
     public void testNullFileSystem() throws Exception {
         new ActiveTransmissionLoader(null, Mockito.mock(TransmissionDispatcher.class), mockStateFetcher(), 1);
@@ -82,6 +89,85 @@ public class ActiveTransmissionLoaderTest {
         testFilesOnDiskAreLoaded(2, false);
     }
 
+    @Test
+    public void testStoredTransmissionWakesTheLoader() throws Exception {
+        TransmissionFileSystemOutput fileSystem = new TransmissionFileSystemOutput(tmpFolder.newFolder(TEMP_TEST_FOLDER).getAbsolutePath());
+        CountingDispatcher dispatcher = new CountingDispatcher(1);
+        ActiveTransmissionLoader tested = new ActiveTransmissionLoader(fileSystem, dispatcher, new TransmissionPolicyState(), 1);
+        try {
+            assertTrue(tested.load(true));
+            Thread.sleep(100);
+
+            fileSystem.sendSync(new Transmission(new byte[2], "MockContentType", "MockEncodingType"));
+
+            assertTrue(dispatcher.latch.await(1, TimeUnit.SECONDS));
+        } finally {
+            tested.shutdown();
+        }
+    }
+
+    @Test
+    public void testUnblockedPolicyWakesTheLoader() throws Exception {
+        TransmissionFileSystemOutput fileSystem = new TransmissionFileSystemOutput(tmpFolder.newFolder(TEMP_TEST_FOLDER).getAbsolutePath());
+        CountingDispatcher dispatcher = new CountingDispatcher(2);
+        TransmissionPolicyState state = new TransmissionPolicyState();
+        state.setCurrentState(TransmissionPolicy.BLOCKED_BUT_CAN_BE_PERSISTED);
+        ActiveTransmissionLoader tested = new ActiveTransmissionLoader(fileSystem, dispatcher, state, 1);
+        try {
+            assertTrue(tested.load(true));
+            fileSystem.sendSync(new Transmission(new byte[2], "MockContentType", "MockEncodingType"));
+            fileSystem.sendSync(new Transmission(new byte[2], "MockContentType", "MockEncodingType"));
+
+            assertFalse(dispatcher.latch.await(300, TimeUnit.MILLISECONDS));
+            assertEquals(2, dispatcher.latch.getCount());
+
+            state.setCurrentState(TransmissionPolicy.UNBLOCKED);
+
+            assertTrue(dispatcher.latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            tested.shutdown();
+        }
+    }
+
+    @Test
+    public void testTornOldestFileDoesNotStopTheLoader() throws Exception {
+        File folder = tmpFolder.newFolder(TEMP_TEST_FOLDER);
+        TransmissionFileSystemOutput previous = new TransmissionFileSystemOutput(folder.getAbsolutePath());
+        for (int i = 0; i < 3; ++i) {
+            previous.sendSync(new Transmission(new byte[2], "MockContentType", "MockEncodingType"));
+            Thread.sleep(5); // so 2 files can never have the same timestamp.
+        }
+        TransmissionFileSystemOutputTest.tearOldestFile(folder);
+
+        TransmissionFileSystemOutput fileSystem = new TransmissionFileSystemOutput(folder.getAbsolutePath());
+        CountingDispatcher dispatcher = new CountingDispatcher(2);
+        ActiveTransmissionLoader tested = new ActiveTransmissionLoader(fileSystem, dispatcher, new TransmissionPolicyState(), 1);
+        try {
+            assertTrue(tested.load(true));
+
+            assertTrue(dispatcher.latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            tested.shutdown();
+        }
+    }
+
+    private static final class CountingDispatcher implements TransmissionDispatcher {
+        final CountDownLatch latch;
+
+        CountingDispatcher(int expectedTransmissions) {
+            latch = new CountDownLatch(expectedTransmissions);
+        }
+
+        @Override
+        public void dispatch(Transmission transmission) {
+            latch.countDown();
+        }
+
+        @Override
+        public void shutdown(long timeout, TimeUnit timeUnit) {
+        }
+    }
+
     private void testFilesOnDiskAreLoaded(int amount, boolean putFilesFirst) throws IOException, InterruptedException {
         File folder = null;
         ActiveTransmissionLoader tested = null;
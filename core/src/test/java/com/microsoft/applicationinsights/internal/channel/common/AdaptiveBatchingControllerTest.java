@@ -0,0 +1,140 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.util.LimitsEnforcer;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public final class AdaptiveBatchingControllerTest {
+    private final static String MOCK_PROPERTY_NAME = "MockProperty";
+    private final static long ONE_SECOND_IN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static class MockSender implements TelemetriesTransmitter<String> {
+        @Override
+        public boolean scheduleSend(TelemetriesFetcher<String> telemetriesFetcher, long value, TimeUnit timeUnit) {
+            return true;
+        }
+
+        @Override
+        public boolean sendNow(Collection<String> telemetries) {
+            return true;
+        }
+
+        @Override
+        public void shutdown(long timeout, TimeUnit timeUnit) {
+        }
+    }
+
+    private AdaptiveBatchingController tested;
+
+    @After
+    public void tearDown() {
+        if (tested != null) {
+            tested.stop(1L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroTargetLatency() {
+        new AdaptiveBatchingController(0, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroRequestsPerSecond() {
+        new AdaptiveBatchingController(5000, 0);
+    }
+
+    @Test
+    public void testLowRateSendsSmallBatchesWithinTheTargetLatency() {
+        TelemetryBuffer<String> buffer = createBuffer(500, 5);
+        tested = new AdaptiveBatchingController(5000, 10);
+        tested.start(buffer);
+
+        tested.onTelemetryArrived();
+        tested.onTransmissionLatency(ONE_SECOND_IN_NANOS);
+        tested.retune(ONE_SECOND_IN_NANOS);
+
+        assertEquals(4, buffer.getMaxTelemetriesInBatch());
+        assertEquals(4, buffer.getTransmitBufferTimeoutInSeconds());
+    }
+
+    @Test
+    public void testHighRateIsLimitedByTheConfiguredValues() {
+        TelemetryBuffer<String> buffer = createBuffer(500, 5);
+        tested = new AdaptiveBatchingController(10000, 10);
+        tested.start(buffer);
+
+        arrive(10000);
+        tested.retune(ONE_SECOND_IN_NANOS);
+
+        assertEquals(500, buffer.getMaxTelemetriesInBatch());
+        assertEquals(5, buffer.getTransmitBufferTimeoutInSeconds());
+    }
+
+    @Test
+    public void testRequestRateIsBounded() {
+        TelemetryBuffer<String> buffer = createBuffer(1000, 5);
+        tested = new AdaptiveBatchingController(1000, 2);
+        tested.start(buffer);
+
+        arrive(500);
+        tested.onTransmissionLatency(TimeUnit.MILLISECONDS.toNanos(900));
+        tested.retune(ONE_SECOND_IN_NANOS);
+
+        // 50 telemetries arrive within the 100 ms left to wait, but 2 requests per second need batches of 250
+        assertEquals(250, buffer.getMaxTelemetriesInBatch());
+        assertEquals(1, buffer.getTransmitBufferTimeoutInSeconds());
+    }
+
+    @Test
+    public void testRateDecreasesSlowly() {
+        TelemetryBuffer<String> buffer = createBuffer(1000, 5);
+        tested = new AdaptiveBatchingController(1000, 1);
+        tested.start(buffer);
+
+        arrive(100);
+        tested.retune(ONE_SECOND_IN_NANOS);
+        assertEquals(100, buffer.getMaxTelemetriesInBatch());
+
+        tested.retune(ONE_SECOND_IN_NANOS);
+        assertEquals(70, buffer.getMaxTelemetriesInBatch());
+    }
+
+    private void arrive(int numberOfTelemetries) {
+        for (int i = 0; i < numberOfTelemetries; ++i) {
+            tested.onTelemetryArrived();
+        }
+    }
+
+    private static TelemetryBuffer<String> createBuffer(int maxTelemetriesInBatch, int transmitBufferTimeoutInSeconds) {
+        LimitsEnforcer batchEnforcer = LimitsEnforcer.createWithClosestLimitOnError(MOCK_PROPERTY_NAME, 1, 1000, maxTelemetriesInBatch, null);
+        LimitsEnforcer sendEnforcer = LimitsEnforcer.createWithClosestLimitOnError(MOCK_PROPERTY_NAME, 1, 300, transmitBufferTimeoutInSeconds, null);
+        return new TelemetryBuffer<String>(new MockSender(), batchEnforcer, sendEnforcer);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class AimdConcurrencyLimitTest {
+    private final static long LATENCY_THRESHOLD_IN_MILLIS = 10000;
+
+    @Test
+    public void testLimitIsEnforced() {
+        AimdConcurrencyLimit tested = new AimdConcurrencyLimit(1, 10, 2, LATENCY_THRESHOLD_IN_MILLIS);
+
+        assertTrue(tested.tryAcquire());
+        assertTrue(tested.tryAcquire());
+        assertFalse(tested.tryAcquire());
+        assertEquals(2, tested.getInFlight());
+
+        tested.onIgnore();
+        assertEquals(1, tested.getInFlight());
+        assertTrue(tested.tryAcquire());
+    }
+
+    @Test
+    public void testFastSuccessesIncreaseByAboutOnePerWindow() {
+        AimdConcurrencyLimit tested = new AimdConcurrencyLimit(1, 10, 4, LATENCY_THRESHOLD_IN_MILLIS);
+
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(tested.tryAcquire());
+            tested.onSuccess(System.nanoTime());
+        }
+
+        assertEquals(4, tested.getLimit());
+
+        assertTrue(tested.tryAcquire());
+        tested.onSuccess(System.nanoTime());
+        assertEquals(5, tested.getLimit());
+    }
+
+    @Test
+    public void testLimitDoesNotGoAboveMax() {
+        AimdConcurrencyLimit tested = new AimdConcurrencyLimit(1, 3, 3, LATENCY_THRESHOLD_IN_MILLIS);
+
+        for (int i = 0; i < 100; ++i) {
+            assertTrue(tested.tryAcquire());
+            tested.onSuccess(System.nanoTime());
+        }
+
+        assertEquals(3, tested.getLimit());
+    }
+
+    @Test
+    public void testOverloadHalvesTheLimit() {
+        AimdConcurrencyLimit tested = new AimdConcurrencyLimit(1, 100, 40, LATENCY_THRESHOLD_IN_MILLIS);
+
+        assertTrue(tested.tryAcquire());
+        tested.onOverload(System.nanoTime());
+
+        assertEquals(20, tested.getLimit());
+        assertEquals(0, tested.getInFlight());
+    }
+
+    @Test
+    public void testOverloadDecreasesOncePerWindow() {
+        AimdConcurrencyLimit tested = new AimdConcurrencyLimit(1, 100, 40, LATENCY_THRESHOLD_IN_MILLIS);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; ++i) {
+            assertTrue(tested.tryAcquire());
+        }
+        tested.onOverload(start);
+        tested.onOverload(start);
+        tested.onOverload(start);
+        assertEquals(20, tested.getLimit());
+
+        assertTrue(tested.tryAcquire());
+        tested.onOverload(System.nanoTime());
+        assertEquals(10, tested.getLimit());
+    }
+
+    @Test
+    public void testSlowSuccessDecreasesTheLimit() throws InterruptedException {
+        AimdConcurrencyLimit tested = new AimdConcurrencyLimit(1, 100, 40, 1);
+
+        long start = System.nanoTime();
+        assertTrue(tested.tryAcquire());
+        Thread.sleep(10);
+        tested.onSuccess(start);
+
+        assertEquals(20, tested.getLimit());
+    }
+
+    @Test
+    public void testLimitDoesNotGoBelowMin() {
+        AimdConcurrencyLimit tested = new AimdConcurrencyLimit(2, 100, 3, LATENCY_THRESHOLD_IN_MILLIS);
+
+        for (int i = 0; i < 5; ++i) {
+            assertTrue(tested.tryAcquire());
+            tested.onOverload(System.nanoTime());
+        }
+
+        assertEquals(2, tested.getLimit());
+    }
+
+    @Test
+    public void testFixedLimitDoesNotAdapt() {
+        AimdConcurrencyLimit tested = AimdConcurrencyLimit.createFixed(5);
+
+        assertTrue(tested.tryAcquire());
+        tested.onOverload(System.nanoTime());
+        assertEquals(5, tested.getLimit());
+
+        assertTrue(tested.tryAcquire());
+        tested.onSuccess(System.nanoTime());
+        assertEquals(5, tested.getLimit());
+    }
+
+    @Test
+    public void testAwaitNoneInFlight() throws InterruptedException {
+        final AimdConcurrencyLimit tested = AimdConcurrencyLimit.createFixed(5);
+
+        assertTrue(tested.awaitNoneInFlight(0, TimeUnit.MILLISECONDS));
+
+        assertTrue(tested.tryAcquire());
+        assertFalse(tested.awaitNoneInFlight(10, TimeUnit.MILLISECONDS));
+
+        Thread releaser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tested.onIgnore();
+            }
+        });
+        releaser.start();
+
+        assertTrue(tested.awaitNoneInFlight(5, TimeUnit.SECONDS));
+        releaser.join();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInitialLimitAboveMax() {
+        new AimdConcurrencyLimit(1, 2, 3, LATENCY_THRESHOLD_IN_MILLIS);
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.microsoft.applicationinsights.internal.channel.TransmissionHandler;
+import com.microsoft.applicationinsights.internal.channel.TransmissionHandlerArgs;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class AsyncTransmissionNetworkOutputTest {
+
+    private final List<FutureCallback<HttpResponse>> callbacks = new ArrayList<FutureCallback<HttpResponse>>();
+    private final List<TransmissionHandlerArgs> handledTransmissions = Collections.synchronizedList(new ArrayList<TransmissionHandlerArgs>());
+    private volatile CountDownLatch handlerGate = new CountDownLatch(0);
+
+    private TransmissionPolicyManager transmissionPolicyManager;
+    private AsyncTransmissionNetworkOutput testedOutput;
+
+    @Before
+    public void setUp() {
+        transmissionPolicyManager = new TransmissionPolicyManager(true);
+        transmissionPolicyManager.addTransmissionHandler(new TransmissionHandler() {
+            @Override
+            public void onTransmissionSent(TransmissionHandlerArgs args) {
+                try {
+                    handlerGate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                handledTransmissions.add(args);
+            }
+        });
+
+        TransmissionNetworkOutput networkOutput = TransmissionNetworkOutput.create("http://localhost/v2/track", transmissionPolicyManager);
+        testedOutput = new AsyncTransmissionNetworkOutput(networkOutput, transmissionPolicyManager.getTransmissionPolicyState(), 2);
+        testedOutput.setHttpClient(createHttpClient());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroInFlightRequests() {
+        new AsyncTransmissionNetworkOutput(TransmissionNetworkOutput.create("http://localhost/v2/track", transmissionPolicyManager),
+                transmissionPolicyManager.getTransmissionPolicyState(), 0);
+    }
+
+    @Test
+    public void testSuccessfulPostIsNotHandled() throws InterruptedException {
+        assertTrue(testedOutput.sendAsync(createTransmission()));
+        assertEquals(1, callbacks.size());
+
+        callbacks.get(0).completed(createResponse(200, "{}"));
+        testedOutput.shutdown(1L, TimeUnit.SECONDS);
+
+        assertTrue(handledTransmissions.isEmpty());
+    }
+
+    @Test
+    public void testFailedResponseIsHandled() throws InterruptedException {
+        Transmission transmission = createTransmission();
+        assertTrue(testedOutput.sendAsync(transmission));
+
+        callbacks.get(0).completed(createResponse(503, "unavailable"));
+
+        assertEquals(1, awaitHandled(1));
+        TransmissionHandlerArgs args = handledTransmissions.get(0);
+        assertEquals(transmission, args.getTransmission());
+        assertEquals(503, args.getResponseCode());
+        assertEquals("unavailable", args.getResponseBody());
+        assertNull(args.getException());
+    }
+
+    @Test
+    public void testFailedPostIsHandled() throws InterruptedException {
+        assertTrue(testedOutput.sendAsync(createTransmission()));
+
+        callbacks.get(0).failed(new SocketException("reset"));
+
+        assertEquals(1, awaitHandled(1));
+        assertEquals(0, handledTransmissions.get(0).getResponseCode());
+        assertTrue(handledTransmissions.get(0).getException() instanceof SocketException);
+    }
+
+    @Test
+    public void testInFlightRequestsAreLimited() throws InterruptedException {
+        assertTrue(testedOutput.sendAsync(createTransmission()));
+        assertTrue(testedOutput.sendAsync(createTransmission()));
+        assertFalse(testedOutput.sendAsync(createTransmission()));
+
+        callbacks.get(0).completed(createResponse(200, "{}"));
+
+        assertTrue(awaitSendAsync(testedOutput));
+        assertEquals(3, callbacks.size());
+    }
+
+    @Test
+    public void testResponsesAreHandledOffTheIOThread() throws InterruptedException {
+        handlerGate = new CountDownLatch(1);
+        assertTrue(testedOutput.sendAsync(createTransmission()));
+        assertTrue(testedOutput.sendAsync(createTransmission()));
+
+        // The calling thread stands for the I/O thread, it is not held by the blocked handlers
+        callbacks.get(0).completed(createResponse(503, "unavailable"));
+        callbacks.get(1).failed(new SocketException("reset"));
+        assertTrue(handledTransmissions.isEmpty());
+
+        // The posts keep their permits until their responses are handled
+        assertFalse(testedOutput.sendAsync(createTransmission()));
+
+        handlerGate.countDown();
+        assertEquals(2, awaitHandled(2));
+        assertTrue(awaitSendAsync(testedOutput));
+    }
+
+    @Test
+    public void testFixedInFlightRequestsDoNotAdapt() throws InterruptedException {
+        assertTrue(testedOutput.sendAsync(createTransmission()));
+
+        callbacks.get(0).completed(createResponse(429, "throttled"));
+        testedOutput.shutdown(1L, TimeUnit.SECONDS);
+
+        assertEquals(2, testedOutput.getInFlightRequestsLimit());
+    }
+
+    @Test
+    public void testAdaptiveInFlightRequestsDecreaseWhenThrottled() throws InterruptedException {
+        AsyncTransmissionNetworkOutput adaptiveOutput = new AsyncTransmissionNetworkOutput(
+                TransmissionNetworkOutput.create("http://localhost/v2/track", transmissionPolicyManager),
+                transmissionPolicyManager.getTransmissionPolicyState(), 16, true);
+        adaptiveOutput.setHttpClient(createHttpClient());
+        try {
+            assertEquals(8, adaptiveOutput.getInFlightRequestsLimit());
+
+            assertTrue(adaptiveOutput.sendAsync(createTransmission()));
+            callbacks.get(0).completed(createResponse(429, "throttled"));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (adaptiveOutput.getInFlightRequestsLimit() != 4 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(4, adaptiveOutput.getInFlightRequestsLimit());
+        } finally {
+            adaptiveOutput.shutdown(1L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testNothingIsSentWhileBlocked() {
+        transmissionPolicyManager.suspendInSeconds(TransmissionPolicy.BLOCKED_BUT_CAN_BE_PERSISTED, 10);
+
+        assertFalse(testedOutput.sendAsync(createTransmission()));
+        assertTrue(callbacks.isEmpty());
+    }
+
+    @Test
+    public void testNothingIsSentAfterShutdown() throws InterruptedException {
+        testedOutput.shutdown(1L, TimeUnit.SECONDS);
+
+        assertFalse(testedOutput.sendAsync(createTransmission()));
+        assertTrue(callbacks.isEmpty());
+    }
+
+    @Test
+    public void testShutdownWaitsForInFlightRequests() throws InterruptedException {
+        assertTrue(testedOutput.sendAsync(createTransmission()));
+
+        long start = System.currentTimeMillis();
+        testedOutput.shutdown(100L, TimeUnit.MILLISECONDS);
+
+        assertTrue(System.currentTimeMillis() - start >= 90);
+    }
+
+    @Test
+    public void testDrainHandsBackThePostsWithoutResponse() throws InterruptedException {
+        Transmission answered = createTransmission();
+        Transmission unanswered = createTransmission();
+        assertTrue(testedOutput.sendAsync(answered));
+        assertTrue(testedOutput.sendAsync(unanswered));
+
+        callbacks.get(0).completed(createResponse(503, "unavailable"));
+        assertEquals(1, awaitHandled(1));
+
+        Collection<Transmission> notSent = testedOutput.drain(100L, TimeUnit.MILLISECONDS);
+        assertEquals(1, notSent.size());
+        assertSame(unanswered, notSent.iterator().next());
+
+        // Cancelled when the client is closed, the transmission is not handled twice
+        callbacks.get(1).cancelled();
+        assertEquals(1, handledTransmissions.size());
+        assertFalse(testedOutput.sendAsync(createTransmission()));
+    }
+
+    @Test
+    public void testDrainHandsBackNothingWhenEveryPostIsAnswered() throws InterruptedException {
+        assertTrue(testedOutput.sendAsync(createTransmission()));
+        callbacks.get(0).completed(createResponse(200, "{}"));
+
+        assertTrue(testedOutput.drain(1L, TimeUnit.SECONDS).isEmpty());
+    }
+
+    private int awaitHandled(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (handledTransmissions.size() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return handledTransmissions.size();
+    }
+
+    /**
+     * @return True once the output takes a transmission, as soon as a handled response gave its permit back
+     */
+    private static boolean awaitSendAsync(AsyncTransmissionNetworkOutput output) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!output.sendAsync(createTransmission())) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private CloseableHttpAsyncClient createHttpClient() {
+        CloseableHttpAsyncClient client = mock(CloseableHttpAsyncClient.class);
+        when(client.execute(any(HttpUriRequest.class), any(FutureCallback.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                callbacks.add((FutureCallback<HttpResponse>) invocation.getArguments()[1]);
+                return null;
+            }
+        });
+        return client;
+    }
+
+    private static Transmission createTransmission() {
+        return new Transmission(new byte[] {1, 2, 3}, "application/x-json-stream", "gzip");
+    }
+
+    private static HttpResponse createResponse(int code, String body) {
+        BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, code, "reason"));
+        response.setEntity(new StringEntity(body, "UTF-8"));
+        return response;
+    }
+}
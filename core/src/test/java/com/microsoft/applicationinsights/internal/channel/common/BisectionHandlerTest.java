@@ -0,0 +1,205 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.microsoft.applicationinsights.internal.channel.TransmissionDispatcher;
+import com.microsoft.applicationinsights.internal.channel.TransmissionHandlerArgs;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BisectionHandlerTest {
+
+    private static final class CollectingDispatcher implements TransmissionDispatcher {
+        private final LinkedList<Transmission> dispatched = new LinkedList<Transmission>();
+
+        @Override
+        public void dispatch(Transmission transmission) {
+            dispatched.add(transmission);
+        }
+
+        @Override
+        public void shutdown(long timeout, TimeUnit timeUnit) {
+        }
+    }
+
+    private final CollectingDispatcher dispatcher = new CollectingDispatcher();
+
+    private final BisectionHandler handler = new BisectionHandler(new GzipTelemetrySerializer());
+
+    @Test
+    public void failOnNull() {
+        Assert.assertFalse(handler.validateTransmissionAndSend(new TransmissionHandlerArgs()));
+    }
+
+    @Test
+    public void fail500Status() {
+        Assert.assertFalse(handler.validateTransmissionAndSend(createArgs(createTransmission(4), 500, null)));
+        Assert.assertTrue(dispatcher.dispatched.isEmpty());
+    }
+
+    @Test
+    public void fail206Status() {
+        Assert.assertFalse(handler.validateTransmissionAndSend(createArgs(createTransmission(4), 206, null)));
+        Assert.assertTrue(dispatcher.dispatched.isEmpty());
+    }
+
+    @Test
+    public void passRejectedTransmissionIsSplitInHalves() {
+        Assert.assertTrue(handler.validateTransmissionAndSend(createArgs(createTransmission(5), 400, "Bad Request")));
+
+        Assert.assertEquals(2, dispatcher.dispatched.size());
+        Assert.assertEquals(items(0, 1), read(dispatcher.dispatched.get(0)));
+        Assert.assertEquals(items(2, 3, 4), read(dispatcher.dispatched.get(1)));
+    }
+
+    @Test
+    public void passTooLargeTransmissionIsSplitInHalves() {
+        Assert.assertTrue(handler.validateTransmissionAndSend(createArgs(createTransmission(4), 413, null)));
+
+        Assert.assertEquals(2, dispatcher.dispatched.size());
+        Assert.assertEquals(items(0, 1), read(dispatcher.dispatched.get(0)));
+        Assert.assertEquals(items(2, 3), read(dispatcher.dispatched.get(1)));
+    }
+
+    @Test
+    public void passTransmissionLoadedFromDiskIsSplitInHalves() {
+        Transmission serialized = createTransmission(4);
+        Transmission loaded = new Transmission(serialized.getContent(), serialized.getWebContentType(), serialized.getWebContentEncodingType());
+
+        Assert.assertTrue(handler.validateTransmissionAndSend(createArgs(loaded, 400, null)));
+
+        Assert.assertEquals(2, dispatcher.dispatched.size());
+        Assert.assertEquals(items(0, 1), read(dispatcher.dispatched.get(0)));
+        Assert.assertEquals(items(2, 3), read(dispatcher.dispatched.get(1)));
+    }
+
+    @Test
+    public void passSingleRejectedItemIsDropped() {
+        long dropped = ChannelMetrics.INSTANCE.getDroppedTelemetries();
+
+        Assert.assertTrue(handler.validateTransmissionAndSend(createArgs(createTransmission(1), 400, null)));
+
+        Assert.assertTrue(dispatcher.dispatched.isEmpty());
+        Assert.assertEquals(dropped + 1, ChannelMetrics.INSTANCE.getDroppedTelemetries());
+    }
+
+    @Test
+    public void passPoisonItemIsIsolatedAndTheOthersAreDelivered() {
+        List<String> delivered = new ArrayList<String>();
+        int sends = 1;
+        String poison = "{\"name\":\"item13\"}";
+
+        Transmission transmission = createTransmission(32);
+        handler.validateTransmissionAndSend(createArgs(transmission, 400, null));
+        while (!dispatcher.dispatched.isEmpty()) {
+            Transmission next = dispatcher.dispatched.removeFirst();
+            ++sends;
+            List<String> items = read(next);
+            if (items.contains(poison)) {
+                handler.validateTransmissionAndSend(createArgs(next, 400, null));
+            } else {
+                delivered.addAll(items);
+            }
+        }
+
+        List<String> expected = items(range(32));
+        expected.remove(poison);
+        Assert.assertEquals(expected.size(), delivered.size());
+        Assert.assertEquals(new HashSet<String>(expected), new HashSet<String>(delivered));
+        // Two halves per level of a binary search
+        Assert.assertEquals(1 + 2 * 5, sends);
+    }
+
+    @Test
+    public void passItemsNamedByTheResponseAreDroppedAndTheOthersAreSent() {
+        String response = "{\"itemsReceived\": 4, \"itemsAccepted\": 0, \"errors\": [" +
+                "{\"index\": 1, \"statusCode\": 400, \"message\": \"109: Field 'name' on type 'EventData' is required\"}," +
+                "{\"index\": 3, \"statusCode\": 400, \"message\": \"109: Field 'name' on type 'EventData' is required\"}]}";
+
+        Assert.assertTrue(handler.validateTransmissionAndSend(createArgs(createTransmission(4), 400, response)));
+
+        Assert.assertEquals(1, dispatcher.dispatched.size());
+        Assert.assertEquals(items(0, 2), read(dispatcher.dispatched.get(0)));
+    }
+
+    @Test
+    public void passRetriableItemsNamedByTheResponseAreSentAgain() {
+        String response = "{\"itemsReceived\": 4, \"itemsAccepted\": 2, \"errors\": [" +
+                "{\"index\": 0, \"statusCode\": 400, \"message\": \"Invalid\"}," +
+                "{\"index\": 2, \"statusCode\": 503, \"message\": \"Service Unavailable\"}]}";
+
+        Assert.assertTrue(handler.validateTransmissionAndSend(createArgs(createTransmission(4), 400, response)));
+
+        Assert.assertEquals(1, dispatcher.dispatched.size());
+        Assert.assertEquals(items(2), read(dispatcher.dispatched.get(0)));
+    }
+
+    @Test
+    public void passTransmissionRejectedWholeIsDropped() {
+        String response = "{\"itemsReceived\": 2, \"itemsAccepted\": 0, \"errors\": [" +
+                "{\"index\": 0, \"statusCode\": 400, \"message\": \"Invalid instrumentation key\"}," +
+                "{\"index\": 1, \"statusCode\": 400, \"message\": \"Invalid instrumentation key\"}]}";
+
+        Assert.assertTrue(handler.validateTransmissionAndSend(createArgs(createTransmission(2), 400, response)));
+
+        Assert.assertTrue(dispatcher.dispatched.isEmpty());
+    }
+
+    private TransmissionHandlerArgs createArgs(Transmission transmission, int code, String responseBody) {
+        TransmissionHandlerArgs args = new TransmissionHandlerArgs();
+        args.setResponseCode(code);
+        args.setTransmission(transmission);
+        args.setTransmissionDispatcher(dispatcher);
+        args.setResponseBody(responseBody);
+        return args;
+    }
+
+    private static Transmission createTransmission(int numberOfItems) {
+        return new GzipTelemetrySerializer().serializeFromStrings(items(range(numberOfItems))).get();
+    }
+
+    private static List<String> read(Transmission transmission) {
+        return PartialSuccessHandler.readOriginalItems(transmission);
+    }
+
+    private static int[] range(int size) {
+        int[] indices = new int[size];
+        for (int i = 0; i < size; ++i) {
+            indices[i] = i;
+        }
+        return indices;
+    }
+
+    private static List<String> items(int... indices) {
+        List<String> items = new ArrayList<String>();
+        for (int index : indices) {
+            items.add("{\"name\":\"item" + index + "\"}");
+        }
+        return items;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import com.microsoft.applicationinsights.internal.util.LimitsEnforcer;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public final class ChannelMetricsTest {
+
+    @Test
+    public void testRegisteredMBeanExposesTheMetrics() throws Exception {
+        ChannelMetrics.INSTANCE.register();
+        ChannelMetrics.INSTANCE.register();
+        ChannelMetrics.INSTANCE.onResponse(TimeUnit.MILLISECONDS.toNanos(20));
+        ChannelMetrics.INSTANCE.onStatusCode(200);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(ChannelMetrics.OBJECT_NAME);
+
+        CompositeData sendLatency = (CompositeData) server.getAttribute(name, "SendLatencyInMillis");
+        assertTrue((Long) sendLatency.get("count") >= 1);
+        assertTrue((Long) sendLatency.get("max") >= 20);
+
+        TabularData statusCodes = (TabularData) server.getAttribute(name, "ResponseStatusCodes");
+        assertNotNull(statusCodes.get(new Object[] {"200"}));
+    }
+
+    @Test
+    public void testMBeanIsUnregisteredWithTheLastBuffer() throws Exception {
+        TelemetryBuffer<String> buffer = new TelemetryBuffer<String>(new CollectingTelemetriesTransmitter(),
+                LimitsEnforcer.createWithClosestLimitOnError("MaxTelemetriesInBatch", 1, 1000, 100, null),
+                LimitsEnforcer.createWithClosestLimitOnError("TransmitBufferTimeoutInSeconds", 1, 300, 300, null));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(ChannelMetrics.OBJECT_NAME);
+
+        ChannelMetrics.INSTANCE.addBuffer(buffer);
+        ChannelMetrics.INSTANCE.register();
+        assertTrue(server.isRegistered(name));
+
+        ChannelMetrics.INSTANCE.removeBuffer(buffer);
+        // Channels of other tests may still be open
+        assertEquals(ChannelMetrics.INSTANCE.getNumberOfBuffers() != 0, server.isRegistered(name));
+
+        ChannelMetrics.INSTANCE.register();
+        assertTrue(server.isRegistered(name));
+    }
+
+    @Test
+    public void testSerializerRecordsBatchAndCompression() {
+        long before = ChannelMetrics.INSTANCE.getBatchSize().getCount();
+
+        new GzipTelemetrySerializer().serialize(Collections.<Telemetry>nCopies(3, new RequestTelemetry()));
+
+        assertEquals(before + 1, ChannelMetrics.INSTANCE.getBatchSize().getCount());
+        assertTrue(ChannelMetrics.INSTANCE.getCompressionRatio() > 1);
+    }
+
+    @Test
+    public void testBufferedAndDroppedTelemetries() {
+        TelemetryBuffer<String> buffer = new TelemetryBuffer<String>(new CollectingTelemetriesTransmitter(),
+                LimitsEnforcer.createWithClosestLimitOnError("MaxTelemetriesInBatch", 1, 1000, 100, null),
+                LimitsEnforcer.createWithClosestLimitOnError("TransmitBufferTimeoutInSeconds", 1, 300, 300, null));
+        ChannelMetrics.INSTANCE.addBuffer(buffer);
+        try {
+            long buffered = ChannelMetrics.INSTANCE.getBufferedTelemetries();
+            buffer.add("first");
+            buffer.add("second");
+            assertEquals(buffered + 2, ChannelMetrics.INSTANCE.getBufferedTelemetries());
+
+            buffer.flush();
+            assertEquals(buffered, ChannelMetrics.INSTANCE.getBufferedTelemetries());
+        } finally {
+            ChannelMetrics.INSTANCE.removeBuffer(buffer);
+        }
+
+        long dropped = ChannelMetrics.INSTANCE.getDroppedTelemetries();
+        new TelemetryDropCounters().record(Collections.nCopies(4, new RequestTelemetry()));
+        assertEquals(dropped + 4, ChannelMetrics.INSTANCE.getDroppedTelemetries());
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter;
+
+/**
+ * Runs the fetchers on its own threads and collects everything that was sent.
+ */
+final class CollectingTelemetriesTransmitter implements TelemetriesTransmitter<String> {
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(2);
+    private final List<String> sent = new ArrayList<String>();
+    private final List<Integer> batchSizes = new ArrayList<Integer>();
+    private int scheduleSendCalls;
+
+    @Override
+    public synchronized boolean scheduleSend(final TelemetriesFetcher<String> telemetriesFetcher, long value, TimeUnit timeUnit) {
+        ++scheduleSendCalls;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                collect(telemetriesFetcher.fetch());
+            }
+        }, value, timeUnit);
+        return true;
+    }
+
+    @Override
+    public boolean sendNow(Collection<String> telemetries) {
+        collect(telemetries);
+        return true;
+    }
+
+    @Override
+    public void shutdown(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(timeout, timeUnit);
+    }
+
+    private synchronized void collect(Collection<String> telemetries) {
+        if (!telemetries.isEmpty()) {
+            sent.addAll(telemetries);
+            batchSizes.add(telemetries.size());
+        }
+    }
+
+    synchronized List<String> getSent() {
+        return new ArrayList<String>(sent);
+    }
+
+    synchronized List<Integer> getBatchSizes() {
+        return new ArrayList<Integer>(batchSizes);
+    }
+
+    synchronized int getScheduleSendCalls() {
+        return scheduleSendCalls;
+    }
+
+    void waitForSent(int expected, long timeoutInMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutInMillis;
+        while (getSent().size() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.microsoft.applicationinsights.internal.channel.SerializedTelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.util.LimitsEnforcer;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+import com.microsoft.applicationinsights.telemetry.TraceTelemetry;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class CompressingTelemetryBufferTest {
+    private final static String MOCK_PROPERTY_NAME = "MockProperty";
+
+    /**
+     * Runs the fetchers on its own thread and collects the compressed batches.
+     */
+    private static final class CollectingSerializedTransmitter implements TelemetriesTransmitter<Telemetry>, SerializedTelemetriesTransmitter {
+        private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        private final List<Transmission> transmissions = new ArrayList<Transmission>();
+        private int fetchedTelemetries;
+
+        @Override
+        public boolean scheduleSend(final TelemetriesFetcher<Telemetry> telemetriesFetcher, long value, TimeUnit timeUnit) {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Collection<Telemetry> fetched = telemetriesFetcher.fetch();
+                    synchronized (CollectingSerializedTransmitter.this) {
+                        fetchedTelemetries += fetched.size();
+                    }
+                }
+            }, value, timeUnit);
+            return true;
+        }
+
+        @Override
+        public boolean sendNow(Collection<Telemetry> telemetries) {
+            throw new AssertionError("The batches are expected to be sent compressed");
+        }
+
+        @Override
+        public synchronized boolean sendNow(Transmission transmission, Map<String, Integer> telemetryCounts) {
+            transmissions.add(transmission);
+            return true;
+        }
+
+        @Override
+        public void shutdown(long timeout, TimeUnit timeUnit) throws InterruptedException {
+            scheduler.shutdown();
+            scheduler.awaitTermination(timeout, timeUnit);
+        }
+
+        synchronized List<Transmission> getTransmissions() {
+            return new ArrayList<Transmission>(transmissions);
+        }
+
+        synchronized int getFetchedTelemetries() {
+            return fetchedTelemetries;
+        }
+
+        void waitForTransmissions(int expected, long timeoutInMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutInMillis;
+            while (getTransmissions().size() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private final CollectingSerializedTransmitter transmitter = new CollectingSerializedTransmitter();
+
+    @After
+    public void tearDown() throws InterruptedException {
+        transmitter.shutdown(1L, TimeUnit.SECONDS);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullSerializedSender() {
+        new CompressingTelemetryBuffer(transmitter, null, createEnforcer(10), createEnforcer(10));
+    }
+
+    @Test
+    public void testFullBatchIsSentCompressedInTheSerializerFormat() throws IOException {
+        CompressingTelemetryBuffer testedBuffer = new CompressingTelemetryBuffer(transmitter, transmitter, createEnforcer(3), createEnforcer(100));
+
+        List<Telemetry> telemetries = Arrays.<Telemetry>asList(new TraceTelemetry("first"), new TraceTelemetry("second"), new TraceTelemetry("third"));
+        for (Telemetry telemetry : telemetries) {
+            testedBuffer.add(telemetry);
+        }
+
+        List<Transmission> transmissions = transmitter.getTransmissions();
+        assertEquals(1, transmissions.size());
+        assertEquals(GzipTelemetrySerializer.GZIP_WEB_CONTENT_TYPE, transmissions.get(0).getWebContentType());
+        assertEquals(GzipTelemetrySerializer.GZIP_WEB_ENCODING_TYPE, transmissions.get(0).getWebContentEncodingType());
+
+        Transmission expected = new GzipTelemetrySerializer().serialize(telemetries).get();
+        assertEquals(decompress(expected), decompress(transmissions.get(0)));
+    }
+
+    @Test
+    public void testFlushSendsPartialBatch() throws IOException {
+        CompressingTelemetryBuffer testedBuffer = new CompressingTelemetryBuffer(transmitter, transmitter, createEnforcer(10), createEnforcer(100));
+
+        testedBuffer.flush();
+        assertTrue(transmitter.getTransmissions().isEmpty());
+
+        testedBuffer.add(new TraceTelemetry("first"));
+        testedBuffer.add(new TraceTelemetry("second"));
+        testedBuffer.flush();
+
+        List<Transmission> transmissions = transmitter.getTransmissions();
+        assertEquals(1, transmissions.size());
+        assertEquals(2, decompress(transmissions.get(0)).split(System.getProperty("line.separator")).length);
+    }
+
+    @Test
+    public void testTimerSendsBatch() throws Exception {
+        CompressingTelemetryBuffer testedBuffer = new CompressingTelemetryBuffer(transmitter, transmitter, createEnforcer(10), createEnforcer(1));
+
+        testedBuffer.add(new TraceTelemetry("first"));
+        assertTrue(transmitter.getTransmissions().isEmpty());
+
+        transmitter.waitForTransmissions(1, 3000);
+        assertEquals(1, transmitter.getTransmissions().size());
+        assertEquals(0, transmitter.getFetchedTelemetries());
+    }
+
+    @Test
+    public void testTimerOfSentBatchSendsNothing() throws Exception {
+        CompressingTelemetryBuffer testedBuffer = new CompressingTelemetryBuffer(transmitter, transmitter, createEnforcer(10), createEnforcer(1));
+
+        testedBuffer.add(new TraceTelemetry("first"));
+        testedBuffer.flush();
+
+        Thread.sleep(1500);
+        assertEquals(1, transmitter.getTransmissions().size());
+    }
+
+    @Test
+    public void testBatchesAreCutBySerializedSize() throws IOException {
+        CompressingTelemetryBuffer testedBuffer = new CompressingTelemetryBuffer(transmitter, transmitter, createEnforcer(100), createEnforcer(100));
+        int telemetrySizeInBytes = (int) GzipTelemetryBatch.serialize(new TraceTelemetry("message")).size();
+        testedBuffer.setMaxBatchSizeInBytes(new JsonTelemetrySizeEstimator(), 2 * telemetrySizeInBytes);
+
+        for (int i = 0; i < 5; ++i) {
+            testedBuffer.add(new TraceTelemetry("message"));
+        }
+        testedBuffer.flush();
+
+        // Two telemetries and their separator reach the maximum size, so every batch holds two
+        List<Transmission> transmissions = transmitter.getTransmissions();
+        assertEquals(3, transmissions.size());
+        assertEquals(2, decompress(transmissions.get(0)).split(System.getProperty("line.separator")).length);
+        assertEquals(2, decompress(transmissions.get(1)).split(System.getProperty("line.separator")).length);
+        assertEquals(1, decompress(transmissions.get(2)).split(System.getProperty("line.separator")).length);
+    }
+
+    private static LimitsEnforcer createEnforcer(int value) {
+        return LimitsEnforcer.createWithClosestLimitOnError(MOCK_PROPERTY_NAME, 1, 1000, value, value);
+    }
+
+    private static String decompress(Transmission transmission) throws IOException {
+        GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(transmission.getContent()));
+        try {
+            return new String(ByteStreams.toByteArray(gis), Charsets.UTF_8);
+        } finally {
+            gis.close();
+        }
+    }
+}
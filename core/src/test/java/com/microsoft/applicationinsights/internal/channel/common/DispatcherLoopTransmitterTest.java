@@ -0,0 +1,353 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Optional;
+import com.microsoft.applicationinsights.internal.channel.BackpressurePolicy;
+import com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.channel.TelemetrySerializer;
+import com.microsoft.applicationinsights.internal.channel.TransmissionDispatcher;
+import com.microsoft.applicationinsights.internal.channel.TransmissionOutputSync;
+import com.microsoft.applicationinsights.internal.channel.TransmissionsLoader;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+import com.microsoft.applicationinsights.telemetry.TraceTelemetry;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class DispatcherLoopTransmitterTest {
+
+    /**
+     * Counts the dispatched transmissions, and keeps the dispatcher thread busy until released when asked to.
+     */
+    private static final class StubDispatcher implements TransmissionDispatcher {
+        private final CountDownLatch release;
+        private final AtomicInteger dispatched = new AtomicInteger(0);
+
+        private StubDispatcher(boolean blocking) {
+            release = new CountDownLatch(blocking ? 1 : 0);
+        }
+
+        @Override
+        public void dispatch(Transmission transmission) {
+            dispatched.incrementAndGet();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void shutdown(long timeout, TimeUnit timeUnit) {
+        }
+
+        void waitForDispatched(int expected) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 3000;
+            while (dispatched.get() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(expected, dispatched.get());
+        }
+    }
+
+    private static final class StubSerializer implements TelemetrySerializer {
+        @Override
+        public Optional<Transmission> serialize(Collection<Telemetry> telemetries) {
+            return Optional.of(new Transmission(new byte[1], "MWCT", "MCET"));
+        }
+    }
+
+    private static final class StubLoader implements TransmissionsLoader {
+        private final AtomicInteger loads = new AtomicInteger(0);
+
+        @Override
+        public boolean load(boolean waitForThreadsToStart) {
+            loads.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    private static final class StubSpillOutput implements TransmissionOutputSync {
+        private final AtomicInteger transmissions = new AtomicInteger(0);
+
+        @Override
+        public boolean sendSync(Transmission transmission) {
+            transmissions.incrementAndGet();
+            return true;
+        }
+    }
+
+    private static final class StubFetcher implements TelemetriesTransmitter.TelemetriesFetcher<Telemetry> {
+        private final AtomicInteger fetches = new AtomicInteger(0);
+
+        @Override
+        public Collection<Telemetry> fetch() {
+            fetches.incrementAndGet();
+            return Collections.<Telemetry>singletonList(new RequestTelemetry());
+        }
+    }
+
+    private static final class StubExpiringFetcher implements TelemetriesTransmitter.ExpiringTelemetriesFetcher<Telemetry> {
+        private final AtomicInteger fetches = new AtomicInteger(0);
+        private volatile boolean expired;
+
+        @Override
+        public Collection<Telemetry> fetch() {
+            fetches.incrementAndGet();
+            return Collections.<Telemetry>singletonList(new RequestTelemetry());
+        }
+
+        @Override
+        public boolean isExpired() {
+            return expired;
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullDispatcher() {
+        new DispatcherLoopTransmitter(null, new StubSerializer(), new StubLoader(), null);
+    }
+
+    @Test
+    public void testLoaderIsStarted() throws Exception {
+        StubLoader loader = new StubLoader();
+        DispatcherLoopTransmitter transmitter = new DispatcherLoopTransmitter(new StubDispatcher(false), new StubSerializer(), loader, null);
+        transmitter.shutdown(1L, TimeUnit.SECONDS);
+
+        assertEquals(1, loader.loads.get());
+    }
+
+    @Test
+    public void testSendNowIsDispatched() throws Exception {
+        StubDispatcher dispatcher = new StubDispatcher(false);
+        DispatcherLoopTransmitter transmitter = new DispatcherLoopTransmitter(dispatcher, new StubSerializer(), new StubLoader(), null);
+        try {
+            for (int i = 0; i < 10; ++i) {
+                assertTrue(transmitter.sendNow(Collections.<Telemetry>singletonList(new RequestTelemetry())));
+            }
+
+            dispatcher.waitForDispatched(10);
+        } finally {
+            transmitter.shutdown(1L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testEmptyBatchIsNotDispatched() throws Exception {
+        StubDispatcher dispatcher = new StubDispatcher(false);
+        DispatcherLoopTransmitter transmitter = new DispatcherLoopTransmitter(dispatcher, new StubSerializer(), new StubLoader(), null);
+        assertTrue(transmitter.sendNow(Collections.<Telemetry>emptyList()));
+        transmitter.shutdown(1L, TimeUnit.SECONDS);
+
+        assertEquals(0, dispatcher.dispatched.get());
+    }
+
+    @Test
+    public void testScheduledFetchesFireInDeadlineOrder() throws Exception {
+        StubDispatcher dispatcher = new StubDispatcher(false);
+        DispatcherLoopTransmitter transmitter = new DispatcherLoopTransmitter(dispatcher, new StubSerializer(), new StubLoader(), null);
+        try {
+            StubFetcher late = new StubFetcher();
+            StubFetcher early = new StubFetcher();
+            assertTrue(transmitter.scheduleSend(late, 10, TimeUnit.SECONDS));
+            assertTrue(transmitter.scheduleSend(early, 50, TimeUnit.MILLISECONDS));
+
+            dispatcher.waitForDispatched(1);
+            assertEquals(1, early.fetches.get());
+            assertEquals(0, late.fetches.get());
+        } finally {
+            transmitter.shutdown(1L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testShutdownFiresScheduledFetches() throws Exception {
+        StubDispatcher dispatcher = new StubDispatcher(false);
+        DispatcherLoopTransmitter transmitter = new DispatcherLoopTransmitter(dispatcher, new StubSerializer(), new StubLoader(), null);
+        StubFetcher fetcher = new StubFetcher();
+        assertTrue(transmitter.scheduleSend(fetcher, 1, TimeUnit.HOURS));
+
+        transmitter.shutdown(1L, TimeUnit.SECONDS);
+
+        assertEquals(1, fetcher.fetches.get());
+        assertEquals(1, dispatcher.dispatched.get());
+        assertFalse(transmitter.sendNow(Collections.<Telemetry>singletonList(new RequestTelemetry())));
+    }
+
+    @Test
+    public void testDropNewestDropsIncomingBatchWhenOverloaded() throws Exception {
+        StubDispatcher dispatcher = new StubDispatcher(true);
+        DispatcherLoopTransmitter transmitter = createOverloadedTransmitter(dispatcher, BackpressurePolicy.DROP_NEWEST);
+        try {
+            assertFalse(transmitter.sendNow(Collections.<Telemetry>singletonList(new RequestTelemetry())));
+
+            Map<String, Long> dropped = transmitter.getDroppedTelemetries();
+            assertEquals(1, dropped.size());
+            assertEquals(Long.valueOf(1), dropped.get("RequestTelemetry"));
+        } finally {
+            dispatcher.release.countDown();
+            transmitter.shutdown(1L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testDropOldestDropsOldestReadyBatchWhenOverloaded() throws Exception {
+        StubDispatcher dispatcher = new StubDispatcher(true);
+        DispatcherLoopTransmitter transmitter = createOverloadedTransmitter(dispatcher, BackpressurePolicy.DROP_OLDEST);
+        try {
+            assertTrue(transmitter.sendNow(Collections.<Telemetry>singletonList(new RequestTelemetry())));
+
+            Map<String, Long> dropped = transmitter.getDroppedTelemetries();
+            assertEquals(1, dropped.size());
+            assertEquals(Long.valueOf(1), dropped.get("TraceTelemetry"));
+        } finally {
+            dispatcher.release.countDown();
+            transmitter.shutdown(1L, TimeUnit.SECONDS);
+        }
+
+        // The running batch, the ready one that was kept and the new one
+        assertEquals(3, dispatcher.dispatched.get());
+    }
+
+    @Test
+    public void testBlockWithTimeoutWaitsThenDrops() throws Exception {
+        StubDispatcher dispatcher = new StubDispatcher(true);
+        DispatcherLoopTransmitter transmitter = createOverloadedTransmitter(dispatcher, BackpressurePolicy.BLOCK_WITH_TIMEOUT);
+        transmitter.setBackpressurePolicy(BackpressurePolicy.BLOCK_WITH_TIMEOUT, 100);
+        try {
+            long start = System.currentTimeMillis();
+            assertFalse(transmitter.sendNow(Collections.<Telemetry>singletonList(new RequestTelemetry())));
+            assertTrue(System.currentTimeMillis() - start >= 90);
+
+            assertEquals(Long.valueOf(1), transmitter.getDroppedTelemetries().get("RequestTelemetry"));
+        } finally {
+            dispatcher.release.countDown();
+            transmitter.shutdown(1L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testScheduleSendWhenOverloadedLeavesTheBatchToTheCaller() throws Exception {
+        StubDispatcher dispatcher = new StubDispatcher(true);
+        DispatcherLoopTransmitter transmitter = createOverloadedTransmitter(dispatcher, BackpressurePolicy.DROP_NEWEST);
+        try {
+            StubFetcher fetcher = new StubFetcher();
+            assertFalse(transmitter.scheduleSend(fetcher, 10, TimeUnit.SECONDS));
+
+            // The caller sends the batch now, where the backpressure policy applies to it
+            assertEquals(0, fetcher.fetches.get());
+            assertTrue(transmitter.getDroppedTelemetries().isEmpty());
+        } finally {
+            dispatcher.release.countDown();
+            transmitter.shutdown(1L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testExpiredScheduledFetchMakesRoomWhenOverloaded() throws Exception {
+        StubDispatcher dispatcher = new StubDispatcher(true);
+        DispatcherLoopTransmitter transmitter = new DispatcherLoopTransmitter(dispatcher, new StubSerializer(), new StubLoader(), null, 2);
+        transmitter.setBackpressurePolicy(BackpressurePolicy.DROP_NEWEST, 0);
+        StubExpiringFetcher fetcher = new StubExpiringFetcher();
+        try {
+            assertTrue(transmitter.sendNow(Collections.<Telemetry>singletonList(new TraceTelemetry("running"))));
+            dispatcher.waitForDispatched(1);
+
+            // The buffer flushes the batch of the scheduled fetch before its deadline
+            assertTrue(transmitter.scheduleSend(fetcher, 1, TimeUnit.HOURS));
+            assertTrue(transmitter.sendNow(Collections.<Telemetry>singletonList(new TraceTelemetry("flushed"))));
+            fetcher.expired = true;
+
+            assertTrue(transmitter.sendNow(Collections.<Telemetry>singletonList(new RequestTelemetry())));
+            assertTrue(transmitter.getDroppedTelemetries().isEmpty());
+        } finally {
+            dispatcher.release.countDown();
+            transmitter.shutdown(1L, TimeUnit.SECONDS);
+        }
+
+        assertEquals(0, fetcher.fetches.get());
+        assertEquals(3, dispatcher.dispatched.get());
+    }
+
+    @Test
+    public void testDrainSpillsQueuedBatchesWhenBudgetRunsOut() throws Exception {
+        StubDispatcher dispatcher = new StubDispatcher(true);
+        StubSpillOutput spillOutput = new StubSpillOutput();
+        DispatcherLoopTransmitter transmitter = new DispatcherLoopTransmitter(dispatcher, new StubSerializer(), new StubLoader(), spillOutput, 2);
+        StubFetcher fetcher = new StubFetcher();
+        try {
+            assertTrue(transmitter.sendNow(Collections.<Telemetry>singletonList(new TraceTelemetry("running"))));
+            dispatcher.waitForDispatched(1);
+
+            assertTrue(transmitter.sendNow(Collections.<Telemetry>singletonList(new TraceTelemetry("pending"))));
+            assertTrue(transmitter.scheduleSend(fetcher, 1, TimeUnit.HOURS));
+
+            transmitter.drainAndShutdown(200L, TimeUnit.MILLISECONDS);
+
+            // The ready batch and the scheduled one, the dispatcher thread is still sending
+            assertEquals(2, spillOutput.transmissions.get());
+            assertEquals(1, fetcher.fetches.get());
+
+            assertFalse(transmitter.sendNow(Collections.<Telemetry>singletonList(new RequestTelemetry())));
+            assertEquals(3, spillOutput.transmissions.get());
+        } finally {
+            dispatcher.release.countDown();
+        }
+
+        assertEquals(1, dispatcher.dispatched.get());
+    }
+
+    private static DispatcherLoopTransmitter createOverloadedTransmitter(StubDispatcher dispatcher, BackpressurePolicy policy) throws InterruptedException {
+        return createOverloadedTransmitter(dispatcher, null, policy);
+    }
+
+    /**
+     * Creates a transmitter that allows two pending batches, with the dispatcher thread busy and both pending batches taken.
+     */
+    private static DispatcherLoopTransmitter createOverloadedTransmitter(StubDispatcher dispatcher, TransmissionOutputSync spillOutput, BackpressurePolicy policy) throws InterruptedException {
+        DispatcherLoopTransmitter transmitter = new DispatcherLoopTransmitter(dispatcher, new StubSerializer(), new StubLoader(), spillOutput, 2);
+        transmitter.setBackpressurePolicy(policy, 0);
+
+        assertTrue(transmitter.sendNow(Collections.<Telemetry>singletonList(new TraceTelemetry("running"))));
+        dispatcher.waitForDispatched(1);
+
+        assertTrue(transmitter.sendNow(Collections.<Telemetry>singletonList(new TraceTelemetry("pending"))));
+        assertTrue(transmitter.sendNow(Collections.<Telemetry>singletonList(new TraceTelemetry("pending"))));
+
+        return transmitter;
+    }
+}
@@ -25,10 +25,13 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.zip.GZIPInputStream;
 
 import com.google.common.base.Charsets;
@@ -152,6 +155,214 @@ public final class GzipTelemetrySerializerTest {
         testSerialization(10);
     }
 
+    @Test
+    public void testSerializeReusesTheEncoderBetweenBatches() throws Exception {
+        GzipTelemetrySerializer tested = new GzipTelemetrySerializer();
+
+        for (int batch = 0; batch < 3; ++batch) {
+            List<Telemetry> telemetries = new ArrayList<Telemetry>();
+            for (int i = 0; i < 100; ++i) {
+                telemetries.add(createStubTelemetry(batch + "_" + i));
+            }
+
+            String[] stubStrings = decompress(tested.serialize(telemetries).get());
+
+            assertEquals(100, stubStrings.length);
+            Gson gson = new Gson();
+            for (int i = 0; i < 100; ++i) {
+                assertEquals(telemetries.get(i), gson.fromJson(stubStrings[i], StubTelemetry.class));
+            }
+        }
+    }
+
+    @Test
+    public void testItemThatFailsToSerializeIsDroppedWhole() throws Exception {
+        GzipTelemetrySerializer tested = new GzipTelemetrySerializer();
+
+        StubTelemetry failing = new StubTelemetry("failing", new HashMap<String, String>()) {
+            @Override
+            public void serialize(JsonTelemetryDataSerializer writer) throws IOException {
+                writer.write("ver", 1);
+                throw new IOException("failed half way");
+            }
+        };
+        List<Telemetry> telemetries = new ArrayList<Telemetry>();
+        telemetries.add(failing);
+        telemetries.add(createStubTelemetry("1"));
+        telemetries.add(failing);
+        telemetries.add(createStubTelemetry("2"));
+
+        String[] stubStrings = decompress(tested.serialize(telemetries).get());
+
+        assertEquals(2, stubStrings.length);
+        Gson gson = new Gson();
+        assertEquals(telemetries.get(1), gson.fromJson(stubStrings[0], StubTelemetry.class));
+        assertEquals(telemetries.get(3), gson.fromJson(stubStrings[1], StubTelemetry.class));
+    }
+
+    @Test
+    public void testItemRejectedByTheWriterIsDroppedWhole() throws Exception {
+        GzipTelemetrySerializer tested = new GzipTelemetrySerializer();
+
+        StubTelemetry rejected = new StubTelemetry("rejected", new HashMap<String, String>()) {
+            @Override
+            public void serialize(JsonTelemetryDataSerializer writer) throws IOException {
+                writer.write("ver", 1);
+                // Stands for a value the strict writer does not take, e.g. NaN
+                throw new IllegalArgumentException("Numeric values must be finite");
+            }
+        };
+        List<Telemetry> telemetries = new ArrayList<Telemetry>();
+        telemetries.add(createStubTelemetry("1"));
+        telemetries.add(rejected);
+        telemetries.add(createStubTelemetry("2"));
+
+        String[] stubStrings = decompress(tested.serialize(telemetries).get());
+
+        assertEquals(2, stubStrings.length);
+        Gson gson = new Gson();
+        assertEquals(telemetries.get(0), gson.fromJson(stubStrings[0], StubTelemetry.class));
+        assertEquals(telemetries.get(2), gson.fromJson(stubStrings[1], StubTelemetry.class));
+    }
+
+    @Test
+    public void testSerializedTransmissionKeepsTheOffsetsOfItsItems() throws Exception {
+        GzipTelemetrySerializer tested = new GzipTelemetrySerializer();
+        List<Telemetry> telemetries = new ArrayList<Telemetry>();
+        for (int i = 0; i < 10; ++i) {
+            telemetries.add(createStubTelemetry(String.valueOf(i)));
+        }
+
+        Transmission transmission = tested.serialize(telemetries).get();
+        String[] stubStrings = decompress(transmission);
+
+        assertEquals(10, transmission.getItemOffsets().size());
+        TransmissionItems items = TransmissionItems.read(transmission);
+        assertNotNull(items);
+        assertEquals(10, items.size());
+        for (int i = 0; i < 10; ++i) {
+            assertEquals(stubStrings[i], items.readItem(i));
+        }
+    }
+
+    @Test
+    public void testSerializeItemsSlicesTheItems() throws Exception {
+        GzipTelemetrySerializer tested = new GzipTelemetrySerializer();
+        List<Telemetry> telemetries = new ArrayList<Telemetry>();
+        for (int i = 0; i < 10; ++i) {
+            telemetries.add(createStubTelemetry(String.valueOf(i)));
+        }
+        Transmission original = tested.serialize(telemetries).get();
+        String[] originalStrings = decompress(original);
+
+        TransmissionItems originalItems = TransmissionItems.read(original);
+        Transmission retry = tested.serializeItems(originalItems, Arrays.asList(7, 2, 9)).get();
+
+        String[] stubStrings = decompress(retry);
+        assertEquals(3, stubStrings.length);
+        assertEquals(originalStrings[7], stubStrings[0]);
+        assertEquals(originalStrings[2], stubStrings[1]);
+        assertEquals(originalStrings[9], stubStrings[2]);
+        assertEquals(3, retry.getItemOffsets().size());
+        assertEquals(originalStrings[2], TransmissionItems.read(retry).readItem(1));
+
+        // The items of the original transmission are left as they were
+        assertEquals(originalStrings[7], originalItems.readItem(7));
+    }
+
+    @Test
+    public void testItemOffsetsAreReleasedWithTheBody() throws Exception {
+        Transmission transmission = new GzipTelemetrySerializer().serialize(Arrays.<Telemetry>asList(createStubTelemetry("0"))).get();
+        assertNotNull(transmission.getItemOffsets());
+
+        transmission.releaseBody();
+
+        assertNull(transmission.getItemOffsets());
+        // The number of items is kept, it is persisted with the transmission
+        assertEquals(1, transmission.getNumberOfItems());
+    }
+
+    @Test
+    public void testItemsOfALoadedTransmissionAreSplitByLines() throws Exception {
+        Transmission serialized = new GzipTelemetrySerializer().serializeFromStrings(Arrays.asList("{\"a\":1}", "{\"b\":2}", "{\"c\":3}")).get();
+        // The offsets are not persisted
+        Transmission loaded = new Transmission(serialized.getContent(), serialized.getWebContentType(), serialized.getWebContentEncodingType());
+        assertNull(loaded.getItemOffsets());
+
+        TransmissionItems items = TransmissionItems.read(loaded);
+
+        assertEquals(3, items.size());
+        assertEquals("{\"a\":1}", items.readItem(0));
+        assertEquals("{\"c\":3}", items.readItem(2));
+    }
+
+    @Test
+    public void testSerializeFromStringsWritesUtf8() throws Exception {
+        GzipTelemetrySerializer tested = new GzipTelemetrySerializer();
+        String item = "{\"name\":\"caf\u00e9 \u4e2d\u6587\"}";
+
+        Transmission transmission = tested.serializeFromStrings(Arrays.asList(item, item)).get();
+
+        String[] stubStrings = decompress(transmission);
+        assertEquals(2, stubStrings.length);
+        assertEquals(item, stubStrings[0]);
+        assertEquals(item, stubStrings[1]);
+        assertEquals(item, TransmissionItems.read(transmission).readItem(1));
+    }
+
+    private static String[] decompress(Transmission transmission) throws IOException {
+        GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(transmission.getContent()));
+        try {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int len;
+            while ((len = gis.read(buf)) > 0) {
+                contents.write(buf, 0, len);
+            }
+            return new String(contents.toByteArray(), Charsets.UTF_8).split(System.getProperty("line.separator"));
+        } finally {
+            gis.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentSerializationKeepsABoundedNumberOfEncoders() throws Exception {
+        final GzipTelemetrySerializer tested = new GzipTelemetrySerializer();
+        int numberOfThreads = GzipTelemetrySerializer.MAX_IDLE_ENCODERS * 2;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < numberOfThreads; ++t) {
+            final String item = "{\"thread\":" + t + "}";
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 50; ++i) {
+                            Transmission transmission = tested.serializeFromStrings(Arrays.asList(item, item)).get();
+                            if (!Arrays.equals(new String[] {item, item}, decompress(transmission))) {
+                                failures.add(item);
+                            }
+                        }
+                    } catch (Exception e) {
+                        failures.add(e.toString());
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(Collections.<String>emptyList(), failures);
+        assertTrue(GzipTelemetrySerializer.getIdleEncoders() <= GzipTelemetrySerializer.MAX_IDLE_ENCODERS);
+    }
+
     private void testSerialization(int amount) throws Exception {
         GzipTelemetrySerializer tested = new GzipTelemetrySerializer();
 
@@ -0,0 +1,95 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.Date;
+
+import com.google.common.base.Charsets;
+import com.microsoft.applicationinsights.telemetry.ExceptionTelemetry;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+import com.microsoft.applicationinsights.telemetry.TraceTelemetry;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class JsonTelemetrySizeEstimatorTest {
+    private final int newlineSize = System.getProperty("line.separator").getBytes().length;
+
+    @Test
+    public void testEstimateIsCloseToTheSerializedSize() {
+        TraceTelemetry telemetry = new TraceTelemetry("trace message");
+        telemetry.getContext().setInstrumentationKey("00000000-0000-0000-0000-000000000000");
+        telemetry.getContext().getOperation().setId("0123456789abcdef");
+        telemetry.getProperties().put("key", "value");
+
+        assertCloseToTheSerializedSize(telemetry);
+    }
+
+    @Test
+    public void testEstimateOfRequestIsCloseToTheSerializedSize() {
+        RequestTelemetry telemetry = new RequestTelemetry("GET /api/items", new Date(), 123, "200", true);
+        telemetry.setUrl("http://localhost/api/items?page=1");
+        telemetry.getContext().setInstrumentationKey("00000000-0000-0000-0000-000000000000");
+
+        assertCloseToTheSerializedSize(telemetry);
+    }
+
+    @Test
+    public void testEstimateCountsNonAsciiCharactersInBytes() {
+        JsonTelemetrySizeEstimator estimator = new JsonTelemetrySizeEstimator();
+
+        int asciiSize = estimator.estimateSizeInBytes(new TraceTelemetry("abcd"));
+        int nonAsciiSize = estimator.estimateSizeInBytes(new TraceTelemetry("\u05e9\u05dc\u05d5\u05dd"));
+
+        assertEquals(4, nonAsciiSize - asciiSize);
+    }
+
+    @Test
+    public void testEstimateGrowsWithTheProperties() {
+        JsonTelemetrySizeEstimator estimator = new JsonTelemetrySizeEstimator();
+        TraceTelemetry telemetry = new TraceTelemetry("trace message");
+        int before = estimator.estimateSizeInBytes(telemetry);
+
+        telemetry.getProperties().put("key", "value");
+
+        assertTrue(estimator.estimateSizeInBytes(telemetry) >= before + "keyvalue".length());
+    }
+
+    @Test
+    public void testExceptionIsLargerThanTrace() {
+        JsonTelemetrySizeEstimator estimator = new JsonTelemetrySizeEstimator();
+
+        int traceSize = estimator.estimateSizeInBytes(new TraceTelemetry("trace message"));
+        int exceptionSize = estimator.estimateSizeInBytes(new ExceptionTelemetry(new IllegalStateException("exception message")));
+
+        assertTrue(exceptionSize > traceSize);
+    }
+
+    private void assertCloseToTheSerializedSize(Telemetry telemetry) {
+        int serializedSize = telemetry.toString().getBytes(Charsets.UTF_8).length + newlineSize;
+        int estimate = new JsonTelemetrySizeEstimator().estimateSizeInBytes(telemetry);
+
+        assertTrue("estimate " + estimate + " of " + serializedSize, Math.abs(estimate - serializedSize) <= serializedSize / 5);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class LogLinearHistogramTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPercentileAbove100() {
+        new LogLinearHistogram().getValueAtPercentile(101);
+    }
+
+    @Test
+    public void testEmptyHistogram() {
+        LogLinearHistogram.Snapshot snapshot = new LogLinearHistogram().getSnapshot(1);
+
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getP99());
+        assertEquals(0, snapshot.getMax());
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        for (int i = 1; i <= 10; ++i) {
+            histogram.record(i);
+        }
+
+        assertEquals(5, histogram.getValueAtPercentile(50));
+        assertEquals(10, histogram.getValueAtPercentile(100));
+        assertEquals(5.5, histogram.getSnapshot(1).getMean(), 0.001);
+    }
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        long previousHighest = -1;
+        for (int bucket = 0; bucket < 40 * LogLinearHistogram.SUB_BUCKETS; ++bucket) {
+            long highest = LogLinearHistogram.highestValueOf(bucket);
+            assertEquals(bucket, LogLinearHistogram.bucketOf(previousHighest + 1));
+            assertEquals(bucket, LogLinearHistogram.bucketOf(highest));
+            previousHighest = highest;
+        }
+    }
+
+    @Test
+    public void testLargeValuesKeepTheirPrecision() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        for (long value = 1000; value <= 100000000; value *= 10) {
+            histogram.record(value);
+            long atMax = histogram.getValueAtPercentile(100);
+            assertEquals(value, atMax);
+
+            long bucketHighest = LogLinearHistogram.highestValueOf(LogLinearHistogram.bucketOf(value));
+            assertTrue(bucketHighest - value <= value / LogLinearHistogram.SUB_BUCKETS);
+        }
+    }
+
+    @Test
+    public void testPercentilesOfUniformValues() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        for (int i = 1; i <= 10000; ++i) {
+            histogram.record(i * 1000L);
+        }
+
+        LogLinearHistogram.Snapshot snapshot = histogram.getSnapshot(1000);
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(10000, snapshot.getMax());
+        assertTrue(Math.abs(snapshot.getP50() - 5000) <= 5000 / LogLinearHistogram.SUB_BUCKETS);
+        assertTrue(Math.abs(snapshot.getP99() - 9900) <= 9900 / LogLinearHistogram.SUB_BUCKETS);
+    }
+
+    @Test
+    public void testNegativeValuesCountAsZero() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        histogram.record(-5);
+
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(100));
+    }
+}
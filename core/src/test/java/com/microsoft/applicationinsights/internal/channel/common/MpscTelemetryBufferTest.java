@@ -0,0 +1,204 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.channel.TelemetrySizeEstimator;
+import com.microsoft.applicationinsights.internal.util.LimitsEnforcer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class MpscTelemetryBufferTest {
+    private final static String MOCK_PROPERTY_NAME = "MockProperty";
+
+    @Test
+    public void testFirstTelemetryArmsTimerOnce() throws Exception {
+        CollectingTelemetriesTransmitter sender = new CollectingTelemetriesTransmitter();
+        MpscTelemetryBuffer<String> testedBuffer = createBuffer(sender, 10, 1);
+
+        testedBuffer.add("1");
+        testedBuffer.add("2");
+        testedBuffer.add("3");
+
+        assertEquals(1, sender.getScheduleSendCalls());
+
+        sender.waitForSent(3, 3000);
+        assertEquals(3, sender.getSent().size());
+        assertEquals(1, sender.getBatchSizes().size());
+        sender.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testFullBatchIsSentWithoutWaitingForTimer() throws Exception {
+        CollectingTelemetriesTransmitter sender = new CollectingTelemetriesTransmitter();
+        MpscTelemetryBuffer<String> testedBuffer = createBuffer(sender, 4, 300);
+
+        for (int i = 0; i < 8; ++i) {
+            testedBuffer.add(String.valueOf(i));
+        }
+
+        sender.waitForSent(8, 3000);
+        Set<String> sent = new HashSet<String>(sender.getSent());
+        assertEquals(8, sent.size());
+        for (int i = 0; i < 8; ++i) {
+            assertTrue(sent.contains(String.valueOf(i)));
+        }
+        for (Integer batchSize : sender.getBatchSizes()) {
+            assertTrue(batchSize <= 4);
+        }
+        sender.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testBatchBySizeIsSentWithoutWaitingForTimer() throws Exception {
+        CollectingTelemetriesTransmitter sender = new CollectingTelemetriesTransmitter();
+        MpscTelemetryBuffer<String> testedBuffer = createBuffer(sender, 100, 300);
+        testedBuffer.setMaxBatchSizeInBytes(new TelemetrySizeEstimator<String>() {
+            @Override
+            public int estimateSizeInBytes(String telemetry) {
+                return telemetry.length();
+            }
+        }, 10);
+
+        for (int i = 0; i < 5; ++i) {
+            testedBuffer.add("aaaa");
+        }
+
+        // Two batches of 8 bytes are sent right away, the last telemetry waits for the timer
+        sender.waitForSent(4, 3000);
+        assertEquals(4, sender.getSent().size());
+        for (Integer batchSize : sender.getBatchSizes()) {
+            assertTrue(batchSize <= 2);
+        }
+
+        testedBuffer.flush();
+        sender.waitForSent(5, 3000);
+        assertEquals(5, sender.getSent().size());
+        sender.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testFlushSendsEverythingOnCallingThread() throws Exception {
+        CollectingTelemetriesTransmitter sender = new CollectingTelemetriesTransmitter();
+        MpscTelemetryBuffer<String> testedBuffer = createBuffer(sender, 3, 300);
+
+        for (int i = 0; i < 7; ++i) {
+            testedBuffer.add(String.valueOf(i));
+        }
+        testedBuffer.flush();
+
+        // Batches fetched by the sender threads before the flush may still be on their way
+        sender.waitForSent(7, 3000);
+        assertEquals(7, sender.getSent().size());
+        sender.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testTelemetryIsDroppedWhenRingIsFull() throws Exception {
+        TelemetriesTransmitter<String> idleSender = new TelemetriesTransmitter<String>() {
+            @Override
+            public boolean scheduleSend(TelemetriesFetcher<String> telemetriesFetcher, long value, TimeUnit timeUnit) {
+                return true;
+            }
+
+            @Override
+            public boolean sendNow(Collection<String> telemetries) {
+                return true;
+            }
+
+            @Override
+            public void shutdown(long timeout, TimeUnit timeUnit) {
+            }
+        };
+        MpscTelemetryBuffer<String> testedBuffer = new MpscTelemetryBuffer<String>(idleSender, createEnforcer(1, 8, 8), createEnforcer(1, 300, 300), 8);
+
+        for (int i = 0; i < 10; ++i) {
+            testedBuffer.add(String.valueOf(i));
+        }
+
+        assertEquals(2, testedBuffer.getDroppedTelemetries());
+        assertEquals(Long.valueOf(2), testedBuffer.getDroppedTelemetriesByType().get("String"));
+    }
+
+    @Test
+    public void testConcurrentProducersEachTelemetrySentOnce() throws Exception {
+        final int numberOfThreads = 8;
+        final int telemetriesPerThread = 5000;
+
+        CollectingTelemetriesTransmitter sender = new CollectingTelemetriesTransmitter();
+        final MpscTelemetryBuffer<String> testedBuffer = new MpscTelemetryBuffer<String>(sender, createEnforcer(1, 1000, 100), createEnforcer(1, 300, 1), 1 << 16);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < numberOfThreads; ++t) {
+            final int threadIndex = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < telemetriesPerThread; ++i) {
+                        testedBuffer.add(threadIndex + "-" + i);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        sender.waitForSent(numberOfThreads * telemetriesPerThread, 10000);
+
+        List<String> sent = sender.getSent();
+        Set<String> unique = new HashSet<String>(sent);
+        assertEquals(numberOfThreads * telemetriesPerThread, sent.size());
+        assertEquals(sent.size(), unique.size());
+        assertEquals(0, testedBuffer.getDroppedTelemetries());
+        sender.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    private static MpscTelemetryBuffer<String> createBuffer(CollectingTelemetriesTransmitter sender, int maxTelemetriesInBatch, int timeoutInSeconds) {
+        return new MpscTelemetryBuffer<String>(sender,
+                createEnforcer(1, 1000, maxTelemetriesInBatch),
+                createEnforcer(1, 300, timeoutInSeconds));
+    }
+
+    private static LimitsEnforcer createEnforcer(int minimum, int maximum, int currentValue) {
+        return LimitsEnforcer.createWithClosestLimitOnError(MOCK_PROPERTY_NAME, minimum, maximum, Math.min(maximum, 20), currentValue);
+    }
+}
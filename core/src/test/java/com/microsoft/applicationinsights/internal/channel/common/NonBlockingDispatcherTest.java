@@ -21,6 +21,10 @@
 
 package com.microsoft.applicationinsights.internal.channel.common;
 
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import com.microsoft.applicationinsights.internal.channel.DrainableTransmissionOutput;
 import com.microsoft.applicationinsights.internal.channel.TransmissionOutputAsync;
 import org.junit.Test;
 
@@ -78,6 +82,51 @@ public class NonBlockingDispatcherTest {
         Mockito.verify(mockOutput2, Mockito.times(1)).sendAsync((Transmission) anyObject());
     }
 
+    @Test
+    public void testDrainGivesWhatWasNotSentToTheNextOutput() throws Exception {
+        Transmission notSent = new Transmission(new byte[2], "mockType", "mockEncoding");
+
+        TransmissionOutputAsync mockOutput1 = Mockito.mock(TransmissionOutputAsync.class, Mockito.withSettings().extraInterfaces(DrainableTransmissionOutput.class));
+        Mockito.doReturn(Collections.singletonList(notSent)).when((DrainableTransmissionOutput) mockOutput1).drain(Mockito.anyLong(), (TimeUnit) anyObject());
+
+        TransmissionOutputAsync mockOutput2 = Mockito.mock(TransmissionOutputAsync.class);
+        Mockito.doReturn(true).when(mockOutput2).sendAsync((Transmission) anyObject());
+
+        NonBlockingDispatcher tested = new NonBlockingDispatcher(new TransmissionOutputAsync[] {mockOutput1, mockOutput2});
+        tested.drainAndShutdown(1L, TimeUnit.SECONDS);
+
+        Mockito.verify((DrainableTransmissionOutput) mockOutput1, Mockito.times(1)).drain(Mockito.anyLong(), (TimeUnit) anyObject());
+        Mockito.verify(mockOutput1, Mockito.never()).shutdown(Mockito.anyLong(), (TimeUnit) anyObject());
+        Mockito.verify(mockOutput2, Mockito.times(1)).sendAsync(notSent);
+        Mockito.verify(mockOutput2, Mockito.times(1)).shutdown(Mockito.anyLong(), (TimeUnit) anyObject());
+    }
+
+    @Test
+    public void testShutdownWithNoTimeLeftShutsDownEveryOutput() throws Exception {
+        TransmissionOutputAsync mockOutput1 = Mockito.mock(TransmissionOutputAsync.class);
+        TransmissionOutputAsync mockOutput2 = Mockito.mock(TransmissionOutputAsync.class);
+
+        NonBlockingDispatcher tested = new NonBlockingDispatcher(new TransmissionOutputAsync[] {mockOutput1, mockOutput2});
+        tested.shutdown(0L, TimeUnit.SECONDS);
+
+        Mockito.verify(mockOutput1, Mockito.times(1)).shutdown(0L, TimeUnit.SECONDS);
+        Mockito.verify(mockOutput2, Mockito.times(1)).shutdown(0L, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testDrainWithNoTimeLeftShutsDownTheLastOutput() throws Exception {
+        TransmissionOutputAsync mockOutput1 = Mockito.mock(TransmissionOutputAsync.class, Mockito.withSettings().extraInterfaces(DrainableTransmissionOutput.class));
+        Mockito.doReturn(Collections.emptyList()).when((DrainableTransmissionOutput) mockOutput1).drain(Mockito.anyLong(), (TimeUnit) anyObject());
+
+        TransmissionOutputAsync mockOutput2 = Mockito.mock(TransmissionOutputAsync.class);
+
+        NonBlockingDispatcher tested = new NonBlockingDispatcher(new TransmissionOutputAsync[] {mockOutput1, mockOutput2});
+        tested.drainAndShutdown(0L, TimeUnit.SECONDS);
+
+        Mockito.verify((DrainableTransmissionOutput) mockOutput1, Mockito.times(1)).drain(0L, TimeUnit.NANOSECONDS);
+        Mockito.verify(mockOutput2, Mockito.times(1)).shutdown(0L, TimeUnit.NANOSECONDS);
+    }
+
     private NonBlockingDispatcher createDispatcher() {
         TransmissionOutputAsync mockOutput1 = Mockito.mock(TransmissionOutputAsync.class);
         TransmissionOutputAsync mockOutput2 = Mockito.mock(TransmissionOutputAsync.class);
@@ -1,10 +1,12 @@
 package com.microsoft.applicationinsights.internal.channel.common;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import com.microsoft.applicationinsights.internal.channel.TransmissionDispatcher;
@@ -47,6 +49,59 @@ public class PartialSuccessHandlerTest {
         return result;
     }
 
+    @Test
+    public void passPartialResultIsSentAgainFromTheItemOffsets() throws Exception {
+        List<String> sent = new ArrayList<String>();
+        for (int i = 0; i < 4; ++i) {
+            sent.add("{\"name\":\"TestEvent" + i + "\"}");
+        }
+        Transmission transmission = new GzipTelemetrySerializer().serializeFromStrings(sent).get();
+        Assert.assertNotNull(transmission.getItemOffsets());
+
+        TransmissionPolicyManager tpm = new TransmissionPolicyManager(true);
+        TransmissionDispatcher mockedDispatcher = Mockito.mock(TransmissionDispatcher.class);
+        TransmissionHandlerArgs args = new TransmissionHandlerArgs();
+        args.setResponseCode(206);
+        args.setTransmission(transmission);
+        args.setTransmissionDispatcher(mockedDispatcher);
+        args.setResponseBody("{\"itemsReceived\": 4, \"itemsAccepted\": 2, \"errors\": [" +
+                "{\"index\": 1, \"statusCode\": 500, \"message\": \"Internal Server Error\"}," +
+                "{\"index\": 3, \"statusCode\": 429, \"message\": \"Too Many Requests\"}]}");
+        PartialSuccessHandler eh = new PartialSuccessHandler(tpm);
+
+        Assert.assertTrue(eh.validateTransmissionAndSend(args));
+
+        ArgumentCaptor<Transmission> captor = ArgumentCaptor.forClass(Transmission.class);
+        Mockito.verify(mockedDispatcher).dispatch(captor.capture());
+        TransmissionHandlerArgs retryArgs = new TransmissionHandlerArgs();
+        retryArgs.setTransmission(captor.getValue());
+        // The new transmission is a regular Gzip transmission
+        Assert.assertEquals(Arrays.asList(sent.get(1), sent.get(3)), eh.generateOriginalItems(retryArgs));
+    }
+
+    @Test
+    public void fail206CorruptGzipIsDroppedWithoutReadingItAgain() {
+        TransmissionPolicyManager tpm = new TransmissionPolicyManager(true);
+        TransmissionDispatcher mockedDispatcher = Mockito.mock(TransmissionDispatcher.class);
+        TransmissionHandlerArgs args = new TransmissionHandlerArgs();
+        args.setResponseCode(206);
+        args.setTransmission(new Transmission(Arrays.copyOf(fourItems, fourItems.length / 2), "application/x-json-stream", "gzip"));
+        args.setTransmissionDispatcher(mockedDispatcher);
+        args.setResponseBody("{\"itemsReceived\": 4, \"itemsAccepted\": 0, \"errors\": [{\"index\": 0, \"statusCode\": 500}]}");
+        final List<TransmissionHandlerArgs> readAgain = new ArrayList<TransmissionHandlerArgs>();
+        PartialSuccessHandler eh = new PartialSuccessHandler(tpm) {
+            @Override
+            List<String> generateOriginalItems(TransmissionHandlerArgs args) {
+                readAgain.add(args);
+                return super.generateOriginalItems(args);
+            }
+        };
+
+        Assert.assertFalse(eh.validateTransmissionAndSend(args));
+        Assert.assertTrue(readAgain.isEmpty());
+        Mockito.verify(mockedDispatcher, Mockito.never()).dispatch(Mockito.any(Transmission.class));
+    }
+
     @Test
     public void failOnNull() {
         TransmissionPolicyManager tpm = new TransmissionPolicyManager(true);
@@ -0,0 +1,383 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Optional;
+import com.microsoft.applicationinsights.internal.channel.BackpressurePolicy;
+import com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.channel.TelemetryLane;
+import com.microsoft.applicationinsights.internal.channel.TelemetrySerializer;
+import com.microsoft.applicationinsights.internal.channel.TransmissionOutputSync;
+import com.microsoft.applicationinsights.telemetry.EventTelemetry;
+import com.microsoft.applicationinsights.telemetry.ExceptionTelemetry;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+import com.microsoft.applicationinsights.telemetry.TraceTelemetry;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class PriorityLaneTransmitterTest {
+
+    /**
+     * Collects the batches it is sent, and holds the sending thread until opened.
+     */
+    private static final class GatedTransmitter implements TelemetriesTransmitter<Telemetry> {
+        private final CountDownLatch gate;
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final List<List<Telemetry>> batches = new ArrayList<List<Telemetry>>();
+
+        private GatedTransmitter(boolean open) {
+            gate = new CountDownLatch(open ? 0 : 1);
+        }
+
+        @Override
+        public boolean scheduleSend(TelemetriesFetcher<Telemetry> telemetriesFetcher, long value, TimeUnit timeUnit) {
+            return sendNow(telemetriesFetcher.fetch());
+        }
+
+        @Override
+        public boolean sendNow(Collection<Telemetry> telemetries) {
+            entered.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (!telemetries.isEmpty()) {
+                synchronized (batches) {
+                    batches.add(new ArrayList<Telemetry>(telemetries));
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void shutdown(long timeout, TimeUnit timeUnit) {
+        }
+
+        private void awaitEntered() throws InterruptedException {
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+        }
+
+        private void open() {
+            gate.countDown();
+        }
+
+        private List<Telemetry> awaitSent(int expected) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (true) {
+                List<Telemetry> sent = new ArrayList<Telemetry>();
+                synchronized (batches) {
+                    for (List<Telemetry> batch : batches) {
+                        sent.addAll(batch);
+                    }
+                }
+                if (sent.size() >= expected || System.currentTimeMillis() > deadline) {
+                    return sent;
+                }
+                Thread.sleep(5);
+            }
+        }
+
+        private List<List<Telemetry>> getBatches() {
+            synchronized (batches) {
+                return new ArrayList<List<Telemetry>>(batches);
+            }
+        }
+    }
+
+    /**
+     * Keeps the scheduled sends in the order they came, like a busy thread pool, until they are run.
+     */
+    private static final class QueueingTransmitter implements TelemetriesTransmitter<Telemetry> {
+        private final List<TelemetriesFetcher<Telemetry>> fetchers = new ArrayList<TelemetriesFetcher<Telemetry>>();
+
+        @Override
+        public synchronized boolean scheduleSend(TelemetriesFetcher<Telemetry> telemetriesFetcher, long value, TimeUnit timeUnit) {
+            fetchers.add(telemetriesFetcher);
+            return true;
+        }
+
+        @Override
+        public boolean sendNow(Collection<Telemetry> telemetries) {
+            return true;
+        }
+
+        @Override
+        public void shutdown(long timeout, TimeUnit timeUnit) {
+        }
+
+        private synchronized int getQueued() {
+            return fetchers.size();
+        }
+
+        private int awaitQueued(int expected) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (getQueued() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            return getQueued();
+        }
+
+        private synchronized Collection<Telemetry> runOldest() {
+            return fetchers.remove(0).fetch();
+        }
+    }
+
+    private static final class StubSpillOutput implements TransmissionOutputSync {
+        private final AtomicInteger transmissions = new AtomicInteger(0);
+
+        @Override
+        public boolean sendSync(Transmission transmission) {
+            transmissions.incrementAndGet();
+            return true;
+        }
+    }
+
+    private static final class StubSerializer implements TelemetrySerializer {
+        @Override
+        public Optional<Transmission> serialize(Collection<Telemetry> telemetries) {
+            return Optional.of(new Transmission(new byte[1], "MWCT", "MCET"));
+        }
+    }
+
+    private PriorityLaneTransmitter tested;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (tested != null) {
+            tested.shutdown(1L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testTelemetriesAreRoutedToTheirLanes() throws InterruptedException {
+        GatedTransmitter transmitter = new GatedTransmitter(true);
+        tested = createTested(transmitter, new EnumMap<TelemetryLane, PriorityLaneTransmitter.LaneSettings>(TelemetryLane.class), 10);
+
+        assertTrue(tested.sendNow(Arrays.<Telemetry>asList(new RequestTelemetry(), new TraceTelemetry("trace"), new EventTelemetry("event"), new ExceptionTelemetry())));
+
+        assertEquals(4, transmitter.awaitSent(4).size());
+        for (List<Telemetry> batch : transmitter.getBatches()) {
+            TelemetryLane lane = TelemetryLane.of(batch.get(0));
+            for (Telemetry telemetry : batch) {
+                assertEquals(lane, TelemetryLane.of(telemetry));
+            }
+        }
+    }
+
+    @Test
+    public void testScheduledTelemetriesAreRoutedToTheirLanes() throws InterruptedException {
+        GatedTransmitter transmitter = new GatedTransmitter(true);
+        tested = createTested(transmitter, new EnumMap<TelemetryLane, PriorityLaneTransmitter.LaneSettings>(TelemetryLane.class), 10);
+
+        assertTrue(tested.scheduleSend(new TelemetriesTransmitter.TelemetriesFetcher<Telemetry>() {
+            @Override
+            public Collection<Telemetry> fetch() {
+                return Arrays.<Telemetry>asList(new RequestTelemetry(), new TraceTelemetry("trace"));
+            }
+        }, 1, TimeUnit.MILLISECONDS));
+
+        assertEquals(2, transmitter.awaitSent(2).size());
+        assertEquals(2, transmitter.getBatches().size());
+    }
+
+    @Test
+    public void testLanesShareTheSendsByWeight() throws InterruptedException {
+        GatedTransmitter transmitter = new GatedTransmitter(false);
+        tested = createTested(transmitter, new EnumMap<TelemetryLane, PriorityLaneTransmitter.LaneSettings>(TelemetryLane.class), 1);
+        occupyDispatcher(transmitter, new EventTelemetry("first"));
+
+        List<Telemetry> telemetries = new ArrayList<Telemetry>();
+        for (int i = 0; i < 10; ++i) {
+            telemetries.add(new TraceTelemetry("trace"));
+            telemetries.add(new EventTelemetry("event"));
+            telemetries.add(new RequestTelemetry());
+        }
+        assertTrue(tested.sendNow(telemetries));
+
+        transmitter.open();
+        List<Telemetry> sent = transmitter.awaitSent(31);
+        assertEquals(31, sent.size());
+
+        Map<TelemetryLane, Integer> sends = new EnumMap<TelemetryLane, Integer>(TelemetryLane.class);
+        for (Telemetry telemetry : sent.subList(1, 11)) {
+            TelemetryLane lane = TelemetryLane.of(telemetry);
+            sends.put(lane, sends.containsKey(lane) ? sends.get(lane) + 1 : 1);
+        }
+        assertEquals(Integer.valueOf(TelemetryLane.CRITICAL.getDefaultWeight()), sends.get(TelemetryLane.CRITICAL));
+        assertEquals(Integer.valueOf(TelemetryLane.DEFAULT.getDefaultWeight()), sends.get(TelemetryLane.DEFAULT));
+        assertEquals(Integer.valueOf(TelemetryLane.VERBOSE.getDefaultWeight()), sends.get(TelemetryLane.VERBOSE));
+    }
+
+    @Test
+    public void testFullLaneDropsNewest() throws InterruptedException {
+        GatedTransmitter transmitter = new GatedTransmitter(false);
+        Map<TelemetryLane, PriorityLaneTransmitter.LaneSettings> lanes = new EnumMap<TelemetryLane, PriorityLaneTransmitter.LaneSettings>(TelemetryLane.class);
+        lanes.put(TelemetryLane.VERBOSE, new PriorityLaneTransmitter.LaneSettings(2, 1, BackpressurePolicy.DROP_NEWEST));
+        tested = createTested(transmitter, lanes, 10);
+        occupyDispatcher(transmitter, new EventTelemetry("first"));
+
+        List<Telemetry> traces = new ArrayList<Telemetry>();
+        for (int i = 0; i < 5; ++i) {
+            traces.add(new TraceTelemetry("trace" + i));
+        }
+        assertFalse(tested.sendNow(traces));
+        assertTrue(tested.sendNow(Collections.<Telemetry>singletonList(new RequestTelemetry())));
+
+        assertEquals(2, tested.getQueuedTelemetries(TelemetryLane.VERBOSE));
+        assertEquals(1, tested.getQueuedTelemetries(TelemetryLane.CRITICAL));
+        assertEquals(Long.valueOf(3), tested.getDroppedTelemetries().get("TraceTelemetry"));
+
+        transmitter.open();
+        List<Telemetry> sent = transmitter.awaitSent(4);
+        assertEquals(4, sent.size());
+        assertTrue(sent.contains(traces.get(0)));
+        assertTrue(sent.contains(traces.get(1)));
+    }
+
+    @Test
+    public void testFullLaneDropsOldest() throws InterruptedException {
+        GatedTransmitter transmitter = new GatedTransmitter(false);
+        Map<TelemetryLane, PriorityLaneTransmitter.LaneSettings> lanes = new EnumMap<TelemetryLane, PriorityLaneTransmitter.LaneSettings>(TelemetryLane.class);
+        lanes.put(TelemetryLane.DEFAULT, new PriorityLaneTransmitter.LaneSettings(2, 1, BackpressurePolicy.DROP_OLDEST));
+        tested = createTested(transmitter, lanes, 10);
+        occupyDispatcher(transmitter, new TraceTelemetry("first"));
+
+        EventTelemetry oldest = new EventTelemetry("oldest");
+        assertTrue(tested.sendNow(Arrays.<Telemetry>asList(oldest, new EventTelemetry("second"))));
+        assertTrue(tested.sendNow(Collections.<Telemetry>singletonList(new EventTelemetry("third"))));
+
+        assertEquals(2, tested.getQueuedTelemetries(TelemetryLane.DEFAULT));
+        assertEquals(Long.valueOf(1), tested.getDroppedTelemetries().get("EventTelemetry"));
+
+        transmitter.open();
+        List<Telemetry> sent = transmitter.awaitSent(3);
+        assertEquals(3, sent.size());
+        assertFalse(sent.contains(oldest));
+    }
+
+    @Test
+    public void testShutdownSendsWhatTheLanesHold() throws InterruptedException {
+        GatedTransmitter transmitter = new GatedTransmitter(false);
+        tested = createTested(transmitter, new EnumMap<TelemetryLane, PriorityLaneTransmitter.LaneSettings>(TelemetryLane.class), 1);
+        occupyDispatcher(transmitter, new EventTelemetry("first"));
+
+        assertTrue(tested.sendNow(Arrays.<Telemetry>asList(new RequestTelemetry(), new TraceTelemetry("trace"))));
+        transmitter.open();
+        tested.shutdown(5L, TimeUnit.SECONDS);
+
+        assertEquals(3, transmitter.awaitSent(3).size());
+        assertFalse(tested.sendNow(Collections.<Telemetry>singletonList(new RequestTelemetry())));
+        tested = null;
+    }
+
+    @Test
+    public void testLaneOfASendIsPickedWhenItStarts() throws InterruptedException {
+        QueueingTransmitter transmitter = new QueueingTransmitter();
+        tested = new PriorityLaneTransmitter(transmitter, new EnumMap<TelemetryLane, PriorityLaneTransmitter.LaneSettings>(TelemetryLane.class),
+                new StubSerializer(), null, 1);
+
+        List<Telemetry> traces = new ArrayList<Telemetry>();
+        for (int i = 0; i < 10; ++i) {
+            traces.add(new TraceTelemetry("trace" + i));
+        }
+        assertTrue(tested.sendNow(traces));
+
+        // Only a few sends wait in the shared transmitter, the traces wait in their lane
+        assertEquals(4, transmitter.awaitQueued(4));
+        Thread.sleep(50);
+        assertEquals(4, transmitter.getQueued());
+        assertEquals(10, tested.getQueuedTelemetries(TelemetryLane.VERBOSE));
+
+        RequestTelemetry request = new RequestTelemetry();
+        assertTrue(tested.sendNow(Collections.<Telemetry>singletonList(request)));
+
+        assertEquals(Collections.<Telemetry>singletonList(request), transmitter.runOldest());
+
+        int sent = 1;
+        while (sent < 11) {
+            assertTrue(transmitter.awaitQueued(1) > 0);
+            sent += transmitter.runOldest().size();
+        }
+        assertEquals(0, tested.getQueuedTelemetries(TelemetryLane.VERBOSE));
+    }
+
+    @Test
+    public void testLanesSpillToTheirOwnOutputs() throws InterruptedException {
+        GatedTransmitter transmitter = new GatedTransmitter(false);
+        Map<TelemetryLane, PriorityLaneTransmitter.LaneSettings> lanes = new EnumMap<TelemetryLane, PriorityLaneTransmitter.LaneSettings>(TelemetryLane.class);
+        lanes.put(TelemetryLane.CRITICAL, new PriorityLaneTransmitter.LaneSettings(1, 1, BackpressurePolicy.SPILL_TO_DISK));
+        lanes.put(TelemetryLane.VERBOSE, new PriorityLaneTransmitter.LaneSettings(1, 1, BackpressurePolicy.SPILL_TO_DISK));
+        Map<TelemetryLane, StubSpillOutput> spillOutputs = new EnumMap<TelemetryLane, StubSpillOutput>(TelemetryLane.class);
+        spillOutputs.put(TelemetryLane.CRITICAL, new StubSpillOutput());
+        spillOutputs.put(TelemetryLane.VERBOSE, new StubSpillOutput());
+        tested = new PriorityLaneTransmitter(transmitter, lanes, new StubSerializer(), spillOutputs, 10);
+        occupyDispatcher(transmitter, new EventTelemetry("first"));
+
+        assertFalse(tested.sendNow(Arrays.<Telemetry>asList(new TraceTelemetry("trace1"), new TraceTelemetry("trace2"), new TraceTelemetry("trace3"))));
+
+        assertEquals(1, spillOutputs.get(TelemetryLane.VERBOSE).transmissions.get());
+        assertEquals(0, spillOutputs.get(TelemetryLane.CRITICAL).transmissions.get());
+
+        assertFalse(tested.sendNow(Arrays.<Telemetry>asList(new RequestTelemetry(), new RequestTelemetry())));
+
+        assertEquals(1, spillOutputs.get(TelemetryLane.VERBOSE).transmissions.get());
+        assertEquals(1, spillOutputs.get(TelemetryLane.CRITICAL).transmissions.get());
+
+        transmitter.open();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroLaneCapacity() {
+        new PriorityLaneTransmitter.LaneSettings(0, 1, BackpressurePolicy.DROP_NEWEST);
+    }
+
+    private static PriorityLaneTransmitter createTested(GatedTransmitter transmitter, Map<TelemetryLane, PriorityLaneTransmitter.LaneSettings> lanes,
+                                                        int maxTelemetriesInBatch) {
+        return new PriorityLaneTransmitter(transmitter, lanes, new StubSerializer(), null, maxTelemetriesInBatch);
+    }
+
+    /**
+     * Blocks the dispatcher thread in the transmitter, so what is sent next stays in the lanes.
+     */
+    private void occupyDispatcher(GatedTransmitter transmitter, Telemetry telemetry) throws InterruptedException {
+        assertTrue(tested.sendNow(Collections.singletonList(telemetry)));
+        transmitter.awaitEntered();
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import com.microsoft.applicationinsights.internal.channel.SpoolRetentionPolicy;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class SegmentedTransmissionSpoolTest {
+    private final static String MOCK_CONTENT = "MockContent";
+    private final static String MOCK_CONTENT_TYPE = "MockContentType";
+    private final static String MOCK_ENCODING_TYPE = "MockEncodingType";
+    // Room for a few mock transmissions in a segment
+    private final static int SEGMENT_SIZE_IN_BYTES = 256;
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private File folder;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = tmpFolder.newFolder("Segments");
+    }
+
+    @Test
+    public void testFetchOldestFirst() {
+        SegmentedTransmissionSpool tested = createSpool();
+        assertTrue(tested.isEmpty());
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(tested.sendSync(createTransmission(i)));
+        }
+
+        for (int i = 0; i < 10; ++i) {
+            assertFalse(tested.isEmpty());
+            assertContent(i, tested.fetchOldest());
+        }
+        assertNull(tested.fetchOldest());
+        assertTrue(tested.isEmpty());
+    }
+
+    @Test
+    public void testKeepsTheHeaderOfTheTransmission() {
+        SegmentedTransmissionSpool tested = createSpool();
+        Transmission transmission = createTransmission(0);
+        transmission.setNumberOfSends(3);
+        tested.sendSync(transmission);
+
+        Transmission fetched = tested.fetchOldest();
+
+        assertEquals(MOCK_CONTENT_TYPE, fetched.getWebContentType());
+        assertEquals(MOCK_ENCODING_TYPE, fetched.getWebContentEncodingType());
+        assertEquals(3, fetched.getNumberOfSends());
+    }
+
+    @Test
+    public void testInterleavedSendsAndFetches() {
+        SegmentedTransmissionSpool tested = createSpool();
+        int sent = 0;
+        int fetched = 0;
+        for (int round = 0; round < 20; ++round) {
+            tested.sendSync(createTransmission(sent++));
+            tested.sendSync(createTransmission(sent++));
+            assertContent(fetched++, tested.fetchOldest());
+        }
+        while (fetched < sent) {
+            assertContent(fetched++, tested.fetchOldest());
+        }
+        assertNull(tested.fetchOldest());
+    }
+
+    @Test
+    public void testFetchedSegmentsAreDeleted() {
+        SegmentedTransmissionSpool tested = createSpool();
+        for (int i = 0; i < 20; ++i) {
+            tested.sendSync(createTransmission(i));
+        }
+        int segmentsBefore = getSegments().length;
+        assertTrue(segmentsBefore > 2);
+
+        for (int i = 0; i < 20; ++i) {
+            tested.fetchOldest();
+        }
+        assertNull(tested.fetchOldest());
+
+        assertEquals(1, getSegments().length);
+    }
+
+    @Test
+    public void testTransmissionLargerThanASegment() {
+        SegmentedTransmissionSpool tested = createSpool();
+        byte[] content = new byte[SEGMENT_SIZE_IN_BYTES * 3];
+        content[content.length - 1] = 7;
+        tested.sendSync(createTransmission(0));
+        tested.sendSync(new Transmission(content, MOCK_CONTENT_TYPE, MOCK_ENCODING_TYPE));
+        tested.sendSync(createTransmission(2));
+
+        assertContent(0, tested.fetchOldest());
+        assertEquals(7, tested.fetchOldest().getContent()[content.length - 1]);
+        assertContent(2, tested.fetchOldest());
+    }
+
+    @Test
+    public void testCursorSurvivesRestart() {
+        SegmentedTransmissionSpool tested = createSpool();
+        for (int i = 0; i < 10; ++i) {
+            tested.sendSync(createTransmission(i));
+        }
+        for (int i = 0; i < 4; ++i) {
+            tested.fetchOldest();
+        }
+        tested.close();
+
+        SegmentedTransmissionSpool restarted = createSpool();
+        for (int i = 4; i < 10; ++i) {
+            assertContent(i, restarted.fetchOldest());
+        }
+        assertNull(restarted.fetchOldest());
+
+        restarted.sendSync(createTransmission(10));
+        assertContent(10, restarted.fetchOldest());
+    }
+
+    @Test
+    public void testClosedSpoolRefusesTransmissions() {
+        SegmentedTransmissionSpool tested = createSpool();
+        tested.sendSync(createTransmission(0));
+        tested.close();
+
+        assertFalse(tested.sendSync(createTransmission(1)));
+        assertNull(tested.fetchOldest());
+        tested.close();
+
+        SegmentedTransmissionSpool restarted = createSpool();
+        assertContent(0, restarted.fetchOldest());
+        assertNull(restarted.fetchOldest());
+    }
+
+    @Test
+    public void testTornRecordIsDroppedAfterRestart() throws Exception {
+        SegmentedTransmissionSpool tested = createSpool();
+        tested.sendSync(createTransmission(0));
+        tested.sendSync(createTransmission(1));
+        tested.close();
+        File[] segments = getSegments();
+        assertEquals(1, segments.length);
+
+        // Corrupt the content of the second record, as if the process died while writing it
+        try (RandomAccessFile raf = new RandomAccessFile(segments[0], "rw")) {
+            byte[] bytes = new byte[SEGMENT_SIZE_IN_BYTES];
+            raf.readFully(bytes);
+            int index = new String(bytes, StandardCharsets.ISO_8859_1).lastIndexOf(MOCK_CONTENT + 1);
+            assertTrue(index > 0);
+            raf.seek(index);
+            raf.write('X');
+        }
+
+        SegmentedTransmissionSpool restarted = createSpool();
+        restarted.sendSync(createTransmission(2));
+        assertContent(0, restarted.fetchOldest());
+        assertContent(2, restarted.fetchOldest());
+        assertNull(restarted.fetchOldest());
+    }
+
+    @Test
+    public void testCapacity() {
+        SegmentedTransmissionSpool tested = new SegmentedTransmissionSpool(folder.getAbsolutePath(), "1", 64 * 1024);
+        byte[] content = new byte[400 * 1024];
+        assertTrue(tested.sendSync(new Transmission(content, MOCK_CONTENT_TYPE, MOCK_ENCODING_TYPE)));
+        assertTrue(tested.sendSync(new Transmission(content, MOCK_CONTENT_TYPE, MOCK_ENCODING_TYPE)));
+        assertTrue(tested.sendSync(new Transmission(content, MOCK_CONTENT_TYPE, MOCK_ENCODING_TYPE)));
+        assertFalse(tested.sendSync(new Transmission(content, MOCK_CONTENT_TYPE, MOCK_ENCODING_TYPE)));
+
+        tested.fetchOldest();
+        assertTrue(tested.sendSync(new Transmission(content, MOCK_CONTENT_TYPE, MOCK_ENCODING_TYPE)));
+    }
+
+    @Test
+    public void testEvictOldestKeepsTheNewestTransmissions() {
+        SegmentedTransmissionSpool tested = new SegmentedTransmissionSpool(folder.getAbsolutePath(), "1", 64 * 1024);
+        tested.setRetentionPolicy(SpoolRetentionPolicy.EVICT_OLDEST, Long.MAX_VALUE);
+        long evicted = ChannelMetrics.INSTANCE.getEvictedTransmissions();
+        long evictedTelemetries = ChannelMetrics.INSTANCE.getEvictedTelemetries();
+
+        for (int i = 1; i <= 5; ++i) {
+            byte[] content = new byte[400 * 1024];
+            content[0] = (byte) i;
+            Transmission transmission = new Transmission(content, MOCK_CONTENT_TYPE, MOCK_ENCODING_TYPE);
+            transmission.setNumberOfItems(10 * i);
+            assertTrue(tested.sendSync(transmission));
+        }
+
+        assertEquals(evicted + 2, ChannelMetrics.INSTANCE.getEvictedTransmissions());
+        assertEquals(evictedTelemetries + 10 + 20, ChannelMetrics.INSTANCE.getEvictedTelemetries());
+        for (int i = 3; i <= 5; ++i) {
+            assertEquals(i, tested.fetchOldest().getContent()[0]);
+        }
+        assertNull(tested.fetchOldest());
+    }
+
+    @Test
+    public void testMaxAgeEvictsExpiredSegments() throws Exception {
+        SegmentedTransmissionSpool tested = createSpool();
+        tested.setRetentionPolicy(SpoolRetentionPolicy.MAX_AGE, 100);
+        long evicted = ChannelMetrics.INSTANCE.getEvictedTransmissions();
+
+        for (int i = 0; i < 5; ++i) {
+            tested.sendSync(createTransmission(i));
+        }
+        Thread.sleep(200);
+        tested.sendSync(createTransmission(5));
+
+        // The segment of the new transmission may hold expired ones too, they are kept with it
+        Transmission transmission;
+        int last = -1;
+        while ((transmission = tested.fetchOldest()) != null) {
+            last = Integer.parseInt(new String(transmission.getContent(), StandardCharsets.UTF_8).substring(MOCK_CONTENT.length()));
+        }
+        assertEquals(5, last);
+        assertTrue(ChannelMetrics.INSTANCE.getEvictedTransmissions() - evicted >= 3);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFolderIsLockedByTheFirstSpool() {
+        createSpool();
+        createSpool();
+    }
+
+    @Test
+    public void testFolderIsUnlockedOnClose() {
+        SegmentedTransmissionSpool tested = createSpool();
+        tested.sendSync(createTransmission(0));
+        tested.close();
+
+        SegmentedTransmissionSpool second = createSpool();
+        assertContent(0, second.fetchOldest());
+    }
+
+    private SegmentedTransmissionSpool createSpool() {
+        return new SegmentedTransmissionSpool(folder.getAbsolutePath(), null, SEGMENT_SIZE_IN_BYTES);
+    }
+
+    private File[] getSegments() {
+        return folder.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".seg");
+            }
+        });
+    }
+
+    private static Transmission createTransmission(int index) {
+        return new Transmission((MOCK_CONTENT + index).getBytes(StandardCharsets.UTF_8), MOCK_CONTENT_TYPE, MOCK_ENCODING_TYPE);
+    }
+
+    private static void assertContent(int index, Transmission transmission) {
+        assertEquals(MOCK_CONTENT + index, new String(transmission.getContent(), StandardCharsets.UTF_8));
+    }
+}
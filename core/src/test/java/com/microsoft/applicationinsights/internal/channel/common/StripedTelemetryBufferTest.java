@@ -0,0 +1,240 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.microsoft.applicationinsights.internal.util.LimitsEnforcer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class StripedTelemetryBufferTest {
+    private final static String MOCK_PROPERTY_NAME = "MockProperty";
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroStripesIsRejected() {
+        createBuffer(new CollectingTelemetriesTransmitter(), 10, 300, 0, false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyStripesIsRejected() {
+        createBuffer(new CollectingTelemetriesTransmitter(), 10, 300, StripedTelemetryBuffer.MAX_NUMBER_OF_STRIPES + 1, false);
+    }
+
+    @Test
+    public void testStripeSendsFullSizeBatches() throws Exception {
+        verifyStripeSendsFullSizeBatches(false);
+    }
+
+    @Test
+    public void testLockFreeStripeSendsFullSizeBatches() throws Exception {
+        verifyStripeSendsFullSizeBatches(true);
+    }
+
+    @Test
+    public void testStripesHoldingTheCapacityTogetherSendTheFullestStripe() throws Exception {
+        verifyStripesHoldingTheCapacityTogetherSendTheFullestStripe(false);
+    }
+
+    @Test
+    public void testLockFreeStripesHoldingTheCapacityTogetherSendTheFullestStripe() throws Exception {
+        verifyStripesHoldingTheCapacityTogetherSendTheFullestStripe(true);
+    }
+
+    @Test
+    public void testSetMaxTelemetriesInBatchAppliesToEveryStripe() throws Exception {
+        CollectingTelemetriesTransmitter sender = new CollectingTelemetriesTransmitter();
+        StripedTelemetryBuffer<String> testedBuffer = createBuffer(sender, 100, 300, 2, false);
+
+        testedBuffer.setMaxTelemetriesInBatch(6);
+        assertEquals(6, testedBuffer.getMaxTelemetriesInBatch());
+
+        for (int i = 0; i < 6; ++i) {
+            testedBuffer.add(String.valueOf(i));
+        }
+
+        sender.waitForSent(6, 3000);
+        assertEquals(6, sender.getSent().size());
+        assertEquals(6, (int) sender.getBatchSizes().get(0));
+        assertEquals(0, testedBuffer.getBufferedTelemetries());
+        sender.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testFlushSendsAllStripes() throws Exception {
+        CollectingTelemetriesTransmitter sender = new CollectingTelemetriesTransmitter();
+        final StripedTelemetryBuffer<String> testedBuffer = createBuffer(sender, 100, 300, 4, false);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; ++t) {
+            final int threadIndex = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    testedBuffer.add(String.valueOf(threadIndex));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        testedBuffer.flush();
+
+        assertEquals(4, new HashSet<String>(sender.getSent()).size());
+        sender.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testConcurrentProducersEachTelemetrySentOnce() throws Exception {
+        verifyConcurrentProducersEachTelemetrySentOnce(false);
+    }
+
+    @Test
+    public void testConcurrentProducersWithLockFreeStripesEachTelemetrySentOnce() throws Exception {
+        verifyConcurrentProducersEachTelemetrySentOnce(true);
+    }
+
+    private static void verifyStripeSendsFullSizeBatches(boolean lockFreeStripes) throws Exception {
+        CollectingTelemetriesTransmitter sender = new CollectingTelemetriesTransmitter();
+        StripedTelemetryBuffer<String> testedBuffer = createBuffer(sender, 8, 300, 4, lockFreeStripes);
+
+        // A single thread always works with the same stripe, which batches the whole capacity
+        for (int i = 0; i < 7; ++i) {
+            testedBuffer.add(String.valueOf(i));
+        }
+        assertEquals(7, testedBuffer.getBufferedTelemetries());
+        assertEquals(0, sender.getSent().size());
+
+        testedBuffer.add("7");
+
+        sender.waitForSent(8, 3000);
+        assertEquals(8, sender.getSent().size());
+        assertEquals(1, sender.getBatchSizes().size());
+        assertEquals(8, (int) sender.getBatchSizes().get(0));
+        sender.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    private static void verifyStripesHoldingTheCapacityTogetherSendTheFullestStripe(boolean lockFreeStripes) throws Exception {
+        CollectingTelemetriesTransmitter sender = new CollectingTelemetriesTransmitter();
+        final StripedTelemetryBuffer<String> testedBuffer = createBuffer(sender, 8, 300, 4, lockFreeStripes);
+
+        // Consecutive thread ids work with different stripes, none of which holds a full batch
+        for (int t = 0; t < 4; ++t) {
+            final int threadIndex = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    testedBuffer.add(threadIndex + "-a");
+                    testedBuffer.add(threadIndex + "-b");
+                }
+            });
+            thread.start();
+            thread.join();
+        }
+
+        // Only the fullest stripe sends its batch, the others keep batching within the capacity
+        sender.waitForSent(2, 3000);
+        assertEquals(1, sender.getBatchSizes().size());
+        int sentBatchSize = sender.getBatchSizes().get(0);
+        assertTrue(sentBatchSize < 8);
+        assertEquals(8 - sentBatchSize, testedBuffer.getBufferedTelemetries());
+
+        testedBuffer.flush();
+
+        sender.waitForSent(8, 3000);
+        assertEquals(8, new HashSet<String>(sender.getSent()).size());
+        assertEquals(0, testedBuffer.getBufferedTelemetries());
+        for (Integer batchSize : sender.getBatchSizes()) {
+            assertTrue(batchSize <= sentBatchSize);
+        }
+        sender.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    private static void verifyConcurrentProducersEachTelemetrySentOnce(boolean lockFreeStripes) throws Exception {
+        final int numberOfThreads = 8;
+        final int telemetriesPerThread = 2000;
+
+        CollectingTelemetriesTransmitter sender = new CollectingTelemetriesTransmitter();
+        final StripedTelemetryBuffer<String> testedBuffer = createBuffer(sender, 400, 1, 4, lockFreeStripes);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < numberOfThreads; ++t) {
+            final int threadIndex = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < telemetriesPerThread; ++i) {
+                        testedBuffer.add(threadIndex + "-" + i);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Lock-free stripes drop what does not fit into their rings
+        int expected = numberOfThreads * telemetriesPerThread - (int) testedBuffer.getDroppedTelemetries();
+        sender.waitForSent(expected, 10000);
+
+        List<String> sent = sender.getSent();
+        Set<String> unique = new HashSet<String>(sent);
+        assertEquals(expected, sent.size());
+        assertEquals(sent.size(), unique.size());
+        for (Integer batchSize : sender.getBatchSizes()) {
+            assertTrue(batchSize <= 400);
+        }
+        sender.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    private static StripedTelemetryBuffer<String> createBuffer(CollectingTelemetriesTransmitter sender, int maxTelemetriesInBatch, int timeoutInSeconds,
+                                                               int numberOfStripes, boolean lockFreeStripes) {
+        return new StripedTelemetryBuffer<String>(sender,
+                createEnforcer(1, 1000, maxTelemetriesInBatch),
+                createEnforcer(1, 300, timeoutInSeconds),
+                numberOfStripes,
+                lockFreeStripes);
+    }
+
+    private static LimitsEnforcer createEnforcer(int minimum, int maximum, int currentValue) {
+        return LimitsEnforcer.createWithClosestLimitOnError(MOCK_PROPERTY_NAME, minimum, maximum, Math.min(maximum, 20), currentValue);
+    }
+}
@@ -22,15 +22,18 @@
 package com.microsoft.applicationinsights.internal.channel.common;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter;
+import com.microsoft.applicationinsights.internal.channel.TelemetrySizeEstimator;
 import com.microsoft.applicationinsights.internal.util.LimitsEnforcer;
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -48,6 +51,13 @@ import static org.mockito.Matchers.anyObject;
 public final class TelemetryBufferTest {
     private final static String MOCK_PROPERTY_NAME = "MockProperty";
 
+    private final static TelemetrySizeEstimator<String> LENGTH_SIZE_ESTIMATOR = new TelemetrySizeEstimator<String>() {
+        @Override
+        public int estimateSizeInBytes(String telemetry) {
+            return telemetry.length();
+        }
+    };
+
     private static class MockSender implements TelemetriesTransmitter<String> {
         private static class ScheduledSendResult {
             public final boolean result;
@@ -515,6 +525,161 @@ public final class TelemetryBufferTest {
         mockSender.waitForFinish(1L);
     }
 
+    @Test(expected = NullPointerException.class)
+    public void testSetMaxBatchSizeInBytesWithNullEstimator() {
+        TelemetryBuffer<String> testedBuffer = new TelemetryBuffer<String>(new CollectingTelemetriesTransmitter(), createEnforcerWithCurrentValue(1, 10), createEnforcerWithCurrentValue(30));
+
+        testedBuffer.setMaxBatchSizeInBytes(null, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetMaxBatchSizeInBytesWithZeroSize() {
+        TelemetryBuffer<String> testedBuffer = new TelemetryBuffer<String>(new CollectingTelemetriesTransmitter(), createEnforcerWithCurrentValue(1, 10), createEnforcerWithCurrentValue(30));
+
+        testedBuffer.setMaxBatchSizeInBytes(LENGTH_SIZE_ESTIMATOR, 0);
+    }
+
+    @Test
+    public void testBatchIsSentWhenMaxBatchSizeInBytesIsReached() throws Exception {
+        CollectingTelemetriesTransmitter sender = new CollectingTelemetriesTransmitter();
+        TelemetryBuffer<String> testedBuffer = new TelemetryBuffer<String>(sender, createEnforcerWithCurrentValue(1, 100), createEnforcerWithCurrentValue(30));
+        testedBuffer.setMaxBatchSizeInBytes(LENGTH_SIZE_ESTIMATOR, 10);
+        assertEquals(10, testedBuffer.getMaxBatchSizeInBytes());
+
+        testedBuffer.add("aaaa");
+        testedBuffer.add("bbbb");
+        assertEquals(0, sender.getSent().size());
+
+        testedBuffer.add("cc");
+        assertEquals(3, sender.getSent().size());
+        assertEquals(1, sender.getBatchSizes().size());
+        sender.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testTelemetryThatDoesNotFitStartsNewBatch() throws Exception {
+        CollectingTelemetriesTransmitter sender = new CollectingTelemetriesTransmitter();
+        TelemetryBuffer<String> testedBuffer = new TelemetryBuffer<String>(sender, createEnforcerWithCurrentValue(1, 100), createEnforcerWithCurrentValue(30));
+        testedBuffer.setMaxBatchSizeInBytes(LENGTH_SIZE_ESTIMATOR, 10);
+
+        testedBuffer.add("aaaaaa");
+        testedBuffer.add("bbbbbb");
+        assertEquals(1, sender.getSent().size());
+        assertEquals("aaaaaa", sender.getSent().get(0));
+
+        testedBuffer.flush();
+        assertEquals(2, sender.getSent().size());
+        assertEquals(2, sender.getBatchSizes().size());
+        sender.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testMaxTelemetriesInBatchStillAppliesWhenBatchingBySize() throws Exception {
+        CollectingTelemetriesTransmitter sender = new CollectingTelemetriesTransmitter();
+        TelemetryBuffer<String> testedBuffer = new TelemetryBuffer<String>(sender, createEnforcerWithCurrentValue(1, 3), createEnforcerWithCurrentValue(30));
+        testedBuffer.setMaxBatchSizeInBytes(LENGTH_SIZE_ESTIMATOR, 1000);
+
+        for (int i = 0; i < 3; ++i) {
+            testedBuffer.add("a");
+        }
+
+        assertEquals(3, sender.getSent().size());
+        sender.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testSetMaxBatchSizeInBytesWithSmallerSize() throws Exception {
+        CollectingTelemetriesTransmitter sender = new CollectingTelemetriesTransmitter();
+        TelemetryBuffer<String> testedBuffer = new TelemetryBuffer<String>(sender, createEnforcerWithCurrentValue(1, 100), createEnforcerWithCurrentValue(30));
+        testedBuffer.setMaxBatchSizeInBytes(LENGTH_SIZE_ESTIMATOR, 100);
+
+        testedBuffer.add("aaaaa");
+        testedBuffer.add("bbbbb");
+        testedBuffer.setMaxBatchSizeInBytes(LENGTH_SIZE_ESTIMATOR, 10);
+
+        assertEquals(2, sender.getSent().size());
+        sender.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testAddDoesNotWaitForASenderThatBlocks() throws Exception {
+        final CountDownLatch sendEntered = new CountDownLatch(1);
+        final CountDownLatch sendReleased = new CountDownLatch(1);
+        TelemetriesTransmitter<String> blockingSender = new TelemetriesTransmitter<String>() {
+            @Override
+            public boolean scheduleSend(TelemetriesFetcher<String> telemetriesFetcher, long value, TimeUnit timeUnit) {
+                return true;
+            }
+
+            @Override
+            public boolean sendNow(Collection<String> telemetries) {
+                // Stands for a backpressure policy that blocks or writes to the disk
+                sendEntered.countDown();
+                try {
+                    sendReleased.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return true;
+            }
+
+            @Override
+            public void shutdown(long timeout, TimeUnit timeUnit) {
+            }
+        };
+        final TelemetryBuffer<String> testedBuffer = new TelemetryBuffer<String>(blockingSender, createEnforcerWithCurrentValue(1, 2), createDefaultSenderTimeoutEnforcer());
+
+        Thread blocked = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                testedBuffer.add("first");
+                testedBuffer.add("second");
+            }
+        });
+        blocked.start();
+        try {
+            assertTrue(sendEntered.await(5, TimeUnit.SECONDS));
+
+            long start = System.currentTimeMillis();
+            testedBuffer.add("third");
+            assertTrue(System.currentTimeMillis() - start < 1000);
+            assertEquals(1, testedBuffer.getBufferedTelemetries());
+        } finally {
+            sendReleased.countDown();
+            blocked.join(5000);
+        }
+    }
+
+    @Test
+    public void testBatchThatCannotBeScheduledIsSentNow() throws Exception {
+        final List<Collection<String>> sent = new ArrayList<Collection<String>>();
+        TelemetriesTransmitter<String> fullSender = new TelemetriesTransmitter<String>() {
+            @Override
+            public boolean scheduleSend(TelemetriesFetcher<String> telemetriesFetcher, long value, TimeUnit timeUnit) {
+                return false;
+            }
+
+            @Override
+            public boolean sendNow(Collection<String> telemetries) {
+                sent.add(telemetries);
+                return true;
+            }
+
+            @Override
+            public void shutdown(long timeout, TimeUnit timeUnit) {
+            }
+        };
+        TelemetryBuffer<String> testedBuffer = new TelemetryBuffer<String>(fullSender, createEnforcerWithCurrentValue(10), createDefaultSenderTimeoutEnforcer());
+
+        testedBuffer.add("first");
+        testedBuffer.add("second");
+
+        assertEquals(2, sent.size());
+        assertEquals(Collections.singletonList("first"), sent.get(0));
+        assertEquals(Collections.singletonList("second"), sent.get(1));
+        assertEquals(0, testedBuffer.getBufferedTelemetries());
+    }
+
     private void testFlushWithData(int expectedTelemetriesNumberInSendNow) {
         MockSender mockSender = new MockSender()
                 .setExpectedNumberOfScheduleSendCalls(1)
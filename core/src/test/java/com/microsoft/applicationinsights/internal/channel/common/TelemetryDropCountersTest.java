@@ -0,0 +1,59 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+import com.microsoft.applicationinsights.telemetry.TraceTelemetry;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class TelemetryDropCountersTest {
+    @Test
+    public void testNothingDropped() {
+        TelemetryDropCounters counters = new TelemetryDropCounters();
+
+        assertEquals(0, counters.getTotalDroppedTelemetries());
+        assertEquals(0, counters.getDroppedTelemetries("TraceTelemetry"));
+        assertTrue(counters.getSnapshot().isEmpty());
+    }
+
+    @Test
+    public void testCountsPerTelemetryType() {
+        TelemetryDropCounters counters = new TelemetryDropCounters();
+
+        assertEquals(3, counters.record(Arrays.asList(new TraceTelemetry("1"), new TraceTelemetry("2"), new RequestTelemetry())));
+        assertEquals(4, counters.record(Arrays.asList(new TraceTelemetry("3"))));
+
+        assertEquals(3, counters.getDroppedTelemetries("TraceTelemetry"));
+        assertEquals(1, counters.getDroppedTelemetries("RequestTelemetry"));
+        assertEquals(4, counters.getTotalDroppedTelemetries());
+
+        Map<String, Long> snapshot = counters.getSnapshot();
+        assertEquals(2, snapshot.size());
+        assertEquals(Long.valueOf(3), snapshot.get("TraceTelemetry"));
+    }
+}
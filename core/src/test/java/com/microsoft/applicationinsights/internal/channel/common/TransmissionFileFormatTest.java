@@ -0,0 +1,183 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.channel.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import okio.Buffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class TransmissionFileFormatTest {
+    private final static String MOCK_CONTENT = "MockContent";
+    private final static String MOCK_CONTENT_TYPE = "application/x-json-stream";
+    private final static String MOCK_ENCODING_TYPE = "gzip";
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        Transmission transmission = new Transmission(MOCK_CONTENT.getBytes(StandardCharsets.UTF_8), MOCK_CONTENT_TYPE, MOCK_ENCODING_TYPE, 3);
+        transmission.setNumberOfSends(2);
+        transmission.incrementNumberOfPersistence();
+        transmission.setNumberOfItems(7);
+        File file = tmpFolder.newFile("Transmission.trn");
+
+        TransmissionFileFormat.write(file, transmission);
+        Transmission read = TransmissionFileFormat.read(file);
+
+        assertEquals(7, TransmissionFileFormat.readNumberOfItems(file));
+        assertEquals(7, read.getNumberOfItems());
+        assertEquals(MOCK_CONTENT, new String(read.getContent(), StandardCharsets.UTF_8));
+        assertEquals(MOCK_CONTENT_TYPE, read.getWebContentType());
+        assertEquals(MOCK_ENCODING_TYPE, read.getWebContentEncodingType());
+        assertEquals(3, read.getVersion());
+        assertEquals(2, read.getNumberOfSends());
+        assertEquals(1, read.getNumberOfPersistence());
+    }
+
+    @Test
+    public void testWriteKeepsTheContentOfABufferTransmission() throws IOException {
+        byte[] content = new byte[100000];
+        for (int i = 0; i < content.length; ++i) {
+            content[i] = (byte) i;
+        }
+        Transmission transmission = Transmission.fromBuffer(new Buffer().write(content), MOCK_CONTENT_TYPE, MOCK_ENCODING_TYPE);
+        File file = tmpFolder.newFile("Transmission.trn");
+
+        TransmissionFileFormat.write(file, transmission);
+
+        assertEquals(content.length, transmission.getContentLength());
+        assertArrayEquals(content, TransmissionFileFormat.read(file).getContent());
+    }
+
+    @Test
+    public void testReadRecordTakesTheContentIntoABody() throws IOException {
+        Transmission transmission = new Transmission(MOCK_CONTENT.getBytes(StandardCharsets.UTF_8), MOCK_CONTENT_TYPE, MOCK_ENCODING_TYPE, 2);
+        ByteBuffer header = TransmissionFileFormat.encodeHeader(transmission);
+        ByteBuffer records = ByteBuffer.allocate(2 * TransmissionFileFormat.getRecordSize(header, transmission));
+        TransmissionFileFormat.write(records, header, transmission);
+        TransmissionFileFormat.write(records, header, transmission);
+        records.flip();
+
+        assertEquals(0, TransmissionFileFormat.readNumberOfItems(records));
+        Transmission first = TransmissionFileFormat.read(records);
+        Transmission second = TransmissionFileFormat.read(records);
+
+        assertEquals(0, records.remaining());
+        assertEquals(2, second.getVersion());
+        assertEquals(MOCK_CONTENT, new String(second.getContent(), StandardCharsets.UTF_8));
+
+        // A body, unlike an array, is given back once the transmission was delivered
+        first.releaseBody();
+        try {
+            first.getContent();
+            fail("The content was read into an array");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testReadSerializedTransmission() throws IOException {
+        Transmission transmission = new Transmission(MOCK_CONTENT.getBytes(StandardCharsets.UTF_8), MOCK_CONTENT_TYPE, MOCK_ENCODING_TYPE);
+        transmission.setNumberOfSends(4);
+        File file = tmpFolder.newFile("Transmission.trn");
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file))) {
+            out.writeObject(transmission);
+        }
+
+        Transmission read = TransmissionFileFormat.read(file);
+
+        assertEquals(MOCK_CONTENT, new String(read.getContent(), StandardCharsets.UTF_8));
+        assertEquals(MOCK_CONTENT_TYPE, read.getWebContentType());
+        assertEquals(4, read.getNumberOfSends());
+        assertEquals(0, TransmissionFileFormat.readNumberOfItems(file));
+    }
+
+    @Test
+    public void testTruncatedFileIsDetected() throws IOException {
+        File file = writeMockTransmission();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 6);
+        }
+
+        assertTorn(file);
+    }
+
+    @Test
+    public void testCorruptedContentIsDetected() throws IOException {
+        File file = writeMockTransmission();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long position = raf.length() - 6;
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 0x01);
+        }
+
+        assertTorn(file);
+    }
+
+    @Test
+    public void testTornFileIsNotSent() throws IOException {
+        File folder = tmpFolder.newFolder("Transmissions");
+        TransmissionFileSystemOutput output = new TransmissionFileSystemOutput(folder.getAbsolutePath());
+        output.sendSync(new Transmission(MOCK_CONTENT.getBytes(StandardCharsets.UTF_8), MOCK_CONTENT_TYPE, MOCK_ENCODING_TYPE));
+        File[] files = folder.listFiles();
+        assertNotNull(files);
+        assertEquals(1, files.length);
+        try (RandomAccessFile raf = new RandomAccessFile(files[0], "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+
+        assertNull(output.fetchOldestFile());
+        assertEquals(0, folder.listFiles().length);
+    }
+
+    private File writeMockTransmission() throws IOException {
+        File file = tmpFolder.newFile("Transmission.trn");
+        TransmissionFileFormat.write(file, new Transmission(MOCK_CONTENT.getBytes(StandardCharsets.UTF_8), MOCK_CONTENT_TYPE, MOCK_ENCODING_TYPE));
+        return file;
+    }
+
+    private static void assertTorn(File file) {
+        try {
+            TransmissionFileFormat.read(file);
+            fail("Torn file was read");
+        } catch (IOException expected) {
+        }
+    }
+}
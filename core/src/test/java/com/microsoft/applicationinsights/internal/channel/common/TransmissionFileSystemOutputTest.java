@@ -21,13 +21,22 @@
 
 package com.microsoft.applicationinsights.internal.channel.common;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+
+import com.microsoft.applicationinsights.internal.channel.SpoolRetentionPolicy;
 import org.apache.commons.io.FileUtils;
 import org.junit.Rule;
 import org.junit.Test;
@@ -103,6 +112,143 @@ public final class TransmissionFileSystemOutputTest {
         }
     }
 
+    @Test
+    public void testFilesOfAPreviousRunAreFetchedInOrder() throws Exception {
+        File folder = tmpFolder.newFolder(TEMP_TEST_FOLDER + "3");
+        TransmissionFileSystemOutput previous = new TransmissionFileSystemOutput(folder.getAbsolutePath());
+        for (int i = 1; i <= 3; ++i) {
+            previous.sendSync(new Transmission((MOCK_CONTENT + i).getBytes(), MOCK_CONTENT_TYPE_BASE, MOCK_ENCODING_TYPE_BASE));
+            TimeUnit.MILLISECONDS.sleep(5); // so 2 files can never have the same timestamp.
+        }
+
+        TransmissionFileSystemOutput tested = new TransmissionFileSystemOutput(folder.getAbsolutePath());
+        assertEquals(previous.getSizeInBytes(), tested.getSizeInBytes());
+        tested.sendSync(new Transmission((MOCK_CONTENT + 4).getBytes(), MOCK_CONTENT_TYPE_BASE, MOCK_ENCODING_TYPE_BASE));
+
+        for (int i = 1; i <= 4; ++i) {
+            assertEquals(MOCK_CONTENT + i, new String(tested.fetchOldestFile().getContent()));
+        }
+        assertNull(tested.fetchOldestFile());
+    }
+
+    @Test
+    public void testTornOldestFileIsSkipped() throws Exception {
+        File folder = tmpFolder.newFolder(TEMP_TEST_FOLDER + "8");
+        TransmissionFileSystemOutput previous = new TransmissionFileSystemOutput(folder.getAbsolutePath());
+        for (int i = 1; i <= 3; ++i) {
+            previous.sendSync(new Transmission((MOCK_CONTENT + i).getBytes(), MOCK_CONTENT_TYPE_BASE, MOCK_ENCODING_TYPE_BASE));
+            TimeUnit.MILLISECONDS.sleep(5); // so 2 files can never have the same timestamp.
+        }
+        tearOldestFile(folder);
+
+        TransmissionFileSystemOutput tested = new TransmissionFileSystemOutput(folder.getAbsolutePath());
+
+        assertFalse(tested.isEmpty());
+        for (int i = 2; i <= 3; ++i) {
+            assertEquals(MOCK_CONTENT + i, new String(tested.fetchOldestFile().getContent()));
+        }
+        assertNull(tested.fetchOldestFile());
+        assertTrue(tested.isEmpty());
+        assertEquals(0, FileUtils.listFiles(folder, null, false).size());
+    }
+
+    static void tearOldestFile(File folder) throws Exception {
+        List<File> files = new ArrayList<File>(FileUtils.listFiles(folder, new String[]{TRANSMISSION_FILE_EXTENSION}, false));
+        Collections.sort(files);
+        try (RandomAccessFile file = new RandomAccessFile(files.get(0), "rw")) {
+            file.setLength(file.length() - 1);
+        }
+    }
+
+    @Test
+    public void testSizeFollowsSendsAndFetches() throws Exception {
+        File folder = tmpFolder.newFolder(TEMP_TEST_FOLDER + "4");
+        TransmissionFileSystemOutput tested = new TransmissionFileSystemOutput(folder.getAbsolutePath());
+        assertEquals(0, tested.getSizeInBytes());
+
+        tested.sendSync(new Transmission(new byte[100], MOCK_CONTENT_TYPE_BASE, MOCK_ENCODING_TYPE_BASE));
+        tested.sendSync(new Transmission(new byte[200], MOCK_CONTENT_TYPE_BASE, MOCK_ENCODING_TYPE_BASE));
+        long totalLength = 0;
+        for (File file : FileUtils.listFiles(folder, new String[]{TRANSMISSION_FILE_EXTENSION}, false)) {
+            totalLength += file.length();
+        }
+        assertEquals(totalLength, tested.getSizeInBytes());
+
+        tested.fetchOldestFile();
+        tested.fetchOldestFile();
+        assertEquals(0, tested.getSizeInBytes());
+    }
+
+    @Test
+    public void testEvictOldestKeepsTheNewestTransmissions() throws Exception {
+        File folder = tmpFolder.newFolder(TEMP_TEST_FOLDER + "5");
+        TransmissionFileSystemOutput tested = new TransmissionFileSystemOutput(folder.getAbsolutePath(), "1");
+        tested.setRetentionPolicy(SpoolRetentionPolicy.EVICT_OLDEST, Long.MAX_VALUE);
+        long evicted = ChannelMetrics.INSTANCE.getEvictedTransmissions();
+        long evictedTelemetries = ChannelMetrics.INSTANCE.getEvictedTelemetries();
+        long evictedBytes = ChannelMetrics.INSTANCE.getEvictedSpoolBytes();
+
+        for (int i = 1; i <= 5; ++i) {
+            byte[] content = new byte[SIZE_OF_TRANSMISSION_CONTENT];
+            content[0] = (byte) i;
+            Transmission transmission = new Transmission(content, MOCK_CONTENT_TYPE_BASE, MOCK_ENCODING_TYPE_BASE);
+            transmission.setNumberOfItems(10 * i);
+            assertTrue(tested.sendSync(transmission));
+            TimeUnit.MILLISECONDS.sleep(5); // so 2 files can never have the same timestamp.
+        }
+
+        assertEquals(evicted + 2, ChannelMetrics.INSTANCE.getEvictedTransmissions());
+        assertEquals(evictedTelemetries + 10 + 20, ChannelMetrics.INSTANCE.getEvictedTelemetries());
+        assertTrue(ChannelMetrics.INSTANCE.getEvictedSpoolBytes() - evictedBytes > 2 * SIZE_OF_TRANSMISSION_CONTENT);
+        for (int i = 3; i <= 5; ++i) {
+            assertEquals(i, tested.fetchOldestFile().getContent()[0]);
+        }
+        assertNull(tested.fetchOldestFile());
+    }
+
+    @Test
+    public void testRejectNewIsTheDefault() throws Exception {
+        File folder = tmpFolder.newFolder(TEMP_TEST_FOLDER + "6");
+        TransmissionFileSystemOutput tested = createAndSend(folder.getAbsolutePath(), 3, SIZE_OF_MOCK_TRANSMISSION);
+
+        assertFalse(tested.sendSync(new Transmission(new byte[SIZE_OF_TRANSMISSION_CONTENT], MOCK_CONTENT_TYPE_BASE, MOCK_ENCODING_TYPE_BASE)));
+        assertEquals(3, FileUtils.listFiles(folder, new String[]{TRANSMISSION_FILE_EXTENSION}, false).size());
+    }
+
+    @Test
+    public void testMaxAgeEvictsExpiredTransmissions() throws Exception {
+        File folder = tmpFolder.newFolder(TEMP_TEST_FOLDER + "7");
+        TransmissionFileSystemOutput tested = new TransmissionFileSystemOutput(folder.getAbsolutePath());
+        tested.setRetentionPolicy(SpoolRetentionPolicy.MAX_AGE, 100);
+        long evicted = ChannelMetrics.INSTANCE.getEvictedTransmissions();
+
+        tested.sendSync(new Transmission((MOCK_CONTENT + 1).getBytes(), MOCK_CONTENT_TYPE_BASE, MOCK_ENCODING_TYPE_BASE));
+        tested.sendSync(new Transmission((MOCK_CONTENT + 2).getBytes(), MOCK_CONTENT_TYPE_BASE, MOCK_ENCODING_TYPE_BASE));
+        TimeUnit.MILLISECONDS.sleep(200);
+        tested.sendSync(new Transmission((MOCK_CONTENT + 3).getBytes(), MOCK_CONTENT_TYPE_BASE, MOCK_ENCODING_TYPE_BASE));
+
+        assertEquals(MOCK_CONTENT + 3, new String(tested.fetchOldestFile().getContent()));
+        assertNull(tested.fetchOldestFile());
+        assertEquals(evicted + 2, ChannelMetrics.INSTANCE.getEvictedTransmissions());
+        assertEquals(0, tested.getSizeInBytes());
+    }
+
+    @Test
+    public void testSplitCapacityByWeights() {
+        assertArrayEquals(new int[]{50, 25, 15, 10}, TransmissionFileSystemOutput.splitCapacity("100", 10, 5, 3, 2));
+    }
+
+    @Test
+    public void testSplitCapacityKeepsTheMinimumCapacity() {
+        assertArrayEquals(new int[]{1, 1, 1}, TransmissionFileSystemOutput.splitCapacity("2", 2, 1, 1));
+    }
+
+    @Test
+    public void testSplitCapacitySplitsTheDefaultCapacityWhenNotValid() {
+        assertArrayEquals(new int[]{TransmissionFileSystemOutput.DEFAULT_CAPACITY_MEGABYTES / 2, TransmissionFileSystemOutput.DEFAULT_CAPACITY_MEGABYTES / 2},
+                TransmissionFileSystemOutput.splitCapacity("not a number", 1, 1));
+    }
+
     private TransmissionFileSystemOutput testSuccessfulSends(int amount) throws Exception {
         return testSuccessfulSends(amount, amount, null, null);
     }
@@ -21,6 +21,13 @@
 
 package com.microsoft.applicationinsights.internal.channel.common;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import okio.Buffer;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -117,6 +124,55 @@ public final class TransmissionTest {
         assertEquals(MOCK_WEB_ENCODING_TYPE, tested.getWebContentEncodingType());
     }
 
+    @Test
+    public void testBufferContentIsStreamedWithoutBeingConsumed() throws Exception {
+        Buffer buffer = new Buffer().writeUtf8("content");
+        Transmission tested = Transmission.fromBuffer(buffer, MOCK_WEB_CONTENT_TYPE, MOCK_WEB_ENCODING_TYPE);
+
+        assertEquals(0, buffer.size());
+        assertEquals(7, tested.getContentLength());
+        for (int i = 0; i < 2; ++i) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            tested.writeContentTo(out);
+            assertEquals("content", out.toString("UTF-8"));
+            assertEquals("content", new String(IOUtils.toByteArray(tested.openContent()), "UTF-8"));
+        }
+        assertEquals("content", new String(tested.getContent(), "UTF-8"));
+    }
+
+    @Test
+    public void testBufferContentIsPersistedAsArray() throws Exception {
+        Transmission tested = Transmission.fromBuffer(new Buffer().writeUtf8("content"), MOCK_WEB_CONTENT_TYPE, MOCK_WEB_ENCODING_TYPE);
+        tested.incrementNumberOfSends();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(tested);
+        out.close();
+        Transmission loaded = (Transmission) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertEquals("content", new String(loaded.getContent(), "UTF-8"));
+        assertEquals(1, loaded.getNumberOfSends());
+        assertEquals(MOCK_WEB_CONTENT_TYPE, loaded.getWebContentType());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReleasedBufferContentCannotBeRead() throws Exception {
+        Transmission tested = Transmission.fromBuffer(new Buffer().writeUtf8("content"), MOCK_WEB_CONTENT_TYPE, MOCK_WEB_ENCODING_TYPE);
+
+        tested.releaseBody();
+        tested.getContent();
+    }
+
+    @Test
+    public void testReleaseKeepsArrayContent() throws Exception {
+        byte[] mockContent = new byte[2];
+        Transmission tested = new Transmission(mockContent, MOCK_WEB_CONTENT_TYPE, MOCK_WEB_ENCODING_TYPE);
+
+        tested.releaseBody();
+        assertSame(mockContent, tested.getContent());
+    }
+
     private static Transmission createMockTransmission() {
         byte[] mockContent = new byte[2];
         Transmission tested = new Transmission(mockContent, MOCK_WEB_CONTENT_TYPE, MOCK_WEB_ENCODING_TYPE);
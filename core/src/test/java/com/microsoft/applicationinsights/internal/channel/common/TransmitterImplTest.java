@@ -23,20 +23,29 @@ package com.microsoft.applicationinsights.internal.channel.common;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
+import com.microsoft.applicationinsights.internal.channel.BackpressurePolicy;
 import com.microsoft.applicationinsights.internal.channel.TelemetriesTransmitter;
 import com.microsoft.applicationinsights.internal.channel.TelemetrySerializer;
 import com.microsoft.applicationinsights.internal.channel.TransmissionDispatcher;
+import com.microsoft.applicationinsights.internal.channel.TransmissionOutputSync;
 import com.microsoft.applicationinsights.internal.channel.TransmissionsLoader;
+import com.microsoft.applicationinsights.internal.util.LimitsEnforcer;
 import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
 import com.microsoft.applicationinsights.telemetry.Telemetry;
 import com.microsoft.applicationinsights.telemetry.TelemetryContext;
+import com.microsoft.applicationinsights.telemetry.TraceTelemetry;
 import com.squareup.moshi.JsonWriter;
 import okio.Buffer;
 import org.junit.*;
@@ -44,11 +53,72 @@ import org.mockito.Mockito;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public final class TransmitterImplTest {
     private final static String MOCK_WEB_CONTENT_TYPE = "MWCT";
     private final static String MOCK_CONTENT_ENCODING_TYPE = "MCET";
 
+    /**
+     * Keeps the transmitter threads busy until released, so that further sends stay pending.
+     */
+    private static final class BlockingDispatcher implements TransmissionDispatcher {
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger started = new AtomicInteger(0);
+
+        @Override
+        public void dispatch(Transmission transmission) {
+            started.incrementAndGet();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void shutdown(long timeout, TimeUnit timeUnit) {
+        }
+
+        void waitForStarted(int expected) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 3000;
+            while (started.get() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(expected, started.get());
+        }
+    }
+
+    private static final class StubSerializer implements TelemetrySerializer {
+        @Override
+        public Optional<Transmission> serialize(Collection<Telemetry> telemetries) {
+            return Optional.of(new Transmission(new byte[1], MOCK_WEB_CONTENT_TYPE, MOCK_CONTENT_ENCODING_TYPE));
+        }
+    }
+
+    private static final class StubLoader implements TransmissionsLoader {
+        @Override
+        public boolean load(boolean waitForThreadsToStart) {
+            return true;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    private static final class StubSpillOutput implements TransmissionOutputSync {
+        private final AtomicInteger transmissions = new AtomicInteger(0);
+
+        @Override
+        public boolean sendSync(Transmission transmission) {
+            transmissions.incrementAndGet();
+            return true;
+        }
+    }
+
     @Test(expected = NullPointerException.class)
     public void testCtorWithNullTransmissionDispatcher() {
         TelemetrySerializer mockSerializer = Mockito.mock(TelemetrySerializer.class);
@@ -308,6 +378,209 @@ public final class TransmitterImplTest {
         }
     }
 
+    @Test
+    public void testDropNewestDropsIncomingBatchWhenOverloaded() throws Exception {
+        BlockingDispatcher dispatcher = new BlockingDispatcher();
+        TransmitterImpl transmitter = createOverloadedTransmitter(dispatcher, null, BackpressurePolicy.DROP_NEWEST);
+        try {
+            assertFalse(transmitter.sendNow(Collections.<Telemetry>singletonList(new RequestTelemetry())));
+
+            Map<String, Long> dropped = transmitter.getDroppedTelemetries();
+            assertEquals(1, dropped.size());
+            assertEquals(Long.valueOf(1), dropped.get("RequestTelemetry"));
+        } finally {
+            dispatcher.release.countDown();
+            transmitter.shutdown(1L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testDropOldestDropsOldestPendingBatchWhenOverloaded() throws Exception {
+        BlockingDispatcher dispatcher = new BlockingDispatcher();
+        TransmitterImpl transmitter = createOverloadedTransmitter(dispatcher, null, BackpressurePolicy.DROP_OLDEST);
+        try {
+            assertTrue(transmitter.sendNow(Collections.<Telemetry>singletonList(new RequestTelemetry())));
+
+            Map<String, Long> dropped = transmitter.getDroppedTelemetries();
+            assertEquals(1, dropped.size());
+            assertEquals(Long.valueOf(1), dropped.get("TraceTelemetry"));
+        } finally {
+            dispatcher.release.countDown();
+            transmitter.shutdown(1L, TimeUnit.SECONDS);
+        }
+
+        // The two running batches, the pending one that was kept and the new one
+        assertEquals(4, dispatcher.started.get());
+    }
+
+    @Test
+    public void testBlockWithTimeoutWaitsThenDrops() throws Exception {
+        BlockingDispatcher dispatcher = new BlockingDispatcher();
+        TransmitterImpl transmitter = createOverloadedTransmitter(dispatcher, null, BackpressurePolicy.BLOCK_WITH_TIMEOUT);
+        transmitter.setBackpressurePolicy(BackpressurePolicy.BLOCK_WITH_TIMEOUT, 100);
+        try {
+            long start = System.currentTimeMillis();
+            assertFalse(transmitter.sendNow(Collections.<Telemetry>singletonList(new RequestTelemetry())));
+            assertTrue(System.currentTimeMillis() - start >= 90);
+
+            assertEquals(Long.valueOf(1), transmitter.getDroppedTelemetries().get("RequestTelemetry"));
+        } finally {
+            dispatcher.release.countDown();
+            transmitter.shutdown(1L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testSpillToDiskWritesIncomingBatchWhenOverloaded() throws Exception {
+        BlockingDispatcher dispatcher = new BlockingDispatcher();
+        StubSpillOutput spillOutput = new StubSpillOutput();
+        TransmitterImpl transmitter = createOverloadedTransmitter(dispatcher, spillOutput, BackpressurePolicy.SPILL_TO_DISK);
+        try {
+            transmitter.sendNow(Collections.<Telemetry>singletonList(new RequestTelemetry()));
+
+            assertEquals(1, spillOutput.transmissions.get());
+            assertTrue(transmitter.getDroppedTelemetries().isEmpty());
+        } finally {
+            dispatcher.release.countDown();
+            transmitter.shutdown(1L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testScheduleSendWhenOverloadedLeavesTheBatchToTheCaller() throws Exception {
+        BlockingDispatcher dispatcher = new BlockingDispatcher();
+        TransmitterImpl transmitter = createOverloadedTransmitter(dispatcher, null, BackpressurePolicy.DROP_NEWEST);
+        try {
+            final AtomicInteger fetches = new AtomicInteger(0);
+            assertFalse(transmitter.scheduleSend(new TelemetriesTransmitter.TelemetriesFetcher<Telemetry>() {
+                @Override
+                public Collection<Telemetry> fetch() {
+                    fetches.incrementAndGet();
+                    return Collections.<Telemetry>singletonList(new RequestTelemetry());
+                }
+            }, 10, TimeUnit.SECONDS));
+
+            // The caller sends the batch now, where the backpressure policy applies to it
+            assertEquals(0, fetches.get());
+            assertTrue(transmitter.getDroppedTelemetries().isEmpty());
+        } finally {
+            dispatcher.release.countDown();
+            transmitter.shutdown(1L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testDrainSendsScheduledBatchWithoutWaitingForTimer() throws Exception {
+        BlockingDispatcher dispatcher = new BlockingDispatcher();
+        dispatcher.release.countDown();
+        TransmitterImpl transmitter = new TransmitterImpl(dispatcher, new StubSerializer(), new StubLoader(), null);
+        assertTrue(transmitter.scheduleSend(new TelemetriesTransmitter.TelemetriesFetcher<Telemetry>() {
+            @Override
+            public Collection<Telemetry> fetch() {
+                return Collections.<Telemetry>singletonList(new RequestTelemetry());
+            }
+        }, 1, TimeUnit.HOURS));
+
+        long start = System.currentTimeMillis();
+        transmitter.drainAndShutdown(5L, TimeUnit.SECONDS);
+
+        assertEquals(1, dispatcher.started.get());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testDrainSpillsPendingBatchesWhenBudgetRunsOut() throws Exception {
+        BlockingDispatcher dispatcher = new BlockingDispatcher();
+        StubSpillOutput spillOutput = new StubSpillOutput();
+        TransmitterImpl transmitter = createOverloadedTransmitter(dispatcher, spillOutput, BackpressurePolicy.DROP_NEWEST);
+        try {
+            transmitter.drainAndShutdown(200L, TimeUnit.MILLISECONDS);
+
+            // The two pending batches, the running ones are still sending
+            assertEquals(2, spillOutput.transmissions.get());
+
+            assertFalse(transmitter.sendNow(Collections.<Telemetry>singletonList(new RequestTelemetry())));
+            assertEquals(3, spillOutput.transmissions.get());
+            assertTrue(transmitter.getDroppedTelemetries().isEmpty());
+        } finally {
+            dispatcher.release.countDown();
+        }
+
+        assertEquals(2, dispatcher.started.get());
+    }
+
+    @Test
+    public void testCompressedBatchIsDroppedAndCountedWhenOverloaded() throws Exception {
+        BlockingDispatcher dispatcher = new BlockingDispatcher();
+        TransmitterImpl transmitter = createOverloadedTransmitter(dispatcher, null, BackpressurePolicy.DROP_NEWEST);
+        CompressingTelemetryBuffer buffer = new CompressingTelemetryBuffer(transmitter, transmitter, createEnforcer(1), createEnforcer(100));
+        try {
+            buffer.add(new RequestTelemetry());
+            buffer.add(new RequestTelemetry());
+
+            assertEquals(Long.valueOf(2), transmitter.getDroppedTelemetries().get("RequestTelemetry"));
+        } finally {
+            dispatcher.release.countDown();
+            transmitter.shutdown(1L, TimeUnit.SECONDS);
+        }
+
+        // The two running batches and the two pending ones, the compressed batch is not dispatched
+        assertEquals(4, dispatcher.started.get());
+    }
+
+    @Test
+    public void testCompressedBatchIsSpilledWhenOverloaded() throws Exception {
+        BlockingDispatcher dispatcher = new BlockingDispatcher();
+        StubSpillOutput spillOutput = new StubSpillOutput();
+        TransmitterImpl transmitter = createOverloadedTransmitter(dispatcher, spillOutput, BackpressurePolicy.SPILL_TO_DISK);
+        CompressingTelemetryBuffer buffer = new CompressingTelemetryBuffer(transmitter, transmitter, createEnforcer(1), createEnforcer(100));
+        try {
+            buffer.add(new RequestTelemetry());
+
+            assertEquals(1, spillOutput.transmissions.get());
+            assertTrue(transmitter.getDroppedTelemetries().isEmpty());
+        } finally {
+            dispatcher.release.countDown();
+            transmitter.shutdown(1L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testCompressedBatchIsSpilledWhenDrained() throws Exception {
+        BlockingDispatcher dispatcher = new BlockingDispatcher();
+        dispatcher.release.countDown();
+        StubSpillOutput spillOutput = new StubSpillOutput();
+        TransmitterImpl transmitter = new TransmitterImpl(dispatcher, new StubSerializer(), new StubLoader(), spillOutput);
+        CompressingTelemetryBuffer buffer = new CompressingTelemetryBuffer(transmitter, transmitter, createEnforcer(1), createEnforcer(100));
+        transmitter.drainAndShutdown(1L, TimeUnit.SECONDS);
+
+        buffer.add(new RequestTelemetry());
+
+        assertEquals(1, spillOutput.transmissions.get());
+        assertEquals(0, dispatcher.started.get());
+    }
+
+    /**
+     * Creates a transmitter that allows two pending sends, with both threads busy and both pending sends taken.
+     */
+    private static TransmitterImpl createOverloadedTransmitter(BlockingDispatcher dispatcher, TransmissionOutputSync spillOutput, BackpressurePolicy policy) throws InterruptedException {
+        TransmitterImpl transmitter = new TransmitterImpl(dispatcher, new StubSerializer(), new StubLoader(), spillOutput, 2);
+        transmitter.setBackpressurePolicy(policy, 0);
+
+        assertTrue(transmitter.sendNow(Collections.<Telemetry>singletonList(new TraceTelemetry("running"))));
+        assertTrue(transmitter.sendNow(Collections.<Telemetry>singletonList(new TraceTelemetry("running"))));
+        dispatcher.waitForStarted(2);
+
+        assertTrue(transmitter.sendNow(Collections.<Telemetry>singletonList(new TraceTelemetry("pending"))));
+        assertTrue(transmitter.sendNow(Collections.<Telemetry>singletonList(new TraceTelemetry("pending"))));
+
+        return transmitter;
+    }
+
+    private static LimitsEnforcer createEnforcer(int value) {
+        return LimitsEnforcer.createWithClosestLimitOnError("MockProperty", 1, 1000, value, value);
+    }
+
     private static ArrayList<String> toJson(List<Telemetry> telemetries) throws IOException {
         ArrayList<String> asJsons = new ArrayList<String>();
         for (Telemetry telemetry : telemetries) {
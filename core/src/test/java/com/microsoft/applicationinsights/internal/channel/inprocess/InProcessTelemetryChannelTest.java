@@ -22,10 +22,15 @@
 package com.microsoft.applicationinsights.internal.channel.inprocess;
 
 import com.microsoft.applicationinsights.channel.concrete.inprocess.InProcessTelemetryChannel;
+import com.microsoft.applicationinsights.internal.channel.BackpressurePolicy;
+import com.microsoft.applicationinsights.internal.channel.common.SegmentedTransmissionSpool;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+import com.microsoft.applicationinsights.telemetry.TraceTelemetry;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 
 public class InProcessTelemetryChannelTest {
 
@@ -60,6 +65,149 @@ public class InProcessTelemetryChannelTest {
         new InProcessTelemetryChannel(map);
     }
 
+    @Test
+    public void testRingBufferTelemetryBufferType() {
+        HashMap<String, String> map = new HashMap<String, String>();
+        map.put("TelemetryBufferType", "RingBuffer");
+        InProcessTelemetryChannel channel = new InProcessTelemetryChannel(map);
+        channel.send(new TraceTelemetry("trace"));
+        channel.flush();
+    }
+
+    @Test
+    public void testStripedTelemetryBuffer() {
+        HashMap<String, String> map = new HashMap<String, String>();
+        map.put("TelemetryBufferStripes", "0");
+        map.put("TelemetryBufferType", "RingBuffer");
+        InProcessTelemetryChannel channel = new InProcessTelemetryChannel(map);
+        channel.send(new TraceTelemetry("trace"));
+        channel.flush();
+    }
+
+    @Test
+    public void testMaxTelemetryBufferSizeInBytes() {
+        HashMap<String, String> map = new HashMap<String, String>();
+        map.put("MaxTelemetryBufferSizeInBytes", "1000000");
+        InProcessTelemetryChannel channel = new InProcessTelemetryChannel(map);
+        channel.send(new TraceTelemetry("trace"));
+        channel.flush();
+    }
+
+    @Test
+    public void testBackpressurePolicy() {
+        HashMap<String, String> map = new HashMap<String, String>();
+        map.put("BackpressurePolicy", "drop_oldest");
+        map.put("BackpressureBlockTimeoutInMillis", "10");
+        InProcessTelemetryChannel channel = new InProcessTelemetryChannel(map);
+
+        Assert.assertEquals(BackpressurePolicy.DROP_OLDEST, channel.getBackpressurePolicy());
+        Assert.assertTrue(channel.getDroppedTelemetries().isEmpty());
+
+        channel.setBackpressurePolicy(BackpressurePolicy.SPILL_TO_DISK);
+        Assert.assertEquals(BackpressurePolicy.SPILL_TO_DISK, channel.getBackpressurePolicy());
+    }
+
+    @Test
+    public void testDispatcherLoopTransmitter() throws InterruptedException {
+        HashMap<String, String> map = new HashMap<String, String>();
+        map.put("TransmitterType", "DispatcherLoop");
+        map.put("BackpressurePolicy", "DROP_OLDEST");
+        InProcessTelemetryChannel channel = new InProcessTelemetryChannel(map);
+        try {
+            Assert.assertEquals(BackpressurePolicy.DROP_OLDEST, channel.getBackpressurePolicy());
+
+            channel.send(new TraceTelemetry("dispatcher loop"));
+            channel.flush();
+        } finally {
+            channel.shutdown(1L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testCompressedTelemetryBuffer() throws InterruptedException {
+        HashMap<String, String> map = new HashMap<String, String>();
+        map.put("TelemetryBufferType", "Compressed");
+        map.put("MaxTelemetryBufferSizeInBytes", "65536");
+        InProcessTelemetryChannel channel = new InProcessTelemetryChannel(map);
+        try {
+            channel.send(new TraceTelemetry("compressed"));
+            channel.flush();
+        } finally {
+            channel.shutdown(1L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testAdaptiveBatching() throws InterruptedException {
+        HashMap<String, String> map = new HashMap<String, String>();
+        map.put("AdaptiveBatching", "true");
+        map.put("AdaptiveBatchingTargetLatencyInMillis", "2000");
+        InProcessTelemetryChannel channel = new InProcessTelemetryChannel(map);
+        try {
+            channel.send(new TraceTelemetry("adaptive"));
+            channel.flush();
+        } finally {
+            channel.shutdown(1L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testPriorityLanes() throws InterruptedException {
+        HashMap<String, String> map = new HashMap<String, String>();
+        map.put("PriorityLanes", "true");
+        map.put("VerboseLaneCapacity", "100");
+        map.put("VerboseLaneBackpressurePolicy", "DROP_OLDEST");
+        InProcessTelemetryChannel channel = new InProcessTelemetryChannel(map);
+        try {
+            channel.send(new RequestTelemetry());
+            channel.send(new TraceTelemetry("lanes"));
+            channel.flush();
+
+            Assert.assertTrue(channel.getDroppedTelemetries().isEmpty());
+        } finally {
+            channel.shutdown(1L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testGracefulShutdownKeepsToTheBudget() throws InterruptedException {
+        HashMap<String, String> map = new HashMap<String, String>();
+        map.put("GracefulShutdown", "true");
+        map.put("PriorityLanes", "true");
+        InProcessTelemetryChannel channel = new InProcessTelemetryChannel(map);
+        channel.send(new RequestTelemetry());
+        channel.send(new TraceTelemetry("graceful"));
+
+        long start = System.currentTimeMillis();
+        channel.shutdown(1L, TimeUnit.SECONDS);
+
+        Assert.assertTrue(System.currentTimeMillis() - start < 3000);
+        Assert.assertTrue(channel.getDroppedTelemetries().isEmpty());
+    }
+
+    @Test
+    public void testSegmentedSpoolIsReleasedOnShutdown() throws InterruptedException {
+        HashMap<String, String> map = new HashMap<String, String>();
+        map.put("SpoolType", "Segmented");
+        for (int i = 0; i < 2; ++i) {
+            InProcessTelemetryChannel channel = new InProcessTelemetryChannel(map);
+            channel.send(new TraceTelemetry("segmented"));
+            channel.shutdown(1L, TimeUnit.SECONDS);
+
+            // A channel that is re-created gets the segments, it does not fall back to a file per transmission
+            new SegmentedTransmissionSpool(null).close();
+        }
+    }
+
+    @Test
+    public void testUnknownBackpressurePolicyKeepsDefault() {
+        HashMap<String, String> map = new HashMap<String, String>();
+        map.put("BackpressurePolicy", "NoSuchPolicy");
+        InProcessTelemetryChannel channel = new InProcessTelemetryChannel(map);
+
+        Assert.assertEquals(BackpressurePolicy.DROP_NEWEST, channel.getBackpressurePolicy());
+    }
+
     @Test
     public void testInProcessTelemetryChannelWithDefaultSpringBootParameters() {
         new InProcessTelemetryChannel("https://dc.services.visualstudio.com/v2/track", "10",
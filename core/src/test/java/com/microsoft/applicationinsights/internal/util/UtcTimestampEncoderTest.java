@@ -0,0 +1,94 @@
+/*
+ * ApplicationInsights-Java
+ * Copyright (c) Microsoft Corporation
+ * All rights reserved.
+ *
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the ""Software""), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED *AS IS*, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE
+ * FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package com.microsoft.applicationinsights.internal.util;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import okio.Buffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public final class UtcTimestampEncoderTest {
+    @Test
+    public void testIso8601MatchesSimpleDateFormatInUtc() {
+        SimpleDateFormat expected = utc("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
+        Random random = new Random(17);
+        for (int i = 0; i < 10000; ++i) {
+            // From 1600 to 2400
+            long time = -11676096000000L + (long) (random.nextDouble() * 25245273600000L);
+            assertEquals(expected.format(new Date(time)), UtcTimestampEncoder.formatIso8601(time));
+            // The same second again, only the milliseconds change
+            long sameSecond = time - ((time % 1000) + 1000) % 1000 + random.nextInt(1000);
+            assertEquals(expected.format(new Date(sameSecond)), UtcTimestampEncoder.formatIso8601(sameSecond));
+        }
+    }
+
+    @Test
+    public void testIso8601AroundTheEpochAndLeapDays() {
+        SimpleDateFormat expected = utc("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
+        long[] times = {0L, -1L, 999L, 1000L, -1000L, -1001L, 951782400000L, 951868799999L, 4107542400000L, 1609459199999L};
+        for (long time : times) {
+            assertEquals(expected.format(new Date(time)), UtcTimestampEncoder.formatIso8601(time));
+        }
+    }
+
+    @Test
+    public void testIso8601OutOfRangeFallsBackToSimpleDateFormat() {
+        long time = 253402300800000L; // 10000-01-01
+        assertEquals(utc("yyyy-MM-dd'T'HH:mm:ss.SSSZZ").format(new Date(time)), UtcTimestampEncoder.formatIso8601(time));
+    }
+
+    @Test
+    public void testQuotedIso8601() {
+        Buffer buffer = new Buffer();
+        UtcTimestampEncoder.writeQuotedIso8601(1592870400123L, buffer);
+
+        assertEquals("\"2020-06-23T00:00:00.123+0000\"", buffer.readUtf8());
+    }
+
+    @Test
+    public void testRfc1123MatchesSimpleDateFormatInUtc() {
+        SimpleDateFormat expected = utc("EEE, dd MMM yyyy HH:mm:ss 'GMT'");
+        Random random = new Random(17);
+        for (int i = 0; i < 10000; ++i) {
+            long time = -11676096000000L + (long) (random.nextDouble() * 25245273600000L);
+            assertEquals(expected.format(new Date(time)), UtcTimestampEncoder.formatRfc1123(time));
+        }
+    }
+
+    @Test
+    public void testRfc1123IsCachedWithinASecond() {
+        assertSame(UtcTimestampEncoder.formatRfc1123(1592870400001L), UtcTimestampEncoder.formatRfc1123(1592870400999L));
+    }
+
+    private static SimpleDateFormat utc(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+}
@@ -55,4 +55,41 @@ public class ContextTagsMapTests {
         assertEquals(customValue, map.get(customKey));
     }
 
+    @Test
+    public void sharedTagsAreKeptUntilOneOfThemIsChanged() {
+        ContextTagsMap source = new ContextTagsMap();
+        source.put(ContextTagKeys.getKeys().getCloudRole(), "role");
+
+        map.initializeFrom(source);
+        assertNotNull(map.getSharedSerializedTags());
+
+        map.put(ContextTagKeys.getKeys().getOperationId(), "op-1");
+        assertNotNull(map.getSharedSerializedTags());
+
+        map.put(ContextTagKeys.getKeys().getCloudRole(), "other role");
+        assertNull(map.getSharedSerializedTags());
+    }
+
+    @Test
+    public void sourceIsSerializedAgainOnlyWhenItChanges() {
+        ContextTagsMap source = new ContextTagsMap();
+        source.put(ContextTagKeys.getKeys().getCloudRole(), "role");
+
+        map.initializeFrom(source);
+        ContextTagsMap other = new ContextTagsMap();
+        other.initializeFrom(source);
+        assertSame(map.getSharedSerializedTags(), other.getSharedSerializedTags());
+
+        source.put(ContextTagKeys.getKeys().getCloudRole(), "new role");
+        ContextTagsMap next = new ContextTagsMap();
+        next.initializeFrom(source);
+        assertNotSame(map.getSharedSerializedTags(), next.getSharedSerializedTags());
+        assertEquals("new role", next.get(ContextTagKeys.getKeys().getCloudRole()));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void entriesCannotBeChangedThroughTheViews() {
+        map.put(ContextTagKeys.getKeys().getCloudRole(), "role");
+        map.entrySet().iterator().next().setValue("other role");
+    }
 }
@@ -23,14 +23,21 @@ package com.microsoft.applicationinsights.telemetry;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.google.common.base.Charsets;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import com.microsoft.applicationinsights.extensibility.context.ContextTagKeys;
+import com.microsoft.applicationinsights.internal.schemav2.AvailabilityData;
+import com.microsoft.applicationinsights.internal.schemav2.PageViewPerfData;
 import com.microsoft.applicationinsights.internal.schemav2.SeverityLevel;
 import com.squareup.moshi.JsonWriter;
 import okio.Buffer;
@@ -421,4 +428,291 @@ public class JsonTelemetryDataSerializerTest {
         assertEquals(0, bac.d1, epsilon);
         assertEquals(0, bac.d2, epsilon);
     }
+
+    @Test
+    public void testTagsSharedWithSourceContextAreSplicedWithTheItemTags() throws IOException {
+        TelemetryContext shared = new TelemetryContext();
+        shared.getCloud().setRole("role \"quoted\"");
+        shared.getCloud().setRoleInstance("instance");
+        shared.getInternal().setSdkVersion("java:2.0.0");
+
+        TelemetryContext item = new TelemetryContext();
+        item.getOperation().setId("op-1");
+        item.initialize(shared);
+
+        Map<String, String> expected = new HashMap<String, String>(shared.getTags());
+        expected.put(ContextTagKeys.getKeys().getOperationId(), "op-1");
+        assertEquals(expected, serializeTags(item));
+
+        // Items without tags of their own get the shared Json as is
+        TelemetryContext plainItem = new TelemetryContext();
+        plainItem.initialize(shared);
+        assertEquals(new HashMap<String, String>(shared.getTags()), serializeTags(plainItem));
+    }
+
+    @Test
+    public void testTagsAreWrittenOneByOneWhenTheItemOverridesASharedTag() throws IOException {
+        TelemetryContext shared = new TelemetryContext();
+        shared.getCloud().setRole("role");
+        shared.getCloud().setRoleInstance("instance");
+
+        TelemetryContext item = new TelemetryContext();
+        item.getCloud().setRole("other role");
+        item.initialize(shared);
+
+        Map<String, String> tags = serializeTags(item);
+        assertEquals("other role", tags.get(ContextTagKeys.getKeys().getCloudRole()));
+        assertEquals("instance", tags.get(ContextTagKeys.getKeys().getCloudRoleInstance()));
+        assertEquals(2, tags.size());
+    }
+
+    @Test
+    public void testSharedTagsAreSerializedAgainWhenTheyChange() throws IOException {
+        TelemetryContext shared = new TelemetryContext();
+        shared.getCloud().setRole("role");
+
+        TelemetryContext item = new TelemetryContext();
+        item.initialize(shared);
+        assertEquals("role", serializeTags(item).get(ContextTagKeys.getKeys().getCloudRole()));
+
+        shared.getCloud().setRole("new role");
+        TelemetryContext nextItem = new TelemetryContext();
+        nextItem.initialize(shared);
+        assertEquals("new role", serializeTags(nextItem).get(ContextTagKeys.getKeys().getCloudRole()));
+        assertEquals("role", serializeTags(item).get(ContextTagKeys.getKeys().getCloudRole()));
+    }
+
+    @Test
+    public void testTagsAreWrittenOneByOneWhenASharedTagIsChangedAfterInitialization() throws IOException {
+        TelemetryContext shared = new TelemetryContext();
+        shared.getCloud().setRole("role");
+        shared.getCloud().setRoleInstance("instance");
+
+        TelemetryContext item = new TelemetryContext();
+        item.initialize(shared);
+        item.getOperation().setId("op-1");
+        item.getTags().remove(ContextTagKeys.getKeys().getCloudRoleInstance());
+        item.getCloud().setRole("other role");
+
+        Map<String, String> tags = serializeTags(item);
+        assertEquals("other role", tags.get(ContextTagKeys.getKeys().getCloudRole()));
+        assertEquals("op-1", tags.get(ContextTagKeys.getKeys().getOperationId()));
+        assertEquals(2, tags.size());
+    }
+
+    @Test
+    public void testSplicedTagsAreTheSameAsTagsWrittenOneByOne() throws IOException {
+        TelemetryContext shared = new TelemetryContext();
+        shared.getCloud().setRole("role \"quoted\"");
+        shared.getCloud().setRoleInstance("instance");
+
+        TelemetryContext item = new TelemetryContext();
+        item.initialize(shared);
+        item.getOperation().setId("op \n 1");
+        item.getOperation().setName("  " + TRICKY);
+
+        TelemetryContext plainItem = new TelemetryContext();
+        plainItem.getTags().putAll(item.getTags());
+
+        assertEquals(serializeTags(plainItem), serializeTags(item));
+    }
+
+    // Quotes, control characters, line separators and a string over the limits of most fields
+    private static final String TRICKY = "\"quoted\" \\ \t\b\f\n\r\u0001\u001f \u2028\u2029 \u00e9\u4e2d\ud83d\ude00 "
+            + TelemetryTestsUtils.createString(40000);
+
+    @Test
+    public void testGeneratedWritersWriteTheSameBytesForRequests() throws IOException {
+        RequestTelemetry telemetry = new RequestTelemetry(TRICKY, new Date(1500000000123L), 1234L, TRICKY, false);
+        telemetry.setUrl(new URL("http://localhost/path?q=1"));
+        telemetry.setSource(TRICKY);
+        addProperties(telemetry);
+        telemetry.getMetrics().put("nan", Double.NaN);
+        telemetry.getMetrics().put("infinite", Double.POSITIVE_INFINITY);
+        telemetry.getMetrics().put("value", 3.25);
+
+        assertGeneratedWritersWriteTheSameBytes(telemetry);
+    }
+
+    @Test
+    public void testGeneratedWritersWriteTheSameBytesForExceptions() throws IOException {
+        Exception cause = new IllegalStateException(TRICKY);
+        ExceptionTelemetry telemetry = new ExceptionTelemetry(new RuntimeException("outer", cause));
+        telemetry.setSeverityLevel(com.microsoft.applicationinsights.telemetry.SeverityLevel.Error);
+        addProperties(telemetry);
+
+        assertGeneratedWritersWriteTheSameBytes(telemetry);
+        assertGeneratedWritersWriteTheSameBytes(new ExceptionTelemetry(new Exception((String) null), 1));
+    }
+
+    @Test
+    public void testGeneratedWritersWriteTheSameBytesForMetricsAndCounters() throws IOException {
+        MetricTelemetry metric = new MetricTelemetry(TRICKY, Double.NaN);
+        metric.setCount(3);
+        metric.setMin(-1.5);
+        metric.setMax(Double.NEGATIVE_INFINITY);
+        addProperties(metric);
+        assertGeneratedWritersWriteTheSameBytes(metric);
+
+        MetricTelemetry aggregation = new MetricTelemetry("aggregation", 1e21);
+        aggregation.setCount(0);
+        assertGeneratedWritersWriteTheSameBytes(aggregation);
+
+        assertGeneratedWritersWriteTheSameBytes(new PerformanceCounterTelemetry(TRICKY, "counter", "", 0.1));
+    }
+
+    @Test
+    public void testGeneratedWritersWriteTheSameBytesForOtherTelemetries() throws IOException {
+        EventTelemetry event = new EventTelemetry(TRICKY);
+        addProperties(event);
+        event.getMetrics().put("", 1.0);
+        assertGeneratedWritersWriteTheSameBytes(event);
+        assertGeneratedWritersWriteTheSameBytes(new EventTelemetry());
+
+        assertGeneratedWritersWriteTheSameBytes(new TraceTelemetry(TRICKY, com.microsoft.applicationinsights.telemetry.SeverityLevel.Critical));
+        assertGeneratedWritersWriteTheSameBytes(new TraceTelemetry(""));
+
+        PageViewTelemetry pageView = new PageViewTelemetry(TRICKY);
+        pageView.setDuration(42);
+        assertGeneratedWritersWriteTheSameBytes(pageView);
+
+        RemoteDependencyTelemetry dependency = new RemoteDependencyTelemetry(TRICKY, TRICKY, new Duration(1, 2, 3, 4, 5), true);
+        dependency.setResultCode("500");
+        dependency.setTarget(TRICKY);
+        dependency.setType("SQL");
+        addProperties(dependency);
+        assertGeneratedWritersWriteTheSameBytes(dependency);
+
+        // No generated writer, written as before
+        assertGeneratedWritersWriteTheSameBytes(new SessionStateTelemetry(SessionState.Start));
+    }
+
+    @Test
+    public void testGeneratedWritersWriteTheSameBytesForDataWithoutTelemetry() throws IOException {
+        AvailabilityData availability = new AvailabilityData();
+        availability.setId(TRICKY);
+        availability.setRunLocation(TRICKY);
+        availability.setMessage(null);
+        ConcurrentMap<String, String> properties = new ConcurrentHashMap<String, String>();
+        properties.put("  padded key  ", TRICKY);
+        availability.setProperties(properties);
+        assertGeneratedWritersWriteTheSameBytes(wrap(availability));
+
+        PageViewPerfData perf = new PageViewPerfData();
+        perf.setPerfTotal(new Duration(12345));
+        perf.setName(TRICKY);
+        assertGeneratedWritersWriteTheSameBytes(wrap(perf));
+    }
+
+    // Written by the hand-written serializers the schema classes had before their writers were generated,
+    // with the non-finite measurements as 0, an independent reference for both ways of writing
+    private static final String GOLDEN_REQUEST = "{\"ver\":1,\"name\":\"Microsoft.ApplicationInsights.Request\",\"time\":\"2017-07-14T02:40:00.123+0000\",\"sampleRate\":100.0,\"tags\":{\"ai.operation.id\":\"op\"}"
+            + ",\"data\":{\"baseType\":\"RequestData\",\"baseData\":{\"ver\":2,\"id\":\"id-1\",\"duration\":\"00:00:01.2340000\",\"responseCode\":\"200\",\"success\":true,\"source\":\"source\",\"name\":\"GET /path\",\"url\":\"http://localhost/path?q=1\",\"properties\":{\"key\":\"value \\\"quoted\\\"\\n\"},\"measurements\":{\"nan\":0,\"value\":3.25}}}}";
+
+    private static final String GOLDEN_EXCEPTION = "{\"ver\":1,\"name\":\"Microsoft.ApplicationInsights.Exception\",\"time\":\"2017-07-14T02:40:00.123+0000\",\"sampleRate\":100.0"
+            + ",\"data\":{\"baseType\":\"ExceptionData\",\"baseData\":{\"ver\":2,\"exceptions\":[{\"id\":7,\"outerId\":0,\"typeName\":\"java.lang.IllegalStateException\",\"message\":\"failed\",\"hasFullStack\":true,\"parsedStack\":[{\"level\":0,\"method\":\"com.example.Foo.bar\",\"fileName\":\"Foo.java\",\"line\":42}]}],\"severityLevel\":\"Error\"}}}";
+
+    private static final String GOLDEN_METRIC = "{\"ver\":1,\"name\":\"Microsoft.ApplicationInsights.Metric\",\"time\":\"2017-07-14T02:40:00.123+0000\",\"sampleRate\":100.0"
+            + ",\"data\":{\"baseType\":\"MetricData\",\"baseData\":{\"ver\":2,\"metrics\":[{\"name\":\"metric\",\"kind\":1,\"value\":0,\"count\":3,\"min\":-1.5,\"max\":0}]}}}";
+
+    private static final String GOLDEN_DEPENDENCY = "{\"ver\":1,\"name\":\"Microsoft.ApplicationInsights.RemoteDependency\",\"time\":\"2017-07-14T02:40:00.123+0000\",\"sampleRate\":100.0"
+            + ",\"data\":{\"baseType\":\"RemoteDependencyData\",\"baseData\":{\"ver\":2,\"name\":\"dependency\",\"resultCode\":\"500\",\"duration\":\"01.02:03:04.0050000\",\"success\":false,\"data\":\"SELECT 1\",\"type\":\"SQL\",\"measurements\":{\"infinite\":0}}}}";
+
+    private static final String GOLDEN_AVAILABILITY = "{\"data\":{\"ver\":2,\"id\":\"availability\",\"name\":\"test\",\"duration\":\"00:00:00\",\"success\":false,\"runLocation\":\"location\",\"measurements\":{\"nan\":0}}"
+            + ",\"list\":null,\"otherData\":{\"ver\":2,\"id\":\"availability\",\"name\":\"test\",\"duration\":\"00:00:00\",\"success\":false,\"runLocation\":\"location\",\"measurements\":{\"nan\":0}}}";
+
+    @Test
+    public void testWritersWriteTheGoldenJson() throws IOException {
+        RequestTelemetry request = new RequestTelemetry("GET /path", new Date(1500000000123L), 1234L, "200", true);
+        request.setId("id-1");
+        request.setUrl(new URL("http://localhost/path?q=1"));
+        request.setSource("source");
+        request.getProperties().put("key", "value \"quoted\"\n");
+        request.getMetrics().put("nan", Double.NaN);
+        request.getMetrics().put("value", 3.25);
+        request.getContext().getOperation().setId("op");
+        assertWritesGoldenJson(GOLDEN_REQUEST, request);
+
+        Exception exception = new IllegalStateException("failed");
+        exception.setStackTrace(new StackTraceElement[] {new StackTraceElement("com.example.Foo", "bar", "Foo.java", 42)});
+        ExceptionTelemetry exceptionTelemetry = new ExceptionTelemetry(exception);
+        exceptionTelemetry.setTimestamp(new Date(1500000000123L));
+        exceptionTelemetry.getExceptions().get(0).setId(7);
+        exceptionTelemetry.setSeverityLevel(com.microsoft.applicationinsights.telemetry.SeverityLevel.Error);
+        assertWritesGoldenJson(GOLDEN_EXCEPTION, exceptionTelemetry);
+
+        MetricTelemetry metric = new MetricTelemetry("metric", Double.NaN);
+        metric.setTimestamp(new Date(1500000000123L));
+        metric.setCount(3);
+        metric.setMin(-1.5);
+        metric.setMax(Double.NEGATIVE_INFINITY);
+        assertWritesGoldenJson(GOLDEN_METRIC, metric);
+
+        RemoteDependencyTelemetry dependency = new RemoteDependencyTelemetry("dependency", "SELECT 1", new Duration(1, 2, 3, 4, 5), false);
+        dependency.setTimestamp(new Date(1500000000123L));
+        dependency.setResultCode("500");
+        dependency.setType("SQL");
+        dependency.getMetrics().put("infinite", Double.POSITIVE_INFINITY);
+        assertWritesGoldenJson(GOLDEN_DEPENDENCY, dependency);
+
+        AvailabilityData availability = new AvailabilityData();
+        availability.setId("availability");
+        availability.setName("test");
+        availability.setRunLocation("location");
+        availability.getMeasurements().put("nan", Double.NaN);
+        assertWritesGoldenJson(GOLDEN_AVAILABILITY, wrap(availability));
+    }
+
+    private static void addProperties(Telemetry telemetry) {
+        telemetry.getProperties().put("key", TRICKY);
+        telemetry.getProperties().put(TRICKY, "value");
+        telemetry.getProperties().put("empty", "");
+        telemetry.getContext().getOperation().setId(TRICKY);
+    }
+
+    private static JsonSerializable wrap(final JsonSerializable data) {
+        return new JsonSerializable() {
+            @Override
+            public void serialize(JsonTelemetryDataSerializer serializer) throws IOException {
+                serializer.write("data", data);
+                serializer.write("list", new ArrayList<String>());
+                serializer.write("otherData", data);
+            }
+        };
+    }
+
+    private static void assertWritesGoldenJson(String expected, JsonSerializable value) throws IOException {
+        assertEquals(expected, serialize(value, false));
+        assertEquals(expected, serialize(value, true));
+    }
+
+    private static void assertGeneratedWritersWriteTheSameBytes(JsonSerializable value) throws IOException {
+        String expected = serialize(value, false);
+        assertEquals(expected, serialize(value, true));
+        // The writers are reused by the next item
+        assertEquals(expected, serialize(value, true));
+    }
+
+    private static String serialize(JsonSerializable value, boolean useGeneratedWriters) throws IOException {
+        Buffer buffer = new Buffer();
+        JsonWriter writer = JsonWriter.of(buffer);
+        JsonTelemetryDataSerializer tested = new JsonTelemetryDataSerializer(writer, useGeneratedWriters);
+        value.serialize(tested);
+        tested.close();
+        writer.close();
+        return new String(buffer.readByteArray(), Charsets.UTF_8);
+    }
+
+    private static Map<String, String> serializeTags(TelemetryContext context) throws IOException {
+        Buffer buffer = new Buffer();
+        JsonWriter writer = JsonWriter.of(buffer);
+        JsonTelemetryDataSerializer tested = new JsonTelemetryDataSerializer(writer);
+        tested.write("tags", context.getTags());
+        tested.close();
+        writer.close();
+        String str = new String(buffer.readByteArray(), Charsets.UTF_8);
+
+        Map<String, Map<String, String>> envelope = new Gson().fromJson(str, new TypeToken<Map<String, Map<String, String>>>() {}.getType());
+        return envelope.get("tags");
+    }
 }